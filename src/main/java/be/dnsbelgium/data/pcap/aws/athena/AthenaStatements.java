@@ -26,6 +26,7 @@ import org.springframework.core.io.ClassPathResource;
 
 import java.io.IOException;
 import java.time.LocalDate;
+import java.util.List;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -33,6 +34,27 @@ public class AthenaStatements {
 
   private static final Logger logger = getLogger(AthenaStatements.class);
 
+  /**
+   * @param date   day of the partition
+   * @param server server of the partition
+   * @return path of the partition relative to the S3 location of the table, e.g. year=2019/month=03/day=02/server=ns1
+   */
+  public static String partitionPath(LocalDate date, ServerInfo server) {
+    return partitionPath(date, null, server);
+  }
+
+  /**
+   * @param date   day of the partition
+   * @param hour   hour of the partition, null when the table has no hour partitions
+   * @param server server of the partition
+   * @return path of the partition relative to the S3 location of the table, e.g. year=2019/month=03/day=02/server=ns1/hour=07
+   */
+  public static String partitionPath(LocalDate date, Integer hour, ServerInfo server) {
+    String path = String.format("year=%04d/month=%02d/day=%02d/server=%s",
+        date.getYear(), date.getMonthValue(), date.getDayOfMonth(), server.getName().toLowerCase());
+    return (hour == null) ? path : path + String.format("/hour=%02d", hour);
+  }
+
   /**
    * Generate DDL to add a new partition to an Athena table
    *
@@ -44,6 +66,22 @@ public class AthenaStatements {
    * @return the DDL to add a new partition to an Athena table
    */
   public String addPartition(LocalDate date, ServerInfo server, String s3Location, String databaseName, String tableName) {
+    return addPartition(date, null, server, s3Location, databaseName, tableName);
+  }
+
+  /**
+   * Generate DDL to add a new partition to an Athena table
+   *
+   * @param date         day for which we want to add a partition
+   * @param hour         hour for which we want to add a partition, null when the table has no hour partitions
+   * @param server       server for which we want to add a partition
+   * @param s3Location   name of S3 bucket (should start with 's3://' and end with "/dnsdata/")
+   * @param databaseName the name of the Athena database where table resides.
+   * @param tableName    the name of the Athena table. Will be lower-cased.
+   * @return the DDL to add a new partition to an Athena table
+   */
+  public String addPartition(LocalDate date, Integer hour, ServerInfo server, String s3Location, String databaseName,
+                             String tableName) {
 
     if (!s3Location.startsWith("s3://")) {
       throw new RuntimeException("s3Location should start with 's3://' but was " + s3Location);
@@ -54,13 +92,14 @@ public class AthenaStatements {
     }
 
     String ddl = String.format(
-        "alter table %s.%s add if not exists partition (year='%04d',month='%02d',day='%02d',server='%s') " +
-            " location '%s" + "year=%04d/month=%02d/day=%02d/server=%s'",
+        "alter table %s.%s add if not exists partition (year='%04d',month='%02d',day='%02d',server='%s'%s) " +
+            " location '%s" + "%s'",
         databaseName,
         tableName.toLowerCase(),
         date.getYear(), date.getMonthValue(), date.getDayOfMonth(), server.getName().toLowerCase(),
+        (hour == null) ? "" : String.format(",hour='%02d'", hour),
         s3Location,
-        date.getYear(), date.getMonthValue(), date.getDayOfMonth(), server.getName().toLowerCase()
+        partitionPath(date, hour, server)
     );
     logger.info("addPartition: DDL = {}", ddl);
     return ddl;
@@ -82,6 +121,64 @@ public class AthenaStatements {
   }
 
   public String createTable(String databaseName, String tableName, String s3Location) {
+    return createTable(databaseName, tableName, s3Location, false);
+  }
+
+  /**
+   * @param databaseName   the name of the Athena database
+   * @param tableName      the name of the Athena table
+   * @param s3Location     location of the table on S3, ending with a slash
+   * @param hourPartitions whether the partition of every day and server is split in hours
+   * @return DDL for a table whose partitions are added with {@link #addPartition}
+   */
+  public String createTable(String databaseName, String tableName, String s3Location, boolean hourPartitions) {
+    return createTable(databaseName, tableName, s3Location, hourPartitions, "");
+  }
+
+  /**
+   * DDL for a table with partition projection: Athena computes the partitions from the query and the
+   * storage location template, so partitions are never added and a query only lists the prefixes it needs.
+   *
+   * @param databaseName   the name of the Athena database
+   * @param tableName      the name of the Athena table
+   * @param s3Location     location of the table on S3, ending with a slash
+   * @param hourPartitions whether the partition of every day and server is split in hours
+   * @param years          first and last year of the projected partitions, e.g. 2019,2039
+   * @param servers        the values of the server partition. When empty, queries must filter on one or
+   *                       more servers with <code>server = '...'</code> or <code>server in (...)</code>
+   * @return DDL for a table with partition projection
+   */
+  public String createProjectedTable(String databaseName, String tableName, String s3Location, boolean hourPartitions,
+                                     String years, List<String> servers) {
+    StringBuilder properties = new StringBuilder()
+        .append(",\n  'projection.enabled'='true'")
+        .append(projection("year", "integer", "range", years))
+        .append(projection("month", "integer", "range", "1,12"))
+        .append(",\n  'projection.month.digits'='2'")
+        .append(projection("day", "integer", "range", "1,31"))
+        .append(",\n  'projection.day.digits'='2'");
+    if (servers.isEmpty()) {
+      properties.append(",\n  'projection.server.type'='injected'");
+    } else {
+      properties.append(projection("server", "enum", "values", String.join(",", servers)));
+    }
+    String template = s3Location + "year=${year}/month=${month}/day=${day}/server=${server}";
+    if (hourPartitions) {
+      properties
+          .append(projection("hour", "integer", "range", "0,23"))
+          .append(",\n  'projection.hour.digits'='2'");
+      template += "/hour=${hour}";
+    }
+    properties.append(",\n  'storage.location.template'='").append(template).append("'");
+    return createTable(databaseName, tableName, s3Location, hourPartitions, properties.toString());
+  }
+
+  private static String projection(String column, String type, String property, String value) {
+    return String.format(",\n  'projection.%s.type'='%s',\n  'projection.%s.%s'='%s'", column, type, column, property, value);
+  }
+
+  private String createTable(String databaseName, String tableName, String s3Location, boolean hourPartitions,
+                             String properties) {
     ClassPathResource resource = new ClassPathResource("/sql/athena-create-table.sql", this.getClass());
     String create_table_stmt;
 
@@ -95,6 +192,8 @@ public class AthenaStatements {
     create_table_stmt = create_table_stmt.replace("{DATABASENAME}", databaseName);
     create_table_stmt = create_table_stmt.replace("{TABLENAME}", tableName);
     create_table_stmt = create_table_stmt.replace("{S3LOCATION}", s3Location);
+    create_table_stmt = create_table_stmt.replace("{HOURCOLUMN}", hourPartitions ? ",\n  hour string" : "");
+    create_table_stmt = create_table_stmt.replace("{TBLPROPERTIES}", properties);
     return create_table_stmt;
   }
 
@@ -21,6 +21,7 @@ package be.dnsbelgium.data.pcap.aws.athena;
 
 import be.dnsbelgium.data.pcap.convertor.ConvertorConfig;
 import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
 import com.simba.athena.jdbc42.DataSource;
 import com.simba.athena.support.LogLevel;
 import org.slf4j.Logger;
@@ -61,9 +62,23 @@ public class AthenaTools {
   @Value("${athena.output.location}")
   private String outputLocation;
 
+  // when set, the table is created with partition projection and partitions are never added
+  @Value("${athena.partition.projection:false}")
+  private boolean partitionProjection;
+
+  @Value("${athena.partition.projection.years:2019,2039}")
+  private String projectionYears;
+
+  // values of the server partition, servers.include when empty
+  @Value("${athena.partition.projection.servers:}")
+  private List<String> projectionServers;
+
   @Autowired
   private ConvertorConfig convertorConfig;
 
+  @Autowired
+  private ParquetWriterConfig writerConfig;
+
   private AthenaStatements statements = new AthenaStatements();
 
   private JdbcTemplate template;
@@ -119,6 +134,9 @@ public class AthenaTools {
     logger.info(" ${athena.log.path}        = {}", logPath);
     logger.info(" ${athena.output.location} = {}", outputLocation);
     logger.info(" ${athena.workgroup}       = {}", workgroup);
+    logger.info(" ${athena.partition.projection}         = {}", partitionProjection);
+    logger.info(" ${athena.partition.projection.years}   = {}", projectionYears);
+    logger.info(" ${athena.partition.projection.servers} = {}", projectionServers);
     logger.info("==============================");
   }
 
@@ -133,9 +151,24 @@ public class AthenaTools {
    * @param s3Location   location on S3 (should start with 's3://' and end with "/dnsdata/")
    */
   public void addPartition(LocalDate date, ServerInfo server, String databaseName, String tableName, String s3Location) {
-    logger.info("Adding a partition for day={} and server = {} to table {}.{} in bucket {}",
-        date, server, databaseName, tableName, s3Location);
-    String ddl = statements.addPartition(date, server, s3Location, databaseName, tableName);
+    addPartition(date, null, server, databaseName, tableName, s3Location);
+  }
+
+  /**
+   * Tell Athena that there is a new partition.
+   *
+   * @param date         day for which we want to add a partition
+   * @param hour         hour for which we want to add a partition, null when the table has no hour partitions
+   * @param server       server for which we want to add a partition
+   * @param databaseName the name of the Athena database where table resides.
+   * @param tableName    the name of the Athena table. Will be lower-cased.
+   * @param s3Location   location on S3 (should start with 's3://' and end with "/dnsdata/")
+   */
+  public void addPartition(LocalDate date, Integer hour, ServerInfo server, String databaseName, String tableName,
+                           String s3Location) {
+    logger.info("Adding a partition for day={}, hour={} and server = {} to table {}.{} in bucket {}",
+        date, hour, server, databaseName, tableName, s3Location);
+    String ddl = statements.addPartition(date, hour, server, s3Location, databaseName, tableName);
     logger.info("ddl: {}", ddl);
     template.execute(ddl);
   }
@@ -156,8 +189,22 @@ public class AthenaTools {
     return partitions;
   }
 
+  /**
+   * @return true when the table uses partition projection, so that partitions should not be added
+   */
+  public boolean isPartitionProjection() {
+    return partitionProjection;
+  }
+
   public void createDnsQueryTable(String databaseName, String tableName, String s3Location) {
-    String ddl = statements.createTable(databaseName, tableName, s3Location);
+    String ddl;
+    if (partitionProjection) {
+      List<String> servers = projectionServers.isEmpty() ? convertorConfig.getIncludedServers() : projectionServers;
+      ddl = statements.createProjectedTable(databaseName, tableName, s3Location, writerConfig.isHourPartitions(),
+          projectionYears, servers);
+    } else {
+      ddl = statements.createTable(databaseName, tableName, s3Location, writerConfig.isHourPartitions());
+    }
     executeDDL(ddl);
   }
 
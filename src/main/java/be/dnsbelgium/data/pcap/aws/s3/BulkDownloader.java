@@ -20,6 +20,7 @@
 package be.dnsbelgium.data.pcap.aws.s3;
 
 import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.reader.PcapCompression;
 import be.dnsbelgium.data.pcap.utils.FileSize;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ObjectListing;
@@ -117,9 +118,14 @@ public class BulkDownloader {
     S3Object s3object = amazonS3.getObject(bucketName, objectSummary.getKey());
     File file = new File(objectSummary.getKey());
     String fileName = date.format(DateTimeFormatter.ofPattern("yyyy'_'MM'_'dd")) + "_" + file.getName();
-    if (!fileName.endsWith(".pcap.gz")) {
-      logger.debug("appending .pcap.gz since the parquet converter expects it");
-      fileName += ".pcap.gz";
+    PcapCompression compression = PcapCompression.guess(fileName);
+    if (compression == PcapCompression.NONE) {
+      // files without a known extension have always been gzip'ed
+      compression = PcapCompression.GZIP;
+    }
+    if (!fileName.endsWith(compression.getPcapSuffix())) {
+      logger.debug("appending {} since the parquet converter expects it", compression.getPcapSuffix());
+      fileName += compression.getPcapSuffix();
     }
     String folderName = downloadFolder + "/" + server.getFullname() + "/";
     logger.info("saving file in {}", folderName);
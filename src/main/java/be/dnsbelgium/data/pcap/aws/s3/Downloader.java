@@ -181,6 +181,34 @@ public class Downloader {
     return files;
   }
 
+  /**
+   * @param bucketName the bucket
+   * @param prefix     the prefix of the keys
+   * @return all objects with the given prefix, also when S3 returns them in more than one batch
+   */
+  public List<S3ObjectSummary> listObjects(String bucketName, String prefix) {
+    List<S3ObjectSummary> summaries = new ArrayList<>();
+    ObjectListing objectListing = amazonS3.listObjects(bucketName, prefix);
+    summaries.addAll(objectListing.getObjectSummaries());
+    while (objectListing.isTruncated()) {
+      objectListing = amazonS3.listNextBatchOfObjects(objectListing);
+      summaries.addAll(objectListing.getObjectSummaries());
+    }
+    logger.info("Found {} objects in {}/{}", summaries.size(), bucketName, Strings.nullToEmpty(prefix));
+    return summaries;
+  }
+
+  public boolean delete(String bucketName, String key) {
+    try {
+      logger.info("Deleting {} in {}", key, bucketName);
+      amazonS3.deleteObject(bucketName, key);
+      return true;
+    } catch (AmazonServiceException e) {
+      logger.error("Failed to delete {} in {}. {} : {}", key, bucketName, e.getClass().getSimpleName(), e.getMessage());
+      return false;
+    }
+  }
+
   /**
    * Download a S3 Object and save it to the given path
    * @param objectSummary the S3ObjectSummary
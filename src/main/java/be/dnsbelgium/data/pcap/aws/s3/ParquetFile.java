@@ -40,27 +40,54 @@ public class ParquetFile {
   private final File file;
   private final LocalDate date;
   private final String server;
+  // null when the files are not partitioned per hour
+  private final Integer hour;
+  // size of a file that was streamed to S3 and does not exist locally, -1 for a local file
+  private final long uploadedSize;
 
-  private final static String REGEX = ".*/year=(?<yyyy>\\d{4})/month=(?<mm>\\d{2})/day=(?<dd>\\d{2})/server=(?<server>[^/]+)/.*";
+  private final static String REGEX = ".*/year=(?<yyyy>\\d{4})/month=(?<mm>\\d{2})/day=(?<dd>\\d{2})/server=(?<server>[^/]+)/(?:hour=(?<hh>\\d{2})/)?.*";
   private final static Pattern PATTERN = Pattern.compile(REGEX);
 
 
   public ParquetFile(File baseFolder, File file) {
+    this(baseFolder, file, -1);
+  }
+
+  private ParquetFile(File baseFolder, File file, long uploadedSize) {
     this.baseFolder = baseFolder;
     this.file = file;
+    this.uploadedSize = uploadedSize;
     // extract the LocalDate from the path
     String partions = file.getAbsolutePath().replace(file.getName(), "").replace(baseFolder.getAbsolutePath(), "");
     Matcher matcher = PATTERN.matcher(partions);
     if (matcher.find()) {
       date = LocalDate.parse(matcher.group("yyyy") + matcher.group("mm") + matcher.group("dd"), DateTimeFormatter.BASIC_ISO_DATE);
       server = matcher.group("server");
+      hour = matcher.group("hh") == null ? null : Integer.valueOf(matcher.group("hh"));
     } else {
       logger.error("Filename {} does not match regex {}", file, REGEX);
       date = null;
       server = null;
+      hour = null;
     }
   }
 
+  /**
+   * A file that was written straight to S3, see {@link S3ParquetOutput}.
+   *
+   * @param baseFolder the folder the file would have been written to
+   * @param path       path of the file relative to the base folder
+   * @param size       size of the file in bytes
+   * @return the uploaded file
+   */
+  public static ParquetFile uploaded(File baseFolder, String path, long size) {
+    return new ParquetFile(baseFolder, new File(baseFolder, path), size);
+  }
+
+  public boolean isUploaded() {
+    return uploadedSize >= 0;
+  }
+
   public LocalDate getDate() {
     return date;
   }
@@ -69,6 +96,13 @@ public class ParquetFile {
     return server;
   }
 
+  /**
+   * @return hour of the partition of the file, null when the file is not in an hour partition
+   */
+  public Integer getHour() {
+    return hour;
+  }
+
   public File getBaseFolder() {
     return baseFolder;
   }
@@ -78,7 +112,7 @@ public class ParquetFile {
   }
 
   public long size() {
-    return file.length();
+    return isUploaded() ? uploadedSize : file.length();
   }
 
   public String getKey() {
@@ -86,6 +120,7 @@ public class ParquetFile {
   }
 
   public boolean matches(ServerInfo server) {
+    // also matches the files in hour partitions under the server partition
     String regexp = "dnsdata/year=\\d{4}/month=\\d{2}/day=\\d{2}/server=" + server.getName() + "/.*\\.parquet";
     String key = getKey();
     if (!key.matches(regexp)) {
@@ -114,6 +149,7 @@ public class ParquetFile {
     return new StringJoiner(", ", ParquetFile.class.getSimpleName() + "[", "]")
         .add("baseFolder=" + baseFolder)
         .add("file=" + file)
+        .add("uploaded=" + isUploaded())
         .toString();
   }
 }
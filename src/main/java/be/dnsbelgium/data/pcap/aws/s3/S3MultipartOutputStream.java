@@ -0,0 +1,317 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.apache.parquet.io.PositionOutputStream;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Uploads to S3 while it is being written. Every <code>partBytes</code> bytes are uploaded as a part of a multipart
+ * upload by an executor, while the caller fills the next part. When <code>partsInFlight</code> parts are waiting
+ * for or being uploaded, the writes wait for the oldest one, so a stream holds at most
+ * <code>partsInFlight + 1</code> parts in memory and nothing on disk. The buffer of the first part grows as it
+ * is filled, so a small file does not take a whole part.
+ * <p>
+ * Closing the stream uploads the last part but does not finish the upload: the object only appears when
+ * {@link #complete()} is called, {@link #abort()} discards the parts. When the stream is closed before the first
+ * part is full, nothing is uploaded until {@link #complete()}, which then stores the object with a single put.
+ * <p>
+ * S3 wants parts of at least {@link #MIN_PART_BYTES}, except for the last one. Not thread-safe.
+ */
+public class S3MultipartOutputStream extends PositionOutputStream {
+
+  private static final Logger logger = getLogger(S3MultipartOutputStream.class);
+
+  public static final int MIN_PART_BYTES = 5 * 1024 * 1024;
+
+  private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+  private final AmazonS3 amazonS3;
+  private final String bucket;
+  private final String key;
+  private final int partBytes;
+  private final int partsInFlight;
+  private final ExecutorService executor;
+
+  private final Deque<Part> uploading = new ArrayDeque<>();
+  // the buffers of uploaded parts, reused for the next parts
+  private final Deque<byte[]> free = new ArrayDeque<>();
+  private final List<PartETag> etags = new ArrayList<>();
+  private byte[] buffer = new byte[0];
+  private int count = 0;
+  private long position = 0;
+  private String uploadId;
+  private int parts = 0;
+  private boolean closed = false;
+  private boolean finished = false;
+
+  /**
+   * @param amazonS3      the client to upload with
+   * @param bucket        bucket of the object
+   * @param key           key of the object
+   * @param partBytes     size of the parts, at least {@link #MIN_PART_BYTES}
+   * @param partsInFlight number of parts that can be uploaded at the same time
+   * @param executor      runs the uploads of the parts
+   * @throws IllegalArgumentException when the parts are too small or partsInFlight is not positive
+   */
+  public S3MultipartOutputStream(AmazonS3 amazonS3, String bucket, String key, int partBytes, int partsInFlight,
+                                 ExecutorService executor) {
+    this(amazonS3, bucket, key, partBytes, partsInFlight, executor, MIN_PART_BYTES);
+  }
+
+  /**
+   * For tests against a stand-in for S3 with a smaller minimum part size.
+   */
+  S3MultipartOutputStream(AmazonS3 amazonS3, String bucket, String key, int partBytes, int partsInFlight,
+                          ExecutorService executor, int minPartBytes) {
+    checkPartBytes(partBytes, minPartBytes);
+    if (partsInFlight <= 0) {
+      throw new IllegalArgumentException("partsInFlight should be positive but was " + partsInFlight);
+    }
+    this.amazonS3 = amazonS3;
+    this.bucket = bucket;
+    this.key = key;
+    this.partBytes = partBytes;
+    this.partsInFlight = partsInFlight;
+    this.executor = executor;
+  }
+
+  static void checkPartBytes(int partBytes, int minPartBytes) {
+    if (partBytes < minPartBytes) {
+      throw new IllegalArgumentException("S3 parts should be at least " + minPartBytes + " bytes but were " + partBytes);
+    }
+  }
+
+  @Override
+  public long getPos() {
+    return position;
+  }
+
+  /**
+   * @return size of the buffers the stream holds: the part being filled, the parts being uploaded and the buffers
+   * kept for the next parts
+   */
+  public long getMemoryBytes() {
+    return buffer == null ? 0 : buffer.length + (long) (uploading.size() + free.size()) * partBytes;
+  }
+
+  /**
+   * @return number of parts handed to the executor so far
+   */
+  public int getParts() {
+    return parts;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (count == buffer.length) {
+      makeRoom();
+    }
+    buffer[count++] = (byte) b;
+    position++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      if (count == buffer.length) {
+        makeRoom();
+      }
+      int n = Math.min(len, buffer.length - count);
+      System.arraycopy(b, off, buffer, count, n);
+      count += n;
+      off += n;
+      len -= n;
+      position += n;
+    }
+  }
+
+  /**
+   * Upload the last part and wait until all parts are uploaded.
+   *
+   * @throws IOException when a part could not be uploaded
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (uploadId != null) {
+      if (count > 0) {
+        uploadPart();
+      }
+      while (!uploading.isEmpty()) {
+        awaitOldest();
+      }
+    }
+  }
+
+  /**
+   * Make the object visible in S3.
+   *
+   * @throws IOException when the upload could not be completed
+   */
+  public void complete() throws IOException {
+    if (!closed) {
+      throw new IllegalStateException("Close the stream of s3://" + bucket + "/" + key + " before completing it");
+    }
+    if (finished) {
+      throw new IllegalStateException("Upload of s3://" + bucket + "/" + key + " was already finished");
+    }
+    finished = true;
+    try {
+      if (uploadId == null) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(count);
+        amazonS3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, count), metadata));
+      } else {
+        amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+      }
+    } catch (AmazonClientException e) {
+      throw new IOException("Could not complete the upload of s3://" + bucket + "/" + key, e);
+    } finally {
+      buffer = null;
+      free.clear();
+    }
+    logger.debug("Uploaded s3://{}/{}: {} bytes in {} parts", bucket, key, position, Math.max(1, parts));
+  }
+
+  /**
+   * Stop uploading and discard the parts that were uploaded. Does nothing when the upload is already finished.
+   */
+  public void abort() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    closed = true;
+    for (Part part : uploading) {
+      part.upload.cancel(true);
+    }
+    uploading.clear();
+    buffer = null;
+    free.clear();
+    if (uploadId != null) {
+      try {
+        amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        logger.info("Aborted the upload of s3://{}/{}", bucket, key);
+      } catch (AmazonClientException e) {
+        // S3 removes the parts of incomplete uploads when the bucket has a lifecycle rule for them
+        logger.error("Could not abort the upload of s3://{}/{}", bucket, key, e);
+      }
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream of s3://" + bucket + "/" + key + " is closed");
+    }
+  }
+
+  private void makeRoom() throws IOException {
+    if (buffer.length < partBytes) {
+      buffer = Arrays.copyOf(buffer, (int) Math.min(partBytes, Math.max(INITIAL_BUFFER_BYTES, 2L * buffer.length)));
+    } else {
+      uploadPart();
+    }
+  }
+
+  private void uploadPart() throws IOException {
+    // recycle the buffers of the parts that are done, and fail early when one of them failed
+    while (!uploading.isEmpty() && uploading.peekFirst().upload.isDone()) {
+      awaitOldest();
+    }
+    if (uploading.size() >= partsInFlight) {
+      awaitOldest();
+    }
+    if (uploadId == null) {
+      try {
+        uploadId = amazonS3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+      } catch (AmazonClientException e) {
+        throw new IOException("Could not start the upload of s3://" + bucket + "/" + key, e);
+      }
+      logger.debug("Started upload {} of s3://{}/{}", uploadId, bucket, key);
+    }
+    int number = ++parts;
+    byte[] data = buffer;
+    UploadPartRequest request = new UploadPartRequest()
+        .withBucketName(bucket)
+        .withKey(key)
+        .withUploadId(uploadId)
+        .withPartNumber(number)
+        .withInputStream(new ByteArrayInputStream(data, 0, count))
+        .withPartSize(count);
+    uploading.addLast(new Part(number, data, executor.submit(() -> amazonS3.uploadPart(request).getPartETag())));
+    buffer = free.isEmpty() ? new byte[partBytes] : free.removeFirst();
+    count = 0;
+  }
+
+  private void awaitOldest() throws IOException {
+    Part part = uploading.removeFirst();
+    try {
+      etags.add(part.upload.get());
+      free.addLast(part.data);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while uploading part " + part.number + " of s3://" + bucket + "/" + key);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not upload part " + part.number + " of s3://" + bucket + "/" + key, e.getCause());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "s3://" + bucket + "/" + key;
+  }
+
+  private static class Part {
+
+    private final int number;
+    private final byte[] data;
+    private final Future<PartETag> upload;
+
+    private Part(int number, byte[] data, Future<PartETag> upload) {
+      this.number = number;
+      this.data = data;
+      this.upload = upload;
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.aws.s3;
+
+import be.dnsbelgium.data.pcap.parquet.ParquetOutput;
+import be.dnsbelgium.data.pcap.utils.FileSize;
+import com.amazonaws.services.s3.AmazonS3;
+import nl.sidn.pcap.support.NamedThreadFactory;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Writes parquet files straight to S3, with a {@link S3MultipartOutputStream} per file: the parts are uploaded
+ * while the parquet writer flushes its row groups, so conversion and upload overlap and the files never touch
+ * the local disk. A file appears under <code>keyPrefix + path</code> when it is committed.
+ * <p>
+ * The parts of all files are uploaded by a pool of threads that is stopped by {@link #close()}.
+ */
+public class S3ParquetOutput implements ParquetOutput, Closeable {
+
+  private static final Logger logger = getLogger(S3ParquetOutput.class);
+
+  private final AmazonS3 amazonS3;
+  private final String bucket;
+  private final String keyPrefix;
+  private final int partBytes;
+  private final int partsInFlight;
+  private final int minPartBytes;
+  private final ExecutorService executor;
+
+  // path and size of the committed files
+  private final Map<String, Long> committed = new LinkedHashMap<>();
+
+  /**
+   * @param amazonS3      the client to upload with
+   * @param bucket        bucket to upload to
+   * @param keyPrefix     prepended to the path of every file
+   * @param partBytes     size of the parts of the multipart uploads, at least
+   *                      {@link S3MultipartOutputStream#MIN_PART_BYTES}
+   * @param partsInFlight number of parts of a file that can be uploaded at the same time
+   * @param threads       number of threads uploading the parts of all files
+   * @throws IllegalArgumentException when the parts are too small
+   */
+  public S3ParquetOutput(AmazonS3 amazonS3, String bucket, String keyPrefix, int partBytes, int partsInFlight,
+                         int threads) {
+    this(amazonS3, bucket, keyPrefix, partBytes, partsInFlight, threads, S3MultipartOutputStream.MIN_PART_BYTES);
+  }
+
+  /**
+   * For tests against a stand-in for S3 with a smaller minimum part size.
+   */
+  S3ParquetOutput(AmazonS3 amazonS3, String bucket, String keyPrefix, int partBytes, int partsInFlight,
+                  int threads, int minPartBytes) {
+    S3MultipartOutputStream.checkPartBytes(partBytes, minPartBytes);
+    this.amazonS3 = amazonS3;
+    this.bucket = bucket;
+    this.keyPrefix = keyPrefix;
+    this.partBytes = partBytes;
+    this.partsInFlight = partsInFlight;
+    this.minPartBytes = minPartBytes;
+    this.executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("S3Upload-Thread"));
+  }
+
+  public String getBucket() {
+    return bucket;
+  }
+
+  public String getKeyPrefix() {
+    return keyPrefix;
+  }
+
+  @Override
+  public Pending create(String path) {
+    String key = keyPrefix + path;
+    return new Pending() {
+      private S3MultipartOutputStream stream;
+
+      @Override
+      public OutputFile getOutputFile() {
+        return new OutputFile() {
+          @Override
+          public PositionOutputStream create(long blockSizeHint) throws IOException {
+            if (stream != null) {
+              throw new IOException("s3://" + bucket + "/" + key + " was already created");
+            }
+            stream = new S3MultipartOutputStream(amazonS3, bucket, key, partBytes, partsInFlight, executor,
+                minPartBytes);
+            return stream;
+          }
+
+          @Override
+          public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+            return create(blockSizeHint);
+          }
+
+          @Override
+          public boolean supportsBlockSize() {
+            return false;
+          }
+
+          @Override
+          public long defaultBlockSize() {
+            return 0;
+          }
+
+          @Override
+          public String toString() {
+            return "s3://" + bucket + "/" + key;
+          }
+        };
+      }
+
+      @Override
+      public long getMemoryBytes() {
+        // the parts that are being filled or uploaded
+        return stream == null ? 0 : stream.getMemoryBytes();
+      }
+
+      @Override
+      public String commit() throws IOException {
+        if (stream == null) {
+          throw new IOException("Nothing was written to s3://" + bucket + "/" + key);
+        }
+        stream.complete();
+        synchronized (committed) {
+          committed.put(path, stream.getPos());
+        }
+        return "s3://" + bucket + "/" + key;
+      }
+
+      @Override
+      public void abort() {
+        if (stream != null) {
+          stream.abort();
+        }
+      }
+    };
+  }
+
+  /**
+   * @return the path and size of every file that was committed so far, in order of commit
+   */
+  public Map<String, Long> getCommitted() {
+    synchronized (committed) {
+      return new LinkedHashMap<>(committed);
+    }
+  }
+
+  /**
+   * Stop the upload threads, to be called when all files are committed or aborted.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        logger.warn("Upload threads of {} did not stop", this);
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    Map<String, Long> files = getCommitted();
+    long bytes = files.values().stream().mapToLong(Long::longValue).sum();
+    logger.info("Uploaded {} files to {}: {}", files.size(), this, FileSize.friendlySize(bytes));
+  }
+
+  @Override
+  public String toString() {
+    return "s3://" + bucket + "/" + keyPrefix;
+  }
+
+}
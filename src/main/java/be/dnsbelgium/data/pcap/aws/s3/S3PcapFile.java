@@ -20,6 +20,7 @@
 package be.dnsbelgium.data.pcap.aws.s3;
 
 import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.reader.PcapCompression;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.slf4j.Logger;
 
@@ -80,7 +81,7 @@ public class S3PcapFile implements Comparable<S3PcapFile> {
     String key = summary.getKey();
     String fileName = new File(key).toPath().getFileName().toString();
     Matcher matcher = PATTERN.matcher(key);
-    boolean compressed = key.endsWith(".gz");
+    boolean compressed = PcapCompression.guess(fileName).isCompressed();
 
     Matcher matcherWithPartitions = PATTERN_WITH_PARTITIONS.matcher(key);
     String iface = null;
@@ -151,16 +152,13 @@ public class S3PcapFile implements Comparable<S3PcapFile> {
   public String determineLocalFileName() {
     File file = new File(objectSummary.getKey());
     String fileName = file.getName();
-    if (fileName.endsWith(".pcap.gz") || fileName.endsWith(".pcap")) {
+    PcapCompression compression = PcapCompression.guess(fileName);
+    if (fileName.toLowerCase().endsWith(compression.getPcapSuffix())) {
       logger.info("OK, filename has a supported extension: {}", fileName);
     } else {
-      if (fileName.contains(".gz")) {
-        logger.debug("Filename contains .gz => assuming compressed and appending .pcap.gz since the parquet converter expects it");
-        fileName += ".pcap.gz";
-      } else {
-        logger.debug("Filename does not contain .gz => assuming not compressed and appending .pcap since the parquet converter expects it");
-        fileName += ".pcap";
-      }
+      logger.debug("Filename looks {} => appending {} since the parquet converter expects it",
+          compression, compression.getPcapSuffix());
+      fileName += compression.getPcapSuffix();
     }
     return fileName;
   }
@@ -41,6 +41,19 @@ public class Uploader {
   @Value("${parquet.delete.after.upload}")
   private boolean deleteAfterUpload;
 
+  // write the parquet files straight to S3 instead of uploading them once the conversion is done
+  @Value("${parquet.upload.streaming}")
+  private boolean streaming;
+
+  @Value("${parquet.upload.part.bytes}")
+  private int partBytes;
+
+  @Value("${parquet.upload.parts.in.flight}")
+  private int partsInFlight;
+
+  @Value("${parquet.upload.threads}")
+  private int uploadThreads;
+
   @Autowired
   public Uploader(@SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection") AmazonS3 amazonS3) {
     this.amazonS3 = amazonS3;
@@ -51,9 +64,33 @@ public class Uploader {
   @PostConstruct
   public void logConfig() {
     logger.info("*** config used by Uploader ***");
+    logger.info("   ${parquet.upload.streaming}       = {}", streaming);
+    logger.info("   ${parquet.upload.part.bytes}      = {}", partBytes);
+    logger.info("   ${parquet.upload.parts.in.flight} = {}", partsInFlight);
+    logger.info("   ${parquet.upload.threads}         = {}", uploadThreads);
+    if (partBytes < S3MultipartOutputStream.MIN_PART_BYTES) {
+      throw new IllegalArgumentException("parquet.upload.part.bytes should be at least "
+          + S3MultipartOutputStream.MIN_PART_BYTES + " but was " + partBytes);
+    }
     logger.info("**************************************");
   }
 
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Open an output that uploads the parquet files while they are written, to be closed when they are.
+   *
+   * @param bucketName the name of the bucket to upload to
+   * @param keyPrefix  prepended to the path of every file
+   * @return the output
+   */
+  public S3ParquetOutput streamTo(String bucketName, String keyPrefix) {
+    logger.info("Streaming parquet files to s3://{}/{} in parts of {}", bucketName, keyPrefix, FileSize.friendlySize(partBytes));
+    return new S3ParquetOutput(amazonS3, bucketName, keyPrefix, partBytes, partsInFlight, uploadThreads);
+  }
+
   public boolean upload(String bucketName, String key, ParquetFile parquetFile) {
     return upload(bucketName, key, parquetFile.getFile());
   }
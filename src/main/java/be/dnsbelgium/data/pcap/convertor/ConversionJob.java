@@ -120,6 +120,14 @@ public class ConversionJob {
     return (localConversionJob == null) ? Collections.emptyList() : localConversionJob.getDaysCovered();
   }
 
+  /**
+   * @param day one of the days of {@link #getDays()}
+   * @return the hours of the day for which this job has created Parquet files, empty without hour partitions
+   */
+  public List<Integer> getHours(LocalDate day) {
+    return (localConversionJob == null) ? Collections.emptyList() : localConversionJob.getHoursCovered(day);
+  }
+
   public Status getStatus() {
     return status;
   }
@@ -243,7 +251,8 @@ public class ConversionJob {
         .append("  PCAP files     : ").append(pcapFiles.size()).append("\n")
         .append("  PCAP size      : ").append(pcapBytes).append("\n")
         .append("  Parquet files  : ").append(getParquetFiles().size()).append("\n")
-        .append("  Parquet size   : ").append(parquetBytes).append("\n");
+        .append("  Parquet size   : ").append(parquetBytes).append("\n")
+        .append("  GeoIP database : ").append(String.join(" / ", getLocalConversionJob().getGeoDatabases())).append("\n");
     if (errorMessage != null) {
       builder.append("  Error message  : ").append(errorMessage).append("\n");
     }
@@ -220,10 +220,36 @@ public class ConvertorService {
   }
 
   public void convertPcapFiles(ConversionJob job) throws InterruptedException {
-    pcapConvertor.convertToParquet(job.getLocalConversionJob());
+    if (uploader.isStreaming()) {
+      streamPcapFiles(job);
+    } else {
+      pcapConvertor.convertToParquet(job.getLocalConversionJob());
+    }
     job.markPcapFilesConverted();
   }
 
+  /**
+   * Convert the PCAP files and upload the parquet files while they are written.
+   * When the conversion fails, the files that were already uploaded are deleted again.
+   */
+  private void streamPcapFiles(ConversionJob job) throws InterruptedException {
+    String keyPrefix = config.getParquetPrefix() + "dnsdata/";
+    S3ParquetOutput output = uploader.streamTo(config.getParquetBucketName(), keyPrefix);
+    boolean converted = false;
+    try {
+      pcapConvertor.convertToParquet(job.getLocalConversionJob(), output);
+      converted = true;
+    } finally {
+      output.close();
+      if (!converted) {
+        for (String path : output.getCommitted().keySet()) {
+          logger.info("Conversion failed => deleting s3://{}/{}{}", config.getParquetBucketName(), keyPrefix, path);
+          downloader.delete(config.getParquetBucketName(), keyPrefix + path);
+        }
+      }
+    }
+  }
+
   public void uploadParquetFiles(ConversionJob job) {
     int filesUploaded = 0;
     long bytesUploaded = 0;
@@ -232,7 +258,11 @@ public class ConvertorService {
 
     for (ParquetFile parquetFile : job.getParquetFiles()) {
       String key = parquetFile.getKey();
-      if (parquetFile.matches(job.getServer())) {
+      if (parquetFile.isUploaded()) {
+        // streamed to S3 while it was written
+        filesUploaded++;
+        bytesUploaded += parquetFile.size();
+      } else if (parquetFile.matches(job.getServer())) {
         logger.info("OK, uploading file because key matches server");
         String fullKey = config.getParquetPrefix() + key;
         logger.info("Uploading s3://{}/{}", config.getParquetBucketName(), fullKey);
@@ -251,16 +281,30 @@ public class ConvertorService {
   }
 
   public void createAthenaPartitions(ConversionJob job) {
+    if (athena.isPartitionProjection()) {
+      logger.info("createAthenaPartitions: not needed with partition projection, server={} and days = {}",
+          job.getServer(), job.getDays());
+      job.markAthenaPartitionsCreated();
+      return;
+    }
     logger.info("createAthenaPartitions for server={} and days = {}", job.getServer(), job.getDays());
     for (LocalDate day : job.getDays()) {
-      logger.info("create Athena partition for {} and {}", day, job.getServer());
-      addPartition(day, job.getServer());
+      List<Integer> hours = job.getHours(day);
+      if (hours.isEmpty()) {
+        logger.info("create Athena partition for {} and {}", day, job.getServer());
+        addPartition(day, null, job.getServer());
+      }
+      for (Integer hour : hours) {
+        logger.info("create Athena partition for {}, hour {} and {}", day, hour, job.getServer());
+        addPartition(day, hour, job.getServer());
+      }
     }
     job.markAthenaPartitionsCreated();
   }
 
-  private void addPartition(LocalDate day, ServerInfo server) {
-    athena.addPartition(day, server, config.getAthenaDatabaseName(), config.getAthenaTableName(), config.getParquetS3Location());
+  private void addPartition(LocalDate day, Integer hour, ServerInfo server) {
+    athena.addPartition(day, hour, server, config.getAthenaDatabaseName(), config.getAthenaTableName(),
+        config.getParquetS3Location());
   }
 
   public void deleteLocalFiles(ConversionJob job) {
@@ -25,8 +25,10 @@ import be.dnsbelgium.data.pcap.aws.s3.ParquetFile;
 import java.io.File;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.StringJoiner;
 import java.util.stream.Collectors;
 
@@ -41,6 +43,8 @@ public class LocalConversionJob {
   private final File parquetOutputFolder;
   private final List<ParquetFile> parquetFiles;
   private Long totalParquetBytes = 0L;
+  // the MaxMind databases used for the conversion, more than one when they were reloaded during the job
+  private final Set<String> geoDatabases = new LinkedHashSet<>();
 
   public LocalConversionJob(ServerInfo serverInfo, List<File> pcapFiles, File parquetOutputFolder) {
     this.serverInfo = serverInfo;
@@ -66,11 +70,35 @@ public class LocalConversionJob {
         .collect(Collectors.toList());
   }
 
+  /**
+   * @param day one of the days covered
+   * @return the hours of the day for which files were created, empty when the files have no hour partitions
+   */
+  public List<Integer> getHoursCovered(LocalDate day) {
+    return parquetFiles.stream()
+        .filter(file -> day.equals(file.getDate()))
+        .map(ParquetFile::getHour)
+        .distinct()
+        .filter(Objects::nonNull)
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
   public void addParquetFile(ParquetFile parquetFile) {
     parquetFiles.add(parquetFile);
     totalParquetBytes += parquetFile.size();
   }
 
+  public void addGeoDatabase(String version) {
+    if (version != null) {
+      geoDatabases.add(version);
+    }
+  }
+
+  public Set<String> getGeoDatabases() {
+    return geoDatabases;
+  }
+
   public ServerInfo getServerInfo() {
     return serverInfo;
   }
@@ -104,6 +132,7 @@ public class LocalConversionJob {
         .add("parquetFiles=" + parquetFiles.size())
         .add("totalParquetBytes=" + totalParquetBytes)
         .add("parquetOutputFolder=" + parquetOutputFolder)
+        .add("geoDatabases=" + geoDatabases)
         .toString();
   }
 
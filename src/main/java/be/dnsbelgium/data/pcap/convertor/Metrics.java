@@ -210,4 +210,32 @@ public class Metrics {
     return count.intValue();
   }
 
+  /**
+   * Add the counts of other metrics to these.
+   *
+   * @param other metrics of another writer
+   */
+  public void merge(Metrics other) {
+    responseBytes += other.responseBytes;
+    requestBytes += other.requestBytes;
+    other.qtypes.forEach((key, count) -> qtypes.merge(key, count, Integer::sum));
+    other.rcodes.forEach((key, count) -> rcodes.merge(key, count, Integer::sum));
+    other.opcodes.forEach((key, count) -> opcodes.merge(key, count, Integer::sum));
+    other.subnetMatchCount.forEach((key, count) ->
+        subnetMatchCount.computeIfAbsent(key, k -> new AtomicInteger()).addAndGet(count.get()));
+    requestUDPFragmentedCount += other.requestUDPFragmentedCount;
+    requestTCPFragmentedCount += other.requestTCPFragmentedCount;
+    responseUDPFragmentedCount += other.responseUDPFragmentedCount;
+    responseTCPFragmentedCount += other.responseTCPFragmentedCount;
+    ipv4QueryCount += other.ipv4QueryCount;
+    ipv6QueryCount += other.ipv6QueryCount;
+    expiredDnsQueryCount += other.expiredDnsQueryCount;
+    if (other.oldestPacket.isBefore(oldestPacket)) {
+      oldestPacket = other.oldestPacket;
+    }
+    if (other.newestPacket.isAfter(newestPacket)) {
+      newestPacket = other.newestPacket;
+    }
+  }
+
 }
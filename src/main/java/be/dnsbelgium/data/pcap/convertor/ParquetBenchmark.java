@@ -0,0 +1,212 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.convertor;
+
+import be.dnsbelgium.data.pcap.aws.s3.ParquetFile;
+import be.dnsbelgium.data.pcap.ip.SubnetChecks;
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.parquet.ParquetFileStats;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
+import be.dnsbelgium.data.pcap.reader.PcapReaderConfig;
+import be.dnsbelgium.data.pcap.utils.FileHelper;
+import be.dnsbelgium.data.pcap.utils.FileSize;
+import be.dnsbelgium.data.pcap.utils.GeoLookupUtil;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Converts the same PCAP files once for every set of parquet settings, to compare write throughput,
+ * output size and the bytes Athena would scan for the columns of a typical query.
+ * <p>
+ * Every conversion starts without decoder state and writes to its own folder, which is deleted afterwards.
+ * The first setting is converted once more up front, to warm up the JVM.
+ */
+@Component
+public class ParquetBenchmark {
+
+  private static final Logger logger = getLogger(ParquetBenchmark.class);
+
+  private final GeoLookupUtil geoLookup;
+  private final SubnetChecks subnetChecks;
+  private final PcapReaderConfig readerConfig;
+  private final FileHelper fileHelper;
+
+  @Autowired
+  public ParquetBenchmark(GeoLookupUtil geoLookup, SubnetChecks subnetChecks, PcapReaderConfig readerConfig,
+                          FileHelper fileHelper) {
+    this.geoLookup = geoLookup;
+    this.subnetChecks = subnetChecks;
+    this.readerConfig = readerConfig;
+    this.fileHelper = fileHelper;
+  }
+
+  public static class Result {
+
+    private final ParquetWriterConfig setting;
+    private final long millis;
+    private final ParquetFileStats stats;
+
+    Result(ParquetWriterConfig setting, long millis, ParquetFileStats stats) {
+      this.setting = setting;
+      this.millis = millis;
+      this.stats = stats;
+    }
+
+    public ParquetWriterConfig getSetting() {
+      return setting;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public ParquetFileStats getStats() {
+      return stats;
+    }
+
+    public double getRowsPerSecond() {
+      return millis == 0 ? 0 : stats.getRows() * 1000.0 / millis;
+    }
+  }
+
+  public static List<ParquetWriterConfig> settings(String codecs, String rowGroupMb, String pageKb, String dictionary) {
+    return settings(codecs, rowGroupMb, pageKb, dictionary, "");
+  }
+
+  /**
+   * Every combination of the given values, e.g. <code>settings("SNAPPY,ZSTD", "64,128", "1024", "true", ";qname")</code>
+   * gives eight settings. Codecs that are not available are logged and left out.
+   *
+   * @param codecs     comma separated parquet compression codecs
+   * @param rowGroupMb comma separated row group sizes in MB
+   * @param pageKb     comma separated page sizes in KB
+   * @param dictionary comma separated true/false for dictionary encoding
+   * @param sorts      semicolon separated lists of comma separated sort columns, an empty list for arrival order
+   * @return the settings
+   */
+  public static List<ParquetWriterConfig> settings(String codecs, String rowGroupMb, String pageKb, String dictionary,
+                                                   String sorts) {
+    List<List<String>> sortColumns = new ArrayList<>();
+    for (String sort : sorts.split(";", -1)) {
+      sortColumns.add(ParquetWriterConfig.split(sort));
+    }
+    List<ParquetWriterConfig> settings = new ArrayList<>();
+    for (String codec : ParquetWriterConfig.split(codecs)) {
+      try {
+        ParquetWriterConfig.codecOf(codec);
+      } catch (IllegalArgumentException e) {
+        logger.warn("Skipping codec {}: {}", codec, e.getMessage());
+        continue;
+      }
+      for (String rowGroup : ParquetWriterConfig.split(rowGroupMb)) {
+        for (String page : ParquetWriterConfig.split(pageKb)) {
+          for (String dict : ParquetWriterConfig.split(dictionary)) {
+            ParquetWriterConfig setting = new ParquetWriterConfig(codec, Integer.parseInt(rowGroup) << 20,
+                Integer.parseInt(page) << 10, Boolean.parseBoolean(dict));
+            for (List<String> sort : sortColumns) {
+              settings.add(setting.withSort(sort, ParquetWriterConfig.DEFAULT_SORT_MEMORY_BYTES));
+            }
+          }
+        }
+      }
+    }
+    return settings;
+  }
+
+  /**
+   * @param pcapFiles  the PCAP files to convert with every setting
+   * @param settings   the parquet settings to compare
+   * @param workFolder folder for the decoder state and parquet files of the conversions
+   * @return a result per setting, in the same order
+   * @throws IOException          when the parquet files could not be analyzed
+   * @throws InterruptedException when interrupted while converting
+   */
+  public List<Result> run(List<File> pcapFiles, List<ParquetWriterConfig> settings, File workFolder)
+      throws IOException, InterruptedException {
+    List<Result> results = new ArrayList<>();
+    if (settings.isEmpty()) {
+      return results;
+    }
+    logger.info("Warming up with {}", settings.get(0));
+    convert(pcapFiles, settings.get(0), workFolder);
+    for (ParquetWriterConfig setting : settings) {
+      logger.info("Converting {} PCAP files with {}", pcapFiles.size(), setting);
+      Result result = convert(pcapFiles, setting, workFolder);
+      logger.info("{} rows in {} ms, {}", result.getStats().getRows(), result.getMillis(),
+          FileSize.friendlySize(result.getStats().getFileBytes()));
+      results.add(result);
+    }
+    return results;
+  }
+
+  private Result convert(List<File> pcapFiles, ParquetWriterConfig setting, File workFolder)
+      throws IOException, InterruptedException {
+    File folder = fileHelper.uniqueSubFolder(workFolder.getAbsolutePath());
+    try {
+      PcapReaderConfig config = readerConfig.withStateDir(new File(folder, "state").getAbsolutePath());
+      PcapConvertor convertor = new PcapConvertor(geoLookup, subnetChecks, config, fileHelper, setting);
+      LocalConversionJob job = new LocalConversionJob(new ServerInfo("benchmark"), pcapFiles, new File(folder, "parquet"));
+      long start = System.currentTimeMillis();
+      convertor.convertToParquet(job);
+      long millis = System.currentTimeMillis() - start;
+      List<File> files = job.getParquetFiles().stream().map(ParquetFile::getFile).collect(Collectors.toList());
+      return new Result(setting, millis, ParquetFileStats.of(files));
+    } finally {
+      fileHelper.deleteRecursively(folder);
+    }
+  }
+
+  /**
+   * @param results      results of {@link #run(List, List, File)}
+   * @param queryColumns the columns read by a typical query
+   * @param lookupColumn string column the typical query filters on, e.g. qname
+   * @return a table with a line per setting
+   */
+  public static String report(List<Result> results, List<String> queryColumns, String lookupColumn) {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(Locale.US, "%-56s %12s %10s %12s %14s %14s %14s %14s%n",
+        "setting", "rows", "seconds", "rows/s", "output bytes", "query scan", "lookup scan", "full scan"));
+    for (Result result : results) {
+      ParquetFileStats stats = result.getStats();
+      report.append(String.format(Locale.US, "%-56s %12d %10.1f %12.0f %14d %14d %14d %14d%n",
+          result.getSetting(), stats.getRows(), result.getMillis() / 1000.0, result.getRowsPerSecond(),
+          stats.getFileBytes(), stats.scannedBytes(queryColumns), stats.lookupScannedBytes(lookupColumn, queryColumns),
+          stats.scannedBytes(new ArrayList<>())));
+    }
+    report.append("query scan: compressed bytes of the columns ").append(queryColumns)
+        .append(", lookup scan: the same with a filter on ").append(lookupColumn)
+        .append(" after skipping row groups on min/max statistics")
+        .append(", full scan: compressed bytes of all columns. Athena charges at least ")
+        .append(FileSize.friendlySize(ParquetFileStats.ATHENA_MINIMUM_SCAN_BYTES)).append(" per query.");
+    return report.toString();
+  }
+
+}
@@ -19,9 +19,15 @@
 
 package be.dnsbelgium.data.pcap.convertor;
 
+import be.dnsbelgium.data.pcap.ip.IpEnricher;
 import be.dnsbelgium.data.pcap.ip.SubnetChecks;
+import be.dnsbelgium.data.pcap.aws.s3.S3ParquetOutput;
 import be.dnsbelgium.data.pcap.parquet.DNSParquetPacketWriter;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriter;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterPool;
 import be.dnsbelgium.data.pcap.aws.s3.ParquetFile;
+import be.dnsbelgium.data.pcap.reader.CombinationQueue;
 import be.dnsbelgium.data.pcap.reader.PcapFileReader;
 import be.dnsbelgium.data.pcap.reader.PcapReaderConfig;
 import be.dnsbelgium.data.pcap.utils.FileHelper;
@@ -34,6 +40,7 @@ import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.*;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -50,20 +57,33 @@ public class PcapConvertor {
 
   private final GeoLookupUtil geoLookup;
   private final SubnetChecks subnetChecks;
+  // shared by the writer threads of all jobs
+  private final IpEnricher enricher;
   private final FileHelper fileHelper;
   private final PcapReaderConfig config;
+  private final ParquetWriterConfig writerConfig;
+
+  public PcapConvertor(GeoLookupUtil geoLookup, SubnetChecks subnetChecks, PcapReaderConfig config, FileHelper fileHelper,
+                       ParquetWriterConfig writerConfig) {
+    this(geoLookup, subnetChecks, new IpEnricher(geoLookup, subnetChecks, IpEnricher.DEFAULT_CACHE_SIZE), config,
+        fileHelper, writerConfig);
+  }
 
   @Autowired
-  public PcapConvertor(GeoLookupUtil geoLookup, SubnetChecks subnetChecks, PcapReaderConfig config, FileHelper fileHelper) {
+  public PcapConvertor(GeoLookupUtil geoLookup, SubnetChecks subnetChecks, IpEnricher enricher, PcapReaderConfig config,
+                       FileHelper fileHelper, ParquetWriterConfig writerConfig) {
     this.geoLookup = geoLookup;
     this.subnetChecks = subnetChecks;
+    this.enricher = enricher;
     this.config = config;
     this.fileHelper = fileHelper;
+    this.writerConfig = writerConfig;
     logger.info("created a PcapConvertor");
   }
 
   public void logConfig() {
     config.logConfig();
+    writerConfig.logConfig();
   }
 
   /**
@@ -74,7 +94,7 @@ public class PcapConvertor {
    * @throws InterruptedException when thread is interrupted
    */
   public Metrics convertToParquet(LocalConversionJob job) throws InterruptedException {
-    Metrics metrics = convertToParquetInternal(job);
+    Metrics metrics = convertToParquetInternal(job, null);
 
     File outputFolder = job.getParquetOutputFolder();
     logger.info("Searching all parquet files in {}", outputFolder);
@@ -89,15 +109,40 @@ public class PcapConvertor {
     return metrics;
   }
 
-  private Metrics convertToParquetInternal(LocalConversionJob job) throws InterruptedException {
+  /**
+   * Execute a local conversion job and write the Parquet files straight to S3. The job gets a
+   * {@link ParquetFile#uploaded(File, String, long)} for every file, the output folder of the job only holds
+   * the sorted runs of the writers.
+   *
+   * @param job    - the details of the conversion job, should have one or more PCAP files
+   * @param output - uploads the files while they are written, closed by the caller
+   * @return - metrics about the job
+   * @throws InterruptedException when thread is interrupted
+   */
+  public Metrics convertToParquet(LocalConversionJob job, S3ParquetOutput output) throws InterruptedException {
+    Metrics metrics = convertToParquetInternal(job, output);
+
+    Map<String, Long> files = output.getCommitted();
+    logger.info("Uploaded {} parquet files to {}", files.size(), output);
+    for (Map.Entry<String, Long> file : files.entrySet()) {
+      job.addParquetFile(ParquetFile.uploaded(job.getParquetOutputFolder(), file.getKey(), file.getValue()));
+    }
+    logger.info("Converted {} PCAP files of {} into {} parquet files",
+        job.getPcapFiles().size(), job.getServerInfo().getFullname(), job.getParquetFiles().size());
+    return metrics;
+  }
+
+  private Metrics convertToParquetInternal(LocalConversionJob job, S3ParquetOutput output) throws InterruptedException {
     int filesTotal = job.getPcapFiles().size();
     logger.info("starting to convert {} PCAP files from {}", filesTotal, job.getServerInfo());
+    job.addGeoDatabase(geoLookup.getDatabaseVersion());
 
     // Create shared queue between reading thread and converting thread
-    BlockingQueue<PacketCombination> sharedQueue = new ArrayBlockingQueue<>(config.getQueueSize());
+    CombinationQueue sharedQueue = new CombinationQueue(config.getQueueSize());
 
-    logger.info("Opening DNSParquetPacketWriter with path {}", job.getParquetOutputFolder());
-    DNSParquetPacketWriter writer = new DNSParquetPacketWriter(subnetChecks, geoLookup);
+    logger.info("Opening {} DNSParquetPacketWriters with path {}", config.getWriterThreads(), job.getParquetOutputFolder());
+    ParquetWriterPool writer = new ParquetWriterPool(config.getWriterThreads(), config.getQueueSize(),
+        () -> new DNSParquetPacketWriter(enricher, geoLookup, writerConfig, output));
 
     // Read local PCAP files
     PcapFileReader reader = new PcapFileReader(config, job.getServerInfo(), job.getPcapFiles(), sharedQueue);
@@ -112,10 +157,14 @@ public class PcapConvertor {
     } catch (InterruptedException e) {
       logger.error("Interrupted while processing sharedQueue");
     } finally {
-      // Shutdown reader thread in case a problem occured in convertor thread
+      // Shutdown reader thread in case a problem occured in convertor thread,
+      // it would wait forever for room in the queue otherwise
+      sharedQueue.cancel();
+      writer.cancel();
       executor.shutdown();
       executor.awaitTermination(10, TimeUnit.SECONDS);
     }
+    logger.info("Queue: {}", sharedQueue);
 
     Metrics metrics = writer.getMetrics();
 
@@ -126,43 +175,36 @@ public class PcapConvertor {
       int count = metrics.getMatchCount(column);
       logger.info("{} => {} matches", column, count);
     }
+    enricher.logStats();
+    job.addGeoDatabase(geoLookup.getDatabaseVersion());
+    logger.info("Used MaxMind databases {}", job.getGeoDatabases());
 
     logger.info("Successfully converted {} PCAP files from {}.", job.getPcapFiles().size(), job.getServerInfo());
     return metrics;
   }
 
-  private void pollAndConvertPcapToParquet(LocalConversionJob job, BlockingQueue<PacketCombination> sharedQueue,
-                                           DNSParquetPacketWriter dnsParquetPacketWriter) throws InterruptedException {
-    PacketCombination combination;
+  private void pollAndConvertPcapToParquet(LocalConversionJob job, CombinationQueue sharedQueue,
+                                           ParquetWriter dnsParquetPacketWriter) throws InterruptedException {
+    PacketCombination[] batch;
     int combinationCount = 0;
 
-    while ((combination = getNextPacketCombination(sharedQueue)) != PacketCombination.NULL) {
-
-      if (combination == PacketCombination.FAILURE) {
-        logger.error("Found FAILURE packet in the queue => PcapFileReader failed to read the PCAP file");
-        // TODO quentinl Discuss the usefulness of this.
-        break;
-      }
-      dnsParquetPacketWriter.write(combination);
-
-      if (++combinationCount % LOG_STATUS_COUNT == 0) {
-        logger.debug("Written {} combinations. In the queue: {}", combinationCount, sharedQueue.size());
+    // the queue returns null once the reader closed it and all combinations are taken
+    while ((batch = sharedQueue.take()) != null) {
+      for (PacketCombination combination : batch) {
+        if (combination == PacketCombination.FAILURE) {
+          logger.error("Found FAILURE packet in the queue => PcapFileReader failed to read the PCAP file");
+          throw new IllegalStateException("Failed to read the PCAP files of " + job.getServerInfo());
+        }
+        dnsParquetPacketWriter.write(combination);
+
+        if (++combinationCount % LOG_STATUS_COUNT == 0) {
+          logger.debug("Written {} combinations. In the queue: {}", combinationCount, sharedQueue.size());
+        }
       }
     }
     logger.debug("All PacketCombinations processed from the queue.");
     logger.info("Processed {} combinations from {}", combinationCount, job.getServerInfo());
   }
 
-  private PacketCombination getNextPacketCombination(BlockingQueue<PacketCombination> sharedQueue) throws InterruptedException {
-    PacketCombination combination;
-    do {
-      combination = sharedQueue.poll(30, TimeUnit.SECONDS);
-      if (combination == null) {
-        logger.debug("Waiting until next combo appears in the queue ...");
-      }
-    } while (combination == null);
-    return combination;
-  }
-
 
 }
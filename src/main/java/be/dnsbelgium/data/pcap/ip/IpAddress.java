@@ -0,0 +1,299 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.ip;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * An IPv4 or IPv6 address as two longs. IPv4 addresses are stored as IPv4-mapped IPv6 addresses
+ * (<code>::ffff:a.b.c.d</code>), so both versions compare, hash and mask the same way.
+ * <p>
+ * Parsing does not resolve host names and creates no other objects, formatting follows
+ * {@link InetAddress#getHostAddress()} so the text is the same as the one the packet decoder produces.
+ * <p>
+ * Immutable.
+ */
+public final class IpAddress {
+
+  private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+  private final long high;
+  private final long low;
+
+  private IpAddress(long high, long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  public static IpAddress of(long high, long low) {
+    return new IpAddress(high, low);
+  }
+
+  /**
+   * @param bytes 4 bytes for IPv4, 16 for IPv6, in network byte order
+   */
+  public static IpAddress of(byte[] bytes) {
+    if (bytes.length == 4) {
+      return new IpAddress(0, IPV4_MAPPED | toLong(bytes, 0, 4));
+    }
+    if (bytes.length == 16) {
+      return new IpAddress(toLong(bytes, 0, 8), toLong(bytes, 8, 16));
+    }
+    throw new IllegalArgumentException("Invalid IP address length: " + bytes.length);
+  }
+
+  /**
+   * Parse the textual form of an IPv4 or IPv6 address, an IPv6 scope (eg. <code>%eth0</code>) is ignored.
+   *
+   * @param address an IP address, not a host name
+   * @return the address
+   * @throws IllegalArgumentException when <code>address</code> is not a valid IP address
+   */
+  public static IpAddress parse(String address) {
+    if (address == null) {
+      throw new IllegalArgumentException("Invalid IP address: null");
+    }
+    if (address.indexOf(':') < 0) {
+      return new IpAddress(0, IPV4_MAPPED | parseIpv4(address, 0, address.length()));
+    }
+    return parseIpv6(address);
+  }
+
+  public long getHigh() {
+    return high;
+  }
+
+  public long getLow() {
+    return low;
+  }
+
+  public boolean isIpv4() {
+    return high == 0 && (low >>> 32) == 0xFFFF;
+  }
+
+  /**
+   * @return 4 bytes for IPv4, 16 for IPv6, in network byte order
+   */
+  public byte[] toBytes() {
+    if (isIpv4()) {
+      return toBytes(low, 4);
+    }
+    byte[] bytes = Arrays.copyOf(toBytes(high, 8), 16);
+    System.arraycopy(toBytes(low, 8), 0, bytes, 8, 8);
+    return bytes;
+  }
+
+  public InetAddress toInetAddress() {
+    try {
+      return InetAddress.getByAddress(toBytes());
+    } catch (UnknownHostException e) {
+      // only thrown for an illegal length
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof IpAddress)) {
+      return false;
+    }
+    IpAddress other = (IpAddress) o;
+    return high == other.high && low == other.low;
+  }
+
+  @Override
+  public int hashCode() {
+    long h = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the address the way {@link InetAddress#getHostAddress()} formats it
+   */
+  @Override
+  public String toString() {
+    if (isIpv4()) {
+      return ((low >>> 24) & 0xFF) + "." + ((low >>> 16) & 0xFF) + "." + ((low >>> 8) & 0xFF) + "." + (low & 0xFF);
+    }
+    StringBuilder sb = new StringBuilder(39);
+    for (int group = 0; group < 8; group++) {
+      long value = group < 4 ? high : low;
+      int shift = 48 - 16 * (group % 4);
+      if (group > 0) {
+        sb.append(':');
+      }
+      sb.append(Long.toHexString((value >>> shift) & 0xFFFF));
+    }
+    return sb.toString();
+  }
+
+  private static long toLong(byte[] bytes, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      value = (value << 8) | (bytes[i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static byte[] toBytes(long value, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = length - 1; i >= 0; i--) {
+      bytes[i] = (byte) value;
+      value >>>= 8;
+    }
+    return bytes;
+  }
+
+  // parsing
+
+  private static long parseIpv4(String address, int start, int end) {
+    long result = 0;
+    int octets = 0;
+    int value = 0;
+    int digits = 0;
+    for (int i = start; i < end; i++) {
+      char c = address.charAt(i);
+      if (c >= '0' && c <= '9' && digits < 3) {
+        value = value * 10 + (c - '0');
+        digits++;
+      } else if (c == '.' && digits > 0 && octets < 3) {
+        result = (result << 8) | checkOctet(value, address);
+        octets++;
+        value = 0;
+        digits = 0;
+      } else {
+        throw invalid(address);
+      }
+    }
+    if (octets != 3 || digits == 0) {
+      throw invalid(address);
+    }
+    return (result << 8) | checkOctet(value, address);
+  }
+
+  private static int checkOctet(int value, String address) {
+    if (value > 255) {
+      throw invalid(address);
+    }
+    return value;
+  }
+
+  /**
+   * Parse the groups from left to right, shifting them into <code>high</code> and <code>low</code>.
+   * At a <code>::</code>, the groups parsed so far are set aside and moved to the top at the end.
+   */
+  private static IpAddress parseIpv6(String address) {
+    int end = address.indexOf('%');
+    if (end < 0) {
+      end = address.length();
+    }
+    long high = 0;
+    long low = 0;
+    // groups before the ::
+    long headHigh = 0;
+    long headLow = 0;
+    int count = 0;
+    int compressedAt = -1;
+    int i = 0;
+    if (address.startsWith("::")) {
+      compressedAt = 0;
+      i = 2;
+    }
+    while (i < end) {
+      if (count == 8) {
+        throw invalid(address);
+      }
+      int j = i;
+      int value = 0;
+      while (j < end && address.charAt(j) != ':' && address.charAt(j) != '.') {
+        int digit = Character.digit(address.charAt(j), 16);
+        if (digit < 0 || j - i == 4) {
+          throw invalid(address);
+        }
+        value = (value << 4) | digit;
+        j++;
+      }
+      if (j < end && address.charAt(j) == '.') {
+        // embedded IPv4 address, eg. ::ffff:192.0.2.1
+        if (count > 6) {
+          throw invalid(address);
+        }
+        high = high << 32 | low >>> 32;
+        low = low << 32 | parseIpv4(address, i, end);
+        count += 2;
+        break;
+      }
+      if (j == i) {
+        throw invalid(address);
+      }
+      high = high << 16 | low >>> 48;
+      low = low << 16 | value;
+      count++;
+      if (j == end) {
+        break;
+      }
+      if (j + 1 < end && address.charAt(j + 1) == ':') {
+        if (compressedAt >= 0) {
+          throw invalid(address);
+        }
+        compressedAt = count;
+        headHigh = high;
+        headLow = low;
+        high = 0;
+        low = 0;
+        i = j + 2;
+      } else {
+        i = j + 1;
+        if (i == end) {
+          throw invalid(address);
+        }
+      }
+    }
+    if (compressedAt >= 0) {
+      if (count > 7) {
+        throw invalid(address);
+      }
+      // the head moves to the top, the :: covers at least one group of zeros
+      int shift = 16 * (8 - compressedAt);
+      if (shift < 128) {
+        if (shift >= 64) {
+          high |= headLow << (shift - 64);
+        } else {
+          high |= headHigh << shift | headLow >>> (64 - shift);
+          low |= headLow << shift;
+        }
+      }
+    } else if (count != 8) {
+      throw invalid(address);
+    }
+    return new IpAddress(high, low);
+  }
+
+  private static IllegalArgumentException invalid(String address) {
+    return new IllegalArgumentException("Invalid IP address: " + address);
+  }
+
+}
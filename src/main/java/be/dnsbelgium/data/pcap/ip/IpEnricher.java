@@ -0,0 +1,141 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+import be.dnsbelgium.data.pcap.utils.ClockCache;
+import be.dnsbelgium.data.pcap.utils.GeoLookupUtil;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Looks up the country, autonomous system and subnet lists of client addresses, with one cache for all of them.
+ * <p>
+ * A miss costs two MaxMind lookups and a check of every subnet list. The clients of a name server are very skewed,
+ * so most rows are enriched from the cache. The cache is bounded by <code>ip.enrichment.cache.size</code> entries
+ * of a few hundred bytes, evicts with {@link ClockCache} and is shared by the writer threads.
+ * <p>
+ * The country and autonomous system of EDNS Client Subnet prefixes have a cache of their own, bounded by
+ * <code>ip.enrichment.ecs.cache.size</code>: the big public resolvers send the same few prefixes with nearly
+ * every query, and they should not push the client addresses out of the other cache.
+ */
+@Component
+public class IpEnricher {
+
+  private static final Logger logger = getLogger(IpEnricher.class);
+
+  public final static int DEFAULT_CACHE_SIZE = 250_000;
+  public final static int DEFAULT_ECS_CACHE_SIZE = 100_000;
+
+  private final GeoLookupUtil geoLookup;
+  private final SubnetChecks subnetChecks;
+  private final List<String> subnetColumns;
+  private final ClockCache<IpAddress, IpEnrichment> cache;
+  private final ClockCache<IpPrefix, IpEnrichment> ecsCache;
+
+  public IpEnricher(GeoLookupUtil geoLookup, SubnetChecks subnetChecks, int cacheSize) {
+    this(geoLookup, subnetChecks, cacheSize, DEFAULT_ECS_CACHE_SIZE);
+  }
+
+  /**
+   * @param cacheSize    max number of cached addresses
+   * @param ecsCacheSize max number of cached EDNS Client Subnet prefixes
+   * @throws IllegalArgumentException when there are more than 64 subnet lists
+   */
+  @Autowired
+  public IpEnricher(GeoLookupUtil geoLookup, SubnetChecks subnetChecks,
+                    @Value("${ip.enrichment.cache.size: #{ipEnricher.DEFAULT_CACHE_SIZE}}") int cacheSize,
+                    @Value("${ip.enrichment.ecs.cache.size: #{ipEnricher.DEFAULT_ECS_CACHE_SIZE}}") int ecsCacheSize) {
+    this.geoLookup = geoLookup;
+    this.subnetChecks = subnetChecks;
+    this.subnetColumns = Collections.unmodifiableList(new ArrayList<>(subnetChecks.getColumns()));
+    if (subnetColumns.size() > Long.SIZE) {
+      throw new IllegalArgumentException("At most " + Long.SIZE + " subnet lists are supported: " + subnetColumns);
+    }
+    this.cache = new ClockCache<>(cacheSize);
+    this.ecsCache = new ClockCache<>(ecsCacheSize);
+    geoLookup.addReloadListener(this::clear);
+  }
+
+  /**
+   * @return the columns of the subnet lists, in the order of the bits of {@link IpEnrichment#isInSubnets(int)}
+   */
+  public List<String> getSubnetColumns() {
+    return subnetColumns;
+  }
+
+  public IpEnrichment lookup(IpAddress address) {
+    return cache.get(address, this::load);
+  }
+
+  /**
+   * @param prefix the source prefix of an EDNS Client Subnet option
+   * @return the country and autonomous system of the first address of the prefix, never in a subnet list
+   */
+  public IpEnrichment lookupClientSubnet(IpPrefix prefix) {
+    return ecsCache.get(prefix, this::loadClientSubnet);
+  }
+
+  private IpEnrichment loadClientSubnet(IpPrefix prefix) {
+    InetAddress inetAddress = prefix.getAddress().toInetAddress();
+    return new IpEnrichment(geoLookup.lookupCountry(inetAddress), geoLookup.lookupAutonomousSystem(inetAddress), 0);
+  }
+
+  private IpEnrichment load(IpAddress address) {
+    InetAddress inetAddress = address.toInetAddress();
+    long subnets = 0;
+    for (int i = 0; i < subnetColumns.size(); i++) {
+      if (subnetChecks.get(subnetColumns.get(i)).isMatch(address)) {
+        subnets |= 1L << i;
+      }
+    }
+    return new IpEnrichment(geoLookup.lookupCountry(inetAddress), geoLookup.lookupAutonomousSystem(inetAddress), subnets);
+  }
+
+  /**
+   * Forget all cached addresses, eg. after the MaxMind databases or the subnet lists changed.
+   */
+  public void clear() {
+    cache.clear();
+    ecsCache.clear();
+  }
+
+  public double getHitRate() {
+    return cache.getHitRate();
+  }
+
+  public double getClientSubnetHitRate() {
+    return ecsCache.getHitRate();
+  }
+
+  public void logStats() {
+    logger.info("IP enrichment cache: {}", cache);
+    logger.info("ECS enrichment cache: {}", ecsCache);
+  }
+
+}
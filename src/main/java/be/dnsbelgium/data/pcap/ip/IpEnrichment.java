@@ -0,0 +1,74 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+import be.dnsbelgium.data.pcap.utils.AutonomousSystem;
+
+/**
+ * What we know about an IP address: its country and autonomous system according to MaxMind, and the
+ * subnet lists of {@link IpEnricher#getSubnetColumns()} it is in.
+ * <p>
+ * Immutable.
+ */
+public final class IpEnrichment {
+
+  private final String country;
+  private final AutonomousSystem autonomousSystem;
+  // bit i is set when the address is in the subnets of column i
+  private final long subnets;
+
+  public IpEnrichment(String country, AutonomousSystem autonomousSystem, long subnets) {
+    this.country = country;
+    this.autonomousSystem = autonomousSystem;
+    this.subnets = subnets;
+  }
+
+  /**
+   * @return ISO code of the country, null when unknown
+   */
+  public String getCountry() {
+    return country;
+  }
+
+  /**
+   * @return the autonomous system, null when unknown
+   */
+  public AutonomousSystem getAutonomousSystem() {
+    return autonomousSystem;
+  }
+
+  /**
+   * @param index index of a column in {@link IpEnricher#getSubnetColumns()}
+   * @return true when the address is in the subnets of that column
+   */
+  public boolean isInSubnets(int index) {
+    return (subnets & (1L << index)) != 0;
+  }
+
+  public long getSubnets() {
+    return subnets;
+  }
+
+  @Override
+  public String toString() {
+    return "IpEnrichment[country=" + country + ", as=" + autonomousSystem + ", subnets=" + Long.toBinaryString(subnets) + "]";
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+/**
+ * An IPv4 or IPv6 prefix: an address of which only the first <code>length</code> bits count,
+ * eg. the source prefix of an EDNS Client Subnet option.
+ * <p>
+ * The address is masked when the prefix is created, so prefixes that only differ in the bits beyond their length
+ * are equal. The length counts the bits of the address family, 0-32 for IPv4 and 0-128 for IPv6.
+ * <p>
+ * Immutable.
+ */
+public final class IpPrefix {
+
+  // IPv4 addresses are IPv4-mapped, their bits start after the first 96 bits of the IpAddress
+  private static final int IPV4_OFFSET = 96;
+
+  private final IpAddress address;
+  private final int length;
+
+  private IpPrefix(IpAddress address, int length) {
+    this.address = address;
+    this.length = length;
+  }
+
+  /**
+   * @param address any address in the prefix
+   * @param length  prefix length, a longer length is cut to the length of the address
+   * @throws IllegalArgumentException when the length is negative
+   */
+  public static IpPrefix of(IpAddress address, int length) {
+    if (length < 0) {
+      throw new IllegalArgumentException("Invalid prefix length: " + length);
+    }
+    boolean ipv4 = address.isIpv4();
+    int prefixLength = Math.min(length, ipv4 ? 32 : 128);
+    int bits = ipv4 ? IPV4_OFFSET + prefixLength : prefixLength;
+    IpAddress masked = IpAddress.of(address.getHigh() & mask(bits), address.getLow() & mask(bits - 64));
+    return new IpPrefix(masked, prefixLength);
+  }
+
+  // a mask of the first bits of a long, all bits when bits >= 64
+  private static long mask(int bits) {
+    if (bits <= 0) {
+      return 0;
+    }
+    return bits >= 64 ? -1L : -1L << (64 - bits);
+  }
+
+  /**
+   * @return the first address of the prefix
+   */
+  public IpAddress getAddress() {
+    return address;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public boolean isIpv4() {
+    return address.isIpv4();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof IpPrefix)) {
+      return false;
+    }
+    IpPrefix other = (IpPrefix) o;
+    return length == other.length && address.equals(other.address);
+  }
+
+  @Override
+  public int hashCode() {
+    return address.hashCode() * 31 + length;
+  }
+
+  @Override
+  public String toString() {
+    return address + "/" + length;
+  }
+
+}
@@ -31,6 +31,11 @@ public class Subnet
   final private int bytesSubnetCount;
   final private BigInteger bigMask;
   final private BigInteger bigSubnetMasked;
+  // mask and masked subnet in the form of IpAddress, IPv4 as IPv4-mapped IPv6
+  final private long maskHigh;
+  final private long maskLow;
+  final private long subnetHigh;
+  final private long subnetLow;
 
   /* For use via format "192.168.0.0/24" or "2001:db8:85a3:880:0:0:0:0/57" */
   public Subnet( final InetAddress subnetAddress, final int bits )
@@ -38,6 +43,12 @@ public class Subnet
     this.bytesSubnetCount = subnetAddress.getAddress().length; // 4 or 16
     this.bigMask = BigInteger.valueOf( -1 ).shiftLeft( this.bytesSubnetCount*8 - bits ); // mask = -1 << 32 - bits
     this.bigSubnetMasked = new BigInteger( subnetAddress.getAddress() ).and( this.bigMask );
+    final int prefix = Math.min( 128, Math.max( 0, bits ) + ( 4 == this.bytesSubnetCount ? 96 : 0 ) );
+    this.maskHigh = prefix >= 64 ? -1L : prefix == 0 ? 0 : -1L << ( 64 - prefix );
+    this.maskLow = prefix <= 64 ? 0 : -1L << ( 128 - prefix );
+    final IpAddress subnet = IpAddress.of( subnetAddress.getAddress() );
+    this.subnetHigh = subnet.getHigh() & this.maskHigh;
+    this.subnetLow = subnet.getLow() & this.maskLow;
   }
 
   /* For use via format "192.168.0.0/255.255.255.0" or single address */
@@ -46,6 +57,18 @@ public class Subnet
     this.bytesSubnetCount = subnetAddress.getAddress().length;
     this.bigMask = null == mask ? BigInteger.valueOf( -1 ) : new BigInteger( mask.getAddress() ); // no mask given case is handled here.
     this.bigSubnetMasked = new BigInteger( subnetAddress.getAddress() ).and( this.bigMask );
+    if ( null == mask ) {
+      this.maskHigh = -1L;
+      this.maskLow = -1L;
+    } else {
+      final IpAddress longMask = IpAddress.of( mask.getAddress() );
+      // an IPv4 mask always covers the ::ffff: prefix
+      this.maskHigh = 4 == mask.getAddress().length ? -1L : longMask.getHigh();
+      this.maskLow = 4 == mask.getAddress().length ? 0xFFFFFFFF00000000L | longMask.getLow() : longMask.getLow();
+    }
+    final IpAddress subnet = IpAddress.of( subnetAddress.getAddress() );
+    this.subnetHigh = subnet.getHigh() & this.maskHigh;
+    this.subnetLow = subnet.getLow() & this.maskLow;
   }
 
   /**
@@ -76,6 +99,40 @@ public class Subnet
     return  bigAddress.and( this.bigMask ).equals( this.bigSubnetMasked );
   }
 
+  /* Same as isInNet( InetAddress ) without creating objects */
+  public boolean isInNet( final IpAddress address )
+  {
+    if ( address.isIpv4() != ( 4 == this.bytesSubnetCount ) )
+      return false;
+    return  ( address.getHigh() & this.maskHigh ) == this.subnetHigh &&
+        ( address.getLow() & this.maskLow ) == this.subnetLow;
+  }
+
+  public boolean isIpv4()
+  {
+    return 4 == this.bytesSubnetCount;
+  }
+
+  /* Subnet and mask as IPv4-mapped IPv6, see IpAddress */
+  long getSubnetHigh()
+  {
+    return this.subnetHigh;
+  }
+
+  long getSubnetLow()
+  {
+    return this.subnetLow;
+  }
+
+  /* Number of bits of the mask as IPv4-mapped IPv6 (96 + bits for IPv4), -1 when the mask is not contiguous */
+  int getPrefixLength()
+  {
+    final int prefix = -1L == this.maskHigh ? 64 + Long.numberOfLeadingZeros( ~this.maskLow ) : Long.numberOfLeadingZeros( ~this.maskHigh );
+    final long high = prefix >= 64 ? -1L : prefix == 0 ? 0 : -1L << ( 64 - prefix );
+    final long low = prefix <= 64 ? 0 : -1L << ( 128 - prefix );
+    return high == this.maskHigh && low == this.maskLow ? prefix : -1;
+  }
+
   @Override
   final public boolean equals( Object obj )
   {
@@ -19,33 +19,31 @@
 
 package be.dnsbelgium.data.pcap.ip;
 
-import com.google.common.net.InetAddresses;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static org.slf4j.LoggerFactory.getLogger;
 
+/**
+ * Checks whether addresses are in a list of subnets that is fetched from an external source and kept in a file.
+ * <p>
+ * The subnets are kept in an immutable {@link Snapshot}: an update builds a new one and replaces the old one
+ * in a volatile field. Checks take no lock and see either the old or the new subnets, never a mix.
+ */
 public class SubnetCheck {
 
-  private Set<Subnet> bit_subnets = new HashSet<>();
-  private Set<String> subnets = new HashSet<>();
   private File file;
   private SubnetFetcher subnetFetcher;
-  private Map<String, Boolean> matchCache = new HashMap<>();
-  private boolean initialized = false;
-
-  private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+  private volatile Snapshot snapshot = new Snapshot(Collections.emptySet(), SubnetTrie.empty());
+  private volatile boolean initialized = false;
 
   private final static int maxAgeInHours = 24;
 
@@ -117,27 +115,18 @@ public class SubnetCheck {
       logger.info("new data is empty => not updating");
       return;
     }
-    readWriteLock.writeLock().lock();
-    try {
-      matchCache.clear();
-      subnets.clear();
-      bit_subnets.clear();
-      for (String range : ranges) {
-        add(range);
+    Set<String> subnets = new LinkedHashSet<>();
+    Set<Subnet> bitSubnets = new HashSet<>();
+    for (String range : ranges) {
+      try {
+        bitSubnets.add(Subnet.createInstance(range));
+        subnets.add(range);
+      } catch (UnknownHostException e) {
+        logger.error("UnknownHostException: skipping range {}", range);
       }
-      logger.info("refreshed data with {} subnets", subnets.size());
-    } finally {
-      readWriteLock.writeLock().unlock();
-    }
-  }
-
-  private void add(String range) {
-    try {
-      bit_subnets.add(Subnet.createInstance(range));
-      subnets.add(range);
-    } catch (UnknownHostException e) {
-      logger.error("UnknownHostException: skipping range {}", range);
     }
+    snapshot = new Snapshot(Collections.unmodifiableSet(subnets), SubnetTrie.of(bitSubnets));
+    logger.info("refreshed data with {} subnets", subnets.size());
   }
 
   /**
@@ -166,66 +155,43 @@ public class SubnetCheck {
   }
 
   private void writeToFile() {
-    logger.info("writing {} subnets to {}", getSubnetCount(), file.getAbsolutePath());
-    readWriteLock.readLock().lock();
+    Set<String> subnets = snapshot.subnets;
+    logger.info("writing {} subnets to {}", subnets.size(), file.getAbsolutePath());
     try {
       Files.write(file.toPath(), subnets, CREATE, TRUNCATE_EXISTING);
     } catch (IOException e) {
       logger.error("Failed to save subnets to " + file.getAbsolutePath(), e);
-    } finally {
-      readWriteLock.readLock().unlock();
     }
     logger.info("Finished writing subnets to {}", file);
   }
 
   public boolean isMatch(String address) {
-    readWriteLock.readLock().lock();
-    try {
-      return _isMatch(address);
-    } finally {
-      readWriteLock.readLock().unlock();
-    }
+    return isMatch(IpAddress.parse(address));
+  }
+
+  public boolean isMatch(IpAddress address) {
+    return snapshot.trie.contains(address);
   }
 
   public int getSubnetCount() {
-    readWriteLock.readLock().lock();
-    try {
-      return subnets.size();
-    } finally {
-      readWriteLock.readLock().unlock();
-    }
+    return snapshot.subnets.size();
   }
 
-  @SuppressWarnings("UnstableApiUsage")
-  private boolean _isMatch(String address){
-    Boolean cacheHit = matchCache.get(address);
-    if(cacheHit != null){
-      return cacheHit;
-    }
-    InetAddress ipAddress = InetAddresses.forString(address);
-    boolean match = bitCompare(ipAddress);
+  public File getFile() {
+    return file;
+  }
 
-    //create cache with hashmap for matches for perf
-    matchCache.put(address,match);
+  /**
+   * The subnets as read from the file or the external source, and the trie to check addresses against.
+   */
+  private static final class Snapshot {
 
-    return match;
-  }
+    private final Set<String> subnets;
+    private final SubnetTrie trie;
 
-  private boolean bitCompare(InetAddress ipAddress) {
-    readWriteLock.readLock().lock();
-    try {
-      for (Subnet sn : bit_subnets) {
-        if (sn.isInNet(ipAddress)) {
-          return true;
-        }
-      }
-      return false;
-    } finally {
-      readWriteLock.readLock().unlock();
+    private Snapshot(Set<String> subnets, SubnetTrie trie) {
+      this.subnets = subnets;
+      this.trie = trie;
     }
   }
-
-  public File getFile() {
-    return file;
-  }
 }
@@ -48,6 +48,12 @@ public class SubnetConfig {
   @Value("${geoIP.maxmind.folder}")
   private String geoLookupFolder;
 
+  @Value("${geoIP.maxmind.node.cache.size:4096}")
+  private int geoLookupNodeCacheSize;
+
+  @Value("${geoIP.maxmind.reload.interval.seconds:300}")
+  private long geoLookupReloadInterval;
+
   private static final Logger logger = getLogger(SubnetConfig.class);
 
   @Autowired
@@ -62,7 +68,11 @@ public class SubnetConfig {
   @Bean
   public GeoLookupUtil geoLookupUtil() {
     logger.info("creating a GeoLookupUtil object with geoLookupFolder = {}", geoLookupFolder);
-    return new GeoLookupUtil(geoLookupFolder);
+    GeoLookupUtil geoLookupUtil = new GeoLookupUtil(geoLookupFolder, geoLookupNodeCacheSize);
+    if (geoLookupReloadInterval > 0) {
+      geoLookupUtil.startWatching(geoLookupReloadInterval);
+    }
+    return geoLookupUtil;
   }
 
   @Bean
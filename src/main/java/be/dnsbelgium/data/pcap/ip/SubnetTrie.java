@@ -0,0 +1,209 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compressed binary (Patricia) trie of IPv4 and IPv6 subnets, to check whether an address is in one of them.
+ * <p>
+ * Addresses and subnets are 128 bit IPv4-mapped IPv6 values, see {@link IpAddress}. IPv4 and IPv6 subnets are
+ * kept in separate tries, so that an IPv4 address only matches IPv4 subnets, like {@link Subnet#isInNet(IpAddress)}.
+ * Subnets that are covered by a larger one are dropped, so every subnet is a leaf and every inner node is a bit
+ * at which the subnets below it branch. A lookup follows one path from the root and compares at most one masked
+ * address per node: it takes O(prefix length) and creates no objects.
+ * <p>
+ * Subnets with a mask that is not contiguous (eg. <code>10.0.0.0/255.0.255.0</code>) do not fit in a trie,
+ * they are checked one by one after the trie.
+ * <p>
+ * Immutable, so it can be shared between threads without locking once it is safely published.
+ */
+public final class SubnetTrie {
+
+  private static final SubnetTrie EMPTY = new SubnetTrie(null, null, new Subnet[0], 0);
+
+  private final Node ipv4;
+  private final Node ipv6;
+  private final Subnet[] others;
+  private final int size;
+
+  private SubnetTrie(Node ipv4, Node ipv6, Subnet[] others, int size) {
+    this.ipv4 = ipv4;
+    this.ipv6 = ipv6;
+    this.others = others;
+    this.size = size;
+  }
+
+  public static SubnetTrie empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @param subnets the subnets, in any order and possibly overlapping
+   * @return a trie with the given subnets
+   */
+  public static SubnetTrie of(Collection<Subnet> subnets) {
+    List<Prefix> ipv4 = new ArrayList<>();
+    List<Prefix> ipv6 = new ArrayList<>();
+    List<Subnet> others = new ArrayList<>();
+    for (Subnet subnet : subnets) {
+      int length = subnet.getPrefixLength();
+      if (length < 0) {
+        others.add(subnet);
+      } else {
+        Prefix prefix = new Prefix(subnet.getSubnetHigh(), subnet.getSubnetLow(), length);
+        (subnet.isIpv4() ? ipv4 : ipv6).add(prefix);
+      }
+    }
+    return new SubnetTrie(build(ipv4), build(ipv6), others.toArray(new Subnet[0]), subnets.size());
+  }
+
+  /**
+   * @return number of subnets the trie was built from, including the ones covered by others
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(IpAddress address) {
+    long high = address.getHigh();
+    long low = address.getLow();
+    Node node = address.isIpv4() ? ipv4 : ipv6;
+    while (node != null) {
+      if ((high & node.maskHigh) != node.high || (low & node.maskLow) != node.low) {
+        break;
+      }
+      if (node.zero == null) {
+        return true;
+      }
+      node = bit(high, low, node.length) == 0 ? node.zero : node.one;
+    }
+    for (Subnet subnet : others) {
+      if (subnet.isInNet(address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Node build(List<Prefix> prefixes) {
+    if (prefixes.isEmpty()) {
+      return null;
+    }
+    // a subnet sorts before the subnets it covers, and those directly follow it
+    prefixes.sort(Comparator.<Prefix>comparingLong(prefix -> prefix.high ^ Long.MIN_VALUE)
+        .thenComparingLong(prefix -> prefix.low ^ Long.MIN_VALUE)
+        .thenComparingInt(prefix -> prefix.length));
+    Prefix[] leaves = new Prefix[prefixes.size()];
+    int count = 0;
+    for (Prefix prefix : prefixes) {
+      if (count == 0 || !leaves[count - 1].covers(prefix)) {
+        leaves[count++] = prefix;
+      }
+    }
+    return build(Arrays.copyOf(leaves, count), 0, count);
+  }
+
+  /**
+   * @param leaves sorted subnets of which none covers another
+   * @return the node of the subnets from <code>from</code> (inclusive) to <code>to</code> (exclusive)
+   */
+  private static Node build(Prefix[] leaves, int from, int to) {
+    Prefix first = leaves[from];
+    if (to - from == 1) {
+      return new Node(first.high, first.low, first.length, null, null);
+    }
+    // the first and the last subnet share the shortest common prefix of the range
+    int length = first.commonLength(leaves[to - 1]);
+    int split = from + 1;
+    while (bit(leaves[split].high, leaves[split].low, length) == 0) {
+      split++;
+    }
+    return new Node(first.high, first.low, length, build(leaves, from, split), build(leaves, split, to));
+  }
+
+  /**
+   * @return bit <code>index</code> of the 128 bit value, counting from the most significant bit
+   */
+  private static int bit(long high, long low, int index) {
+    return (int) (index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1;
+  }
+
+  private static long maskHigh(int length) {
+    return length >= 64 ? -1L : length == 0 ? 0 : -1L << (64 - length);
+  }
+
+  private static long maskLow(int length) {
+    return length <= 64 ? 0 : -1L << (128 - length);
+  }
+
+  private static final class Prefix {
+
+    private final long high;
+    private final long low;
+    private final int length;
+
+    private Prefix(long high, long low, int length) {
+      this.high = high;
+      this.low = low;
+      this.length = length;
+    }
+
+    private boolean covers(Prefix other) {
+      return other.length >= length
+          && (other.high & maskHigh(length)) == high && (other.low & maskLow(length)) == low;
+    }
+
+    private int commonLength(Prefix other) {
+      long diff = high ^ other.high;
+      int common = diff != 0 ? Long.numberOfLeadingZeros(diff) : 64 + Long.numberOfLeadingZeros(low ^ other.low);
+      return Math.min(common, Math.min(length, other.length));
+    }
+  }
+
+  private static final class Node {
+
+    // the bits before the branch, or the whole subnet for a leaf
+    private final long high;
+    private final long low;
+    private final long maskHigh;
+    private final long maskLow;
+    // the bit on which the children branch
+    private final int length;
+    // both null for a leaf
+    private final Node zero;
+    private final Node one;
+
+    private Node(long high, long low, int length, Node zero, Node one) {
+      this.maskHigh = maskHigh(length);
+      this.maskLow = maskLow(length);
+      this.high = high & maskHigh;
+      this.low = low & maskLow;
+      this.length = length;
+      this.zero = zero;
+      this.one = one;
+    }
+  }
+
+}
@@ -19,21 +19,14 @@
 
 package be.dnsbelgium.data.pcap.parquet;
 
+import be.dnsbelgium.data.pcap.ip.IpEnricher;
 import be.dnsbelgium.data.pcap.utils.GeoLookupUtil;
 import nl.sidn.pcap.support.PacketCombination;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericRecordBuilder;
-import org.apache.commons.io.FileUtils;
-import org.kitesdk.data.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 
 @SuppressWarnings("WeakerAccess")
 public abstract class AbstractParquetPacketWriter {
@@ -45,60 +38,27 @@ public abstract class AbstractParquetPacketWriter {
 
   protected int packetCounter;
   // writer vars
-  protected DatasetDescriptor descriptor;
-  protected DatasetWriter<GenericRecord> writer;
+  protected final DnsRowSchema rowSchema;
+  protected PartitionedRowWriter writer;
   protected String schema;
+  protected final ParquetWriterConfig writerConfig;
+  // reused for every record
+  private final DnsRow row;
 
   // meta info
   protected GeoLookupUtil geoLookup;
+  // country, asn and subnet lists of the client addresses, may be shared with other writers
+  protected final IpEnricher enricher;
 
-  protected Map<String, String> geo_ip_cache = new HashMap<>();
-  protected Map<String, String> asn_cache = new HashMap<>();
-  // metrics
-  protected Set<String> countries = new HashSet<>();
-
-
-  public AbstractParquetPacketWriter(GeoLookupUtil geoLookup, String schema) {
+  public AbstractParquetPacketWriter(GeoLookupUtil geoLookup, IpEnricher enricher, String schema,
+                                     ParquetWriterConfig writerConfig) {
     this.geoLookup = geoLookup;
+    this.enricher = enricher;
     this.schema = schema;
-    LOGGER.info("constructed with schema: {}", schema);
-  }
-
-  /**
-   * use caching for maxmind otherwise cpu usage will be high and app will stall
-   *
-   * @param lookup ip address to look up
-   * @return determined country
-   */
-  protected String getCountry(String lookup) {
-    String country = geo_ip_cache.get(lookup);
-    if (country == null) {
-      country = geoLookup.lookupCountry(lookup);
-      if (country != null) {
-        geo_ip_cache.put(lookup, country);
-        countries.add(country);
-      }
-    }
-
-    return country;
-  }
-
-  /**
-   * use caching for maxmind otherwise cpu usage will be high and app will stall
-   *
-   * @param lookup IP address
-   * @return found ASN
-   */
-  protected String getAsn(String lookup) {
-    String asn = asn_cache.get(lookup);
-    if (asn == null) {
-      asn = geoLookup.lookupASN(lookup);
-      if (asn != null) {
-        asn_cache.put(lookup, asn);
-      }
-    }
-
-    return asn;
+    this.writerConfig = writerConfig;
+    this.rowSchema = DnsRowSchema.fromResource(schema);
+    this.row = new DnsRow(rowSchema);
+    LOGGER.info("constructed with schema: {} and parquet settings {}", schema, writerConfig);
   }
 
   /**
@@ -109,58 +69,51 @@ public abstract class AbstractParquetPacketWriter {
   public abstract void write(PacketCombination packet);
 
   /**
-   * Create the partion strategy for the data, e.g. year, month,day
+   * Create the writer that partitions the data, e.g. by year, month and day
    *
-   * @return the partion strategy to use
+   * @param root the directory in which the partitions are created
+   * @return the writer to use
    */
-  protected abstract PartitionStrategy createPartitionStrategy();
+  protected abstract PartitionedRowWriter createWriter(File root);
 
   public void open(String path) {
     LOGGER.info("Opening Parquet writer with path {}", path);
+    writer = createWriter(new File(path));
+  }
 
-    /* before opening, make sure there is no (old) .metadata folder in the output dir */
-    String metadataLocation = path + System.getProperty("file.separator") + ".metadata";
-    try {
-      FileUtils.deleteDirectory(new File(metadataLocation));
-    } catch (IOException e1) {
-      throw new RuntimeException("Could not remove old .metadata directory -> " + metadataLocation);
-    }
-
-    /*
-     * create a partition for year, month and day. The parquetwriter will create a directory
-     * structure with the distinct partition values.
-     */
-    PartitionStrategy partitionStrategy = createPartitionStrategy();
-    // create a descriptor with the parquet output format and the correct partition strategy
-    try {
-      descriptor = new DatasetDescriptor.Builder().schemaUri("resource:" + schema)
-          .format(Formats.PARQUET).partitionStrategy(partitionStrategy).build();
-    } catch (Exception e) {
-      throw new RuntimeException("Error while creating data descriptor", e);
-    }
-
-    String uri = "dataset:file:" + path;
-    LOGGER.info("Creating a dataset with URI = {}", uri);
-
-    Dataset<GenericRecord> dataset = Datasets.create("dataset:file:" + path, descriptor, GenericRecord.class);
-    writer = dataset.newWriter();
-
+  /**
+   * Clear the row that is reused for every record.
+   *
+   * @return the cleared row
+   */
+  protected DnsRow newRow() {
+    row.clear();
+    return row;
   }
 
   /**
-   * Create a new builder for every row.
+   * Write a row to the parquet file of its partition.
    *
-   * @return a new builder
+   * @param row the row to write
    */
-  protected GenericRecordBuilder newBuilder() {
-    return new GenericRecordBuilder(descriptor.getSchema());
+  protected void writeRow(DnsRow row) {
+    try {
+      writer.write(row);
+    } catch (IOException e) {
+      throw new RuntimeException("Error while writing row", e);
+    }
   }
 
   public void close() {
     showStatus();
 
-    if (writer != null && writer.isOpen()) {
-      writer.close();
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Error while closing parquet files", e);
+      }
+      writer = null;
     }
   }
 
@@ -169,11 +122,7 @@ public abstract class AbstractParquetPacketWriter {
         + " Parquet writer status --------------------");
     LOGGER.info(packetCounter + " packets written to parquet file.");
     LOGGER.info("-----------------------------------------------------");
-    LOGGER.info("countries: {}", countries.size());
-    LOGGER.info("asn_cache: {}", asn_cache.size());
-    LOGGER.info("geo_ip_cache: {}", geo_ip_cache.size());
-    LOGGER.info("geo_ip_cache: {}", geo_ip_cache.size());
-    LOGGER.info("asn_cache: {}", asn_cache.size());
+    enricher.logStats();
   }
 
   /**
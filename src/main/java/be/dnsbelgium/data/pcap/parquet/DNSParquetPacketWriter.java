@@ -20,6 +20,10 @@
 package be.dnsbelgium.data.pcap.parquet;
 
 import be.dnsbelgium.data.pcap.convertor.Metrics;
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import be.dnsbelgium.data.pcap.ip.IpEnricher;
+import be.dnsbelgium.data.pcap.ip.IpEnrichment;
+import be.dnsbelgium.data.pcap.ip.IpPrefix;
 import be.dnsbelgium.data.pcap.ip.SubnetChecks;
 import be.dnsbelgium.data.pcap.utils.AutonomousSystem;
 import be.dnsbelgium.data.pcap.utils.GeoLookupUtil;
@@ -28,27 +32,18 @@ import nl.sidn.dnslib.message.Header;
 import nl.sidn.dnslib.message.Message;
 import nl.sidn.dnslib.message.Question;
 import nl.sidn.dnslib.message.records.edns0.*;
-import nl.sidn.dnslib.util.DomainParent;
-import nl.sidn.dnslib.util.Domaininfo;
-import nl.sidn.dnslib.util.NameUtil;
 import nl.sidn.pcap.PcapReader;
 import nl.sidn.pcap.packet.Packet;
 import nl.sidn.pcap.support.PacketCombination;
 import nl.sidn.stats.MetricManager;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.generic.GenericRecordBuilder;
-import org.apache.commons.lang3.StringUtils;
-import org.kitesdk.data.PartitionStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
+import java.io.File;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 // TODO quentinl Make it Autocloseable
 public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implements ParquetWriter {
@@ -56,21 +51,53 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
   private static final Logger LOGGER = LoggerFactory.getLogger(DNSParquetPacketWriter.class);
 
   private static final int RCODE_QUERY_WITHOUT_RESPONSE = -1;
-  private static final String SCHEMA = "avro/dns-query.avsc";
+  public static final String SCHEMA = "avro/dns-query.avsc";
 
-  // use an empty list: only strip off the TLD to get "domainname" column
-  private List<DomainParent> parents = new ArrayList<>();
+  private final QnameNormalizer qnameNormalizer = new QnameNormalizer();
 
   private MetricManager metricManager;
 
   private final Metrics metrics = new Metrics();
 
-  private SubnetChecks subnetChecks;
-  private Set<String> errorMessages = new HashSet<>();
+  private final ParquetOutput output;
+  private final Columns col;
+  // slot of every column of enricher.getSubnetColumns(), -1 when our schema does not know it
+  private final int[] subnetSlots;
 
   public DNSParquetPacketWriter(SubnetChecks subnetChecks, GeoLookupUtil geoLookup) {
-    super(geoLookup, SCHEMA);
-    this.subnetChecks = subnetChecks;
+    this(subnetChecks, geoLookup, ParquetWriterConfig.defaults());
+  }
+
+  public DNSParquetPacketWriter(SubnetChecks subnetChecks, GeoLookupUtil geoLookup, ParquetWriterConfig writerConfig) {
+    this(subnetChecks, geoLookup, writerConfig, null);
+  }
+
+  /**
+   * @param output where the files are written, null to write them under the path given to {@link #open(String)}
+   */
+  public DNSParquetPacketWriter(SubnetChecks subnetChecks, GeoLookupUtil geoLookup, ParquetWriterConfig writerConfig,
+                                ParquetOutput output) {
+    this(new IpEnricher(geoLookup, subnetChecks, IpEnricher.DEFAULT_CACHE_SIZE), geoLookup, writerConfig, output);
+  }
+
+  /**
+   * @param enricher looks up the country, asn and subnet lists of the clients, can be shared by writers
+   * @param output   where the files are written, null to write them under the path given to {@link #open(String)}
+   */
+  public DNSParquetPacketWriter(IpEnricher enricher, GeoLookupUtil geoLookup, ParquetWriterConfig writerConfig,
+                                ParquetOutput output) {
+    super(geoLookup, enricher, SCHEMA, writerConfig);
+    this.output = output;
+    this.col = new Columns(rowSchema);
+    List<String> subnetColumns = enricher.getSubnetColumns();
+    this.subnetSlots = new int[subnetColumns.size()];
+    for (int i = 0; i < subnetSlots.length; i++) {
+      subnetSlots[i] = rowSchema.indexOf(subnetColumns.get(i));
+      if (subnetSlots[i] < 0) {
+        LOGGER.error("Our schema does not know field [{}] => ignoring", subnetColumns.get(i));
+        LOGGER.error("fields: " + rowSchema);
+      }
+    }
     metricManager = MetricManager.getInstance();
   }
 
@@ -114,7 +141,7 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
   @Override
   public void write(PacketCombination combo) {
 
-    GenericRecordBuilder builder = newBuilder();
+    DnsRow row = newRow();
 
     packetCounter++;
     if (packetCounter % STATUS_COUNT == 0) {
@@ -143,48 +170,46 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
     metrics.registerTimestamp(Instant.ofEpochSecond(time));
 
     // get the qname domain name details
-    String normalizedQname = question == null ? "" : filter(question.getqName());
-    normalizedQname = StringUtils.lowerCase(normalizedQname);
-    Domaininfo domaininfo = NameUtil.getDomain(normalizedQname, parents);
+    QnameNormalizer.Name qname = qnameNormalizer.normalize(question == null ? "" : question.getqName());
     // check to see it a response was found, if not then save -1 value
     // otherwise use the rcode returned by the server in the response.
     // no response might be caused by rate limiting
     int rcode = RCODE_QUERY_WITHOUT_RESPONSE; // default no reply, use non standard rcode value -1
 
     // set the nameserver the queries are going to/coming from
-    builder.set("svr", combo.getServer().getName());
+    row.set(col.svr, combo.getServer().getName());
 
     // if no anycast location is encoded in the name then the anycast location will be null
-    builder.set("server_location", combo.getServer().getLocation());
+    row.set(col.server_location, combo.getServer().getLocation());
 
     // add file name, makes it easier to find the original input pcap
     // in case of of debugging.
-    builder.set("pcap_file", combo.getPcapFilename());
+    row.set(col.pcap_file, combo.getPcapFilename());
 
     // add meta data
-    enrich(reqTransport, respTransport, builder);
+    enrich(combo, row);
 
     // these are the values that are retrieved from the response
     if (respTransport != null && respMessage != null && responseHeader != null) {
       // use rcode from response
       rcode = responseHeader.getRawRcode();
 
-      builder.set("id", responseHeader.getId()).set("opcode", responseHeader.getRawOpcode())
-          .set("aa", responseHeader.isAa()).set("tc", responseHeader.isTc())
-          .set("ra", responseHeader.isRa()).set("ad", responseHeader.isAd())
-          .set("ancount", (int) responseHeader.getAnCount())
-          .set("arcount", (int) responseHeader.getArCount())
-          .set("nscount", (int) responseHeader.getNsCount())
-          .set("qdcount", (int) responseHeader.getQdCount())
+      row.set(col.id, responseHeader.getId()).set(col.opcode, responseHeader.getRawOpcode())
+          .set(col.aa, responseHeader.isAa()).set(col.tc, responseHeader.isTc())
+          .set(col.ra, responseHeader.isRa()).set(col.ad, responseHeader.isAd())
+          .set(col.ancount, (int) responseHeader.getAnCount())
+          .set(col.arcount, (int) responseHeader.getArCount())
+          .set(col.nscount, (int) responseHeader.getNsCount())
+          .set(col.qdcount, (int) responseHeader.getQdCount())
           // size of the complete packet incl all headers
-          .set("res_len", respTransport.getTotalLength())
+          .set(col.res_len, respTransport.getTotalLength())
           // size of the dns message
-          .set("dns_res_len", respMessage.getBytes());
+          .set(col.dns_res_len, respMessage.getBytes());
 
       // ip fragments in the response
       if (respTransport.isFragmented()) {
         int frags = respTransport.getReassembledFragments();
-        builder.set("resp_frag", frags);
+        row.set(col.resp_frag, frags);
 
         if ((respTransport.getProtocol() == PcapReader.PROTOCOL_UDP) && frags > 1) {
           metrics.incrementResponseUDPFragmentedCount();
@@ -194,7 +219,7 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
       }
 
       // EDNS0 for response
-      writeResponseOptions(respMessage, builder);
+      writeResponseOptions(respMessage, row);
 
       // update metric
       metrics.incrementResponseBytes(respTransport.getUdpLength());
@@ -210,42 +235,42 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
     // if no request found in the request then use values from the response.
     //noinspection ConstantConditions
 
-    builder.set("rcode", rcode)
-        .set("unixtime", time)
-        .set("time", time * 1000L)
-        .set("time_micro",
+    row.set(col.rcode, rcode)
+        .set(col.unixtime, time)
+        .set(col.time, time * 1000L)
+        .set(col.time_micro,
             reqTransport != null ? reqTransport.getTsmicros() : respTransport.getTsmicros())
-        .set("qname", normalizedQname).set("domainname", domaininfo.name)
-        .set("labels", domaininfo.labels)
-        .set("src", reqTransport != null ? reqTransport.getSrc() : respTransport.getDst())
-        .set("len", reqTransport != null ? reqTransport.getTotalLength() : null)
-        .set("ttl", reqTransport != null ? reqTransport.getTtl() : null)
-        .set("ipv",
+        .set(col.qname, qname.getQname()).set(col.domainname, qname.getDomain())
+        .set(col.labels, qname.getLabels())
+        .set(col.src, combo.getSrc().toString())
+        .set(col.len, reqTransport != null ? reqTransport.getTotalLength() : null)
+        .set(col.ttl, reqTransport != null ? reqTransport.getTtl() : null)
+        .set(col.ipv,
             reqTransport != null ? (int) reqTransport.getIpVersion()
                 : (int) respTransport.getIpVersion())
-        .set("prot",
+        .set(col.prot,
             reqTransport != null ? (int) reqTransport.getProtocol()
                 : (int) respTransport.getProtocol())
-        .set("srcp", reqTransport != null ? reqTransport.getSrcPort() : null)
-        .set("dst", reqTransport != null ? reqTransport.getDst() : respTransport.getSrc())
-        .set("dstp", reqTransport != null ? reqTransport.getDstPort() : respTransport.getSrcPort())
-        .set("udp_sum", reqTransport != null ? reqTransport.getUdpsum() : null)
-        .set("dns_len", requestMessage != null ? requestMessage.getBytes() : null);
+        .set(col.srcp, reqTransport != null ? reqTransport.getSrcPort() : null)
+        .set(col.dst, combo.getDst().toString())
+        .set(col.dstp, reqTransport != null ? reqTransport.getDstPort() : respTransport.getSrcPort())
+        .set(col.udp_sum, reqTransport != null ? reqTransport.getUdpsum() : null)
+        .set(col.dns_len, requestMessage != null ? requestMessage.getBytes() : null);
 
     // get values from the request only.
     // may overwrite values from the response
     if (reqTransport != null && requestHeader != null) {
-      builder.set("id", requestHeader.getId()).set("opcode", requestHeader.getRawOpcode())
-          .set("rd", requestHeader.isRd()).set("z", requestHeader.isZ())
-          .set("cd", requestHeader.isCd()).set("qdcount", (int) requestHeader.getQdCount())
-          .set("id", requestHeader.getId()).set("q_tc", requestHeader.isTc())
-          .set("q_ra", requestHeader.isRa()).set("q_ad", requestHeader.isAd())
-          .set("q_rcode", requestHeader.getRawRcode());
+      row.set(col.id, requestHeader.getId()).set(col.opcode, requestHeader.getRawOpcode())
+          .set(col.rd, requestHeader.isRd()).set(col.z, requestHeader.isZ())
+          .set(col.cd, requestHeader.isCd()).set(col.qdcount, (int) requestHeader.getQdCount())
+          .set(col.id, requestHeader.getId()).set(col.q_tc, requestHeader.isTc())
+          .set(col.q_ra, requestHeader.isRa()).set(col.q_ad, requestHeader.isAd())
+          .set(col.q_rcode, requestHeader.getRawRcode());
 
       // ip fragments in the request
       if (reqTransport.isFragmented()) {
         int req_frags = reqTransport.getReassembledFragments();
-        builder.set("frag", req_frags);
+        row.set(col.frag, req_frags);
 
         if ((reqTransport.getProtocol() == PcapReader.PROTOCOL_UDP) && req_frags > 1) {
           metrics.incrementRequestUDPFragmentedCount();
@@ -270,21 +295,20 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
     }
 
     // question
-    writeQuestion(question, builder);
+    writeQuestion(question, row);
 
     // EDNS0 for request
-    writeRequestOptions(requestMessage, builder);
+    writeRequestOptions(requestMessage, row);
 
     // calculate the processing time
-    writeProctime(reqTransport, respTransport, builder);
+    writeProctime(reqTransport, respTransport, row);
 
 
-    if (builder.get("id") == null) {
-      LOGGER.error("id is not set for {}", builder);
+    if (!row.isSet(col.id)) {
+      LOGGER.error("id is not set for {}", row);
     } else {
-      // create the actual record and write to parquet file
-      GenericRecord record = builder.build();
-      writer.write(record);
+      // write the row straight into the parquet columns
+      writeRow(row);
     }
 
     if (requestHeader != null) {
@@ -304,46 +328,29 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
     }
   }
 
-  private void enrich(Packet reqPacket, Packet respPacket, GenericRecordBuilder builder) {
-    String country;
-    String ip;
+  private void enrich(PacketCombination combo, DnsRow row) {
+    // source address of the request or destination address of the response
+    IpAddress ip = combo.getSrc();
+    IpEnrichment enrichment = enricher.lookup(ip);
 
-    if (reqPacket != null) {
-      // request packet, check the source address
-      ip = reqPacket.getSrc();
-    } else {
-      // response packet, check the destination address
-      ip = respPacket.getDst();
-    }
+    row.set(col.country, enrichment.getCountry());
 
-    country = getCountry(ip);
-    builder.set("country", country);
-
-    // asn = getAsn(ip);
-
-    AutonomousSystem as = geoLookup.lookupAutonomousSystem(ip);
+    AutonomousSystem as = enrichment.getAutonomousSystem();
     if (as != null) {
-      builder.set("asn_organisation", as.getAutonomousSystemOrganization());
-      builder.set("asn", as.getAutonomousSystemNumber());
+      row.set(col.asn_organisation, as.getAutonomousSystemOrganization());
+      row.set(col.asn, as.getAutonomousSystemNumber());
     }
 
+    // only the first list that has the address is marked
     boolean foundMatch = false;
-    for (String column : subnetChecks.getColumns()) {
-      boolean match = !foundMatch && subnetChecks.get(column).isMatch(ip);
+    for (int i = 0; i < subnetSlots.length; i++) {
+      boolean match = !foundMatch && enrichment.isInSubnets(i);
       if (match) {
         foundMatch = true;
-        metrics.incrementSubnetMatch(column);
+        metrics.incrementSubnetMatch(enricher.getSubnetColumns().get(i));
       }
-      if (descriptor.getSchema().getField(column) != null) {
-        LOGGER.debug("Setting field {} => {}", column, match);
-        builder.set(column, match);
-      } else {
-        String msg = "Our schema does not know field [" + column + "] => ignoring";
-        if (!errorMessages.contains(msg)) {
-          LOGGER.error(msg);
-          LOGGER.error("fields: " + descriptor.getSchema().getFields());
-          errorMessages.add(msg);
-        }
+      if (subnetSlots[i] >= 0) {
+        row.set(subnetSlots[i], match);
       }
     }
   }
@@ -364,12 +371,12 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
     }
   }
 
-  private void writeQuestion(Question q, GenericRecordBuilder builder) {
+  private void writeQuestion(Question q, DnsRow row) {
     if (q != null) {
       // unassigned, private or unknown, get raw value
-      builder.set("qtype", q.getqTypeValue());
+      row.set(col.qtype, q.getqTypeValue());
       // unassigned, private or unknown, get raw value
-      builder.set("qclass", q.getqClassValue());
+      row.set(col.qclass, q.getqClassValue());
       // qtype metrics
       metrics.incrementQueryType(q.getqTypeValue());
     }
@@ -378,7 +385,7 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
 
   // calc the number of seconds between receivinfg the response and sending it back to the resolver
   private void writeProctime(Packet reqTransport, Packet respTransport,
-                             GenericRecordBuilder builder) {
+                             DnsRow row) {
     if (reqTransport != null && respTransport != null) {
       Timestamp reqTs = new Timestamp((reqTransport.getTs() * 1000000));
       Timestamp respTs = new Timestamp((respTransport.getTs() * 1000000));
@@ -386,7 +393,7 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
       // from second to microseconds
       long millis1 = respTs.getTime() - reqTs.getTime();
       long millis2 = (respTransport.getTsmicros() - reqTransport.getTsmicros());
-      builder.set("proc_time", millis1 + millis2);
+      row.set(col.proc_time, (int) (millis1 + millis2));
     }
   }
 
@@ -394,9 +401,9 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
    * Write EDNS0 option (if any are present) to file.
    *
    * @param message --
-   * @param builder --
+   * @param row --
    */
-  private void writeResponseOptions(Message message, GenericRecordBuilder builder) {
+  private void writeResponseOptions(Message message, DnsRow row) {
     if (message == null) {
       return;
     }
@@ -406,7 +413,7 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
       for (EDNS0Option option : opt.getOptions()) {
         if (option instanceof NSidOption) {
           String id = ((NSidOption) option).getId();
-          builder.set("edns_nsid", id != null ? id : "");
+          row.set(col.edns_nsid, id != null ? id : "");
 
           // this is the only server edns data we support, stop processing other options
           break;
@@ -420,30 +427,30 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
    * Write EDNS0 option (if any are present) to file.
    *
    * @param message the DNS message to analyze
-   * @param builder used for adding fields
+   * @param row used for adding fields
    */
-  private void writeRequestOptions(Message message, GenericRecordBuilder builder) {
+  private void writeRequestOptions(Message message, DnsRow row) {
     if (message == null) {
       return;
     }
 
     OPTResourceRecord opt = message.getPseudo();
     if (opt != null) {
-      builder.set("edns_udp", (int) opt.getUdpPlayloadSize())
-          .set("edns_version", (int) opt.getVersion()).set("edns_do", opt.getDnssecDo())
-          .set("edns_padding", -1); // use default no padding found
+      row.set(col.edns_udp, (int) opt.getUdpPlayloadSize())
+          .set(col.edns_version, (int) opt.getVersion()).set(col.edns_do, opt.getDnssecDo())
+          .set(col.edns_padding, -1); // use default no padding found
 
       List<Integer> otherEdnsOptions = new ArrayList<>();
       for (EDNS0Option option : opt.getOptions()) {
         if (option instanceof PingOption) {
-          builder.set("edns_ping", true);
+          row.set(col.edns_ping, true);
         } else if (option instanceof DNSSECOption) {
           if (option.getCode() == DNSSECOption.OPTION_CODE_DAU) {
-            builder.set("edns_dnssec_dau", ((DNSSECOption) option).export());
+            row.set(col.edns_dnssec_dau, ((DNSSECOption) option).export());
           } else if (option.getCode() == DNSSECOption.OPTION_CODE_DHU) {
-            builder.set("edns_dnssec_dhu", ((DNSSECOption) option).export());
+            row.set(col.edns_dnssec_dhu, ((DNSSECOption) option).export());
           } else { // N3U
-            builder.set("edns_dnssec_n3u", ((DNSSECOption) option).export());
+            row.set(col.edns_dnssec_n3u, ((DNSSECOption) option).export());
           }
         } else if (option instanceof ClientSubnetOption) {
           ClientSubnetOption scOption = (ClientSubnetOption) option;
@@ -451,24 +458,28 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
           String clientCountry = null;
           String clientASN = null;
           if (scOption.getAddress() != null) {
-            InetAddress addr = scOption.getInetAddress();
             try {
-              clientCountry = geoLookup.lookupCountry(addr);
-              clientASN = geoLookup.lookupASN(addr);
+              // the country and asn are looked up per source prefix, resolvers send the same prefixes over and over
+              IpAddress address = IpAddress.of(scOption.getInetAddress().getAddress());
+              IpPrefix prefix = IpPrefix.of(address, scOption.getSourcenetmask());
+              IpEnrichment enrichment = enricher.lookupClientSubnet(prefix);
+              clientCountry = enrichment.getCountry();
+              AutonomousSystem as = enrichment.getAutonomousSystem();
+              clientASN = as == null ? null : String.valueOf(as.getAutonomousSystemNumber());
             } catch (Exception e) {
               LOGGER.error("Could not convert IP addr to bytes, invalid address? :" + scOption.getAddress());
             }
           }
-          builder.set("edns_client_subnet", scOption.export())
-              .set("edns_client_subnet_asn", clientASN)
-              .set("edns_client_subnet_country", clientCountry);
+          row.set(col.edns_client_subnet, scOption.export())
+              .set(col.edns_client_subnet_asn, clientASN)
+              .set(col.edns_client_subnet_country, clientCountry);
 
         } else if (option instanceof PaddingOption) {
-          builder.set("edns_padding", ((PaddingOption) option).getLength());
+          row.set(col.edns_padding, ((PaddingOption) option).getLength());
         } else if (option instanceof KeyTagOption) {
           KeyTagOption kto = (KeyTagOption) option;
-          builder.set("edns_keytag_count", kto.getKeytags().size());
-          builder.set("edns_keytag_list", Joiner.on(",").join(kto.getKeytags()));
+          row.set(col.edns_keytag_count, kto.getKeytags().size());
+          row.set(col.edns_keytag_list, Joiner.on(",").join(kto.getKeytags()));
         } else {
           // other
           otherEdnsOptions.add(option.getCode());
@@ -476,17 +487,94 @@ public class DNSParquetPacketWriter extends AbstractParquetPacketWriter implemen
       }
 
       if (otherEdnsOptions.size() > 0) {
-        builder.set("edns_other", Joiner.on(",").join(otherEdnsOptions));
+        row.set(col.edns_other, Joiner.on(",").join(otherEdnsOptions));
       }
     }
   }
 
   @Override
-  protected PartitionStrategy createPartitionStrategy() {
-    return new PartitionStrategy.Builder().year("time").month("time").day("time")
-        .identity("svr", "server").build();
+  protected PartitionedRowWriter createWriter(File root) {
+    ParquetOutput target = output == null ? new LocalParquetOutput(root) : output;
+    return new PartitionedRowWriter(target, root, rowSchema, "time", "svr", "server", writerConfig);
   }
 
+  /**
+   * The slots of the columns we write, resolved once against the schema.
+   */
+  private static final class Columns {
+
+    final int id, unixtime, time, qname, domainname, len, frag, ttl, ipv, prot, src, srcp, dst, dstp,
+        udp_sum, dns_len, aa, tc, rd, ra, z, ad, cd, ancount, arcount, nscount, qdcount, opcode, rcode,
+        qtype, qclass, country, asn, edns_udp, edns_version, edns_do, edns_ping, edns_nsid, edns_dnssec_dau,
+        edns_dnssec_dhu, edns_dnssec_n3u, edns_client_subnet, edns_other, edns_client_subnet_asn,
+        edns_client_subnet_country, labels, res_len, svr, time_micro, resp_frag, proc_time, dns_res_len,
+        server_location, edns_padding, pcap_file, edns_keytag_count, edns_keytag_list, q_tc, q_ra, q_ad,
+        q_rcode, asn_organisation;
+
+    private Columns(DnsRowSchema schema) {
+      id = schema.slot("id");
+      unixtime = schema.slot("unixtime");
+      time = schema.slot("time");
+      qname = schema.slot("qname");
+      domainname = schema.slot("domainname");
+      len = schema.slot("len");
+      frag = schema.slot("frag");
+      ttl = schema.slot("ttl");
+      ipv = schema.slot("ipv");
+      prot = schema.slot("prot");
+      src = schema.slot("src");
+      srcp = schema.slot("srcp");
+      dst = schema.slot("dst");
+      dstp = schema.slot("dstp");
+      udp_sum = schema.slot("udp_sum");
+      dns_len = schema.slot("dns_len");
+      aa = schema.slot("aa");
+      tc = schema.slot("tc");
+      rd = schema.slot("rd");
+      ra = schema.slot("ra");
+      z = schema.slot("z");
+      ad = schema.slot("ad");
+      cd = schema.slot("cd");
+      ancount = schema.slot("ancount");
+      arcount = schema.slot("arcount");
+      nscount = schema.slot("nscount");
+      qdcount = schema.slot("qdcount");
+      opcode = schema.slot("opcode");
+      rcode = schema.slot("rcode");
+      qtype = schema.slot("qtype");
+      qclass = schema.slot("qclass");
+      country = schema.slot("country");
+      asn = schema.slot("asn");
+      edns_udp = schema.slot("edns_udp");
+      edns_version = schema.slot("edns_version");
+      edns_do = schema.slot("edns_do");
+      edns_ping = schema.slot("edns_ping");
+      edns_nsid = schema.slot("edns_nsid");
+      edns_dnssec_dau = schema.slot("edns_dnssec_dau");
+      edns_dnssec_dhu = schema.slot("edns_dnssec_dhu");
+      edns_dnssec_n3u = schema.slot("edns_dnssec_n3u");
+      edns_client_subnet = schema.slot("edns_client_subnet");
+      edns_other = schema.slot("edns_other");
+      edns_client_subnet_asn = schema.slot("edns_client_subnet_asn");
+      edns_client_subnet_country = schema.slot("edns_client_subnet_country");
+      labels = schema.slot("labels");
+      res_len = schema.slot("res_len");
+      svr = schema.slot("svr");
+      time_micro = schema.slot("time_micro");
+      resp_frag = schema.slot("resp_frag");
+      proc_time = schema.slot("proc_time");
+      dns_res_len = schema.slot("dns_res_len");
+      server_location = schema.slot("server_location");
+      edns_padding = schema.slot("edns_padding");
+      pcap_file = schema.slot("pcap_file");
+      edns_keytag_count = schema.slot("edns_keytag_count");
+      edns_keytag_list = schema.slot("edns_keytag_list");
+      q_tc = schema.slot("q_tc");
+      q_ra = schema.slot("q_ra");
+      q_ad = schema.slot("q_ad");
+      q_rcode = schema.slot("q_rcode");
+      asn_organisation = schema.slot("asn_organisation");
+    }
+  }
 
 }
-
@@ -0,0 +1,193 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import java.util.Arrays;
+
+/**
+ * A mutable row of a {@link DnsRowSchema}, meant to be filled, written and {@link #clear() cleared} again
+ * for every record, so that writing a record does not create a builder, a record and a box per value.
+ * <p>
+ * Int, long and boolean values share one <code>long</code> per slot, strings have their own array.
+ * A slot that is not set is written as null, or as the default value of the schema for a column
+ * that is not optional.
+ * <p>
+ * Not thread-safe.
+ */
+public class DnsRow {
+
+  private final DnsRowSchema schema;
+  private final long[] numbers;
+  private final String[] strings;
+  private final boolean[] present;
+
+  public DnsRow(DnsRowSchema schema) {
+    this.schema = schema;
+    this.numbers = new long[schema.size()];
+    this.strings = new String[schema.size()];
+    this.present = new boolean[schema.size()];
+  }
+
+  public DnsRowSchema getSchema() {
+    return schema;
+  }
+
+  /**
+   * @param slot  slot of an int or long column, like Avro an int is promoted to a long
+   * @param value the value
+   * @return this row
+   */
+  public DnsRow set(int slot, int value) {
+    DnsRowSchema.Kind kind = schema.kind(slot);
+    if (kind != DnsRowSchema.Kind.INT && kind != DnsRowSchema.Kind.LONG) {
+      throw new IllegalArgumentException("Field " + schema.name(slot) + " is not an int");
+    }
+    numbers[slot] = value;
+    present[slot] = true;
+    return this;
+  }
+
+  public DnsRow set(int slot, long value) {
+    if (schema.kind(slot) != DnsRowSchema.Kind.LONG) {
+      throw new IllegalArgumentException("Field " + schema.name(slot) + " is not a long");
+    }
+    numbers[slot] = value;
+    present[slot] = true;
+    return this;
+  }
+
+  /**
+   * @param slot  slot of an int column
+   * @param value the value, null to clear the slot
+   * @return this row
+   */
+  public DnsRow set(int slot, Integer value) {
+    if (value == null) {
+      return clear(slot);
+    }
+    return set(slot, value.intValue());
+  }
+
+  public DnsRow set(int slot, boolean value) {
+    if (schema.kind(slot) != DnsRowSchema.Kind.BOOLEAN) {
+      throw new IllegalArgumentException("Field " + schema.name(slot) + " is not a boolean");
+    }
+    numbers[slot] = value ? 1 : 0;
+    present[slot] = true;
+    return this;
+  }
+
+  /**
+   * @param slot  slot of a string column
+   * @param value the value, null to clear the slot
+   * @return this row
+   */
+  public DnsRow set(int slot, String value) {
+    if (schema.kind(slot) != DnsRowSchema.Kind.STRING) {
+      throw new IllegalArgumentException("Field " + schema.name(slot) + " is not a string");
+    }
+    strings[slot] = value;
+    present[slot] = value != null;
+    return this;
+  }
+
+  /**
+   * Set an int, long or boolean (1 for true) slot without checking its type, for rows decoded by {@link DnsRowCodec}.
+   */
+  void setNumber(int slot, long value) {
+    numbers[slot] = value;
+    present[slot] = true;
+  }
+
+  /**
+   * Set a string slot without checking its type, for rows decoded by {@link DnsRowCodec}.
+   */
+  void setString(int slot, String value) {
+    strings[slot] = value;
+    present[slot] = true;
+  }
+
+  public DnsRow clear(int slot) {
+    strings[slot] = null;
+    present[slot] = false;
+    return this;
+  }
+
+  public void clear() {
+    Arrays.fill(present, false);
+    Arrays.fill(strings, null);
+  }
+
+  public boolean isSet(int slot) {
+    return present[slot];
+  }
+
+  /**
+   * @return the value of an int, long or boolean (1 for true) slot, the default value when not set
+   */
+  public long getNumber(int slot) {
+    return present[slot] ? numbers[slot] : schema.defaultNumber(slot);
+  }
+
+  public int getInt(int slot) {
+    return (int) getNumber(slot);
+  }
+
+  public long getLong(int slot) {
+    return getNumber(slot);
+  }
+
+  public boolean getBoolean(int slot) {
+    return getNumber(slot) != 0;
+  }
+
+  /**
+   * @return the value of a string slot, the default value when not set
+   */
+  public String getString(int slot) {
+    return present[slot] ? strings[slot] : schema.defaultString(slot);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("{");
+    for (int slot = 0; slot < present.length; slot++) {
+      if (present[slot]) {
+        if (builder.length() > 1) {
+          builder.append(", ");
+        }
+        builder.append(schema.name(slot)).append('=');
+        switch (schema.kind(slot)) {
+          case STRING:
+            builder.append(strings[slot]);
+            break;
+          case BOOLEAN:
+            builder.append(numbers[slot] != 0);
+            break;
+          default:
+            builder.append(numbers[slot]);
+        }
+      }
+    }
+    return builder.append('}').toString();
+  }
+
+}
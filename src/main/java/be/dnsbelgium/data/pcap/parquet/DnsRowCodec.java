@@ -0,0 +1,115 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary form of a {@link DnsRow}, to keep rows in memory or spill them to disk while sorting.
+ * <p>
+ * A bitmap of the slots that are set, followed by the value of every set slot in slot order:
+ * numbers as zigzag varints, strings as a varint length and UTF-8 bytes.
+ * <p>
+ * Not thread-safe.
+ */
+final class DnsRowCodec {
+
+  private final DnsRowSchema schema;
+  private final int bitmapBytes;
+  private byte[] buffer = new byte[512];
+  private int length;
+
+  DnsRowCodec(DnsRowSchema schema) {
+    this.schema = schema;
+    this.bitmapBytes = (schema.size() + 7) / 8;
+  }
+
+  /**
+   * @return the encoded row, a new array
+   */
+  byte[] encode(DnsRow row) {
+    length = bitmapBytes;
+    ensure(bitmapBytes);
+    Arrays.fill(buffer, 0, bitmapBytes, (byte) 0);
+    for (int slot = 0; slot < schema.size(); slot++) {
+      if (!row.isSet(slot)) {
+        continue;
+      }
+      buffer[slot >>> 3] |= 1 << (slot & 7);
+      if (schema.kind(slot) == DnsRowSchema.Kind.STRING) {
+        byte[] bytes = row.getString(slot).getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+      } else {
+        long value = row.getNumber(slot);
+        writeVarLong((value << 1) ^ (value >> 63));
+      }
+    }
+    return Arrays.copyOf(buffer, length);
+  }
+
+  /**
+   * Replace the content of a row with an encoded row.
+   */
+  void decode(byte[] data, DnsRow row) {
+    row.clear();
+    int position = bitmapBytes;
+    for (int slot = 0; slot < schema.size(); slot++) {
+      if ((data[slot >>> 3] & (1 << (slot & 7))) == 0) {
+        continue;
+      }
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[position++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      if (schema.kind(slot) == DnsRowSchema.Kind.STRING) {
+        int size = (int) value;
+        row.setString(slot, new String(data, position, size, StandardCharsets.UTF_8));
+        position += size;
+      } else {
+        row.setNumber(slot, (value >>> 1) ^ -(value & 1));
+      }
+    }
+  }
+
+  private void writeVarLong(long value) {
+    ensure(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[length++] = (byte) value;
+  }
+
+  private void ensure(int extra) {
+    if (length + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the rows of a Parquet file we wrote back into a {@link DnsRow}, e.g. to rewrite them.
+ * Columns are matched by name, columns the file does not have are left unset.
+ * <p>
+ * Not thread-safe.
+ */
+public class DnsRowReader implements Closeable {
+
+  private final ParquetReader<GenericRecord> reader;
+  private final DnsRow row;
+
+  public DnsRowReader(File file, DnsRowSchema schema) throws IOException {
+    this.reader = AvroParquetReader.<GenericRecord>builder(new LocalInputFile(file.toPath())).build();
+    this.row = new DnsRow(schema);
+  }
+
+  /**
+   * @return the next row, the same instance on every call, or null at the end of the file
+   */
+  public DnsRow read() throws IOException {
+    GenericRecord record = reader.read();
+    if (record == null) {
+      return null;
+    }
+    row.clear();
+    DnsRowSchema schema = row.getSchema();
+    for (int slot = 0; slot < schema.size(); slot++) {
+      Object value = record.get(schema.name(slot));
+      if (value == null) {
+        continue;
+      }
+      switch (schema.kind(slot)) {
+        case STRING:
+          row.set(slot, value.toString());
+          break;
+        case BOOLEAN:
+          row.set(slot, (boolean) (Boolean) value);
+          break;
+        case INT:
+          row.set(slot, ((Number) value).intValue());
+          break;
+        default:
+          row.set(slot, ((Number) value).longValue());
+      }
+    }
+    return row;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+}
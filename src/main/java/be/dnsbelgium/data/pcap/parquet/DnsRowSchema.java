@@ -0,0 +1,201 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.avro.JsonProperties;
+import org.apache.avro.Schema;
+import org.apache.parquet.avro.AvroSchemaConverter;
+import org.apache.parquet.schema.MessageType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The columns of a flat Avro record schema, resolved once so that a {@link DnsRow} can address them by slot.
+ * <p>
+ * The slot of a column is the position of its field in the Avro schema, which is also its index in the
+ * Parquet schema: the Parquet schema is converted from the Avro schema by parquet-avro,
+ * so the files have exactly the columns and types they had when they were written through Avro.
+ * Only int, long, boolean and string fields are supported, optionally in a union with null.
+ */
+public class DnsRowSchema {
+
+  public enum Kind {INT, LONG, BOOLEAN, STRING}
+
+  private final Schema avroSchema;
+  private final MessageType messageType;
+  private final Map<String, Integer> slots = new HashMap<>();
+  private final String[] names;
+  private final Kind[] kinds;
+  private final boolean[] optional;
+  private final boolean[] hasDefault;
+  // default values of the fields that are not optional
+  private final long[] defaultNumbers;
+  private final String[] defaultStrings;
+
+  public DnsRowSchema(Schema avroSchema) {
+    if (avroSchema.getType() != Schema.Type.RECORD) {
+      throw new IllegalArgumentException("Not a record schema: " + avroSchema);
+    }
+    this.avroSchema = avroSchema;
+    this.messageType = new AvroSchemaConverter().convert(avroSchema);
+    List<Schema.Field> fields = avroSchema.getFields();
+    int size = fields.size();
+    names = new String[size];
+    kinds = new Kind[size];
+    optional = new boolean[size];
+    hasDefault = new boolean[size];
+    defaultNumbers = new long[size];
+    defaultStrings = new String[size];
+    for (Schema.Field field : fields) {
+      int slot = field.pos();
+      names[slot] = field.name();
+      slots.put(field.name(), slot);
+      Schema type = field.schema();
+      if (type.getType() == Schema.Type.UNION) {
+        type = nonNullBranch(field);
+        optional[slot] = true;
+      }
+      kinds[slot] = kindOf(field, type);
+      Object defaultValue = field.defaultVal();
+      if (!optional[slot] && defaultValue != null && defaultValue != JsonProperties.NULL_VALUE) {
+        hasDefault[slot] = true;
+        if (defaultValue instanceof Number) {
+          defaultNumbers[slot] = ((Number) defaultValue).longValue();
+        } else if (defaultValue instanceof Boolean) {
+          defaultNumbers[slot] = (Boolean) defaultValue ? 1 : 0;
+        } else {
+          defaultStrings[slot] = defaultValue.toString();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param resource class path location of an Avro schema, e.g. avro/dns-query.avsc
+   * @return the schema
+   */
+  public static DnsRowSchema fromResource(String resource) {
+    try (InputStream in = DnsRowSchema.class.getClassLoader().getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IllegalArgumentException("Schema not found on the class path: " + resource);
+      }
+      return new DnsRowSchema(new Schema.Parser().parse(in));
+    } catch (IOException e) {
+      throw new RuntimeException("Could not read schema " + resource, e);
+    }
+  }
+
+  private static Schema nonNullBranch(Schema.Field field) {
+    List<Schema> branches = field.schema().getTypes();
+    if (branches.size() == 2) {
+      if (branches.get(0).getType() == Schema.Type.NULL) {
+        return branches.get(1);
+      }
+      if (branches.get(1).getType() == Schema.Type.NULL) {
+        return branches.get(0);
+      }
+    }
+    throw new IllegalArgumentException("Field " + field.name() + ": only unions with null are supported");
+  }
+
+  private static Kind kindOf(Schema.Field field, Schema type) {
+    switch (type.getType()) {
+      case INT:
+        return Kind.INT;
+      case LONG:
+        return Kind.LONG;
+      case BOOLEAN:
+        return Kind.BOOLEAN;
+      case STRING:
+        return Kind.STRING;
+      default:
+        throw new IllegalArgumentException("Field " + field.name() + ": type " + type.getType() + " is not supported");
+    }
+  }
+
+  public Schema getAvroSchema() {
+    return avroSchema;
+  }
+
+  public MessageType getMessageType() {
+    return messageType;
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * @param name name of a column
+   * @return the slot of the column, -1 if the schema has no such column
+   */
+  public int indexOf(String name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * @param name name of a column
+   * @return the slot of the column
+   * @throws IllegalArgumentException if the schema has no such column
+   */
+  public int slot(String name) {
+    int slot = indexOf(name);
+    if (slot < 0) {
+      throw new IllegalArgumentException("Our schema does not know field [" + name + "]");
+    }
+    return slot;
+  }
+
+  public String name(int slot) {
+    return names[slot];
+  }
+
+  public Kind kind(int slot) {
+    return kinds[slot];
+  }
+
+  public boolean isOptional(int slot) {
+    return optional[slot];
+  }
+
+  public boolean hasDefault(int slot) {
+    return hasDefault[slot];
+  }
+
+  public long defaultNumber(int slot) {
+    return defaultNumbers[slot];
+  }
+
+  public String defaultString(int slot) {
+    return defaultStrings[slot];
+  }
+
+  @Override
+  public String toString() {
+    return avroSchema.getName() + slots.keySet();
+  }
+
+}
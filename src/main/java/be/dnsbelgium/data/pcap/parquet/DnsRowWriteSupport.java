@@ -0,0 +1,136 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a {@link DnsRow} straight into the Parquet column writers, without an Avro record in between.
+ * <p>
+ * Like the Avro write support, the Avro schema is stored in the footer of the file,
+ * so the files can still be read back as Avro records.
+ */
+public class DnsRowWriteSupport extends WriteSupport<DnsRow> {
+
+  // same key as parquet-avro
+  static final String AVRO_SCHEMA = "parquet.avro.schema";
+
+  private final DnsRowSchema schema;
+  // slots of the columns that can not be null and have no default value
+  private final int[] mandatory;
+  private RecordConsumer consumer;
+
+  public DnsRowWriteSupport(DnsRowSchema schema) {
+    this.schema = schema;
+    int count = 0;
+    int[] slots = new int[schema.size()];
+    for (int slot = 0; slot < schema.size(); slot++) {
+      if (!schema.isOptional(slot) && !schema.hasDefault(slot)) {
+        slots[count++] = slot;
+      }
+    }
+    this.mandatory = Arrays.copyOf(slots, count);
+  }
+
+  public static Builder builder(OutputFile file, DnsRowSchema schema) {
+    return new Builder(file, schema);
+  }
+
+  @Override
+  public WriteContext init(Configuration configuration) {
+    Map<String, String> metadata = new HashMap<>();
+    metadata.put(AVRO_SCHEMA, schema.getAvroSchema().toString());
+    return new WriteContext(schema.getMessageType(), metadata);
+  }
+
+  @Override
+  public void prepareForWrite(RecordConsumer recordConsumer) {
+    this.consumer = recordConsumer;
+  }
+
+  /**
+   * @param row the row to write, it can be cleared and reused as soon as this method returns
+   * @throws IllegalArgumentException when a column that can not be null is not set and has no default value,
+   *                                  nothing is written then
+   */
+  @Override
+  public void write(DnsRow row) {
+    for (int slot : mandatory) {
+      if (!row.isSet(slot)) {
+        throw new IllegalArgumentException("Field " + schema.name(slot) + " not set and has no default value");
+      }
+    }
+    consumer.startMessage();
+    for (int slot = 0; slot < schema.size(); slot++) {
+      if (!row.isSet(slot) && !schema.hasDefault(slot)) {
+        // optional column, null is written by leaving out the field
+        continue;
+      }
+      String name = schema.name(slot);
+      consumer.startField(name, slot);
+      switch (schema.kind(slot)) {
+        case INT:
+          consumer.addInteger(row.getInt(slot));
+          break;
+        case LONG:
+          consumer.addLong(row.getLong(slot));
+          break;
+        case BOOLEAN:
+          consumer.addBoolean(row.getBoolean(slot));
+          break;
+        case STRING:
+          consumer.addBinary(Binary.fromString(row.getString(slot)));
+          break;
+      }
+      consumer.endField(name, slot);
+    }
+    consumer.endMessage();
+  }
+
+  public static class Builder extends org.apache.parquet.hadoop.ParquetWriter.Builder<DnsRow, Builder> {
+
+    private final DnsRowSchema schema;
+
+    private Builder(OutputFile file, DnsRowSchema schema) {
+      super(file);
+      this.schema = schema;
+    }
+
+    @Override
+    protected Builder self() {
+      return this;
+    }
+
+    @Override
+    protected WriteSupport<DnsRow> getWriteSupport(Configuration conf) {
+      return new DnsRowWriteSupport(schema);
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.parquet.io.OutputFile;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Writes files to a directory on the local file system. A file is written as a hidden
+ * <code>.&lt;name&gt;.tmp</code> file next to its final name, and renamed when it is committed.
+ */
+public class LocalParquetOutput implements ParquetOutput {
+
+  private static final Logger logger = getLogger(LocalParquetOutput.class);
+
+  private final File root;
+
+  public LocalParquetOutput(File root) {
+    this.root = root;
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  @Override
+  public Pending create(String path) {
+    File target = new File(root, path);
+    File tmp = new File(target.getParentFile(), "." + target.getName() + ".tmp");
+    return new Pending() {
+      @Override
+      public OutputFile getOutputFile() {
+        return new LocalOutputFile(tmp.toPath());
+      }
+
+      @Override
+      public long getMemoryBytes() {
+        // only the small buffer of the file stream
+        return 0;
+      }
+
+      @Override
+      public String commit() throws IOException {
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return target.getAbsolutePath();
+      }
+
+      @Override
+      public void abort() {
+        if (tmp.exists() && !tmp.delete()) {
+          logger.warn("Could not delete {}", tmp);
+        }
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return root.getAbsolutePath();
+  }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.column.statistics.Statistics;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.io.api.Binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sizes of a set of Parquet files, taken from their footers.
+ * <p>
+ * Athena reads only the column chunks of the columns a query uses, and charges for the bytes it reads.
+ * Without partition or row group pruning, the compressed size of those column chunks is an upper bound
+ * of the bytes scanned by the query. With a filter on a column, Athena also skips the row groups whose
+ * min/max statistics exclude the value, see {@link #lookupScannedBytes(String, Collection)}.
+ */
+public class ParquetFileStats {
+
+  // Athena charges at least 10 MB per query
+  public static final long ATHENA_MINIMUM_SCAN_BYTES = 10L * 1024 * 1024;
+
+  private long files = 0;
+  private long fileBytes = 0;
+  private long rows = 0;
+  private long rowGroups = 0;
+  // compressed bytes per column, over all row groups
+  private final Map<String, Long> columnBytes = new TreeMap<>();
+  private final Map<String, Long> uncompressedColumnBytes = new TreeMap<>();
+  private final List<RowGroup> rowGroupStats = new ArrayList<>();
+
+  public static ParquetFileStats of(Collection<File> files) throws IOException {
+    ParquetFileStats stats = new ParquetFileStats();
+    for (File file : files) {
+      stats.add(file);
+    }
+    return stats;
+  }
+
+  public void add(File file) throws IOException {
+    try (ParquetFileReader reader = ParquetFileReader.open(new LocalInputFile(file.toPath()))) {
+      for (BlockMetaData block : reader.getFooter().getBlocks()) {
+        rows += block.getRowCount();
+        rowGroups++;
+        RowGroup rowGroup = new RowGroup();
+        for (ColumnChunkMetaData column : block.getColumns()) {
+          String name = column.getPath().toDotString();
+          columnBytes.merge(name, column.getTotalSize(), Long::sum);
+          uncompressedColumnBytes.merge(name, column.getTotalUncompressedSize(), Long::sum);
+          rowGroup.columnBytes.put(name, column.getTotalSize());
+          Statistics<?> statistics = column.getStatistics();
+          if (statistics != null && statistics.hasNonNullValue() && statistics.genericGetMin() instanceof Binary) {
+            rowGroup.min.put(name, ((Binary) statistics.genericGetMin()).toStringUsingUTF8());
+            rowGroup.max.put(name, ((Binary) statistics.genericGetMax()).toStringUsingUTF8());
+          }
+        }
+        rowGroupStats.add(rowGroup);
+      }
+    }
+    files++;
+    fileBytes += file.length();
+  }
+
+  public long getFiles() {
+    return files;
+  }
+
+  public long getFileBytes() {
+    return fileBytes;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  public long getRowGroups() {
+    return rowGroups;
+  }
+
+  public Map<String, Long> getColumnBytes() {
+    return columnBytes;
+  }
+
+  public Map<String, Long> getUncompressedColumnBytes() {
+    return uncompressedColumnBytes;
+  }
+
+  /**
+   * @param columns the columns a query reads, all columns when empty
+   * @return estimate of the bytes Athena scans for a query over these files, before the minimum per query
+   * @throws IllegalArgumentException when the files have no such column
+   */
+  public long scannedBytes(Collection<String> columns) {
+    if (columns.isEmpty()) {
+      return columnBytes.values().stream().mapToLong(Long::longValue).sum();
+    }
+    long bytes = 0;
+    for (String column : columns) {
+      Long size = columnBytes.get(column);
+      if (size == null && files > 0) {
+        throw new IllegalArgumentException("Unknown column: " + column);
+      }
+      bytes += size == null ? 0 : size;
+    }
+    return bytes;
+  }
+
+  /**
+   * Estimate of the bytes Athena scans for a query with <code>WHERE column = 'value'</code>, when it skips the
+   * row groups whose min/max statistics of the column exclude the value. Averaged over the min and max values
+   * of all row groups, which are values that occur in the data. Only string columns have usable statistics,
+   * for other columns this is the same as {@link #scannedBytes(Collection)}.
+   * <p>
+   * Rows in arrival order give every row group about the same range, so hardly anything is skipped;
+   * rows sorted on the column give row groups with disjoint ranges.
+   *
+   * @param column  the filtered string column
+   * @param columns the columns the query reads, all columns when empty
+   * @return estimate of the bytes scanned, before the minimum per query
+   */
+  public long lookupScannedBytes(String column, Collection<String> columns) {
+    List<String> values = new ArrayList<>();
+    for (RowGroup rowGroup : rowGroupStats) {
+      if (rowGroup.min.containsKey(column)) {
+        values.add(rowGroup.min.get(column));
+        values.add(rowGroup.max.get(column));
+      }
+    }
+    if (values.isEmpty()) {
+      return scannedBytes(columns);
+    }
+    long total = 0;
+    for (String value : values) {
+      for (RowGroup rowGroup : rowGroupStats) {
+        if (rowGroup.mightContain(column, value)) {
+          total += rowGroup.scannedBytes(columns);
+        }
+      }
+    }
+    return total / values.size();
+  }
+
+  private static class RowGroup {
+    private final Map<String, Long> columnBytes = new HashMap<>();
+    private final Map<String, String> min = new HashMap<>();
+    private final Map<String, String> max = new HashMap<>();
+
+    private boolean mightContain(String column, String value) {
+      String low = min.get(column);
+      return low == null || (low.compareTo(value) <= 0 && max.get(column).compareTo(value) >= 0);
+    }
+
+    private long scannedBytes(Collection<String> columns) {
+      if (columns.isEmpty()) {
+        return columnBytes.values().stream().mapToLong(Long::longValue).sum();
+      }
+      return columns.stream().mapToLong(column -> columnBytes.getOrDefault(column, 0L)).sum();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ParquetFileStats{files=" + files + ", fileBytes=" + fileBytes + ", rows=" + rows
+        + ", rowGroups=" + rowGroups + '}';
+  }
+
+}
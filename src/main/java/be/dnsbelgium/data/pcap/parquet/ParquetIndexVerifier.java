@@ -0,0 +1,266 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.parquet.column.statistics.Statistics;
+import org.apache.parquet.column.values.bloomfilter.BloomFilter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.internal.column.columnindex.ColumnIndex;
+import org.apache.parquet.io.api.Binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reads the footers, bloom filters and column indexes of Parquet files back and checks how well they let
+ * a reader skip row groups and pages for lookups of a single value of a string column.
+ * <p>
+ * The false positive rate of a bloom filter is measured with random values that cannot occur in our data.
+ * The min and max value of every row group do occur, the bloom filter must contain them.
+ * For the column index, the pages whose min/max range includes those values are counted.
+ */
+public class ParquetIndexVerifier {
+
+  private final List<String> columns;
+  private final int probesPerRowGroup;
+  private final Random random;
+  private final Map<String, ColumnReport> reports = new LinkedHashMap<>();
+
+  /**
+   * @param columns           the string columns to check
+   * @param probesPerRowGroup number of absent values to look up per row group
+   * @param seed              seed of the absent values
+   */
+  public ParquetIndexVerifier(List<String> columns, int probesPerRowGroup, long seed) {
+    this.columns = columns;
+    this.probesPerRowGroup = probesPerRowGroup;
+    this.random = new Random(seed);
+    for (String column : columns) {
+      reports.put(column, new ColumnReport(column));
+    }
+  }
+
+  public static ParquetIndexVerifier verify(Collection<File> files, List<String> columns) throws IOException {
+    ParquetIndexVerifier verifier = new ParquetIndexVerifier(columns, 10_000, 42);
+    for (File file : files) {
+      verifier.add(file);
+    }
+    return verifier;
+  }
+
+  public void add(File file) throws IOException {
+    try (ParquetFileReader reader = ParquetFileReader.open(new LocalInputFile(file.toPath()))) {
+      for (BlockMetaData block : reader.getRowGroups()) {
+        for (ColumnChunkMetaData column : block.getColumns()) {
+          ColumnReport report = reports.get(column.getPath().toDotString());
+          if (report != null) {
+            report.rowGroups++;
+            checkBloomFilter(report, reader.readBloomFilter(column), column.getStatistics());
+            checkColumnIndex(report, reader.readColumnIndex(column), column.getStatistics());
+          }
+        }
+      }
+    }
+  }
+
+  private void checkBloomFilter(ColumnReport report, BloomFilter bloomFilter, Statistics<?> statistics) {
+    if (bloomFilter == null) {
+      return;
+    }
+    report.bloomFilters++;
+    report.bloomFilterBytes += bloomFilter.getBitsetSize();
+    for (int i = 0; i < probesPerRowGroup; i++) {
+      // .invalid is a reserved TLD and never a qname, address or subnet we write
+      Binary absent = Binary.fromString(Long.toHexString(random.nextLong()) + ".absent.invalid");
+      report.absentLookups++;
+      if (bloomFilter.findHash(bloomFilter.hash(absent))) {
+        report.falsePositives++;
+      }
+    }
+    if (statistics != null && statistics.hasNonNullValue() && statistics.genericGetMin() instanceof Binary) {
+      for (Object present : new Object[]{statistics.genericGetMin(), statistics.genericGetMax()}) {
+        report.presentLookups++;
+        if (!bloomFilter.findHash(bloomFilter.hash((Binary) present))) {
+          report.falseNegatives++;
+        }
+      }
+    }
+  }
+
+  private void checkColumnIndex(ColumnReport report, ColumnIndex columnIndex, Statistics<?> statistics) {
+    if (columnIndex == null) {
+      return;
+    }
+    report.columnIndexes++;
+    int pages = columnIndex.getNullPages().size();
+    report.pages += pages;
+    if (statistics == null || !statistics.hasNonNullValue() || !(statistics.genericGetMin() instanceof Binary)) {
+      return;
+    }
+    for (Object present : new Object[]{statistics.genericGetMin(), statistics.genericGetMax()}) {
+      ByteBuffer value = ((Binary) present).toByteBuffer();
+      report.pageLookups++;
+      report.pagesInLookups += pages;
+      for (int page = 0; page < pages; page++) {
+        if (!columnIndex.getNullPages().get(page)
+            && compare(columnIndex.getMinValues().get(page), value) <= 0
+            && compare(columnIndex.getMaxValues().get(page), value) >= 0) {
+          report.pagesRead++;
+        }
+      }
+    }
+  }
+
+  // unsigned lexicographic order, the order of UTF-8 strings in parquet
+  private static int compare(ByteBuffer a, ByteBuffer b) {
+    int length = Math.min(a.remaining(), b.remaining());
+    for (int i = 0; i < length; i++) {
+      int result = Integer.compare(a.get(a.position() + i) & 0xFF, b.get(b.position() + i) & 0xFF);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(a.remaining(), b.remaining());
+  }
+
+  public ColumnReport getReport(String column) {
+    return reports.get(column);
+  }
+
+  public Collection<ColumnReport> getReports() {
+    return reports.values();
+  }
+
+  /**
+   * @return a table with a line per column
+   */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(Locale.US, "%-20s %10s %10s %14s %12s %16s %10s %14s%n",
+        "column", "rowgroups", "filters", "filter bytes", "fpp", "false negatives", "pages", "pages/lookup"));
+    for (ColumnReport column : reports.values()) {
+      report.append(String.format(Locale.US, "%-20s %10d %10d %14d %12.5f %16d %10d %14.2f%n",
+          column.getColumn(), column.getRowGroups(), column.getBloomFilters(), column.getBloomFilterBytes(),
+          column.getFalsePositiveRate(), column.getFalseNegatives(), column.getPages(), column.getPagesPerLookup()));
+    }
+    report.append("fpp: fraction of lookups of absent values that the bloom filters did not rule out, ")
+        .append("pages/lookup: pages per row group whose column index includes a value of the row group");
+    return report.toString();
+  }
+
+  public static class ColumnReport {
+
+    private final String column;
+    private long rowGroups;
+    private long bloomFilters;
+    private long bloomFilterBytes;
+    private long absentLookups;
+    private long falsePositives;
+    private long presentLookups;
+    private long falseNegatives;
+    private long columnIndexes;
+    private long pages;
+    private long pageLookups;
+    private long pagesInLookups;
+    private long pagesRead;
+
+    private ColumnReport(String column) {
+      this.column = column;
+    }
+
+    public String getColumn() {
+      return column;
+    }
+
+    public long getRowGroups() {
+      return rowGroups;
+    }
+
+    /**
+     * @return number of row groups with a bloom filter for this column
+     */
+    public long getBloomFilters() {
+      return bloomFilters;
+    }
+
+    public long getBloomFilterBytes() {
+      return bloomFilterBytes;
+    }
+
+    public long getAbsentLookups() {
+      return absentLookups;
+    }
+
+    public long getFalsePositives() {
+      return falsePositives;
+    }
+
+    public double getFalsePositiveRate() {
+      return absentLookups == 0 ? 0 : (double) falsePositives / absentLookups;
+    }
+
+    public long getPresentLookups() {
+      return presentLookups;
+    }
+
+    /**
+     * @return lookups of values in a row group that its bloom filter ruled out, should always be 0
+     */
+    public long getFalseNegatives() {
+      return falseNegatives;
+    }
+
+    /**
+     * @return number of row groups with a column index for this column
+     */
+    public long getColumnIndexes() {
+      return columnIndexes;
+    }
+
+    public long getPages() {
+      return pages;
+    }
+
+    /**
+     * @return average number of pages a lookup of a value in a row group reads, given the column index
+     */
+    public double getPagesPerLookup() {
+      return pageLookups == 0 ? 0 : (double) pagesRead / pageLookups;
+    }
+
+    /**
+     * @return average number of pages a lookup of a value in a row group reads without the column index
+     */
+    public double getPagesPerLookupWithoutIndex() {
+      return pageLookups == 0 ? 0 : (double) pagesInLookups / pageLookups;
+    }
+  }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.parquet.io.OutputFile;
+
+import java.io.IOException;
+
+/**
+ * Where a {@link PartitionedRowWriter} writes its files. A file is created under a path relative to the root
+ * of the output and only becomes visible under that path when it is committed, after the parquet writer
+ * closed it. Implementations are thread-safe, so the writers of several threads can share one output.
+ */
+public interface ParquetOutput {
+
+  /**
+   * @param path path of the file relative to the root of the output, with <code>/</code> as separator
+   * @return the file to write
+   * @throws IOException when the file could not be created
+   */
+  Pending create(String path) throws IOException;
+
+  /**
+   * A file that is being written.
+   */
+  interface Pending {
+
+    OutputFile getOutputFile();
+
+    /**
+     * @return bytes the output holds in memory for the file, next to the row group the parquet writer buffers
+     */
+    long getMemoryBytes();
+
+    /**
+     * Make the file visible under its path. To be called once the parquet writer is closed.
+     *
+     * @return the location of the file
+     * @throws IOException when the file could not be made visible
+     */
+    String commit() throws IOException;
+
+    /**
+     * Discard the file, after the parquet writer failed.
+     */
+    void abort();
+  }
+
+}
@@ -0,0 +1,440 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.bytes.BytesInput;
+import org.apache.parquet.column.values.bloomfilter.BlockSplitBloomFilter;
+import org.apache.parquet.hadoop.CodecFactory;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Parquet settings of the files we write: compression codec, row group size, page size and dictionary encoding.
+ * <p>
+ * Larger row groups and pages compress better and give Athena less metadata to read, but the writer buffers
+ * a row group per open partition in memory. Dictionary encoding pays off for columns with few distinct values,
+ * which are most of our columns.
+ * <p>
+ * Rows can be sorted within every partition before they are written, e.g. on <code>domainname,qname,time</code>.
+ * Sorted columns compress better and get narrow min/max statistics per row group, so Athena can skip row groups
+ * when filtering on them. Sorting buffers up to <code>parquet.writer.sort.memory.bytes</code> per writer thread
+ * and spills sorted runs to disk beyond that.
+ * <p>
+ * The files get a column index for every column and a bloom filter for the columns we look up single values in,
+ * such as <code>qname</code>, <code>src</code> and <code>edns_client_subnet</code>. Readers that support them
+ * skip the pages and row groups that cannot contain the value. Smaller pages make the column index finer.
+ * The min/max values in the column index are truncated to 64 bytes, the parquet-mr default that its
+ * <code>ParquetWriter.Builder</code> does not let us change.
+ * <p>
+ * A file is rolled over when it reaches the target file size, so that Athena gets neither many small files
+ * for quiet servers nor a few huge ones for busy days.
+ * <p>
+ * Every writer thread keeps at most <code>parquet.writer.max.open.partitions</code> files open, with at most
+ * <code>parquet.writer.max.buffered.bytes</code> in their row group buffers and in the output, such as the parts
+ * of S3 uploads. Beyond that the least recently used files are closed, and a partition that gets rows again
+ * continues in a new file. Stray timestamps of many days then cost some small files instead of the heap.
+ * <p>
+ * With <code>parquet.writer.hour.partitions</code> every day and server is split in hour partitions, so that
+ * queries over a few hours only read the files of those hours. It gives 24 times more partitions and files,
+ * use it together with Athena partition projection.
+ */
+@Component
+public class ParquetWriterConfig {
+
+  private static final Logger logger = getLogger(ParquetWriterConfig.class);
+
+  public final static String DEFAULT_CODEC = "SNAPPY";
+  public final static int DEFAULT_ROW_GROUP_BYTES = 128 * 1024 * 1024;
+  public final static int DEFAULT_PAGE_BYTES = 1024 * 1024;
+  public final static boolean DEFAULT_DICTIONARY = true;
+  public final static int DEFAULT_DICTIONARY_PAGE_BYTES = 1024 * 1024;
+  public final static String DEFAULT_SORT_COLUMNS = "";
+  public final static long DEFAULT_SORT_MEMORY_BYTES = 256 * 1024 * 1024L;
+  public final static String DEFAULT_BLOOM_FILTER_COLUMNS = "qname,src,edns_client_subnet";
+  public final static long DEFAULT_BLOOM_FILTER_NDV = 500_000;
+  public final static double DEFAULT_BLOOM_FILTER_FPP = 0.01;
+  public final static int DEFAULT_PAGE_ROW_COUNT_LIMIT = 20_000;
+  public final static long DEFAULT_TARGET_FILE_BYTES = 256 * 1024 * 1024L;
+  public final static int DEFAULT_MAX_OPEN_PARTITIONS = 16;
+  public final static long DEFAULT_MAX_BUFFERED_BYTES = 512 * 1024 * 1024L;
+  public final static boolean DEFAULT_HOUR_PARTITIONS = false;
+
+  private final CompressionCodecName codec;
+  private final int rowGroupBytes;
+  private final int pageBytes;
+  private final boolean dictionary;
+  private final int dictionaryPageBytes;
+  private final List<String> sortColumns;
+  private final long sortMemoryBytes;
+  private final List<String> bloomFilterColumns;
+  private final long bloomFilterNdv;
+  private final double bloomFilterFpp;
+  private final int pageRowCountLimit;
+  private final long targetFileBytes;
+  private final int maxOpenPartitions;
+  private final long maxBufferedBytes;
+  private final boolean hourPartitions;
+
+  /**
+   * @throws IllegalArgumentException when the codec is unknown or cannot compress, e.g. for lack of its native library
+   */
+  @Autowired
+  public ParquetWriterConfig(
+      @Value("${parquet.writer.codec: #{parquetWriterConfig.DEFAULT_CODEC}}") String codec,
+      @Value("${parquet.writer.row.group.bytes: #{parquetWriterConfig.DEFAULT_ROW_GROUP_BYTES}}") int rowGroupBytes,
+      @Value("${parquet.writer.page.bytes: #{parquetWriterConfig.DEFAULT_PAGE_BYTES}}") int pageBytes,
+      @Value("${parquet.writer.dictionary: #{parquetWriterConfig.DEFAULT_DICTIONARY}}") boolean dictionary,
+      @Value("${parquet.writer.dictionary.page.bytes: #{parquetWriterConfig.DEFAULT_DICTIONARY_PAGE_BYTES}}") int dictionaryPageBytes,
+      @Value("${parquet.writer.sort.columns: #{parquetWriterConfig.DEFAULT_SORT_COLUMNS}}") String sortColumns,
+      @Value("${parquet.writer.sort.memory.bytes: #{parquetWriterConfig.DEFAULT_SORT_MEMORY_BYTES}}") long sortMemoryBytes,
+      @Value("${parquet.writer.bloom.filter.columns: #{parquetWriterConfig.DEFAULT_BLOOM_FILTER_COLUMNS}}") String bloomFilterColumns,
+      @Value("${parquet.writer.bloom.filter.ndv: #{parquetWriterConfig.DEFAULT_BLOOM_FILTER_NDV}}") long bloomFilterNdv,
+      @Value("${parquet.writer.bloom.filter.fpp: #{parquetWriterConfig.DEFAULT_BLOOM_FILTER_FPP}}") double bloomFilterFpp,
+      @Value("${parquet.writer.page.row.count.limit: #{parquetWriterConfig.DEFAULT_PAGE_ROW_COUNT_LIMIT}}") int pageRowCountLimit,
+      @Value("${parquet.writer.target.file.bytes: #{parquetWriterConfig.DEFAULT_TARGET_FILE_BYTES}}") long targetFileBytes,
+      @Value("${parquet.writer.max.open.partitions: #{parquetWriterConfig.DEFAULT_MAX_OPEN_PARTITIONS}}") int maxOpenPartitions,
+      @Value("${parquet.writer.max.buffered.bytes: #{parquetWriterConfig.DEFAULT_MAX_BUFFERED_BYTES}}") long maxBufferedBytes,
+      @Value("${parquet.writer.hour.partitions: #{parquetWriterConfig.DEFAULT_HOUR_PARTITIONS}}") boolean hourPartitions
+  ) {
+    this(codecOf(codec), rowGroupBytes, pageBytes, dictionary, dictionaryPageBytes, split(sortColumns), sortMemoryBytes,
+        split(bloomFilterColumns), bloomFilterNdv, bloomFilterFpp, pageRowCountLimit,
+        targetFileBytes, maxOpenPartitions, maxBufferedBytes, hourPartitions);
+  }
+
+  /**
+   * Without bloom filters: they are sized per row group for the configured ndv, which would dwarf the small
+   * row groups that benchmarks and tests use. Add them with {@link #withBloomFilters(List, long, double)}.
+   */
+  public ParquetWriterConfig(String codec, int rowGroupBytes, int pageBytes, boolean dictionary) {
+    this(codecOf(codec), rowGroupBytes, pageBytes, dictionary, DEFAULT_DICTIONARY_PAGE_BYTES,
+        Collections.emptyList(), DEFAULT_SORT_MEMORY_BYTES,
+        Collections.emptyList(), DEFAULT_BLOOM_FILTER_NDV, DEFAULT_BLOOM_FILTER_FPP,
+        DEFAULT_PAGE_ROW_COUNT_LIMIT, DEFAULT_TARGET_FILE_BYTES,
+        DEFAULT_MAX_OPEN_PARTITIONS, DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_HOUR_PARTITIONS);
+  }
+
+  private ParquetWriterConfig(CompressionCodecName codec, int rowGroupBytes, int pageBytes, boolean dictionary,
+                              int dictionaryPageBytes, List<String> sortColumns, long sortMemoryBytes,
+                              List<String> bloomFilterColumns, long bloomFilterNdv, double bloomFilterFpp,
+                              int pageRowCountLimit, long targetFileBytes,
+                              int maxOpenPartitions, long maxBufferedBytes, boolean hourPartitions) {
+    this.codec = codec;
+    this.rowGroupBytes = positive("row group size", rowGroupBytes);
+    this.pageBytes = positive("page size", pageBytes);
+    this.dictionary = dictionary;
+    this.dictionaryPageBytes = positive("dictionary page size", dictionaryPageBytes);
+    this.sortColumns = Collections.unmodifiableList(sortColumns);
+    if (sortMemoryBytes <= 0) {
+      throw new IllegalArgumentException("Parquet sort memory should be positive: " + sortMemoryBytes);
+    }
+    this.sortMemoryBytes = sortMemoryBytes;
+    this.bloomFilterColumns = Collections.unmodifiableList(bloomFilterColumns);
+    if (bloomFilterNdv <= 0) {
+      throw new IllegalArgumentException("Parquet bloom filter ndv should be positive: " + bloomFilterNdv);
+    }
+    this.bloomFilterNdv = bloomFilterNdv;
+    if (!(bloomFilterFpp > 0 && bloomFilterFpp < 1)) {
+      throw new IllegalArgumentException("Parquet bloom filter fpp should be between 0 and 1: " + bloomFilterFpp);
+    }
+    this.bloomFilterFpp = bloomFilterFpp;
+    this.pageRowCountLimit = positive("page row count limit", pageRowCountLimit);
+    if (targetFileBytes < 0) {
+      throw new IllegalArgumentException("Parquet target file size should not be negative: " + targetFileBytes);
+    }
+    this.targetFileBytes = targetFileBytes;
+    this.maxOpenPartitions = positive("max open partitions", maxOpenPartitions);
+    if (maxBufferedBytes <= 0) {
+      throw new IllegalArgumentException("Parquet max buffered bytes should be positive: " + maxBufferedBytes);
+    }
+    this.maxBufferedBytes = maxBufferedBytes;
+    this.hourPartitions = hourPartitions;
+  }
+
+  /**
+   * @param columns     columns to sort the rows of a partition on, no sorting when empty
+   * @param memoryBytes rows buffered in memory per writer before sorted runs are spilled to disk
+   * @return a copy of this config that sorts the rows on the given columns
+   */
+  public ParquetWriterConfig withSort(List<String> columns, long memoryBytes) {
+    return new ParquetWriterConfig(codec, rowGroupBytes, pageBytes, dictionary, dictionaryPageBytes,
+        columns, memoryBytes, bloomFilterColumns, bloomFilterNdv, bloomFilterFpp,
+        pageRowCountLimit, targetFileBytes, maxOpenPartitions, maxBufferedBytes, hourPartitions);
+  }
+
+  /**
+   * @param columns columns to write a bloom filter for, none when empty
+   * @param ndv     expected number of distinct values per row group, sizes the filters
+   * @param fpp     wanted false positive probability
+   * @return a copy of this config with bloom filters for the given columns
+   */
+  public ParquetWriterConfig withBloomFilters(List<String> columns, long ndv, double fpp) {
+    return new ParquetWriterConfig(codec, rowGroupBytes, pageBytes, dictionary, dictionaryPageBytes,
+        sortColumns, sortMemoryBytes, columns, ndv, fpp, pageRowCountLimit,
+        targetFileBytes, maxOpenPartitions, maxBufferedBytes, hourPartitions);
+  }
+
+  /**
+   * @param bytes size at which a file is rolled over, 0 to write one file per partition
+   * @return a copy of this config with the given target file size
+   */
+  public ParquetWriterConfig withTargetFileBytes(long bytes) {
+    return new ParquetWriterConfig(codec, rowGroupBytes, pageBytes, dictionary, dictionaryPageBytes,
+        sortColumns, sortMemoryBytes, bloomFilterColumns, bloomFilterNdv, bloomFilterFpp,
+        pageRowCountLimit, bytes, maxOpenPartitions, maxBufferedBytes, hourPartitions);
+  }
+
+  /**
+   * @param openPartitions max number of files a writer keeps open
+   * @param bufferedBytes  max number of bytes buffered by the open files of a writer
+   * @return a copy of this config with the given limits
+   */
+  public ParquetWriterConfig withOpenPartitionLimits(int openPartitions, long bufferedBytes) {
+    return new ParquetWriterConfig(codec, rowGroupBytes, pageBytes, dictionary, dictionaryPageBytes,
+        sortColumns, sortMemoryBytes, bloomFilterColumns, bloomFilterNdv, bloomFilterFpp,
+        pageRowCountLimit, targetFileBytes, openPartitions, bufferedBytes, hourPartitions);
+  }
+
+  /**
+   * @param hourPartitions whether to split the partition of every day and server in hours
+   * @return a copy of this config with or without hour partitions
+   */
+  public ParquetWriterConfig withHourPartitions(boolean hourPartitions) {
+    return new ParquetWriterConfig(codec, rowGroupBytes, pageBytes, dictionary, dictionaryPageBytes,
+        sortColumns, sortMemoryBytes, bloomFilterColumns, bloomFilterNdv, bloomFilterFpp,
+        pageRowCountLimit, targetFileBytes, maxOpenPartitions, maxBufferedBytes, hourPartitions);
+  }
+
+  /**
+   * @param values comma separated values, such as the column lists of the parquet settings
+   * @return the values without surrounding white space, leaving out empty ones
+   */
+  public static List<String> split(String values) {
+    return Arrays.stream(values.split(","))
+        .map(String::trim)
+        .filter(value -> !value.isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return the settings that were used before they could be configured: Snappy and the parquet-mr defaults
+   */
+  public static ParquetWriterConfig defaults() {
+    return new ParquetWriterConfig(DEFAULT_CODEC, DEFAULT_ROW_GROUP_BYTES, DEFAULT_PAGE_BYTES, DEFAULT_DICTIONARY);
+  }
+
+  /**
+   * @param name name of a parquet compression codec, e.g. SNAPPY, GZIP, ZSTD or UNCOMPRESSED
+   * @return the codec
+   * @throws IllegalArgumentException when the codec is unknown or cannot compress, e.g. for lack of its native library
+   */
+  public static CompressionCodecName codecOf(String name) {
+    CompressionCodecName codec;
+    try {
+      codec = CompressionCodecName.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown parquet compression codec: " + name);
+    }
+    if (codec != CompressionCodecName.UNCOMPRESSED) {
+      // loading the codec class is not enough: e.g. ZSTD loads fine and then fails on its first page
+      // when zstd-jni is too old or its native library cannot be loaded
+      CodecFactory codecs = new CodecFactory(new Configuration(), DEFAULT_PAGE_BYTES);
+      try {
+        codecs.getCompressor(codec).compress(BytesInput.from(new byte[1024]));
+      } catch (IOException | RuntimeException | LinkageError e) {
+        throw new IllegalArgumentException("Parquet compression codec " + codec + " does not work: " + e, e);
+      } finally {
+        codecs.release();
+      }
+    }
+    return codec;
+  }
+
+  private static int positive(String name, int value) {
+    if (value <= 0) {
+      throw new IllegalArgumentException("Parquet " + name + " should be positive: " + value);
+    }
+    return value;
+  }
+
+  /**
+   * Apply these settings to a parquet writer builder.
+   *
+   * @param builder the builder
+   * @return the same builder
+   */
+  public <B extends org.apache.parquet.hadoop.ParquetWriter.Builder<?, B>> B apply(B builder) {
+    builder
+        .withCompressionCodec(codec)
+        .withRowGroupSize(rowGroupBytes)
+        .withPageSize(pageBytes)
+        .withDictionaryEncoding(dictionary)
+        .withDictionaryPageSize(dictionaryPageBytes)
+        .withPageRowCountLimit(pageRowCountLimit);
+    long ndv = bloomFilterNdv(bloomFilterNdv, bloomFilterFpp);
+    for (String column : bloomFilterColumns) {
+      builder
+          .withBloomFilterEnabled(column, true)
+          .withBloomFilterNDV(column, ndv);
+    }
+    return builder;
+  }
+
+  /**
+   * parquet-mr 1.12 sizes every bloom filter for its default fpp of 1%, and only lets us set the ndv.
+   * Scale the ndv so that the filter gets the number of bits it would need for the wanted fpp.
+   *
+   * @param ndv expected number of distinct values
+   * @param fpp wanted false positive probability
+   * @return the ndv that gives a filter for <code>ndv</code> values and <code>fpp</code> at the default fpp
+   */
+  static long bloomFilterNdv(long ndv, double fpp) {
+    double bitsPerValue = -8 / Math.log(1 - Math.pow(fpp, 1.0 / 8));
+    double defaultBitsPerValue = -8 / Math.log(1 - Math.pow(BlockSplitBloomFilter.DEFAULT_FPP, 1.0 / 8));
+    return Math.max(1, Math.round(ndv * bitsPerValue / defaultBitsPerValue));
+  }
+
+  public CompressionCodecName getCodec() {
+    return codec;
+  }
+
+  public int getRowGroupBytes() {
+    return rowGroupBytes;
+  }
+
+  public int getPageBytes() {
+    return pageBytes;
+  }
+
+  public boolean isDictionary() {
+    return dictionary;
+  }
+
+  public int getDictionaryPageBytes() {
+    return dictionaryPageBytes;
+  }
+
+  /**
+   * @return columns to sort the rows of a partition on, empty when rows are written in arrival order
+   */
+  public List<String> getSortColumns() {
+    return sortColumns;
+  }
+
+  public boolean isSorted() {
+    return !sortColumns.isEmpty();
+  }
+
+  public long getSortMemoryBytes() {
+    return sortMemoryBytes;
+  }
+
+  /**
+   * @return columns that get a bloom filter per row group
+   */
+  public List<String> getBloomFilterColumns() {
+    return bloomFilterColumns;
+  }
+
+  public long getBloomFilterNdv() {
+    return bloomFilterNdv;
+  }
+
+  public double getBloomFilterFpp() {
+    return bloomFilterFpp;
+  }
+
+  public int getPageRowCountLimit() {
+    return pageRowCountLimit;
+  }
+
+  /**
+   * @return estimated size at which a file is rolled over, 0 when every partition is written to one file
+   */
+  public long getTargetFileBytes() {
+    return targetFileBytes;
+  }
+
+  /**
+   * @return max number of files a writer keeps open, the least recently used one is closed to open another one
+   */
+  public int getMaxOpenPartitions() {
+    return maxOpenPartitions;
+  }
+
+  /**
+   * @return max number of bytes buffered by the open files of a writer, beyond which the least recently
+   * used files are closed
+   */
+  public long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  /**
+   * @return true when the files are written in <code>server=.../hour=HH</code> partitions instead of per server
+   */
+  public boolean isHourPartitions() {
+    return hourPartitions;
+  }
+
+  @PostConstruct
+  public void logConfig() {
+    logger.info("====== ParquetWriterConfig ==============");
+    logger.info(" codec               = {}", codec);
+    logger.info(" rowGroupBytes       = {}", rowGroupBytes);
+    logger.info(" pageBytes           = {}", pageBytes);
+    logger.info(" dictionary          = {}", dictionary);
+    logger.info(" dictionaryPageBytes = {}", dictionaryPageBytes);
+    logger.info(" sortColumns         = {}", sortColumns);
+    logger.info(" sortMemoryBytes     = {}", sortMemoryBytes);
+    logger.info(" bloomFilterColumns  = {}", bloomFilterColumns);
+    logger.info(" bloomFilterNdv      = {}", bloomFilterNdv);
+    logger.info(" bloomFilterFpp      = {}", bloomFilterFpp);
+    logger.info(" pageRowCountLimit   = {}", pageRowCountLimit);
+    logger.info(" targetFileBytes     = {}", targetFileBytes);
+    logger.info(" maxOpenPartitions   = {}", maxOpenPartitions);
+    logger.info(" maxBufferedBytes    = {}", maxBufferedBytes);
+    logger.info(" hourPartitions      = {}", hourPartitions);
+  }
+
+  /**
+   * @return a short description, e.g. SNAPPY/128MB/1024KB/dictionary or SNAPPY/128MB/1024KB/dictionary/sort=qname,time
+   */
+  @Override
+  public String toString() {
+    return codec + "/" + (rowGroupBytes >> 20) + "MB/" + (pageBytes >> 10) + "KB/" + (dictionary ? "dictionary" : "plain")
+        + (isSorted() ? "/sort=" + String.join(",", sortColumns) : "");
+  }
+
+}
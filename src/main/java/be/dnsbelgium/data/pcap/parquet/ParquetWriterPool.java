@@ -0,0 +1,197 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import be.dnsbelgium.data.pcap.convertor.Metrics;
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import be.dnsbelgium.data.pcap.reader.CombinationQueue;
+import nl.sidn.pcap.support.NamedThreadFactory;
+import nl.sidn.pcap.support.PacketCombination;
+import org.slf4j.Logger;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Spreads the combinations over a number of writer threads, each with its own {@link ParquetWriter}.
+ * <p>
+ * A combination goes to the worker of its client address, so the rows of a client stay together and every
+ * worker keeps its own geo lookup caches warm. All workers write to the same output folder, with the same
+ * partition layout; every worker writes its own files in a partition.
+ * <p>
+ * {@link #write(PacketCombination)} is to be called by one thread.
+ */
+public class ParquetWriterPool implements ParquetWriter {
+
+  private static final Logger logger = getLogger(ParquetWriterPool.class);
+
+  private final Worker[] workers;
+  private final ExecutorService executor;
+  private final Metrics metrics = new Metrics();
+  private volatile Throwable failure;
+  private boolean closed = false;
+
+  /**
+   * @param threads   number of writer threads
+   * @param queueSize number of combinations that can wait for the writer threads
+   * @param writers   creates the writer of every thread
+   */
+  public ParquetWriterPool(int threads, int queueSize, Supplier<ParquetWriter> writers) {
+    workers = new Worker[Math.max(1, threads)];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(writers.get(), new CombinationQueue(Math.max(1, queueSize / workers.length)));
+    }
+    executor = Executors.newFixedThreadPool(workers.length, new NamedThreadFactory("ParquetWriter-Thread"));
+  }
+
+  public int getThreads() {
+    return workers.length;
+  }
+
+  @Override
+  public void open(String path) {
+    for (Worker worker : workers) {
+      worker.writer.open(path);
+    }
+    for (Worker worker : workers) {
+      executor.submit(worker);
+    }
+  }
+
+  /**
+   * Hand the combination to the writer thread of its client.
+   *
+   * @param combo the combo to write to parquet
+   * @throws IllegalStateException when a writer thread failed
+   */
+  @Override
+  public void write(PacketCombination combo) {
+    if (failure != null) {
+      throw new IllegalStateException("A parquet writer thread failed", failure);
+    }
+    try {
+      workers[workerOf(combo.getSrc())].producer.add(combo);
+    } catch (CancellationException e) {
+      throw new IllegalStateException("A parquet writer thread failed", failure);
+    }
+  }
+
+  private int workerOf(IpAddress client) {
+    int h = client.hashCode() * 0x9E3779B9;
+    return (h >>> 16) % workers.length;
+  }
+
+  /**
+   * Wait until the writer threads have written all combinations and closed their writers.
+   *
+   * @throws IllegalStateException when a writer thread failed
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Worker worker : workers) {
+      worker.queue.close();
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+        logger.info("Waiting for the parquet writer threads");
+      }
+    } catch (InterruptedException e) {
+      cancel();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the parquet writer threads");
+    }
+    for (Worker worker : workers) {
+      logger.info("Writer queue: {}", worker.queue);
+      metrics.merge(worker.writer.getMetrics());
+    }
+    if (failure != null) {
+      throw new IllegalStateException("A parquet writer thread failed", failure);
+    }
+  }
+
+  /**
+   * Stop the writer threads without waiting for them, for when the combinations will not be written anyway.
+   */
+  public void cancel() {
+    for (Worker worker : workers) {
+      worker.queue.cancel();
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the metrics of all writers, complete once the pool is closed
+   */
+  @Override
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  private class Worker implements Runnable {
+
+    private final ParquetWriter writer;
+    private final CombinationQueue queue;
+    private final CombinationQueue.Producer producer;
+
+    private Worker(ParquetWriter writer, CombinationQueue queue) {
+      this.writer = writer;
+      this.queue = queue;
+      this.producer = queue.newProducer();
+    }
+
+    @Override
+    public void run() {
+      try {
+        PacketCombination[] batch;
+        while ((batch = queue.take()) != null) {
+          for (PacketCombination combination : batch) {
+            writer.write(combination);
+          }
+        }
+      } catch (InterruptedException e) {
+        logger.warn("Parquet writer thread interrupted");
+      } catch (Throwable t) {
+        logger.error("Parquet writer thread failed", t);
+        failure = t;
+        // stops the producer when it waits for this worker
+        queue.cancel();
+      } finally {
+        try {
+          writer.close();
+        } catch (RuntimeException e) {
+          logger.error("Could not close parquet writer", e);
+          failure = failure == null ? e : failure;
+        }
+      }
+    }
+  }
+
+}
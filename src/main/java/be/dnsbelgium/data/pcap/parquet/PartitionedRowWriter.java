@@ -0,0 +1,497 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Writes rows to Parquet files per partition, in the same directory layout as the Kite dataset
+ * that was used before: <code>year=2019/month=03/day=02/server=ns1.example.com/&lt;uuid&gt;.parquet</code>.
+ * Year, month and day are taken in UTC from a column with a time in ms, the server from a string column.
+ * When {@link ParquetWriterConfig#isHourPartitions()} is set, every server partition is split further in hours:
+ * <code>.../server=ns1.example.com/hour=07/&lt;uuid&gt;.parquet</code>.
+ * The codec, row group and page settings come from a {@link ParquetWriterConfig}.
+ * <p>
+ * The files are written to a {@link ParquetOutput}: by default a {@link LocalParquetOutput} under the root,
+ * where a file is written as a hidden <code>.&lt;uuid&gt;.parquet.tmp</code> file and only gets its final name
+ * when it is closed. When its estimated size reaches the target file size of the config, the file is closed
+ * and the partition continues in a new file. The estimate is the bytes written plus the buffered row group,
+ * which is not compressed yet, so files end up somewhat smaller than the target.
+ * <p>
+ * Every open file buffers a row group in memory, and the output may hold written bytes in memory as well, such as
+ * the parts of an S3 upload. At most {@link ParquetWriterConfig#getMaxOpenPartitions()} files
+ * are open: opening another one first closes the file of the least recently used partition. When the open files
+ * together buffer more than {@link ParquetWriterConfig#getMaxBufferedBytes()}, the least recently used ones are
+ * closed as well. A partition that gets rows after its file was closed continues in a new file.
+ * <p>
+ * When the config has sort columns, the rows of every partition are sorted with a {@link RowSorter} and only
+ * written when the writer is closed. All partitions share the sort memory: when it is full, the partition
+ * with the most rows in memory spills a sorted run to a hidden <code>.sort-&lt;uuid&gt;</code> directory
+ * under the work folder, which is removed on close.
+ * <p>
+ * Not thread-safe.
+ */
+public class PartitionedRowWriter {
+
+  private static final Logger logger = getLogger(PartitionedRowWriter.class);
+
+  private static final long HOUR_MS = 3600 * 1000L;
+  private static final long DAY_MS = 24 * HOUR_MS;
+  // rows between two checks of the size of the open file of a partition
+  static final int ROLL_CHECK_ROWS = 1000;
+
+  private final ParquetOutput output;
+  private final DnsRowSchema schema;
+  private final int timeSlot;
+  private final int serverSlot;
+  private final String serverPartition;
+  private final ParquetWriterConfig writerConfig;
+  private final RowOrder order;
+  private final File spillDirectory;
+  // length of the time partitions: a day, or an hour with hour partitions
+  private final long periodMs;
+
+  private final Map<String, Partition> partitions = new HashMap<>();
+  // the partitions with an open file, least recently used first
+  private final LinkedHashMap<String, Partition> open = new LinkedHashMap<>(16, 0.75f, true);
+
+  // the partition of the previous row, most rows go to the same partition as the one before
+  private Partition last;
+  private String lastServer;
+  private long periodStart = 1;
+  private long periodEnd = 0;
+  private String day;
+  // empty without hour partitions
+  private String hour;
+  private long rows = 0;
+  private long sortBufferedBytes = 0;
+  // estimated bytes in the row group buffers and output buffers of the open files
+  private long bufferedBytes = 0;
+  private long evictions = 0;
+  private long reopens = 0;
+
+  /**
+   * @param output          where the files of the partitions are written
+   * @param workFolder      local directory for the sorted runs that do not fit in memory
+   * @param schema          schema of the rows
+   * @param timeColumn      name of the column with the time in ms
+   * @param serverColumn    name of the column with the server
+   * @param serverPartition name of the partition for the server
+   * @param writerConfig    codec, row group, page and sort settings of the files
+   * @throws IllegalArgumentException when the schema lacks one of the columns
+   */
+  public PartitionedRowWriter(ParquetOutput output, File workFolder, DnsRowSchema schema, String timeColumn,
+                              String serverColumn, String serverPartition, ParquetWriterConfig writerConfig) {
+    this.output = output;
+    this.writerConfig = writerConfig;
+    this.schema = schema;
+    this.timeSlot = schema.slot(timeColumn);
+    this.serverSlot = schema.slot(serverColumn);
+    this.serverPartition = serverPartition;
+    // parquet-mr silently ignores bloom filters for unknown columns
+    for (String column : writerConfig.getBloomFilterColumns()) {
+      schema.slot(column);
+    }
+    this.order = writerConfig.isSorted() ? new RowOrder(schema, writerConfig.getSortColumns()) : null;
+    this.spillDirectory = new File(workFolder, ".sort-" + UUID.randomUUID());
+    this.periodMs = writerConfig.isHourPartitions() ? HOUR_MS : DAY_MS;
+  }
+
+  /**
+   * @param root            directory in which the partition directories are created
+   * @param schema          schema of the rows
+   * @param timeColumn      name of the column with the time in ms
+   * @param serverColumn    name of the column with the server
+   * @param serverPartition name of the partition for the server
+   * @param writerConfig    codec, row group, page and sort settings of the files
+   * @throws IllegalArgumentException when the schema lacks one of the columns
+   */
+  public PartitionedRowWriter(File root, DnsRowSchema schema, String timeColumn, String serverColumn,
+                              String serverPartition, ParquetWriterConfig writerConfig) {
+    this(new LocalParquetOutput(root), root, schema, timeColumn, serverColumn, serverPartition, writerConfig);
+  }
+
+  public PartitionedRowWriter(File root, DnsRowSchema schema, String timeColumn, String serverColumn, String serverPartition) {
+    this(root, schema, timeColumn, serverColumn, serverPartition, ParquetWriterConfig.defaults());
+  }
+
+  public void write(DnsRow row) throws IOException {
+    Partition partition = partitionOf(row.getLong(timeSlot), row.getString(serverSlot));
+    if (partition.sorter == null) {
+      partition.write(row);
+    } else {
+      sortBufferedBytes += partition.sorter.add(row);
+      if (sortBufferedBytes > writerConfig.getSortMemoryBytes()) {
+        spillLargest();
+      }
+    }
+    partition.rows++;
+    rows++;
+  }
+
+  private void spillLargest() throws IOException {
+    Partition largest = null;
+    for (Partition partition : partitions.values()) {
+      if (largest == null || partition.sorter.getBufferedBytes() > largest.sorter.getBufferedBytes()) {
+        largest = partition;
+      }
+    }
+    if (largest != null) {
+      sortBufferedBytes -= largest.sorter.getBufferedBytes();
+      largest.sorter.spill();
+    }
+  }
+
+  private Partition partitionOf(long time, String server) throws IOException {
+    if (time >= periodStart && time < periodEnd && last != null && server != null && server.equals(lastServer)) {
+      return last;
+    }
+    if (time < periodStart || time >= periodEnd) {
+      LocalDateTime start = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC);
+      periodStart = Math.floorDiv(time, periodMs) * periodMs;
+      periodEnd = periodStart + periodMs;
+      day = String.format("year=%d/month=%02d/day=%02d", start.getYear(), start.getMonthValue(), start.getDayOfMonth());
+      hour = periodMs == HOUR_MS ? String.format("/hour=%02d", start.getHour()) : "";
+    }
+    String path = day + "/" + serverPartition + "=" + encode(server) + hour;
+    Partition partition = partitions.get(path);
+    if (partition == null) {
+      partition = new Partition(path);
+      partitions.put(path, partition);
+    } else {
+      // only when the partition changes: while rows go to the same partition, it stays the most recently used
+      open.get(path);
+    }
+    last = partition;
+    lastServer = server;
+    return partition;
+  }
+
+  private static String encode(String value) {
+    if (value == null) {
+      return "null";
+    }
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return number of rows written so far
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return number of partitions written to so far
+   */
+  public int getPartitionCount() {
+    return partitions.size();
+  }
+
+  /**
+   * @return number of partitions with an open file
+   */
+  public int getOpenPartitionCount() {
+    return open.size();
+  }
+
+  /**
+   * @return number of files that were closed early, to stay within the limits on open files and buffered bytes
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return number of files that were opened in a partition whose previous file was closed early
+   */
+  public long getReopens() {
+    return reopens;
+  }
+
+  /**
+   * Close the file of the least recently used partition.
+   */
+  private void evictEldest() throws IOException {
+    Iterator<Partition> iterator = open.values().iterator();
+    Partition eldest = iterator.next();
+    iterator.remove();
+    evict(eldest);
+  }
+
+  /**
+   * Close the files of the least recently used partitions until the buffers fit in memory again,
+   * except for the file of the given partition.
+   */
+  private void evictForMemory(Partition current) throws IOException {
+    Iterator<Partition> iterator = open.values().iterator();
+    while (bufferedBytes > writerConfig.getMaxBufferedBytes() && iterator.hasNext()) {
+      Partition eldest = iterator.next();
+      if (eldest != current) {
+        iterator.remove();
+        evict(eldest);
+      }
+    }
+  }
+
+  private void evict(Partition partition) throws IOException {
+    logger.debug("Closing {} early, {} files open buffering {} bytes", partition.target, open.size() + 1, bufferedBytes);
+    partition.files.add(partition.closeFile());
+    partition.evicted = true;
+    evictions++;
+  }
+
+  /**
+   * Close all files and commit them to the output.
+   *
+   * @return the locations of the files that were written
+   * @throws IOException when a file could not be closed or committed, after trying all of them
+   */
+  public List<String> close() throws IOException {
+    List<String> files = new ArrayList<>();
+    IOException failure = null;
+    for (Partition partition : partitions.values()) {
+      try {
+        files.addAll(partition.close());
+      } catch (IOException e) {
+        logger.error("Could not close {} of {}", partition.directory, output, e);
+        failure = failure == null ? e : failure;
+      }
+    }
+    if (evictions > 0) {
+      logger.info("Closed {} files early to stay within {} open files and {} buffered bytes, {} partitions got a new file",
+          evictions, writerConfig.getMaxOpenPartitions(), writerConfig.getMaxBufferedBytes(), reopens);
+    }
+    partitions.clear();
+    open.clear();
+    last = null;
+    sortBufferedBytes = 0;
+    bufferedBytes = 0;
+    if (spillDirectory.exists() && !spillDirectory.delete()) {
+      logger.warn("Could not delete {}", spillDirectory);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return files;
+  }
+
+  private class Partition {
+
+    private final String directory;
+    private final RowSorter sorter;
+    // the files that were rolled over and closed
+    private final List<String> files = new ArrayList<>();
+    private String target;
+    private ParquetOutput.Pending pending;
+    private TrackedOutputFile outputFile;
+    private org.apache.parquet.hadoop.ParquetWriter<DnsRow> writer;
+    private long rows = 0;
+    private long rowsInFile = 0;
+    // estimated bytes in the row group buffer and output buffers of the open file, as of the last check
+    private long buffered = 0;
+    // the previous file was closed early
+    private boolean evicted = false;
+
+    private Partition(String directory) {
+      this.directory = directory;
+      this.sorter = order == null ? null : new RowSorter(schema, order, spillDirectory);
+    }
+
+    private void write(DnsRow row) throws IOException {
+      if (writer == null) {
+        open();
+      }
+      writer.write(row);
+      rowsInFile++;
+      // the size estimate sums the buffers of all columns, no need to ask for it after every row
+      if (rowsInFile % ROLL_CHECK_ROWS == 0) {
+        long size = writer.getDataSize();
+        long nowBuffered = size - outputFile.written() + pending.getMemoryBytes();
+        bufferedBytes += nowBuffered - buffered;
+        buffered = nowBuffered;
+        if (writerConfig.getTargetFileBytes() > 0 && size >= writerConfig.getTargetFileBytes()) {
+          logger.debug("Rolling over {} at {} bytes", target, size);
+          open.remove(directory);
+          files.add(closeFile());
+        } else if (bufferedBytes > writerConfig.getMaxBufferedBytes()) {
+          evictForMemory(this);
+        }
+      }
+    }
+
+    private void open() throws IOException {
+      while (open.size() >= writerConfig.getMaxOpenPartitions()) {
+        evictEldest();
+      }
+      if (evicted) {
+        reopens++;
+        evicted = false;
+      }
+      target = directory + "/" + UUID.randomUUID().toString() + ".parquet";
+      logger.debug("Opening {} in {}", target, output);
+      pending = output.create(target);
+      outputFile = new TrackedOutputFile(pending.getOutputFile());
+      try {
+        writer = writerConfig.apply(DnsRowWriteSupport.builder(outputFile, schema))
+            .withWriteMode(ParquetFileWriter.Mode.CREATE)
+            .build();
+      } catch (IOException | RuntimeException e) {
+        pending.abort();
+        throw e;
+      }
+      rowsInFile = 0;
+      open.put(directory, this);
+    }
+
+    /**
+     * Close the open file, which the caller already removed from the open partitions.
+     */
+    private String closeFile() throws IOException {
+      org.apache.parquet.hadoop.ParquetWriter<DnsRow> closing = writer;
+      writer = null;
+      outputFile = null;
+      bufferedBytes -= buffered;
+      buffered = 0;
+      String location;
+      try {
+        closing.close();
+        location = pending.commit();
+      } catch (IOException | RuntimeException e) {
+        pending.abort();
+        throw e;
+      }
+      logger.debug("{} rows written to {}", rowsInFile, location);
+      return location;
+    }
+
+    /**
+     * Discard the open file, which the caller already removed from the open partitions. The parquet writer is not
+     * closed, as that would write out the rows it buffers and a footer.
+     */
+    private void abortFile() {
+      TrackedOutputFile aborting = outputFile;
+      writer = null;
+      outputFile = null;
+      bufferedBytes -= buffered;
+      buffered = 0;
+      pending.abort();
+      // after the abort, so that a multipart upload does not first upload its last part
+      aborting.closeStream();
+      logger.debug("Discarded {} after {} rows", target, rowsInFile);
+    }
+
+    private List<String> close() throws IOException {
+      if (sorter != null) {
+        logger.debug("Sorting {} rows of {} on {}, {} runs on disk", rows, directory, order, sorter.getRunCount());
+        try {
+          sorter.drainTo(this::write);
+        } catch (IOException | RuntimeException e) {
+          // the rows after the failure are missing, do not commit the file
+          if (writer != null) {
+            open.remove(directory);
+            abortFile();
+          }
+          throw e;
+        }
+      }
+      if (writer != null) {
+        open.remove(directory);
+        files.add(closeFile());
+      }
+      return files;
+    }
+  }
+
+  /**
+   * Remembers the stream the parquet writer writes to, to tell the bytes it buffers from the bytes it wrote.
+   */
+  private static class TrackedOutputFile implements OutputFile {
+
+    private final OutputFile file;
+    private PositionOutputStream stream;
+
+    private TrackedOutputFile(OutputFile file) {
+      this.file = file;
+    }
+
+    @Override
+    public PositionOutputStream create(long blockSizeHint) throws IOException {
+      stream = file.create(blockSizeHint);
+      return stream;
+    }
+
+    @Override
+    public PositionOutputStream createOrOverwrite(long blockSizeHint) throws IOException {
+      stream = file.createOrOverwrite(blockSizeHint);
+      return stream;
+    }
+
+    @Override
+    public boolean supportsBlockSize() {
+      return file.supportsBlockSize();
+    }
+
+    @Override
+    public long defaultBlockSize() {
+      return file.defaultBlockSize();
+    }
+
+    private long written() throws IOException {
+      return stream == null ? 0 : stream.getPos();
+    }
+
+    private void closeStream() {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException e) {
+          logger.warn("Could not close {}", file, e);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import nl.sidn.dnslib.util.DomainParent;
+import nl.sidn.dnslib.util.Domaininfo;
+import nl.sidn.dnslib.util.NameUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the qname of a question into the values of the <code>qname</code>, <code>domainname</code> and
+ * <code>labels</code> columns, with the same result as
+ * {@link AbstractParquetPacketWriter#filter(String)}, lower-casing and {@link NameUtil#getDomain(String, List)}
+ * without domain parents.
+ * <p>
+ * A single pass escapes the non-printable characters, lower-cases the name, counts the labels and finds the last two
+ * labels, in a buffer that is reused. The name is only copied when a character changed and the domain name is taken
+ * from the buffer, nothing is split. Names with less than two labels are rare and handled by <code>NameUtil</code>.
+ * <p>
+ * The results of recent names are kept in a small direct-mapped cache: a cached name is returned without creating
+ * any object. The cache is kept small on purpose: checking it costs about as much as normalizing a name, so a larger
+ * cache that no longer fits in the CPU caches only saves garbage at the expense of time
+ * (see <code>QnameNormalizerBenchmark</code>).
+ * <p>
+ * Not thread-safe, every writer has its own.
+ */
+public class QnameNormalizer {
+
+  public final static int DEFAULT_CACHE_SIZE = 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  // use an empty list: only strip off the TLD to get "domainname" column
+  private final List<DomainParent> parents = new ArrayList<>();
+
+  private final Name[] cache;
+  private final int mask;
+  private char[] buffer = new char[256];
+
+  private long hits;
+  private long misses;
+
+  public QnameNormalizer() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @param cacheSize number of cached names, rounded up to a power of two, 0 for no cache
+   */
+  public QnameNormalizer(int cacheSize) {
+    int size = cacheSize <= 0 ? 0 : Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+    this.cache = new Name[Math.max(size, 1)];
+    this.mask = size - 1;
+  }
+
+  /**
+   * @param qname the qname as decoded, null is treated as an empty name
+   * @return the normalized name, its domain name and number of labels
+   */
+  public Name normalize(String qname) {
+    String raw = qname == null ? "" : qname;
+    if (mask < 0) {
+      misses++;
+      return compute(raw, 0);
+    }
+    int hash = raw.hashCode();
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    Name cached = cache[slot];
+    if (cached != null && cached.hash == hash && cached.raw.equals(raw)) {
+      hits++;
+      return cached;
+    }
+    misses++;
+    Name name = compute(raw, hash);
+    cache[slot] = name;
+    return name;
+  }
+
+  private Name compute(String raw, int hash) {
+    int length = 0;
+    boolean changed = false;
+    int labels = 0;
+    int labelStart = -1;
+    // start and end in the buffer of the last and the one but last label
+    int lastStart = -1;
+    int lastEnd = -1;
+    int previousStart = -1;
+    int previousEnd = -1;
+
+    for (int i = 0; i < raw.length(); i++) {
+      char c = raw.charAt(i);
+      // an escaped char takes at most 6 chars: 0xffff
+      if (length + 6 > buffer.length) {
+        char[] larger = new char[buffer.length * 2];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        buffer = larger;
+      }
+      if (c == '.') {
+        if (labelStart >= 0) {
+          previousStart = lastStart;
+          previousEnd = lastEnd;
+          lastStart = labelStart;
+          lastEnd = length;
+          labels++;
+          labelStart = -1;
+        }
+        buffer[length++] = c;
+        continue;
+      }
+      if (labelStart < 0) {
+        labelStart = length;
+      }
+      if (c >= 0x20 && c <= 0x7e) {
+        if (c >= 'A' && c <= 'Z') {
+          c += 'a' - 'A';
+          changed = true;
+        }
+        buffer[length++] = c;
+      } else {
+        // same as "0x" + Integer.toHexString(c)
+        changed = true;
+        buffer[length++] = '0';
+        buffer[length++] = 'x';
+        int digits = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(c) + 3) / 4);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+          buffer[length++] = HEX[(c >>> shift) & 0xF];
+        }
+      }
+    }
+    if (labelStart >= 0) {
+      previousStart = lastStart;
+      previousEnd = lastEnd;
+      lastStart = labelStart;
+      lastEnd = length;
+      labels++;
+    }
+
+    String normalized = changed ? new String(buffer, 0, length) : raw;
+    if (labels < 2) {
+      Domaininfo domaininfo = NameUtil.getDomain(normalized, parents);
+      return new Name(raw, hash, normalized, domaininfo.name, domaininfo.labels);
+    }
+    String domain;
+    if (lastStart == previousEnd + 1) {
+      // the last two labels are separated by a single dot
+      boolean wholeName = previousStart == 0 && lastEnd == length;
+      domain = wholeName ? normalized : new String(buffer, previousStart, lastEnd - previousStart);
+    } else {
+      domain = new String(buffer, previousStart, previousEnd - previousStart)
+          + "." + new String(buffer, lastStart, lastEnd - lastStart);
+    }
+    return new Name(raw, hash, normalized, domain, labels);
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * A normalized qname.
+   * <p>
+   * Immutable.
+   */
+  public static final class Name {
+
+    private final String raw;
+    // hash of raw, only used by the cache
+    private final int hash;
+    private final String qname;
+    private final String domain;
+    private final int labels;
+
+    private Name(String raw, int hash, String qname, String domain, int labels) {
+      this.raw = raw;
+      this.hash = hash;
+      this.qname = qname;
+      this.domain = domain;
+      this.labels = labels;
+    }
+
+    /**
+     * @return the qname with non-printable characters escaped, in lower case
+     */
+    public String getQname() {
+      return qname;
+    }
+
+    /**
+     * @return the last two labels of the qname
+     */
+    public String getDomain() {
+      return domain;
+    }
+
+    public int getLabels() {
+      return labels;
+    }
+
+    @Override
+    public String toString() {
+      return qname + " [domain=" + domain + ", labels=" + labels + "]";
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import java.util.List;
+
+/**
+ * Order of rows on a list of columns, nulls first. The sort key of a row is an array with the value of
+ * every sort column: a String or a Long.
+ */
+final class RowOrder {
+
+  private final int[] slots;
+  private final boolean[] strings;
+  private final String description;
+
+  /**
+   * @throws IllegalArgumentException when the schema has no such column
+   */
+  RowOrder(DnsRowSchema schema, List<String> columns) {
+    slots = new int[columns.size()];
+    strings = new boolean[columns.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = schema.slot(columns.get(i));
+      strings[i] = schema.kind(slots[i]) == DnsRowSchema.Kind.STRING;
+    }
+    description = columns.toString();
+  }
+
+  Object[] keyOf(DnsRow row) {
+    Object[] key = new Object[slots.length];
+    for (int i = 0; i < slots.length; i++) {
+      int slot = slots[i];
+      if (strings[i]) {
+        key[i] = row.getString(slot);
+      } else if (row.isSet(slot) || row.getSchema().hasDefault(slot)) {
+        key[i] = row.getNumber(slot);
+      }
+    }
+    return key;
+  }
+
+  @SuppressWarnings("unchecked")
+  int compare(Object[] a, Object[] b) {
+    for (int i = 0; i < a.length; i++) {
+      Object x = a[i];
+      Object y = b[i];
+      if (x != y) {
+        if (x == null) {
+          return -1;
+        }
+        if (y == null) {
+          return 1;
+        }
+        int result = ((Comparable<Object>) x).compareTo(y);
+        if (result != 0) {
+          return result;
+        }
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return description;
+  }
+
+}
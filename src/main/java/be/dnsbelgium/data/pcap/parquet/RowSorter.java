@@ -0,0 +1,265 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * External merge sort of the rows of one partition.
+ * <p>
+ * Rows are kept in memory in their {@link DnsRowCodec} form, together with their sort key. When the owner
+ * decides the buffer is too large, {@link #spill()} sorts it and writes it to a run file. {@link #drainTo(Sink)}
+ * merges the runs and the rows still in memory, and passes all rows in order to a sink.
+ * At most {@link #MAX_FAN_IN} runs are read at the same time, more runs are first merged into larger runs.
+ * <p>
+ * Not thread-safe.
+ */
+class RowSorter {
+
+  private static final Logger logger = getLogger(RowSorter.class);
+
+  static final int MAX_FAN_IN = 64;
+
+  // rough heap size of an entry next to its encoded row: entry, key array, boxed numbers and list slot
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int RUN_BUFFER_BYTES = 64 * 1024;
+
+  interface Sink {
+    void write(DnsRow row) throws IOException;
+  }
+
+  private final DnsRowSchema schema;
+  private final RowOrder order;
+  private final File spillDirectory;
+  private final DnsRowCodec codec;
+
+  private List<Entry> buffer = new ArrayList<>();
+  private long bufferedBytes = 0;
+  private final List<File> runs = new ArrayList<>();
+  private long rows = 0;
+
+  RowSorter(DnsRowSchema schema, RowOrder order, File spillDirectory) {
+    this.schema = schema;
+    this.order = order;
+    this.spillDirectory = spillDirectory;
+    this.codec = new DnsRowCodec(schema);
+  }
+
+  /**
+   * Add a copy of a row, the row itself can be reused.
+   *
+   * @return the estimated number of bytes the row takes in memory
+   */
+  long add(DnsRow row) {
+    Entry entry = new Entry(order.keyOf(row), codec.encode(row));
+    buffer.add(entry);
+    long bytes = entry.data.length + ENTRY_OVERHEAD;
+    bufferedBytes += bytes;
+    rows++;
+    return bytes;
+  }
+
+  /**
+   * @return the estimated number of bytes the rows in memory take
+   */
+  long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /**
+   * @return number of run files written so far
+   */
+  int getRunCount() {
+    return runs.size();
+  }
+
+  long getRows() {
+    return rows;
+  }
+
+  /**
+   * Sort the rows in memory and write them to a new run file.
+   */
+  void spill() throws IOException {
+    if (buffer.isEmpty()) {
+      return;
+    }
+    buffer.sort((a, b) -> order.compare(a.key, b.key));
+    File run = newRun();
+    try (DataOutputStream out = openRun(run)) {
+      for (Entry entry : buffer) {
+        writeEntry(out, entry.data);
+      }
+    }
+    logger.debug("Spilled {} rows ({} bytes) to {}", buffer.size(), bufferedBytes, run);
+    buffer = new ArrayList<>();
+    bufferedBytes = 0;
+  }
+
+  /**
+   * Pass all rows to a sink, sorted. The sorter is empty afterwards.
+   */
+  void drainTo(Sink sink) throws IOException {
+    try {
+      if (runs.isEmpty()) {
+        buffer.sort((a, b) -> order.compare(a.key, b.key));
+        DnsRow row = new DnsRow(schema);
+        for (Entry entry : buffer) {
+          codec.decode(entry.data, row);
+          sink.write(row);
+        }
+        return;
+      }
+      spill();
+      while (runs.size() > MAX_FAN_IN) {
+        List<File> inputs = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+        runs.removeAll(inputs);
+        File merged = newRun();
+        try (DataOutputStream out = openRun(merged)) {
+          DnsRowCodec encoder = new DnsRowCodec(schema);
+          merge(inputs, row -> writeEntry(out, encoder.encode(row)));
+        }
+      }
+      merge(new ArrayList<>(runs), sink);
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Drop all rows and delete the run files.
+   */
+  void discard() {
+    buffer = new ArrayList<>();
+    bufferedBytes = 0;
+    for (File run : runs) {
+      if (!run.delete() && run.exists()) {
+        logger.warn("Could not delete {}", run);
+      }
+    }
+    runs.clear();
+  }
+
+  /**
+   * k-way merge of sorted runs, deletes the runs when done.
+   */
+  private void merge(List<File> inputs, Sink sink) throws IOException {
+    PriorityQueue<Run> queue = new PriorityQueue<>(inputs.size(), (a, b) -> order.compare(a.key, b.key));
+    List<Run> open = new ArrayList<>();
+    try {
+      for (File file : inputs) {
+        Run run = new Run(file);
+        open.add(run);
+        if (run.next()) {
+          queue.add(run);
+        }
+      }
+      while (!queue.isEmpty()) {
+        Run run = queue.poll();
+        sink.write(run.row);
+        if (run.next()) {
+          queue.add(run);
+        }
+      }
+    } finally {
+      for (Run run : open) {
+        run.in.close();
+      }
+      for (File file : inputs) {
+        if (!file.delete() && file.exists()) {
+          logger.warn("Could not delete {}", file);
+        }
+      }
+    }
+  }
+
+  private File newRun() throws IOException {
+    if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+      throw new IOException("Could not create " + spillDirectory);
+    }
+    File run = File.createTempFile("rows-", ".run", spillDirectory);
+    runs.add(run);
+    return run;
+  }
+
+  private static DataOutputStream openRun(File run) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_BYTES));
+  }
+
+  private static void writeEntry(DataOutputStream out, byte[] data) throws IOException {
+    out.writeInt(data.length);
+    out.write(data);
+  }
+
+  private static class Entry {
+    private final Object[] key;
+    private final byte[] data;
+
+    private Entry(Object[] key, byte[] data) {
+      this.key = key;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Reads a run file one row at a time.
+   */
+  private class Run {
+    private final DataInputStream in;
+    private final DnsRow row = new DnsRow(schema);
+    private final DnsRowCodec decoder = new DnsRowCodec(schema);
+    private Object[] key;
+
+    private Run(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_BYTES));
+    }
+
+    private boolean next() throws IOException {
+      int length;
+      try {
+        length = in.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      byte[] data = new byte[length];
+      in.readFully(data);
+      decoder.decode(data, row);
+      key = order.keyOf(row);
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.reader;
+
+import nl.sidn.pcap.support.PacketCombination;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the combinations of queries and responses over from the matching threads to the thread that writes them.
+ * <p>
+ * Every producer (a {@link MatchingShard}) fills batches of combinations and publishes them in its own
+ * single-producer/single-consumer ring, so adding a combination takes no lock and publishing a batch is a single
+ * volatile write. The consumer takes whole batches, from the rings in turn.
+ * <p>
+ * Nothing is dropped: a producer waits while its ring is full, and the time it waited is recorded as back-pressure.
+ * The consumer gets <code>null</code> once the queue is closed and every batch has been taken.
+ * {@link #cancel()} releases the producers when nobody is going to take the batches anymore.
+ */
+public class CombinationQueue {
+
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+
+  // spins before a waiting thread parks
+  private static final int SPINS = 100;
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final int batchSize;
+  private final int ringSize;
+
+  private volatile Producer[] producers = new Producer[0];
+  private volatile boolean closed = false;
+  private volatile boolean cancelled = false;
+
+  // only accessed by the consumer, except for the volatile counters
+  private int nextProducer = 0;
+  private volatile long taken = 0;
+  private volatile long consumerWaitNanos = 0;
+
+  /**
+   * @param capacity  number of combinations every producer can add before it has to wait for the consumer
+   * @param batchSize number of combinations handed over at once
+   */
+  public CombinationQueue(int capacity, int batchSize) {
+    this.batchSize = batchSize;
+    int batches = Math.max(2, (capacity + batchSize - 1) / batchSize);
+    this.ringSize = Integer.highestOneBit(batches - 1) << 1;
+  }
+
+  public CombinationQueue(int capacity) {
+    this(capacity, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @return a new producer, to be used by one thread at a time
+   */
+  public synchronized Producer newProducer() {
+    if (closed) {
+      throw new IllegalStateException("Queue is closed");
+    }
+    Producer producer = new Producer();
+    Producer[] grown = Arrays.copyOf(producers, producers.length + 1);
+    grown[producers.length] = producer;
+    producers = grown;
+    return producer;
+  }
+
+  /**
+   * Publish the partial batches of all producers and signal the consumer that no more combinations will come.
+   * Must only be called when the producers are done.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    for (Producer producer : producers) {
+      producer.flush();
+    }
+    closed = true;
+  }
+
+  /**
+   * Stop waiting producers and make them fail from now on, for when the consumer stopped taking batches.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Take the next batch of combinations, waiting until one is available.
+   *
+   * @return a batch in the order the producer added its combinations, null when the queue is closed and empty
+   * @throws InterruptedException when interrupted while waiting
+   */
+  public PacketCombination[] take() throws InterruptedException {
+    long waitStart = 0;
+    for (int attempt = 0; ; attempt++) {
+      // a batch published before the close is seen by the poll that follows
+      boolean wasClosed = closed;
+      PacketCombination[] batch = poll();
+      if (batch != null) {
+        if (waitStart != 0) {
+          consumerWaitNanos += System.nanoTime() - waitStart;
+        }
+        taken += batch.length;
+        return batch;
+      }
+      if (wasClosed) {
+        return null;
+      }
+      if (waitStart == 0) {
+        waitStart = System.nanoTime();
+      }
+      idle(attempt);
+      if (Thread.interrupted()) {
+        throw new InterruptedException("Interrupted while waiting for combinations");
+      }
+    }
+  }
+
+  private PacketCombination[] poll() {
+    Producer[] current = producers;
+    for (int i = 0; i < current.length; i++) {
+      Producer producer = current[(nextProducer + i) % current.length];
+      PacketCombination[] batch = producer.poll();
+      if (batch != null) {
+        nextProducer = (nextProducer + i + 1) % current.length;
+        return batch;
+      }
+    }
+    return null;
+  }
+
+  private static void idle(int attempt) {
+    if (attempt < SPINS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+  }
+
+  /**
+   * @return number of combinations published and not taken yet, an estimate while the producers are running
+   */
+  public long size() {
+    long published = 0;
+    for (Producer producer : producers) {
+      published += producer.published;
+    }
+    return published - taken;
+  }
+
+  /**
+   * @return time the producers waited for the consumer, summed over all producers
+   */
+  public long getProducerWaitNanos() {
+    long nanos = 0;
+    for (Producer producer : producers) {
+      nanos += producer.waitNanos;
+    }
+    return nanos;
+  }
+
+  /**
+   * @return number of times a producer found its ring full
+   */
+  public long getProducerWaits() {
+    long waits = 0;
+    for (Producer producer : producers) {
+      waits += producer.waits;
+    }
+    return waits;
+  }
+
+  /**
+   * @return time the consumer waited for the producers
+   */
+  public long getConsumerWaitNanos() {
+    return consumerWaitNanos;
+  }
+
+  public long getTaken() {
+    return taken;
+  }
+
+  @Override
+  public String toString() {
+    return "CombinationQueue{size=" + size() + ", taken=" + taken
+        + ", producerWaits=" + getProducerWaits()
+        + ", producerWaitMs=" + TimeUnit.NANOSECONDS.toMillis(getProducerWaitNanos())
+        + ", consumerWaitMs=" + TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos) + "}";
+  }
+
+  /**
+   * Adds combinations to the queue. Not thread-safe: one thread at a time.
+   */
+  public final class Producer {
+
+    private final PacketCombination[][] ring = new PacketCombination[ringSize][];
+    private final int mask = ringSize - 1;
+    // next batch to take, written by the consumer
+    private volatile long head = 0;
+    // next batch to publish, written by the producer
+    private volatile long tail = 0;
+
+    // only written by the producer
+    private PacketCombination[] batch = new PacketCombination[batchSize];
+    private int count = 0;
+    // counters, read by other threads
+    private volatile long published = 0;
+    private volatile long waits = 0;
+    private volatile long waitNanos = 0;
+
+    private Producer() {
+    }
+
+    /**
+     * Add a combination, waiting while the ring is full.
+     *
+     * @throws CancellationException when the queue has been cancelled
+     */
+    public void add(PacketCombination combination) {
+      batch[count++] = combination;
+      if (count == batchSize) {
+        publish(batch);
+        batch = new PacketCombination[batchSize];
+        count = 0;
+      }
+    }
+
+    /**
+     * Publish the partial batch, if any.
+     */
+    public void flush() {
+      if (count > 0 && !cancelled) {
+        publish(Arrays.copyOf(batch, count));
+        count = 0;
+      }
+    }
+
+    private void publish(PacketCombination[] full) {
+      long t = tail;
+      if (t - head == ring.length) {
+        waitForSpace(t);
+      }
+      ring[(int) t & mask] = full;
+      // counted before it can be taken, so size() does not go below 0
+      published += full.length;
+      // makes the batch visible to the consumer
+      tail = t + 1;
+    }
+
+    private void waitForSpace(long t) {
+      long start = System.nanoTime();
+      waits++;
+      for (int attempt = 0; t - head == ring.length; attempt++) {
+        if (cancelled) {
+          throw new CancellationException("Combination queue has been cancelled");
+        }
+        idle(attempt);
+        if (Thread.currentThread().isInterrupted()) {
+          throw new IllegalStateException("Interrupted while waiting for space in the combination queue");
+        }
+      }
+      waitNanos += System.nanoTime() - start;
+    }
+
+    private PacketCombination[] poll() {
+      long h = head;
+      if (h == tail) {
+        return null;
+      }
+      int slot = (int) h & mask;
+      PacketCombination[] next = ring[slot];
+      ring[slot] = null;
+      // frees the slot for the producer
+      head = h + 1;
+      return next;
+    }
+  }
+
+}
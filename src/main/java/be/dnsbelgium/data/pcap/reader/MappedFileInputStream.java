@@ -0,0 +1,134 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link InputStream} that reads a file through memory mapped regions instead of read() system calls.
+ * <p>
+ * The file is mapped one region at a time (a single mapping cannot exceed 2GB), reads are served straight
+ * from the page cache into the caller's buffer. Meant for uncompressed PCAP files on local disk or tmpfs.
+ */
+public class MappedFileInputStream extends InputStream {
+
+  public static final int DEFAULT_REGION_SIZE = 256 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long length;
+  private final int regionSize;
+
+  private MappedByteBuffer region;
+  // file offset of the first byte of the current region
+  private long regionStart = 0;
+
+  public MappedFileInputStream(File file) throws IOException {
+    this(file, DEFAULT_REGION_SIZE);
+  }
+
+  public MappedFileInputStream(File file, int regionSize) throws IOException {
+    if (regionSize <= 0) {
+      throw new IllegalArgumentException("regionSize must be positive: " + regionSize);
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    this.channel = raf.getChannel();
+    this.length = channel.size();
+    this.regionSize = regionSize;
+    map(0);
+  }
+
+  private void map(long start) throws IOException {
+    regionStart = start;
+    long size = Math.min(regionSize, length - start);
+    region = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+  }
+
+  /**
+   * @return false when the end of the file has been reached
+   */
+  private boolean ensureRemaining() throws IOException {
+    if (region.hasRemaining()) {
+      return true;
+    }
+    long next = regionStart + region.capacity();
+    if (next >= length) {
+      return false;
+    }
+    map(next);
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureRemaining()) {
+      return -1;
+    }
+    return region.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureRemaining()) {
+      return -1;
+    }
+    // do not cross a region boundary, callers like DataInputStream.readFully will simply read again
+    int count = Math.min(len, region.remaining());
+    region.get(b, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+    long position = regionStart + region.position();
+    long skipped = Math.min(n, length - position);
+    long target = position + skipped;
+    if (target < regionStart + region.capacity()) {
+      region.position((int) (target - regionStart));
+    } else if (target < length) {
+      map(target);
+    } else {
+      region.position(region.capacity());
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    long remaining = length - regionStart - region.position();
+    return (int) Math.min(Integer.MAX_VALUE, remaining);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.dnslib.types.MessageType;
+import nl.sidn.dnslib.types.ResourceRecordType;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.PacketCombination;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Matches the DNS messages of a set of clients: queries wait in a {@link RequestMatcher} until their response
+ * is found or their timeout passes, zone transfers are reduced to their first response.
+ * Every query, response and zone transfer is keyed on the client address and port,
+ * so the messages of different clients can be matched by different shards.
+ * <p>
+ * The resulting combinations are added to the shared queue, through a producer of its own.
+ * <p>
+ * Not thread-safe: a shard is used by one thread at a time.
+ */
+public class MatchingShard implements Closeable {
+
+  private static final Logger logger = getLogger(MatchingShard.class);
+
+  private static final int LOG_FREQUENCY = 100000;
+
+  private final ServerInfo serverInfo;
+  private final CombinationQueue.Producer producer;
+  private final RequestMatcher requestMatcher;
+  private final Map<ZoneTransfer, Integer> activeZoneTransfers = new HashMap<>();
+  private final Consumer<MessageWrapper> expired = this::expired;
+
+  private int queryCounter = 0;
+  private int responseCounter = 0;
+  // counter when no request query can be found for a response
+  private int noQueryFoundCounter = 0;
+  private int purgeCounter = 0;
+  private int added = 0;
+
+  public MatchingShard(ServerInfo serverInfo, CombinationQueue.Producer producer, RequestMatcher requestMatcher) {
+    this.serverInfo = serverInfo;
+    this.producer = producer;
+    this.requestMatcher = requestMatcher;
+  }
+
+  /**
+   * Move time forward and add the queries that got no response within the cache timeout to the queue.
+   *
+   * @param now capture time in ms of the packet that is being handled
+   */
+  public void advance(long now) {
+    requestMatcher.advance(now, expired);
+  }
+
+  public void handleIcmp(Packet packet, String fileName) {
+    addToQueue(new PacketCombination(packet, null, serverInfo, false, fileName));
+  }
+
+  /**
+   * Match a DNS message with the cached requests and add the resulting combinations to the queue.
+   *
+   * @param dnsPacket the packet holding the message
+   * @param msg       the message
+   * @param client    address of the client: the source of a query, the destination of a response
+   * @param server    address of the name server: the destination of a query, the source of a response
+   * @param fileName  name of the PCAP file the packet was read from
+   * @param time      capture time of the packet in ms
+   */
+  public void handleMessage(DNSPacket dnsPacket, Message msg, IpAddress client, IpAddress server, String fileName,
+                            long time) {
+    // get qname from request which is part of the cache lookup key
+    String qname = null;
+    if (msg != null && msg.getQuestions() != null && msg.getQuestions().size() > 0) {
+      qname = msg.getQuestions().get(0).getqName();
+    }
+    // put request into map until we find matching response, with a key based on: query id,
+    // qname, ip src, tcp/udp port
+    // add time for possible timeout eviction
+    if (msg != null && msg.getHeader().getQr() == MessageType.QUERY) {
+      queryCounter++;
+
+      // check for ixfr/axfr request
+      if (msg.getQuestions().size() > 0
+          && (msg.getQuestions().get(0).getqType() == ResourceRecordType.AXFR
+          || msg.getQuestions().get(0).getqType() == ResourceRecordType.IXFR)) {
+
+        logger.debug("Detected zonetransfer for: {}", dnsPacket.getFlow());
+        // keep track of ongoing zone transfer, we do not want to store all the response
+        // packets for an ixfr/axfr.
+        activeZoneTransfers.put(new ZoneTransfer(msg.getHeader().getId(), client, dnsPacket.getSrcPort()), 0);
+      }
+
+      requestMatcher.add(msg.getHeader().getId(), qname, client, dnsPacket.getSrcPort(),
+          time, dnsPacket, msg, fileName);
+    } else {
+      // try to find the request
+      responseCounter++;
+
+      // check for ixfr/axfr response, the query might be missing from the response
+      // so we cannot use the qname for matching.
+      assert msg != null;
+      ZoneTransfer key = new ZoneTransfer(msg.getHeader().getId(), client, dnsPacket.getDstPort());
+      if (activeZoneTransfers.containsKey(key)) {
+        // this response is part of an active zonetransfer.
+        // only let the first response continue, reuse the "time" field of the RequestKey to
+        // keep track of this.
+        Integer ztResponseCounter = activeZoneTransfers.get(key);
+        if (ztResponseCounter > 0) {
+          // do not save this msg, drop it here.
+          return;
+        } else {
+          // 1st response msg let it continue, add 1 to the map the indicate 1st resp msg
+          // has been processed
+          activeZoneTransfers.put(key, 1);
+        }
+      }
+
+      MessageWrapper request = requestMatcher.match(msg.getHeader().getId(), qname, client,
+          dnsPacket.getDstPort());
+      // check to see if the request msg exists, at the start of the pcap there may be
+      // missing queries
+
+      if (request != null && request.getPacket() != null && request.getMessage() != null) {
+        PacketCombination combination = new PacketCombination(request.getPacket(), request.getMessage(),
+            serverInfo, dnsPacket, msg, false, fileName, client, server);
+        addToQueue(combination);
+      } else {
+        // no request found, this could happen if the query was in previous pcap
+        // and was not correctly decoded, or the request timed out before server
+        // could send a response.
+        logger.debug("Found no request for response");
+        noQueryFoundCounter++;
+        PacketCombination combination = new PacketCombination(null, null,
+            serverInfo, dnsPacket, msg, false, fileName, client, server);
+        addToQueue(combination);
+      }
+    }
+  }
+
+  /**
+   * Add a query that got no response within the cache timeout to the queue with rcode no response.
+   */
+  private void expired(MessageWrapper mw) {
+    if (mw.getMessage() != null && mw.getMessage().getHeader().getQr() == MessageType.QUERY) {
+      PacketCombination combo = new PacketCombination(mw.getPacket(), mw.getMessage(),
+          serverInfo, true, mw.getFilename());
+      addToQueue(combo);
+      purgeCounter++;
+    } else {
+      logger.debug("Cached response entry timed out, request might have been missed");
+      noQueryFoundCounter++;
+    }
+  }
+
+  /**
+   * Add a combination to the queue, waits while the writer is behind.
+   */
+  private void addToQueue(PacketCombination combination) {
+    producer.add(combination);
+    added++;
+    if (added % LOG_FREQUENCY == 0) {
+      logger.debug("combinations added to the queue = {}", added);
+    }
+  }
+
+  public RequestMatcher getRequestMatcher() {
+    return requestMatcher;
+  }
+
+  public int getQueryCounter() {
+    return queryCounter;
+  }
+
+  public int getResponseCounter() {
+    return responseCounter;
+  }
+
+  public int getNoQueryFoundCounter() {
+    return noQueryFoundCounter;
+  }
+
+  public int getPurgeCounter() {
+    return purgeCounter;
+  }
+
+  public int getAdded() {
+    return added;
+  }
+
+  @Override
+  public void close() throws IOException {
+    requestMatcher.close();
+  }
+
+  /**
+   * Key of a zone transfer: the query id, client address and client port.
+   */
+  private static final class ZoneTransfer {
+    private final int id;
+    private final IpAddress client;
+    private final int port;
+
+    private ZoneTransfer(int id, IpAddress client, int port) {
+      this.id = id;
+      this.client = client;
+      this.port = port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ZoneTransfer)) {
+        return false;
+      }
+      ZoneTransfer other = (ZoneTransfer) o;
+      return id == other.id && port == other.port && client.equals(other.client);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(id, client, port);
+    }
+  }
+
+}
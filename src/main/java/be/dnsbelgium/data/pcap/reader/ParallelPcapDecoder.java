@@ -0,0 +1,302 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import nl.sidn.pcap.PcapReader;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.NamedThreadFactory;
+import org.slf4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Decodes several PCAP files at the same time, each file with its own {@link PcapReader} on its own thread,
+ * and merges the decoded packets back into one stream ordered by capture time.
+ * <p>
+ * At most <code>threads</code> files are decoded at once: a sliding window over the (chronologically sorted)
+ * input files. Packets are only merged between files of the same window, a file entering the window is
+ * assumed not to contain packets older than the files that already left it.
+ * <p>
+ * Every decoder may run ahead of the merge by <code>prefetch</code> packets. Decoded packets are handed over
+ * in batches to keep the contention on the queues low.
+ * <p>
+ * When the files follow each other in time, eg. the rotated captures of one interface, the merge only takes
+ * packets from the oldest file and the other decoders stop after <code>prefetch</code> packets. The extra threads
+ * then only gain that lead on the next files, while the heap holds up to <code>threads * prefetch</code> decoded
+ * packets. The threads pay off when the files overlap in time, eg. the captures of several interfaces of a server.
+ * See ParallelPcapDecoderBenchmark.
+ */
+public class ParallelPcapDecoder {
+
+  private static final Logger logger = getLogger(ParallelPcapDecoder.class);
+
+  private static final int BATCH_SIZE = 1024;
+  private static final Packet[] END_OF_FILE = new Packet[0];
+
+  /**
+   * Opens a PCAP file as a stream that can be handed to a {@link PcapReader}
+   */
+  public interface StreamOpener {
+    DataInputStream open(File file) throws IOException;
+  }
+
+  /**
+   * Receives the merged packets, always on the thread that called {@link #decode(Listener)}
+   */
+  public interface Listener {
+
+    void onPacket(Packet packet, String fileName);
+
+    void onFileDone(File file);
+  }
+
+  /**
+   * Thrown by {@link #decode(Listener)} when one of the files could not be decoded
+   */
+  public static class DecodingException extends RuntimeException {
+
+    private final File file;
+
+    DecodingException(File file, Throwable cause) {
+      super("Failed to decode " + file, cause);
+      this.file = file;
+    }
+
+    /**
+     * @return the file that could not be decoded
+     */
+    public File getFile() {
+      return file;
+    }
+  }
+
+  private final List<File> files;
+  private final int threads;
+  private final int queueCapacity;
+  private final StreamOpener opener;
+  private final PcapReaderConfig config;
+
+  private PcapReader firstReader;
+  private volatile PcapReader lastReader;
+
+  public ParallelPcapDecoder(List<File> files, int threads, int prefetch, StreamOpener opener, PcapReaderConfig config) {
+    this.files = files;
+    this.threads = Math.max(1, threads);
+    this.queueCapacity = Math.max(2, prefetch / BATCH_SIZE);
+    this.opener = opener;
+    this.config = config;
+  }
+
+  /**
+   * Use given reader for the first file, eg. to continue with TCP flows and IP fragments loaded from an earlier run.
+   * All other files are decoded with a new {@link PcapReader}.
+   *
+   * @param reader the reader to use for the first file
+   */
+  public void setFirstReader(PcapReader reader) {
+    this.firstReader = reader;
+  }
+
+  /**
+   * @return the reader that decoded the last file, holds the TCP flows and IP fragments that are still incomplete
+   */
+  public PcapReader getLastReader() {
+    return lastReader;
+  }
+
+  /**
+   * Decode all files and pass every packet in capture time order to the listener.
+   *
+   * @param listener receives the packets and a callback after the last packet of a file has been passed on
+   * @throws InterruptedException when interrupted while waiting for a decoder
+   * @throws DecodingException    when a file could not be decoded
+   */
+  public void decode(Listener listener) throws InterruptedException {
+    logger.info("Decoding {} files with {} decoder threads", files.size(), threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("PcapDecoder-Thread"));
+    FileDecoder[] decoders = new FileDecoder[files.size()];
+    PriorityQueue<FileDecoder> heads = new PriorityQueue<>(threads, FileDecoder::compareHeads);
+    try {
+      int next = 0;
+      for (; next < files.size() && next < threads; next++) {
+        decoders[next] = start(executor, next);
+      }
+      for (int i = 0; i < next; i++) {
+        offer(heads, decoders[i], listener);
+      }
+      while (!heads.isEmpty()) {
+        FileDecoder decoder = heads.poll();
+        listener.onPacket(decoder.current(), decoder.fileName);
+        if (decoder.advance()) {
+          heads.offer(decoder);
+        } else {
+          // a file left the window: its thread is free again, so let the next file in
+          listener.onFileDone(decoder.file);
+          if (next < files.size()) {
+            decoders[next] = start(executor, next);
+            offer(heads, decoders[next], listener);
+            next++;
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private void offer(PriorityQueue<FileDecoder> heads, FileDecoder decoder, Listener listener) throws InterruptedException {
+    if (decoder.advance()) {
+      heads.offer(decoder);
+    } else {
+      logger.info("No packets found in {}", decoder.file);
+      listener.onFileDone(decoder.file);
+    }
+  }
+
+  private FileDecoder start(ExecutorService executor, int index) {
+    PcapReader reader = (index == 0 && firstReader != null) ? firstReader : new PcapReader();
+    FileDecoder decoder = new FileDecoder(index, files.get(index), reader, queueCapacity);
+    executor.submit(decoder);
+    if (index == files.size() - 1) {
+      lastReader = reader;
+    }
+    return decoder;
+  }
+
+  private class FileDecoder implements Runnable {
+
+    private final int index;
+    private final File file;
+    private final String fileName;
+    private final PcapReader reader;
+    private final BlockingQueue<Packet[]> batches;
+    private volatile Exception failure;
+
+    // only accessed by the merging thread
+    private Packet[] batch = END_OF_FILE;
+    private int position = 0;
+
+    private FileDecoder(int index, File file, PcapReader reader, int capacity) {
+      this.index = index;
+      this.file = file;
+      this.fileName = file.getName();
+      this.reader = reader;
+      this.batches = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void run() {
+      long start = System.currentTimeMillis();
+      long count = 0;
+      DataInputStream in = null;
+      try {
+        in = opener.open(file);
+        reader.init(in);
+        Packet[] buffer = new Packet[BATCH_SIZE];
+        int size = 0;
+        for (Packet packet : reader) {
+          if (packet == null) {
+            continue;
+          }
+          buffer[size++] = packet;
+          if (size == BATCH_SIZE) {
+            batches.put(buffer);
+            buffer = new Packet[BATCH_SIZE];
+            size = 0;
+          }
+          count++;
+        }
+        if (size > 0) {
+          batches.put(Arrays.copyOf(buffer, size));
+        }
+        reader.clearCache(config.getTcpFlowCacheTimeoutInMs(), config.getFragmentedIpCacheTimeoutInMs());
+        logger.info("Decoded {} packets from {} in {}ms", count, file, System.currentTimeMillis() - start);
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while decoding {}", file);
+        return;
+      } catch (Exception e) {
+        logger.error("Failed to decode file [{}] {}:{}", file, e.getClass(), e.getMessage());
+        failure = e;
+      } finally {
+        if (in != null) {
+          // closes the stream, also when decoding failed or was interrupted
+          reader.close();
+        }
+      }
+      try {
+        batches.put(END_OF_FILE);
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while signalling end of {}", file);
+      }
+    }
+
+    private Packet current() {
+      return batch[position];
+    }
+
+    /**
+     * Move to the next packet of this file, waiting for the decoder when needed.
+     *
+     * @return false when the file has no more packets
+     */
+    private boolean advance() throws InterruptedException {
+      if (++position < batch.length) {
+        return true;
+      }
+      batch = batches.take();
+      position = 0;
+      if (batch == END_OF_FILE) {
+        if (failure != null) {
+          throw new DecodingException(file, failure);
+        }
+        return false;
+      }
+      return true;
+    }
+
+    private int compareHeads(FileDecoder other) {
+      Packet p1 = current();
+      Packet p2 = other.current();
+      int result = Long.compare(p1.getTs(), p2.getTs());
+      if (result == 0) {
+        result = Long.compare(p1.getTsmicros(), p2.getTsmicros());
+      }
+      if (result == 0) {
+        // keep packets with the same timestamp in file order
+        result = Integer.compare(index, other.index);
+      }
+      return result;
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+/**
+ * The compression formats supported for PCAP files, determined by the extension of the file name.
+ */
+public enum PcapCompression {
+
+  NONE(""),
+  GZIP(".gz"),
+  XZ(".xz"),
+  ZSTD(".zst"),
+  LZ4(".lz4");
+
+  private final String extension;
+
+  PcapCompression(String extension) {
+    this.extension = extension;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * @return the suffix the PCAP reader expects for files with this compression, eg. ".pcap.gz"
+   */
+  public String getPcapSuffix() {
+    return ".pcap" + extension;
+  }
+
+  public boolean isCompressed() {
+    return this != NONE;
+  }
+
+  /**
+   * @param fileName name of the file
+   * @return the compression matching the ending of the file name, null when it does not end with a supported suffix
+   */
+  public static PcapCompression fromFileName(String fileName) {
+    String lower = fileName.toLowerCase();
+    if (lower.endsWith(".pcap")) {
+      return NONE;
+    }
+    for (PcapCompression compression : values()) {
+      if (compression.isCompressed() && lower.endsWith(compression.extension)) {
+        return compression;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Guess the compression of a file whose name does not necessarily end with the extension,
+   * eg. 1527804007_amsterdam1.dns.be.p2p2.pcap4249_DONE.gz or capture.zst_DONE
+   *
+   * @param fileName name of the file
+   * @return the compression whose extension occurs in the file name, NONE if there is none
+   */
+  public static PcapCompression guess(String fileName) {
+    PcapCompression compression = fromFileName(fileName);
+    if (compression != null) {
+      return compression;
+    }
+    String lower = fileName.toLowerCase();
+    for (PcapCompression candidate : values()) {
+      if (candidate.isCompressed() && lower.contains(candidate.extension)) {
+        return candidate;
+      }
+    }
+    return NONE;
+  }
+
+}
@@ -27,8 +27,6 @@ import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
 import nl.sidn.dnslib.message.Message;
-import nl.sidn.dnslib.types.MessageType;
-import nl.sidn.dnslib.types.ResourceRecordType;
 import nl.sidn.pcap.PcapReader;
 import nl.sidn.pcap.SequencePayload;
 import nl.sidn.pcap.decoder.ICMPDecoder;
@@ -36,7 +34,9 @@ import nl.sidn.pcap.packet.*;
 import nl.sidn.pcap.support.MessageWrapper;
 import nl.sidn.pcap.support.PacketCombination;
 import nl.sidn.pcap.support.RequestKey;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
 import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -45,7 +45,6 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
@@ -75,35 +74,44 @@ public class PcapFileReader extends AbstractRunnable {
 
   private static final Logger logger = getLogger(PcapFileReader.class);
 
-  private static final int LOG_FREQUENCY = 100000;
   private static final String DECODER_STATE_FILE = "pcap-decoder-state";
 
   private final List<File> inputFiles;
   private final PcapReaderConfig config;
-  private final BlockingQueue<PacketCombination> sharedQueue;
+  private final CombinationQueue sharedQueue;
   private final ServerInfo serverInfo;
 
-  private Map<RequestKey, Integer> activeZoneTransfers = new HashMap<>();
-  private Map<RequestKey, MessageWrapper> _requestCache = new HashMap<>();
+  private final ShardedMatcher matcher;
 
-  private int timeOuts = 0;
   private int malformed = 0;
-  private int added = 0;
-
   private int multiCounter = 0;
-  private int queryCounter = 0;
-  private int responseCounter = 0;
-  // counter when no request query can be found for a response
-  private int noQueryFoundCounter = 0;
-  private int purgeCounter = 0;
-  private final PcapReader pcapReader;
-
-  public PcapFileReader(PcapReaderConfig config, ServerInfo serverInfo, List<File> inputFiles, BlockingQueue<PacketCombination> sharedQueue) {
+  private PcapReader pcapReader;
+
+  public PcapFileReader(PcapReaderConfig config, ServerInfo serverInfo, List<File> inputFiles, CombinationQueue sharedQueue) {
+    this(config, serverInfo, inputFiles, sharedQueue, new ShardedMatcher(matchingShards(config, serverInfo, sharedQueue)));
+  }
+
+  PcapFileReader(PcapReaderConfig config, ServerInfo serverInfo, List<File> inputFiles, CombinationQueue sharedQueue,
+                 ShardedMatcher matcher) {
     this.config = config;
     this.serverInfo = serverInfo;
     this.sharedQueue = sharedQueue;
     this.pcapReader = new PcapReader();
     this.inputFiles = inputFiles;
+    this.matcher = matcher;
+  }
+
+  private static MatchingShard[] matchingShards(PcapReaderConfig config, ServerInfo serverInfo,
+                                                CombinationQueue sharedQueue) {
+    // every shard gets its part of the memory budget
+    int shards = config.getMatcherThreads();
+    MatchingShard[] matchingShards = new MatchingShard[shards];
+    for (int i = 0; i < shards; i++) {
+      RequestMatcher requestMatcher = new RequestMatcher(config.getCacheTimeoutInMs(),
+          config.getRequestCacheMaxBytes() / shards, new File(config.getStateDir()));
+      matchingShards[i] = new MatchingShard(serverInfo, sharedQueue.newProducer(), requestMatcher);
+    }
+    return matchingShards;
   }
 
   @Override
@@ -116,48 +124,69 @@ public class PcapFileReader extends AbstractRunnable {
     int filesProcessed = 0;
 
     loadState();
+    matcher.start();
     String fileName = "";
     try {
-      for (File inputFile : inputFiles) {
-        fileName = inputFile.getAbsolutePath();
-        logger.info("Starting to read {} of {}", inputFile, serverInfo);
-        read(inputFile.getAbsolutePath());
-        purgeCache();
-        bytesProcessed += inputFile.length();
-        filesProcessed++;
-        logger.info("Processed {} of {} files:  {} of {}",
-            filesProcessed, filesTotal, FileSize.friendlySize(bytesProcessed), FileSize.friendlySize(bytesTotal));
+      if (config.getDecoderThreads() > 1 && inputFiles.size() > 1) {
+        readInParallel(bytesTotal);
+      } else {
+        for (File inputFile : inputFiles) {
+          fileName = inputFile.getAbsolutePath();
+          logger.info("Starting to read {} of {}", inputFile, serverInfo);
+          read(inputFile.getAbsolutePath());
+          logRequestCache();
+          bytesProcessed += inputFile.length();
+          filesProcessed++;
+          logger.info("Processed {} of {} files:  {} of {}",
+              filesProcessed, filesTotal, FileSize.friendlySize(bytesProcessed), FileSize.friendlySize(bytesTotal));
+        }
       }
+    } catch (ParallelPcapDecoder.DecodingException e) {
+      logger.error("Failed to read file [{}] {}:{}", e.getFile().getAbsolutePath(), e.getCause().getClass(),
+          e.getCause().getMessage());
     } catch (Exception e) {
       logger.error("Failed to read file [{}] {}:{}", fileName, e.getClass(), e.getMessage());
       // TODO: Add PacketCombination.FAILURE in case we get an exception
-//      addLastPacket(PacketCombination.FAILURE);
+    }
+    boolean matched = true;
+    try {
+      matcher.finish();
+    } catch (Exception e) {
+      logger.error("Failed to match queries and responses of {}", serverInfo, e);
+      matched = false;
+      // combinations are missing, make the convertor fail the job instead of writing the others
+      sharedQueue.newProducer().add(PacketCombination.FAILURE);
     }
 
-    // add marker packet indicating all packets are decoded
+    // signal that all packets are decoded
     // this will cause the controller thread to stop all processing.
-    addLastPacket(PacketCombination.NULL);
-    // save unmatched packet state to file,  the next pcap might have the missing responses
-    persistState();
+    sharedQueue.close();
+    logger.info("Closed the queue with {} combinations left", sharedQueue.size());
+    if (matched) {
+      // save unmatched packet state to file,  the next pcap might have the missing responses
+      persistState();
+    } else {
+      logger.warn("Not saving the decoder state of {}, the job will read the same files again", serverInfo);
+    }
     logMetrics();
-  }
-
-  private void addLastPacket(PacketCombination combination) {
-    boolean added = false;
-    int attempts = 0;
-    while (!added) {
-      try {
-        attempts++;
-        logger.info("Trying to add last combination to the queue. attempts={} size={}", attempts, sharedQueue.size());
-        added = sharedQueue.offer(combination, 30, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        logger.warn("Interrupted while adding last packet => retry until success since we need to signal the end to other threads");
-      }
+    try {
+      matcher.close();
+    } catch (IOException e) {
+      logger.warn("Could not delete spill file of request cache", e);
     }
-    logger.info("Could add last packet after {} attempts", attempts);
   }
 
   protected void logMetrics() {
+    int queryCounter = 0;
+    int responseCounter = 0;
+    int noQueryFoundCounter = 0;
+    int added = 0;
+    for (MatchingShard shard : matcher.getShards()) {
+      queryCounter += shard.getQueryCounter();
+      responseCounter += shard.getResponseCounter();
+      noQueryFoundCounter += shard.getNoQueryFoundCounter();
+      added += shard.getAdded();
+    }
     logger.info("---------------------------------------------------------------");
     logger.info("Finished reading {} PCAP files of {}", inputFiles.size(), serverInfo);
     logger.info("Found " + (queryCounter + responseCounter) + " packets");
@@ -165,10 +194,14 @@ public class PcapFileReader extends AbstractRunnable {
     logger.info("Found " + responseCounter + " response packets");
     logger.info("Found " + multiCounter + " messages from TCP streams with > 1 mesg");
     logger.info("Found " + noQueryFoundCounter + " response packets without request.");
-    logger.info("Timeouts: {}", timeOuts);
+    logger.info("Waited {} times for the writer: {} ms", sharedQueue.getProducerWaits(),
+        TimeUnit.NANOSECONDS.toMillis(sharedQueue.getProducerWaitNanos()));
     logger.info("Malformed: {}", malformed);
     logger.info("Combinations added : {}", added);
-    logger.info("request.cache : {}", _requestCache.size());
+    logger.info("request.cache : {}", matcher.size());
+    for (MatchingShard shard : matcher.getShards()) {
+      logger.info("Request matching: {}", shard.getRequestMatcher());
+    }
     logger.info("---------------------------------------------------------------");
   }
 
@@ -181,160 +214,110 @@ public class PcapFileReader extends AbstractRunnable {
     String fileName = extractPcapFile(file);
 
     long counter = 0;
-    for (Packet currentPacket : pcapReader) {
-      counter++;
-      if (counter % 100000 == 0) {
-        logger.info("Read " + counter + " packets. queue: {} combinations", sharedQueue.size());
-      }
-      if (currentPacket != null && currentPacket.getIpVersion() != 0) {
-
-        if ((currentPacket.getProtocol() == ICMPDecoder.PROTOCOL_ICMP_V4)
-            || (currentPacket.getProtocol() == ICMPDecoder.PROTOCOL_ICMP_V6)) {
-          // handle icmp
-          PacketCombination pc = new PacketCombination(currentPacket, null, serverInfo, false, fileName);
-          addToQueue(pc);
-        } else {
-          DNSPacket dnsPacket = (DNSPacket) currentPacket;
-          if (dnsPacket.getMessage() == null) {
-            // skip malformed packets
-            logger.error("Drop packet with no dns message");
-            malformed++;
-            continue;
-          }
-
-          if (dnsPacket.getMessageCount() > 1) {
-            multiCounter = multiCounter + dnsPacket.getMessageCount();
-          }
-
-          for (Message msg : dnsPacket.getMessages()) {
-            // get qname from request which is part of the cache lookup key
-            String qname = null;
-            if (msg != null && msg.getQuestions() != null && msg.getQuestions().size() > 0) {
-              qname = msg.getQuestions().get(0).getqName();
-            }
-            // put request into map until we find matching response, with a key based on: query id,
-            // qname, ip src, tcp/udp port
-            // add time for possible timeout eviction
-            if (msg != null && msg.getHeader().getQr() == MessageType.QUERY) {
-              queryCounter++;
-
-              // check for ixfr/axfr request
-              if (msg.getQuestions().size() > 0
-                  && (msg.getQuestions().get(0).getqType() == ResourceRecordType.AXFR
-                  || msg.getQuestions().get(0).getqType() == ResourceRecordType.IXFR)) {
-
-                logger.debug("Detected zonetransfer for: {}", dnsPacket.getFlow());
-                // keep track of ongoing zone transfer, we do not want to store all the response
-                // packets for an ixfr/axfr.
-                activeZoneTransfers.put(new RequestKey(msg.getHeader().getId(), null,
-                    dnsPacket.getSrc(), dnsPacket.getSrcPort()), 0);
-              }
-
-              RequestKey key = new RequestKey(msg.getHeader().getId(), qname, dnsPacket.getSrc(),
-                  dnsPacket.getSrcPort(), System.currentTimeMillis());
-              _requestCache.put(key, new MessageWrapper(msg, dnsPacket, fileName));
-            } else {
-              // try to find the request
-              responseCounter++;
-
-              // check for ixfr/axfr response, the query might be missing from the response
-              // so we cannot use the qname for matching.
-              assert msg != null;
-              RequestKey key = new RequestKey(msg.getHeader().getId(), null, dnsPacket.getDst(),
-                  dnsPacket.getDstPort());
-              if (activeZoneTransfers.containsKey(key)) {
-                // this response is part of an active zonetransfer.
-                // only let the first response continue, reuse the "time" field of the RequestKey to
-                // keep track of this.
-                Integer ztResponseCounter = activeZoneTransfers.get(key);
-                if (ztResponseCounter > 0) {
-                  // do not save this msg, drop it here, continue with next msg.
-                  continue;
-                } else {
-                  // 1st response msg let it continue, add 1 to the map the indicate 1st resp msg
-                  // has been processed
-                  activeZoneTransfers.put(key, 1);
-                }
-              }
-
-              key = new RequestKey(msg.getHeader().getId(), qname, dnsPacket.getDst(),
-                  dnsPacket.getDstPort());
-              MessageWrapper request = _requestCache.remove(key);
-              // check to see if the request msg exists, at the start of the pcap there may be
-              // missing queries
-
-              if (request != null && request.getPacket() != null && request.getMessage() != null) {
-                PacketCombination combination = new PacketCombination(request.getPacket(), request.getMessage(),
-                    serverInfo, dnsPacket, msg, false, fileName);
-                addToQueue(combination);
-              } else {
-                // no request found, this could happen if the query was in previous pcap
-                // and was not correctly decoded, or the request timed out before server
-                // could send a response.
-                logger.debug("Found no request for response");
-                noQueryFoundCounter++;
-                PacketCombination combination = new PacketCombination(null, null,
-                    serverInfo, dnsPacket, msg, false, fileName);
-                addToQueue(combination);
-              }
-            }
-          }
-        } // end of dns packet
+    try {
+      for (Packet currentPacket : pcapReader) {
+        counter++;
+        if (counter % 100000 == 0) {
+          logger.info("Read " + counter + " packets. queue: {} combinations", sharedQueue.size());
+        }
+        handlePacket(currentPacket, fileName);
       }
+      logger.info("Processing time: " + (System.currentTimeMillis() - readStart) + "ms");
+      logger.debug("Done with decoding, start cleanup");
+
+      // clear expired cache entries
+      pcapReader.clearCache(config.getTcpFlowCacheTimeoutInMs(), config.getFragmentedIpCacheTimeoutInMs());
+    } finally {
+      // also stops the inflater threads of a gzip'ed file that failed halfway
+      pcapReader.close();
     }
-    logger.info("Processing time: " + (System.currentTimeMillis() - readStart) + "ms");
-    logger.debug("Done with decoding, start cleanup");
-
-    // clear expired cache entries
-    pcapReader.clearCache(config.getTcpFlowCacheTimeoutInMs(), config.getFragmentedIpCacheTimeoutInMs());
-    pcapReader.close();
   }
 
-  protected void purgeCache() {
-    // remove expired entries from _requestCache
-    Iterator<RequestKey> iter = _requestCache.keySet().iterator();
-    long now = System.currentTimeMillis();
-
-    while (iter.hasNext()) {
-      RequestKey key = iter.next();
-      // add the expiration time to the key and see if this leads to a time which is after the current time.
-      if ((key.getTime() + config.getCacheTimeoutInMs()) <= now) {
-        // remove expired request;
-        MessageWrapper mw = _requestCache.get(key);
-        iter.remove();
-        if (mw.getMessage() != null && mw.getMessage().getHeader().getQr() == MessageType.QUERY) {
-          PacketCombination combo = new PacketCombination(mw.getPacket(), mw.getMessage(),
-              serverInfo, true, mw.getFilename());
-          addToQueue(combo);
-          purgeCounter++;
-        } else {
-          logger.debug("Cached response entry timed out, request might have been missed");
-          noQueryFoundCounter++;
+  /**
+   * Decode the input files with several threads at once and handle the packets of all files in capture time order.
+   *
+   * @param bytesTotal total size of the input files, used for logging progress
+   * @throws InterruptedException when interrupted while waiting for a decoder thread
+   */
+  protected void readInParallel(long bytesTotal) throws InterruptedException {
+    long readStart = System.currentTimeMillis();
+    ParallelPcapDecoder decoder = new ParallelPcapDecoder(inputFiles, config.getDecoderThreads(),
+        config.getDecoderPrefetch(), file -> openDataStream(file.getAbsolutePath()), config);
+    // the first file continues with the TCP flows and IP fragments of the previous run
+    decoder.setFirstReader(pcapReader);
+
+    decoder.decode(new ParallelPcapDecoder.Listener() {
+      private long counter = 0;
+      private long bytesProcessed = 0;
+      private int filesProcessed = 0;
+
+      @Override
+      public void onPacket(Packet packet, String fileName) {
+        counter++;
+        if (counter % 100000 == 0) {
+          logger.info("Read " + counter + " packets. queue: {} combinations", sharedQueue.size());
         }
+        handlePacket(packet, fileName);
       }
-    }
-    logger.info("Marked {} expired queries from request cache to output file with rcode no response", purgeCounter);
+
+      @Override
+      public void onFileDone(File file) {
+        logRequestCache();
+        bytesProcessed += file.length();
+        filesProcessed++;
+        logger.info("Processed {} of {} files:  {} of {}",
+            filesProcessed, inputFiles.size(), FileSize.friendlySize(bytesProcessed), FileSize.friendlySize(bytesTotal));
+      }
+    });
+    // the incomplete TCP flows and IP fragments of the last file are the ones to persist
+    pcapReader = decoder.getLastReader();
+    logger.info("Processing time: " + (System.currentTimeMillis() - readStart) + "ms");
   }
 
-  protected void addToQueue(PacketCombination combination) {
-    try {
-      if (sharedQueue.offer(combination, 15, TimeUnit.SECONDS)) {
-        added++;
-        if (added % LOG_FREQUENCY == 0) {
-          logger.debug("combinations added to the queue = {} queue.size = {}", added, sharedQueue.size());
-        }
+  /**
+   * Match a decoded packet with the cached requests and add the resulting combinations to the queue.
+   *
+   * @param currentPacket the decoded packet
+   * @param fileName      name of the PCAP file the packet was read from
+   */
+  protected void handlePacket(Packet currentPacket, String fileName) {
+    if (currentPacket != null && currentPacket.getIpVersion() != 0) {
+      long packetTime = packetTime(currentPacket);
+
+      if ((currentPacket.getProtocol() == ICMPDecoder.PROTOCOL_ICMP_V4)
+          || (currentPacket.getProtocol() == ICMPDecoder.PROTOCOL_ICMP_V6)) {
+        // handle icmp
+        matcher.handleIcmp(currentPacket, fileName, packetTime);
       } else {
-        timeOuts++;
-        if (timeOuts % 100 == 1) {
-          logger.error("timeout adding combination to queue. We had {} time outs so far.", timeOuts);
+        DNSPacket dnsPacket = (DNSPacket) currentPacket;
+        if (dnsPacket.getMessage() == null) {
+          // skip malformed packets
+          logger.error("Drop packet with no dns message");
+          malformed++;
+          return;
         }
-      }
-    } catch (InterruptedException e) {
-      logger.error("interrupted while adding combination to queue");
-      purgeCounter++;
+
+        if (dnsPacket.getMessageCount() > 1) {
+          multiCounter = multiCounter + dnsPacket.getMessageCount();
+        }
+
+        for (Message msg : dnsPacket.getMessages()) {
+          matcher.handleMessage(dnsPacket, msg, fileName, packetTime);
+        }
+      } // end of dns packet
     }
   }
 
+  /**
+   * @return capture time of the packet in ms
+   */
+  private static long packetTime(Packet packet) {
+    return packet.getTs() * 1000 + packet.getTsmicros() / 1000;
+  }
+
+  private void logRequestCache() {
+    logger.info("{} queries waiting for a response", matcher.size());
+  }
 
   private String extractPcapFile(String file) {
     try {
@@ -352,18 +335,32 @@ public class PcapFileReader extends AbstractRunnable {
       File f = FileUtils.getFile(file);
       logger.info("Load data for server: " + serverInfo);
 
-      FileInputStream fis = FileUtils.openInputStream(f);
-      int bufSize = config.getBufferSizeInBytes();
-      InputStream decompressor = getDecompressorStreamWrapper(fis, file, bufSize);
-
-      DataInputStream dis = new DataInputStream(decompressor);
-      pcapReader.init(dis);
+      pcapReader.init(openDataStream(f.getAbsolutePath()));
     } catch (IOException e) {
       logger.error("Error opening pcap file: " + file, e);
       throw new RuntimeException("Error opening pcap file: " + file);
     }
   }
 
+  /**
+   * Open given PCAP file, decompressing it when needed.
+   * Uncompressed files are memory mapped when {@link PcapReaderConfig#isMemoryMapped()} is set.
+   *
+   * @param file path of the PCAP file
+   * @return a stream that can be handed to a {@link PcapReader}
+   * @throws IOException when the file could not be opened
+   */
+  protected DataInputStream openDataStream(String file) throws IOException {
+    if (config.isMemoryMapped() && file.toLowerCase().endsWith(".pcap")) {
+      logger.debug("Memory mapping {}", file);
+      return new DataInputStream(new MappedFileInputStream(FileUtils.getFile(file)));
+    }
+    FileInputStream fis = FileUtils.openInputStream(FileUtils.getFile(file));
+    int bufSize = config.getBufferSizeInBytes();
+    InputStream decompressor = getDecompressorStreamWrapper(fis, file, bufSize);
+    return new DataInputStream(decompressor);
+  }
+
   /**
    * wraps the inputstream with a decompressor based on a filename ending
    *
@@ -375,18 +372,27 @@ public class PcapFileReader extends AbstractRunnable {
    */
   public InputStream getDecompressorStreamWrapper(InputStream in, String filename, int bufSize)
       throws IOException {
-    String filenameLower = filename.toLowerCase();
-    if (filenameLower.endsWith(".xz")) {
-      return new XZCompressorInputStream(in);
-    }
-    if (filenameLower.endsWith(".pcap")) {
-      return in;
+    PcapCompression compression = PcapCompression.fromFileName(filename);
+    if (compression == null) {
+      throw new IOException("Could not open file with unknown extension: " + filename.toLowerCase());
     }
-    if (filenameLower.endsWith(".gz")) {
-      return new GZIPInputStream(in, bufSize);
+    switch (compression) {
+      case NONE:
+        return in;
+      case GZIP:
+        if (config.getInflateThreads() > 0) {
+          return new PipelinedGzipInputStream(in, bufSize, PcapReaderConfig.INFLATE_BUFFERS, config.getInflateThreads());
+        }
+        return new GZIPInputStream(in, bufSize);
+      case XZ:
+        return new XZCompressorInputStream(in);
+      case ZSTD:
+        return new ZstdCompressorInputStream(new BufferedInputStream(in, bufSize));
+      case LZ4:
+        return new FramedLZ4CompressorInputStream(new BufferedInputStream(in, bufSize), true);
+      default:
+        throw new IOException("Unsupported compression: " + compression);
     }
-
-    throw new IOException("Could not open file with unknown extension: " + filenameLower);
   }
 
   public String createStateFileName() {
@@ -430,8 +436,8 @@ public class PcapFileReader extends AbstractRunnable {
 
       kryo.writeObject(output, outMap);
 
-      // persist request cache
-      kryo.writeObject(output, _requestCache);
+      // persist request cache, as a map to stay compatible with existing state files
+      kryo.writeObject(output, matcher.toMap());
 
       // persist running statistics
       // MetricManager.getInstance().getMetricPersistenceManager().persist(kryo, output);
@@ -441,7 +447,7 @@ public class PcapFileReader extends AbstractRunnable {
       logger.info("Data is persisted to " + file);
       logger.info("Persist " + pmap.size() + " TCP flows");
       logger.info("Persist " + pcapReader.getDatagrams().size() + " Datagrams");
-      logger.info("Persist request cache " + _requestCache.size() + " DNS requests");
+      logger.info("Persist request cache " + matcher.size() + " DNS requests");
       logger.info("----------------------------------------------------");
     } catch (Exception e) {
       logger.error("Error saving decoder state to file: " + file, e);
@@ -486,15 +492,15 @@ public class PcapFileReader extends AbstractRunnable {
       pcapReader.setDatagrams(datagrams);
 
       // read in previous request cache
-      _requestCache = kryo.readObject(input, HashMap.class);
-      logger.info("requestCache loaded: {}", _requestCache.size());
+      HashMap<RequestKey, MessageWrapper> requests = kryo.readObject(input, HashMap.class);
+      matcher.load(requests);
+      logger.info("requestCache loaded: {}", matcher.size());
 
       long oldest = Long.MAX_VALUE;
       long newest = Long.MIN_VALUE;
-
-      for (RequestKey requestKey : _requestCache.keySet()) {
-        oldest = Math.min(requestKey.getTime(), oldest);
-        newest = Math.max(requestKey.getTime(), newest);
+      for (RequestKey key : requests.keySet()) {
+        oldest = Math.min(oldest, key.getTime());
+        newest = Math.max(newest, key.getTime());
       }
       logger.info("oldest in request cache: {} = {}", oldest, new DateTime(oldest));
       logger.info("newest in request cache: {} = {}", newest, new DateTime(newest));
@@ -506,7 +512,7 @@ public class PcapFileReader extends AbstractRunnable {
       logger.info("------------- Loader state stats ------------------");
       logger.info("Loaded TCP state " + pcapReader.getFlows().size() + " TCP flows");
       logger.info("Loaded Datagram state " + pcapReader.getDatagrams().size() + " Datagrams");
-      logger.info("Loaded Request cache " + _requestCache.size() + " DNS requests");
+      logger.info("Loaded Request cache " + matcher.size() + " DNS requests");
       logger.info("----------------------------------------------------");
     } catch (Exception e) {
       logger.error("Error opening state file, continue without loading state: " + file, e);
@@ -521,13 +527,14 @@ public class PcapFileReader extends AbstractRunnable {
     long newestRequest = Long.MIN_VALUE;
 
     int printed = 0;
-    logger.info("======== requestCache = {}", _requestCache.size());
+    logger.info("======== requestCache = {}", matcher.size());
 
-    for (RequestKey requestKey : _requestCache.keySet()) {
+    Map<RequestKey, MessageWrapper> requests = matcher.toMap();
+    for (RequestKey requestKey : requests.keySet()) {
       oldest = Math.min(requestKey.getTime(), oldest);
       newest = Math.max(requestKey.getTime(), newest);
 
-      MessageWrapper msg = _requestCache.get(requestKey);
+      MessageWrapper msg = requests.get(requestKey);
       long ts = msg.getPacket().getTs() * 1000;
       oldestRequest = Math.min(ts, oldestRequest);
       newestRequest = Math.max(ts, newestRequest);
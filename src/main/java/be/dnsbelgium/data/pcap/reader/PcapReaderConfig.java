@@ -48,9 +48,40 @@ public class PcapReaderConfig {
   private final int queueSize;
   private int bufferSizeInBytes;
 
+  // number of PCAP files that are decoded at the same time, only helps when the files overlap in time
+  private final int decoderThreads;
+
+  // max number of packets a decoder thread can decode ahead of the query/response matching,
+  // a file that starts after the file being merged is not decoded further than this
+  private final int decoderPrefetch;
+
+  // read uncompressed PCAP files through a memory mapping instead of a FileInputStream
+  private final boolean memoryMapped;
+
+  // number of threads inflating gzip'ed PCAP files (0 = inflate on the decoding thread)
+  private final int inflateThreads;
+
+  // budget for the estimated heap used by queries waiting for their response, older queries are spilled to disk
+  // (0 = no budget)
+  private final long requestCacheMaxBytes;
+
+  // number of threads matching queries and responses, each with its own part of the request cache
+  private final int matcherThreads;
+
+  // number of threads writing parquet files, each with its own writer and files
+  private final int writerThreads;
+
   public final static int DEFAULT_TIME_OUT = 5000;
   public final static int DEFAULT_QUEUE_SIZE = 100_000;
   public final static int DEFAULT_PCAP_READER_BUFFER_SIZE = 65536;
+  public final static int DEFAULT_DECODER_THREADS = 1;
+  public final static int DEFAULT_DECODER_PREFETCH = 262_144;
+  public final static boolean DEFAULT_MEMORY_MAPPED = false;
+  public final static int DEFAULT_INFLATE_THREADS = 1;
+  public final static int INFLATE_BUFFERS = 16;
+  public final static long DEFAULT_REQUEST_CACHE_MAX_BYTES = 1024L * 1024 * 1024;
+  public final static int DEFAULT_MATCHER_THREADS = 1;
+  public final static int DEFAULT_WRITER_THREADS = 1;
   public final static String DEFAULT_DECODER_DIR = "/data/pcap-to-athena/pcap-decoder-state";
 
   private static final Logger logger = getLogger(PcapReaderConfig.class);
@@ -62,7 +93,14 @@ public class PcapReaderConfig {
       @Value("${pcap.reader.fragemented.ip.cache.timeout.ms: #{pcapReaderConfig.DEFAULT_TIME_OUT}}") int fragmentedIpCacheTimeoutInMs,
       @Value("${pcap.reader.bufferSize.bytes: #{pcapReaderConfig.DEFAULT_PCAP_READER_BUFFER_SIZE}}") int bufferSizeInBytes,
       @Value("${pcap.decoder.state.dir: #{pcapReaderConfig.DEFAULT_DECODER_DIR}}") String decoderStateDir,
-      @Value("${pcap.reader.queue.size: #{pcapReaderConfig.DEFAULT_QUEUE_SIZE}}") int queueSize
+      @Value("${pcap.reader.queue.size: #{pcapReaderConfig.DEFAULT_QUEUE_SIZE}}") int queueSize,
+      @Value("${pcap.reader.decoder.threads: #{pcapReaderConfig.DEFAULT_DECODER_THREADS}}") int decoderThreads,
+      @Value("${pcap.reader.decoder.prefetch: #{pcapReaderConfig.DEFAULT_DECODER_PREFETCH}}") int decoderPrefetch,
+      @Value("${pcap.reader.mmap: #{pcapReaderConfig.DEFAULT_MEMORY_MAPPED}}") boolean memoryMapped,
+      @Value("${pcap.reader.inflate.threads: #{pcapReaderConfig.DEFAULT_INFLATE_THREADS}}") int inflateThreads,
+      @Value("${pcap.reader.cache.max.bytes: #{pcapReaderConfig.DEFAULT_REQUEST_CACHE_MAX_BYTES}}") long requestCacheMaxBytes,
+      @Value("${pcap.reader.matcher.threads: #{pcapReaderConfig.DEFAULT_MATCHER_THREADS}}") int matcherThreads,
+      @Value("${pcap.writer.threads: #{pcapReaderConfig.DEFAULT_WRITER_THREADS}}") int writerThreads
   ) throws IOException {
     this.cacheTimeoutInMs = cacheTimeoutInMs;
     this.tcpFlowCacheTimeoutInMs = tcpFlowCacheTimeoutInMs;
@@ -70,6 +108,13 @@ public class PcapReaderConfig {
     this.stateDir = decoderStateDir;
     this.bufferSizeInBytes = bufferSizeInBytes;
     this.queueSize = queueSize;
+    this.decoderThreads = decoderThreads;
+    this.decoderPrefetch = decoderPrefetch;
+    this.memoryMapped = memoryMapped;
+    this.inflateThreads = inflateThreads;
+    this.requestCacheMaxBytes = requestCacheMaxBytes;
+    this.matcherThreads = matcherThreads;
+    this.writerThreads = writerThreads;
 
     // Check config
     Path path = Paths.get(this.stateDir);
@@ -83,6 +128,24 @@ public class PcapReaderConfig {
     }
   }
 
+  public PcapReaderConfig(int cacheTimeoutInMs, int tcpFlowCacheTimeoutInMs, int fragmentedIpCacheTimeoutInMs,
+                          int bufferSizeInBytes, String decoderStateDir, int queueSize) throws IOException {
+    this(cacheTimeoutInMs, tcpFlowCacheTimeoutInMs, fragmentedIpCacheTimeoutInMs, bufferSizeInBytes, decoderStateDir,
+        queueSize, DEFAULT_DECODER_THREADS, DEFAULT_DECODER_PREFETCH, DEFAULT_MEMORY_MAPPED,
+        DEFAULT_INFLATE_THREADS, DEFAULT_REQUEST_CACHE_MAX_BYTES, DEFAULT_MATCHER_THREADS, DEFAULT_WRITER_THREADS);
+  }
+
+  /**
+   * @param stateDir another folder for the decoder state
+   * @return a copy of this config that keeps its decoder state in the given folder
+   * @throws IOException when the folder does not exist and cannot be created
+   */
+  public PcapReaderConfig withStateDir(String stateDir) throws IOException {
+    return new PcapReaderConfig(cacheTimeoutInMs, tcpFlowCacheTimeoutInMs, fragmentedIpCacheTimeoutInMs,
+        bufferSizeInBytes, stateDir, queueSize, decoderThreads, decoderPrefetch, memoryMapped, inflateThreads,
+        requestCacheMaxBytes, matcherThreads, writerThreads);
+  }
+
   public int getCacheTimeoutInMs() {
     return cacheTimeoutInMs;
   }
@@ -112,6 +175,34 @@ public class PcapReaderConfig {
     return queueSize;
   }
 
+  public int getDecoderThreads() {
+    return Math.max(1, decoderThreads);
+  }
+
+  public int getDecoderPrefetch() {
+    return decoderPrefetch;
+  }
+
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+
+  public int getInflateThreads() {
+    return Math.max(0, inflateThreads);
+  }
+
+  public long getRequestCacheMaxBytes() {
+    return Math.max(0, requestCacheMaxBytes);
+  }
+
+  public int getMatcherThreads() {
+    return Math.max(1, matcherThreads);
+  }
+
+  public int getWriterThreads() {
+    return Math.max(1, writerThreads);
+  }
+
   @PostConstruct
   public void logConfig() {
     logger.info("====== PcapReaderConfig ==============");
@@ -121,5 +212,12 @@ public class PcapReaderConfig {
     logger.info(" bufferSizeInBytes            = {}", bufferSizeInBytes);
     logger.info(" stateDir                     = {}", stateDir);
     logger.info(" queueSize                    = {}", queueSize);
+    logger.info(" decoderThreads               = {}", decoderThreads);
+    logger.info(" decoderPrefetch              = {}", decoderPrefetch);
+    logger.info(" memoryMapped                 = {}", memoryMapped);
+    logger.info(" inflateThreads               = {}", inflateThreads);
+    logger.info(" requestCacheMaxBytes         = {}", requestCacheMaxBytes);
+    logger.info(" matcherThreads               = {}", matcherThreads);
+    logger.info(" writerThreads                = {}", writerThreads);
   }
 }
@@ -0,0 +1,315 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.utils.FileSize;
+import nl.sidn.pcap.support.NamedThreadFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Inflates a gzip stream on separate threads, so that decompression and packet decoding can run at the same time.
+ * <p>
+ * The inflated data is handed to the reading thread in a ring of reusable buffers: the inflater fills free buffers,
+ * the reader gives them back once consumed. When the file is BGZF (gzip members that announce their own size in a
+ * 'BC' extra field) the members are inflated in parallel by <code>threads</code> inflaters.
+ * Other gzip files (including multi-member files without the size field) are inflated by a single thread,
+ * since the member boundaries are only known after inflating.
+ * <p>
+ * On close the throughput of the stage is logged, together with the time each side spent waiting for the other.
+ */
+public class PipelinedGzipInputStream extends InputStream {
+
+  private static final Logger logger = getLogger(PipelinedGzipInputStream.class);
+
+  // a BGZF member never inflates to more than 64KB
+  private static final int MIN_CHUNK_SIZE = 65536;
+  private static final int BGZF_HEADER_SIZE = 18;
+  private static final Chunk END = new Chunk(0);
+
+  private final CountingInputStream compressed;
+  private final int chunkSize;
+  private final BlockingQueue<Chunk> free;
+  private final BlockingQueue<Future<Chunk>> filled;
+  private final ExecutorService producer;
+  private final ExecutorService inflaters;
+  private final boolean bgzf;
+
+  private Chunk current;
+  private int position;
+  private boolean closed = false;
+
+  // statistics
+  private final long started = System.nanoTime();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong inflaterWaitNanos = new AtomicLong();
+  private long readerWaitNanos = 0;
+
+  /**
+   * @param in         the compressed stream
+   * @param bufferSize size of the reusable buffers
+   * @param buffers    number of reusable buffers, ie. how far the inflater can run ahead of the reader
+   * @param threads    number of threads inflating BGZF members
+   * @throws IOException when the gzip header could not be read
+   */
+  public PipelinedGzipInputStream(InputStream in, int bufferSize, int buffers, int threads) throws IOException {
+    this.chunkSize = Math.max(bufferSize, MIN_CHUNK_SIZE);
+    int count = Math.max(2, buffers);
+    BufferedInputStream buffered = new BufferedInputStream(in, chunkSize);
+    this.compressed = new CountingInputStream(buffered);
+    this.free = new ArrayBlockingQueue<>(count);
+    // one more slot for END, so that putting it can never block
+    this.filled = new ArrayBlockingQueue<>(count + 1);
+    for (int i = 0; i < count; i++) {
+      free.add(new Chunk(chunkSize));
+    }
+    this.bgzf = threads > 1 && isBgzf(peek(buffered));
+    // daemon threads: a stream that is never closed blocks them on a full queue, they must not keep the JVM alive
+    this.producer = Executors.newSingleThreadExecutor(new NamedThreadFactory("Inflater-Reader-Thread", true));
+    if (bgzf) {
+      logger.debug("BGZF input detected, inflating with {} threads", threads);
+      this.inflaters = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Inflater-Thread", true));
+      producer.submit(this::splitMembers);
+    } else {
+      this.inflaters = null;
+      producer.submit(this::inflateSequentially);
+    }
+    // let the thread end by itself once the input is consumed
+    producer.shutdown();
+  }
+
+  private static byte[] peek(BufferedInputStream in) throws IOException {
+    byte[] header = new byte[BGZF_HEADER_SIZE];
+    in.mark(BGZF_HEADER_SIZE);
+    int read = IOUtils.read(in, header);
+    in.reset();
+    return read == BGZF_HEADER_SIZE ? header : new byte[0];
+  }
+
+  /**
+   * @param header the first 18 bytes of a gzip member
+   * @return true when the member has a BGZF 'BC' extra field holding the size of the member
+   */
+  public static boolean isBgzf(byte[] header) {
+    return header.length >= BGZF_HEADER_SIZE
+        && (header[0] & 0xFF) == 0x1f && (header[1] & 0xFF) == 0x8b && header[2] == 8
+        && (header[3] & 4) != 0
+        && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+  }
+
+  private Chunk takeFree() throws InterruptedException {
+    long start = System.nanoTime();
+    Chunk chunk = free.take();
+    inflaterWaitNanos.addAndGet(System.nanoTime() - start);
+    chunk.length = 0;
+    return chunk;
+  }
+
+  private void inflateSequentially() {
+    try (InputStream gzip = new GZIPInputStream(compressed, chunkSize)) {
+      while (true) {
+        Chunk chunk = takeFree();
+        chunk.length = IOUtils.read(gzip, chunk.data);
+        bytesOut.addAndGet(chunk.length);
+        if (chunk.length == 0) {
+          break;
+        }
+        filled.put(CompletableFuture.completedFuture(chunk));
+      }
+      filled.put(CompletableFuture.completedFuture(END));
+    } catch (InterruptedException e) {
+      logger.debug("Inflater interrupted");
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  private void splitMembers() {
+    try {
+      byte[] header = new byte[BGZF_HEADER_SIZE];
+      while (true) {
+        int read = IOUtils.read(compressed, header);
+        if (read == 0) {
+          break;
+        }
+        if (read < BGZF_HEADER_SIZE || !isBgzf(header)) {
+          throw new IOException("Not a BGZF member at offset " + (compressed.getByteCount() - read));
+        }
+        int extraLength = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+        int blockSize = ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+        // skip other extra subfields, the 'BC' field is 6 bytes
+        IOUtils.skipFully(compressed, extraLength - 6);
+        byte[] member = new byte[blockSize - 12 - extraLength];
+        IOUtils.readFully(compressed, member);
+        // take the buffer in member order, so the oldest member can always make progress
+        Chunk chunk = takeFree();
+        filled.put(inflaters.submit(() -> inflateMember(member, chunk)));
+      }
+      filled.put(CompletableFuture.completedFuture(END));
+    } catch (InterruptedException e) {
+      logger.debug("Inflater interrupted");
+    } catch (Exception e) {
+      fail(e);
+    } finally {
+      inflaters.shutdown();
+    }
+  }
+
+  private Chunk inflateMember(byte[] member, Chunk chunk) throws DataFormatException, IOException {
+    // the deflated data is followed by CRC32 and ISIZE
+    int dataLength = member.length - 8;
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(member, 0, dataLength);
+      chunk.length = inflater.inflate(chunk.data);
+      if (!inflater.finished()) {
+        throw new IOException("BGZF member inflates to more than " + chunk.data.length + " bytes");
+      }
+    } finally {
+      inflater.end();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(chunk.data, 0, chunk.length);
+    if ((int) crc.getValue() != readInt(member, dataLength) || chunk.length != readInt(member, dataLength + 4)) {
+      throw new IOException("Corrupt BGZF member: CRC or size mismatch");
+    }
+    bytesOut.addAndGet(chunk.length);
+    return chunk;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+        | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+  }
+
+  private void fail(Exception e) {
+    logger.error("Failed to inflate: {}:{}", e.getClass(), e.getMessage());
+    CompletableFuture<Chunk> failure = new CompletableFuture<>();
+    failure.completeExceptionally(e);
+    filled.offer(failure);
+  }
+
+  /**
+   * @return false at the end of the stream
+   */
+  private boolean ensureAvailable() throws IOException {
+    while (current == null || position >= current.length) {
+      if (current == END) {
+        return false;
+      }
+      if (current != null) {
+        free.offer(current);
+      }
+      long start = System.nanoTime();
+      try {
+        current = filled.take().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for inflater", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Inflater failed", e.getCause());
+      } finally {
+        readerWaitNanos += System.nanoTime() - start;
+      }
+      position = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureAvailable()) {
+      return -1;
+    }
+    return current.data[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureAvailable()) {
+      return -1;
+    }
+    int count = Math.min(len, current.length - position);
+    System.arraycopy(current.data, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return current == null ? 0 : current.length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    producer.shutdownNow();
+    if (inflaters != null) {
+      inflaters.shutdownNow();
+    }
+    compressed.close();
+    logStatistics();
+  }
+
+  private void logStatistics() {
+    long elapsedMs = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+    long in = compressed.getByteCount();
+    long out = bytesOut.get();
+    logger.info("Inflated {} to {} in {}ms ({}/s), mode={}, inflater waited {}ms for decoder, decoder waited {}ms for inflater",
+        FileSize.friendlySize(in), FileSize.friendlySize(out), elapsedMs, FileSize.friendlySize(out * 1000 / elapsedMs),
+        bgzf ? "bgzf" : "sequential", inflaterWaitNanos.get() / 1_000_000, readerWaitNanos / 1_000_000);
+  }
+
+  private static class Chunk {
+
+    private final byte[] data;
+    private int length;
+
+    private Chunk(int size) {
+      this.data = new byte[size];
+    }
+  }
+
+}
@@ -0,0 +1,532 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.RequestKey;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Cache of DNS queries waiting for their response, keyed on query id, qname, client address and client port.
+ * <p>
+ * Replaces a <code>HashMap&lt;RequestKey, MessageWrapper&gt;</code> without creating objects per entry:
+ * the key is packed in primitives (the address as two longs, id, port and the hash of the qname in a third long)
+ * and stored in an open-addressing table with linear probing, so a lookup compares keys within one cache line.
+ * The qname itself is only compared when everything else matches. Removed keys are cleared with backward shift
+ * deletion, so the table never fills up with tombstones.
+ * <p>
+ * The cached queries live in parallel arrays, at an index that does not change as long as the query is cached.
+ * A handle combines this index with a generation that changes on every put, so a handle of a query that has been
+ * matched or replaced since it was handed out can be recognized.
+ * <p>
+ * The cache keeps an estimate of the heap it uses, so its owner can enforce a memory budget.
+ * <p>
+ * Not thread-safe.
+ */
+public class RequestCache {
+
+  private static final int FREE = -1;
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  // longs per slot of the table: address high, address low, meta, hash << 32 | (entry + 1)
+  private static final int SLOT = 4;
+  // references per entry: qname, packet, message, file name
+  private static final int REFS = 4;
+
+  // estimated heap per cached query for the packet, message, header and question objects and the address strings
+  private static final int QUERY_OVERHEAD_BYTES = 1024;
+  // bytes per entry in the arrays of the cache: time, hash, generation, next free, size and 4 references
+  private static final int ENTRY_ARRAY_BYTES = 8 + 4 * 4 + REFS * 4;
+
+  private long[] table;
+  // number of slots - 1
+  private int mask;
+
+  // the entries
+  private Object[] refs;
+  private long[] times;
+  private int[] hashes;
+  private int[] generations;
+  private int[] sizes;
+  // sum of sizes of the cached queries
+  private long queryBytes = 0;
+
+  // indexes of removed entries that can be reused, linked through nextFree
+  private int[] nextFree;
+  private int freeHead = FREE;
+  // number of entry indexes that have ever been used
+  private int used = 0;
+  private int size = 0;
+
+  public RequestCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public RequestCache(int expectedSize) {
+    int slots = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) * 2;
+    table = new long[slots * SLOT];
+    mask = slots - 1;
+    allocateEntries(slots / 2);
+  }
+
+  private void allocateEntries(int entries) {
+    refs = Arrays.copyOf(refs == null ? new Object[0] : refs, entries * REFS);
+    times = Arrays.copyOf(times == null ? new long[0] : times, entries);
+    hashes = Arrays.copyOf(hashes == null ? new int[0] : hashes, entries);
+    generations = Arrays.copyOf(generations == null ? new int[0] : generations, entries);
+    sizes = Arrays.copyOf(sizes == null ? new int[0] : sizes, entries);
+    nextFree = Arrays.copyOf(nextFree == null ? new int[0] : nextFree, entries);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return estimated number of bytes on the heap used by the cache and the cached queries
+   */
+  public long estimatedBytes() {
+    return queryBytes + table.length * 8L + (long) times.length * ENTRY_ARRAY_BYTES;
+  }
+
+  /**
+   * @return estimated number of bytes on the heap used by the cached queries, without the arrays of the cache,
+   * which do not shrink when the queries are removed
+   */
+  public long getQueryBytes() {
+    return queryBytes;
+  }
+
+  /**
+   * Rough estimate of the heap used by a cached query. The decoded resource records take about twice the size
+   * of the packet on the wire.
+   */
+  static int estimateBytes(String qname, Packet packet) {
+    return QUERY_OVERHEAD_BYTES + (qname == null ? 0 : 2 * qname.length()) + 2 * packet.getTotalLength();
+  }
+
+  /**
+   * Add a query to the cache, replacing a cached query with the same key.
+   *
+   * @return the handle of the query, stays valid until the query is removed or replaced
+   */
+  public long put(int id, String qname, String address, int port, long time, Packet packet, Message message, String fileName) {
+    return put(id, qname, IpAddress.parse(address), port, time, packet, message, fileName);
+  }
+
+  /**
+   * Add a query to the cache, replacing a cached query with the same key.
+   *
+   * @return the handle of the query, stays valid until the query is removed or replaced
+   */
+  public long put(int id, String qname, IpAddress address, int port, long time, Packet packet, Message message,
+                  String fileName) {
+    long high = address.getHigh();
+    long low = address.getLow();
+    long keyMeta = meta(id, qname, port);
+    int hash = hash(high, low, keyMeta);
+    int slot = find(high, low, keyMeta, qname, hash);
+    int entry;
+    if (slot >= 0) {
+      entry = entryAt(slot);
+    } else {
+      if ((size + 1) * 2 > mask + 1) {
+        resize();
+        slot = find(high, low, keyMeta, qname, hash);
+      }
+      entry = allocate();
+      int base = ~slot * SLOT;
+      table[base] = high;
+      table[base + 1] = low;
+      table[base + 2] = keyMeta;
+      table[base + 3] = (long) hash << 32 | (entry + 1);
+      hashes[entry] = hash;
+      refs[entry * REFS] = qname;
+      size++;
+    }
+    times[entry] = time;
+    queryBytes -= sizes[entry];
+    sizes[entry] = estimateBytes(qname, packet);
+    queryBytes += sizes[entry];
+    int ref = entry * REFS;
+    refs[ref + 1] = packet;
+    refs[ref + 2] = message;
+    refs[ref + 3] = fileName;
+    generations[entry]++;
+    return handle(entry);
+  }
+
+  /**
+   * Remove the query with given key.
+   *
+   * @return the removed query, null if the cache holds no query with this key
+   */
+  public MessageWrapper remove(int id, String qname, String address, int port) {
+    return remove(id, qname, IpAddress.parse(address), port);
+  }
+
+  /**
+   * Remove the query with given key.
+   *
+   * @return the removed query, null if the cache holds no query with this key
+   */
+  public MessageWrapper remove(int id, String qname, IpAddress address, int port) {
+    long high = address.getHigh();
+    long low = address.getLow();
+    long keyMeta = meta(id, qname, port);
+    int slot = find(high, low, keyMeta, qname, hash(high, low, keyMeta));
+    if (slot < 0) {
+      return null;
+    }
+    int entry = entryAt(slot);
+    MessageWrapper wrapper = wrap(entry);
+    deleteSlot(slot);
+    release(entry);
+    return wrapper;
+  }
+
+  /**
+   * Remove the query with given handle, if the handle is still valid.
+   *
+   * @param handle as returned by {@link #put}
+   * @return the removed query, null if the query has been removed or replaced already
+   */
+  public MessageWrapper remove(long handle) {
+    if (!isValid(handle)) {
+      return null;
+    }
+    int entry = (int) handle;
+    MessageWrapper wrapper = wrap(entry);
+    removeEntry(entry);
+    return wrapper;
+  }
+
+  public boolean isValid(long handle) {
+    int entry = (int) handle;
+    return entry >= 0 && entry < used && isUsed(entry) && generations[entry] == (int) (handle >>> 32);
+  }
+
+  /**
+   * @param handle a valid handle
+   * @return time of the query with given handle
+   */
+  public long getTime(long handle) {
+    return times[(int) handle];
+  }
+
+  /**
+   * @param handle a valid handle
+   * @return qname of the query with given handle
+   */
+  public String getQname(long handle) {
+    return (String) refs[(int) handle * REFS];
+  }
+
+  /**
+   * Pass the handle of every cached query to <code>consumer</code>.
+   */
+  public void forEachHandle(LongConsumer consumer) {
+    for (int entry = 0; entry < used; entry++) {
+      if (isUsed(entry)) {
+        consumer.accept(handle(entry));
+      }
+    }
+  }
+
+  public boolean contains(int id, String qname, String address, int port) {
+    return contains(id, qname, IpAddress.parse(address), port);
+  }
+
+  public boolean contains(int id, String qname, IpAddress address, int port) {
+    long high = address.getHigh();
+    long low = address.getLow();
+    long keyMeta = meta(id, qname, port);
+    return find(high, low, keyMeta, qname, hash(high, low, keyMeta)) >= 0;
+  }
+
+  /**
+   * Remove all queries that were added at or before <code>cutoff</code>.
+   *
+   * @param cutoff  time of the newest query to remove
+   * @param expired receives every removed query
+   * @return number of removed queries
+   */
+  public int removeOlderThan(long cutoff, Consumer<MessageWrapper> expired) {
+    int removed = 0;
+    for (int entry = 0; entry < used; entry++) {
+      if (isUsed(entry) && times[entry] <= cutoff) {
+        expired.accept(wrap(entry));
+        removeEntry(entry);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return time of the oldest query in the cache, Long.MAX_VALUE when empty
+   */
+  public long oldestTime() {
+    long oldest = Long.MAX_VALUE;
+    for (int entry = 0; entry < used; entry++) {
+      if (isUsed(entry)) {
+        oldest = Math.min(oldest, times[entry]);
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * @return time of the newest query in the cache, Long.MIN_VALUE when empty
+   */
+  public long newestTime() {
+    long newest = Long.MIN_VALUE;
+    for (int entry = 0; entry < used; entry++) {
+      if (isUsed(entry)) {
+        newest = Math.max(newest, times[entry]);
+      }
+    }
+    return newest;
+  }
+
+  /**
+   * Copy the cache into a map, the format used to persist the decoder state.
+   *
+   * @return a new map with the same content as this cache
+   */
+  public Map<RequestKey, MessageWrapper> toMap() {
+    Map<RequestKey, MessageWrapper> map = new HashMap<>(size * 2);
+    for (int slot = 0; slot <= mask; slot++) {
+      int base = slot * SLOT;
+      if (table[base + 3] != 0) {
+        int entry = entryAt(slot);
+        long m = table[base + 2];
+        RequestKey key = new RequestKey((int) (m >>> 16) & 0xFFFF, (String) refs[entry * REFS],
+            IpAddress.of(table[base], table[base + 1]).toString(), (int) m & 0xFFFF, times[entry]);
+        map.put(key, wrap(entry));
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Add all queries of a map in the format used to persist the decoder state.
+   * The key of every query is derived from its packet and message.
+   *
+   * @param map the queries to add
+   */
+  public void putAll(Map<RequestKey, MessageWrapper> map) {
+    for (Map.Entry<RequestKey, MessageWrapper> e : map.entrySet()) {
+      MessageWrapper wrapper = e.getValue();
+      Packet packet = wrapper.getPacket();
+      Message message = wrapper.getMessage();
+      if (packet == null || message == null) {
+        continue;
+      }
+      String qname = null;
+      if (message.getQuestions() != null && message.getQuestions().size() > 0) {
+        qname = message.getQuestions().get(0).getqName();
+      }
+      put(message.getHeader().getId(), qname, packet.getSrc(), packet.getSrcPort(), e.getKey().getTime(),
+          packet, message, wrapper.getFilename());
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(table, 0);
+    Arrays.fill(refs, 0, used * REFS, null);
+    Arrays.fill(sizes, 0, used, 0);
+    queryBytes = 0;
+    used = 0;
+    size = 0;
+    freeHead = FREE;
+  }
+
+  // entry bookkeeping
+
+  private boolean isUsed(int entry) {
+    return refs[entry * REFS + 1] != null;
+  }
+
+  private long handle(int entry) {
+    return (long) generations[entry] << 32 | entry;
+  }
+
+  private MessageWrapper wrap(int entry) {
+    int ref = entry * REFS;
+    return new MessageWrapper((Message) refs[ref + 2], (Packet) refs[ref + 1], (String) refs[ref + 3]);
+  }
+
+  private int allocate() {
+    if (freeHead != FREE) {
+      int entry = freeHead;
+      freeHead = nextFree[entry];
+      return entry;
+    }
+    if (used == times.length) {
+      allocateEntries(times.length * 2);
+    }
+    return used++;
+  }
+
+  private void release(int entry) {
+    Arrays.fill(refs, entry * REFS, entry * REFS + REFS, null);
+    queryBytes -= sizes[entry];
+    sizes[entry] = 0;
+    nextFree[entry] = freeHead;
+    freeHead = entry;
+    size--;
+  }
+
+  private void removeEntry(int entry) {
+    int slot = hashes[entry] & mask;
+    while (entryAt(slot) != entry) {
+      slot = (slot + 1) & mask;
+    }
+    deleteSlot(slot);
+    release(entry);
+  }
+
+  // keys
+
+  /**
+   * Get the key of a cached query as the address high and low longs and the id, port and qname hash in a third long.
+   * Keys are equal when these longs and the qnames are equal.
+   *
+   * @param handle a valid handle
+   * @param key    receives the key, at least 3 longs
+   */
+  void keyOf(long handle, long[] key) {
+    int entry = (int) handle;
+    int slot = hashes[entry] & mask;
+    while (entryAt(slot) != entry) {
+      slot = (slot + 1) & mask;
+    }
+    System.arraycopy(table, slot * SLOT, key, 0, 3);
+  }
+
+  /**
+   * Get the key of a query in the same form as {@link #keyOf(long, long[])}.
+   */
+  void keyOf(int id, String qname, IpAddress address, int port, long[] key) {
+    key[0] = address.getHigh();
+    key[1] = address.getLow();
+    key[2] = meta(id, qname, port);
+  }
+
+  static long hash64(long[] key) {
+    return hash64(key[0], key[1], key[2]);
+  }
+
+  // open addressing
+
+  private int entryAt(int slot) {
+    return (int) table[slot * SLOT + 3] - 1;
+  }
+
+  private int homeSlot(int slot) {
+    return (int) (table[slot * SLOT + 3] >>> 32) & mask;
+  }
+
+  /**
+   * @return the slot holding the key, or the complement of the free slot where it should be inserted
+   */
+  private int find(long high, long low, long keyMeta, String qname, int hash) {
+    int slot = hash & mask;
+    while (true) {
+      int base = slot * SLOT;
+      long tag = table[base + 3];
+      if (tag == 0) {
+        return ~slot;
+      }
+      if ((int) (tag >>> 32) == hash && table[base + 2] == keyMeta && table[base + 1] == low
+          && table[base] == high && Objects.equals(refs[((int) tag - 1) * REFS], qname)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Clear a slot and move keys of the same cluster back, so that lookups never stop at a hole.
+   */
+  private void deleteSlot(int slot) {
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (table[next * SLOT + 3] != 0) {
+      int home = homeSlot(next);
+      // move the key into the gap unless its home slot lies cyclically between the gap and its current slot
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        System.arraycopy(table, next * SLOT, table, gap * SLOT, SLOT);
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    Arrays.fill(table, gap * SLOT, gap * SLOT + SLOT, 0);
+  }
+
+  private void resize() {
+    long[] old = table;
+    int slots = (mask + 1) * 2;
+    table = new long[slots * SLOT];
+    mask = slots - 1;
+    for (int base = 0; base < old.length; base += SLOT) {
+      long tag = old[base + 3];
+      if (tag != 0) {
+        int slot = (int) (tag >>> 32) & mask;
+        while (table[slot * SLOT + 3] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        System.arraycopy(old, base, table, slot * SLOT, SLOT);
+      }
+    }
+  }
+
+  private static long meta(int id, String qname, int port) {
+    int qnameHash = qname == null ? 0 : qname.hashCode();
+    return ((long) qnameHash << 32) | ((long) (id & 0xFFFF) << 16) | (port & 0xFFFF);
+  }
+
+  private static int hash(long high, long low, long keyMeta) {
+    return (int) hash64(high, low, keyMeta);
+  }
+
+  private static long hash64(long high, long low, long keyMeta) {
+    long h = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL ^ keyMeta * 0x165667B19E3779F9L;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
@@ -0,0 +1,493 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.RequestKey;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Matches responses with the queries that are waiting for them, and expires the queries that got no response
+ * within the timeout. Time is the capture time of the packets, passed to {@link #advance(long, Consumer)}.
+ * <p>
+ * The queries are kept in a {@link RequestCache}, within a budget of estimated heap bytes for the queries.
+ * The arrays of the cache are not part of the budget: they keep the size of the largest burst, which would
+ * otherwise leave less and less room for the queries. As the budget bounds the number of queries in memory,
+ * it also bounds the arrays, to at most about a quarter of the budget.
+ * When the budget is exceeded, the oldest queries are spilled to a {@link SpillFile}. Spilled queries can still
+ * be matched, and expire in the order they were spilled. The segments of the spill file are deleted as soon as
+ * the expiry has passed them, so a steady stream of spilled queries does not fill the disk.
+ * <p>
+ * Not thread-safe.
+ */
+public class RequestMatcher implements Closeable {
+
+  private static final long UNKNOWN = Long.MIN_VALUE;
+
+  private final long timeout;
+  // 0 = no budget
+  private final long maxBytes;
+  private final File spillDirectory;
+  private final long spillSegmentBytes;
+
+  private final RequestCache cache = new RequestCache();
+  // expires the queries in the cache, started at the first packet
+  private TimingWheel wheel;
+  private Consumer<MessageWrapper> expiredConsumer;
+  private final LongConsumer timerExpired = this::timerExpired;
+
+  // handles of the cached queries in the order they were added, the oldest queries are spilled first
+  private long[] order = new long[1024];
+  private int orderHead = 0;
+  private int orderSize = 0;
+
+  private SpillFile spillFile;
+  private final SpillIndex spillIndex = new SpillIndex();
+  // offset of the oldest spilled record that has not expired yet, with its deadline when already read
+  private long spillCursor = 0;
+  private long spillCursorDeadline = UNKNOWN;
+  private byte[] spillCursorRecord;
+
+  private final Kryo kryo = new Kryo();
+  private final Output output = new Output(1024, -1);
+  private final long[] key = new long[3];
+  private final long[] recordKey = new long[3];
+
+  private long added = 0;
+  private long memoryHits = 0;
+  private long spillHits = 0;
+  private long misses = 0;
+  private long expired = 0;
+  private long spilled = 0;
+  private long spilledExpired = 0;
+
+  /**
+   * @param timeout        time in ms a query waits for its response
+   * @param maxBytes       budget for the estimated heap used by the queries in memory, 0 for no budget
+   * @param spillDirectory directory for the spill file
+   */
+  public RequestMatcher(long timeout, long maxBytes, File spillDirectory) {
+    this(timeout, maxBytes, spillDirectory, SpillFile.DEFAULT_SEGMENT_BYTES);
+  }
+
+  RequestMatcher(long timeout, long maxBytes, File spillDirectory, long spillSegmentBytes) {
+    this.timeout = timeout;
+    this.maxBytes = maxBytes;
+    this.spillDirectory = spillDirectory;
+    this.spillSegmentBytes = spillSegmentBytes;
+  }
+
+  /**
+   * Add a query that waits for its response, replacing a waiting query with the same key.
+   * The oldest queries are spilled when this query exceeds the budget.
+   */
+  public void add(int id, String qname, IpAddress address, int port, long time, Packet packet, Message message,
+                  String fileName) {
+    if (wheel == null) {
+      start(time);
+    }
+    long handle = cache.put(id, qname, address, port, time, packet, message, fileName);
+    added++;
+    schedule(handle, time);
+    trimOrder();
+    pushOrder(handle);
+    if (maxBytes > 0) {
+      while (cache.getQueryBytes() > maxBytes && orderSize > 0) {
+        long oldest = pollOrder();
+        if (cache.isValid(oldest)) {
+          spill(oldest);
+        }
+      }
+    }
+  }
+
+  /**
+   * Find and remove the query a response belongs to.
+   *
+   * @return the query, null when no query with this key is waiting
+   */
+  public MessageWrapper match(int id, String qname, IpAddress address, int port) {
+    MessageWrapper wrapper = cache.remove(id, qname, address, port);
+    if (wrapper != null) {
+      memoryHits++;
+      return wrapper;
+    }
+    if (!spillIndex.isEmpty()) {
+      wrapper = removeSpilled(id, qname, address, port);
+      if (wrapper != null) {
+        spillHits++;
+        return wrapper;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Move time forward and remove the queries that reached their timeout, in memory and spilled.
+   *
+   * @param now     capture time in ms of the packet that is being handled
+   * @param expired receives the queries that reached their timeout
+   */
+  public void advance(long now, Consumer<MessageWrapper> expired) {
+    if (wheel == null) {
+      start(now);
+    }
+    expiredConsumer = expired;
+    wheel.advance(now, timerExpired);
+    if (spillFile != null && spillFile.length() > 0) {
+      expireSpilled(now, expired);
+    }
+  }
+
+  /**
+   * Start the expiry at the capture time of the first packet.
+   * Queries loaded from the state file wait at most one timeout.
+   */
+  private void start(long start) {
+    wheel = new TimingWheel(start);
+    cache.forEachHandle(handle -> {
+      wheel.schedule(handle, Math.min(cache.getTime(handle), start) + timeout);
+      pushOrder(handle);
+    });
+  }
+
+  private void schedule(long handle, long time) {
+    wheel.schedule(handle, time + timeout);
+  }
+
+  private void timerExpired(long handle) {
+    // the handle is no longer valid when the query got its response or was spilled in the meantime
+    MessageWrapper wrapper = cache.remove(handle);
+    if (wrapper != null) {
+      expired++;
+      expiredConsumer.accept(wrapper);
+    }
+  }
+
+  // spilling
+
+  private void spill(long handle) {
+    cache.keyOf(handle, key);
+    long time = cache.getTime(handle);
+    // never wait longer than one timeout from now, like the queries loaded from the state file
+    long deadline = Math.min(time, wheel.getTime()) + timeout;
+    String qname = cache.getQname(handle);
+    MessageWrapper wrapper = cache.remove(handle);
+    try {
+      if (spillFile == null) {
+        spillFile = new SpillFile(spillDirectory, spillSegmentBytes);
+      }
+      output.clear();
+      for (long k : key) {
+        output.writeLong(k);
+      }
+      output.writeLong(time);
+      output.writeLong(deadline);
+      output.writeString(qname);
+      kryo.writeObject(output, wrapper);
+      long offset = spillFile.append(output.getBuffer(), output.position());
+      spillIndex.put(RequestCache.hash64(key), offset);
+      spilled++;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not spill query to " + spillDirectory, e);
+    }
+  }
+
+  private MessageWrapper removeSpilled(int id, String qname, IpAddress address, int port) {
+    cache.keyOf(id, qname, address, port, key);
+    long hash = RequestCache.hash64(key);
+    for (int slot = spillIndex.first(hash); slot >= 0; slot = spillIndex.next(slot, hash)) {
+      Input input = new Input(read(spillIndex.offsetAt(slot)));
+      readKey(input, recordKey);
+      input.readLong();
+      input.readLong();
+      if (Arrays.equals(key, recordKey) && Objects.equals(qname, input.readString())) {
+        spillIndex.removeAt(slot);
+        return kryo.readObject(input, MessageWrapper.class);
+      }
+    }
+    return null;
+  }
+
+  private void expireSpilled(long now, Consumer<MessageWrapper> expired) {
+    while (spillCursor < spillFile.length()) {
+      if (spillCursorDeadline == UNKNOWN) {
+        spillCursorRecord = read(spillCursor);
+        Input input = new Input(spillCursorRecord);
+        readKey(input, recordKey);
+        input.readLong();
+        spillCursorDeadline = input.readLong();
+      }
+      if (spillCursorDeadline > now) {
+        break;
+      }
+      long offset = spillCursor;
+      byte[] record = spillCursorRecord;
+      spillCursor = SpillFile.next(offset, record);
+      spillCursorDeadline = UNKNOWN;
+      spillCursorRecord = null;
+
+      Input input = new Input(record);
+      readKey(input, recordKey);
+      // matched queries are no longer in the index
+      if (spillIndex.remove(RequestCache.hash64(recordKey), offset)) {
+        input.readLong();
+        input.readLong();
+        input.readString();
+        spilledExpired++;
+        expired.accept(kryo.readObject(input, MessageWrapper.class));
+      }
+    }
+    if (spillIndex.isEmpty()) {
+      // every spilled query has been matched or expired
+      truncateSpillFile();
+    } else {
+      // the queries before the cursor have been matched or expired
+      discardSpilledBefore(spillCursor);
+    }
+  }
+
+  private byte[] read(long offset) {
+    try {
+      return spillFile.read(offset);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read spilled query from " + spillDirectory, e);
+    }
+  }
+
+  private void discardSpilledBefore(long offset) {
+    try {
+      spillFile.discardBefore(offset);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not delete spill file segment in " + spillDirectory, e);
+    }
+  }
+
+  private void truncateSpillFile() {
+    try {
+      spillFile.truncate();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not truncate spill file in " + spillDirectory, e);
+    }
+    spillIndex.clear();
+    spillCursor = 0;
+    spillCursorDeadline = UNKNOWN;
+    spillCursorRecord = null;
+  }
+
+  private static void readKey(Input input, long[] key) {
+    for (int i = 0; i < key.length; i++) {
+      key[i] = input.readLong();
+    }
+  }
+
+  // order of the cached queries
+
+  private void pushOrder(long handle) {
+    if (orderSize == order.length) {
+      long[] grown = new long[order.length * 2];
+      for (int i = 0; i < orderSize; i++) {
+        grown[i] = order[(orderHead + i) & (order.length - 1)];
+      }
+      order = grown;
+      orderHead = 0;
+    }
+    order[(orderHead + orderSize) & (order.length - 1)] = handle;
+    orderSize++;
+  }
+
+  private long pollOrder() {
+    long handle = order[orderHead];
+    orderHead = (orderHead + 1) & (order.length - 1);
+    orderSize--;
+    return handle;
+  }
+
+  /**
+   * Drop the handles of the oldest queries that got their response or expired,
+   * so the order only grows with the queries that wait for their response.
+   */
+  private void trimOrder() {
+    while (orderSize > 0 && !cache.isValid(order[orderHead])) {
+      pollOrder();
+    }
+  }
+
+  // state
+
+  /**
+   * Copy the waiting queries, in memory and spilled, into a map, the format used to persist the decoder state.
+   */
+  public Map<RequestKey, MessageWrapper> toMap() {
+    Map<RequestKey, MessageWrapper> map = cache.toMap();
+    spillIndex.forEachOffset(offset -> {
+      Input input = new Input(read(offset));
+      readKey(input, recordKey);
+      long time = input.readLong();
+      input.readLong();
+      String qname = input.readString();
+      long meta = recordKey[2];
+      RequestKey requestKey = new RequestKey((int) (meta >>> 16) & 0xFFFF, qname,
+          IpAddress.of(recordKey[0], recordKey[1]).toString(), (int) meta & 0xFFFF, time);
+      map.put(requestKey, kryo.readObject(input, MessageWrapper.class));
+    });
+    return map;
+  }
+
+  /**
+   * Replace the waiting queries with the queries in a map in the format used to persist the decoder state.
+   * Their expiry starts at the next packet.
+   */
+  public void load(Map<RequestKey, MessageWrapper> map) {
+    clear();
+    cache.putAll(map);
+  }
+
+  public void clear() {
+    cache.clear();
+    wheel = null;
+    orderHead = 0;
+    orderSize = 0;
+    if (spillFile != null) {
+      truncateSpillFile();
+    }
+  }
+
+  /**
+   * Close and delete the spill file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (spillFile != null) {
+      spillFile.close();
+      spillFile = null;
+    }
+    spillIndex.clear();
+  }
+
+  // statistics
+
+  /**
+   * @return number of waiting queries, in memory and spilled
+   */
+  public int size() {
+    return cache.size() + spillIndex.size();
+  }
+
+  public int getSpilledSize() {
+    return spillIndex.size();
+  }
+
+  public long getEstimatedBytes() {
+    return cache.estimatedBytes();
+  }
+
+  /**
+   * @return number of files of the spill file, 0 when nothing has been spilled
+   */
+  public int getSpillSegments() {
+    return spillFile == null ? 0 : spillFile.getSegmentCount();
+  }
+
+  /**
+   * @return time of the oldest query in memory, Long.MAX_VALUE when there is none
+   */
+  public long oldestTime() {
+    return cache.oldestTime();
+  }
+
+  /**
+   * @return time of the newest query in memory, Long.MIN_VALUE when there is none
+   */
+  public long newestTime() {
+    return cache.newestTime();
+  }
+
+  public long getAdded() {
+    return added;
+  }
+
+  public long getMemoryHits() {
+    return memoryHits;
+  }
+
+  public long getSpillHits() {
+    return spillHits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getExpired() {
+    return expired;
+  }
+
+  public long getSpilled() {
+    return spilled;
+  }
+
+  public long getSpilledExpired() {
+    return spilledExpired;
+  }
+
+  /**
+   * @return fraction of the responses that were matched with a query
+   */
+  public double getHitRate() {
+    long hits = memoryHits + spillHits;
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  @Override
+  public String toString() {
+    return "RequestMatcher{" +
+        "waiting=" + size() +
+        ", spilledWaiting=" + spillIndex.size() +
+        ", estimatedBytes=" + cache.estimatedBytes() +
+        ", spillSegments=" + getSpillSegments() +
+        ", added=" + added +
+        ", memoryHits=" + memoryHits +
+        ", spillHits=" + spillHits +
+        ", misses=" + misses +
+        ", hitRate=" + String.format("%.4f", getHitRate()) +
+        ", expired=" + expired +
+        ", spilled=" + spilled +
+        ", spilledExpired=" + spilledExpired +
+        '}';
+  }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.dnslib.types.MessageType;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.NamedThreadFactory;
+import nl.sidn.pcap.support.RequestKey;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Distributes the decoded DNS messages over {@link MatchingShard}s by a hash of the client address and port.
+ * All messages of a client go to the same shard, so every shard owns its part of the request cache
+ * and no locks are needed. The addresses of a message are parsed once, here, and passed on in binary form.
+ * <p>
+ * With one shard, the messages are matched on the calling thread. With more shards, every shard has its own thread
+ * and receives the messages in batches through its own queue. A shard only sees the capture time of its own
+ * messages, so the time is also sent to all shards every {@link #TICK_INTERVAL} ms of capture time, to expire
+ * the queries of quiet shards. Since the query and the response of a client are handled by the same shard in
+ * capture time order, the result does not depend on the number of shards.
+ * <p>
+ * All methods must be called from the same thread.
+ */
+public class ShardedMatcher implements Closeable {
+
+  private static final Logger logger = getLogger(ShardedMatcher.class);
+
+  private static final int BATCH_SIZE = 1024;
+  private static final int QUEUE_CAPACITY = 64;
+  static final long TICK_INTERVAL = 100;
+  private static final Batch END = new Batch(0);
+
+  private final MatchingShard[] shards;
+  private final boolean threaded;
+
+  // only used with more than one shard
+  private ShardWorker[] workers;
+  private ExecutorService executor;
+  private long lastTick = Long.MIN_VALUE;
+
+  public ShardedMatcher(MatchingShard[] shards) {
+    this.shards = shards;
+    this.threaded = shards.length > 1;
+  }
+
+  /**
+   * Start a thread per shard. Does nothing with one shard.
+   */
+  public void start() {
+    if (!threaded || executor != null) {
+      return;
+    }
+    logger.info("Matching queries and responses with {} threads", shards.length);
+    executor = Executors.newFixedThreadPool(shards.length, new NamedThreadFactory("Matcher-Thread"));
+    workers = new ShardWorker[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      workers[i] = new ShardWorker(shards[i]);
+      executor.submit(workers[i]);
+    }
+  }
+
+  public void handleIcmp(Packet packet, String fileName, long time) {
+    int shard = shardOf(IpAddress.parse(packet.getSrc()), 0);
+    if (threaded) {
+      add(shard, packet, null, null, null, fileName, time);
+    } else {
+      shards[shard].advance(time);
+      shards[shard].handleIcmp(packet, fileName);
+    }
+  }
+
+  public void handleMessage(DNSPacket packet, Message message, String fileName, long time) {
+    IpAddress client;
+    IpAddress server;
+    int shard;
+    if (message != null && message.getHeader().getQr() == MessageType.QUERY) {
+      client = IpAddress.parse(packet.getSrc());
+      server = IpAddress.parse(packet.getDst());
+      shard = shardOf(client, packet.getSrcPort());
+    } else {
+      client = IpAddress.parse(packet.getDst());
+      server = IpAddress.parse(packet.getSrc());
+      shard = shardOf(client, packet.getDstPort());
+    }
+    if (threaded) {
+      add(shard, packet, message, client, server, fileName, time);
+    } else {
+      shards[shard].advance(time);
+      shards[shard].handleMessage(packet, message, client, server, fileName, time);
+    }
+  }
+
+  /**
+   * Wait until all shards have handled the messages passed so far, and stop their threads.
+   *
+   * @throws InterruptedException when interrupted while waiting for a shard
+   */
+  public void finish() throws InterruptedException {
+    if (executor == null) {
+      return;
+    }
+    try {
+      for (ShardWorker worker : workers) {
+        worker.flush();
+        worker.batches.put(END);
+      }
+      executor.shutdown();
+      if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+        throw new IllegalStateException("Matcher threads did not finish");
+      }
+    } finally {
+      executor.shutdownNow();
+      executor = null;
+    }
+    for (ShardWorker worker : workers) {
+      if (worker.failure != null) {
+        throw new RuntimeException("Failed to match messages", worker.failure);
+      }
+    }
+  }
+
+  private void add(int shard, Packet packet, Message message, IpAddress client, IpAddress server, String fileName,
+                   long time) {
+    start();
+    try {
+      if (time >= lastTick + TICK_INTERVAL) {
+        lastTick = time;
+        for (ShardWorker worker : workers) {
+          worker.add(null, null, null, null, null, time);
+        }
+      }
+      workers[shard].add(packet, message, client, server, fileName, time);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while passing messages to the matcher threads", e);
+    }
+  }
+
+  private int shardOf(IpAddress address, int port) {
+    int h = address.hashCode() * 31 + port;
+    h *= 0x9E3779B9;
+    return (h >>> 16) % shards.length;
+  }
+
+  // state, only when the shards are not running
+
+  /**
+   * @return the queries waiting for their response in all shards
+   */
+  public Map<RequestKey, MessageWrapper> toMap() {
+    Map<RequestKey, MessageWrapper> map = new HashMap<>();
+    for (MatchingShard shard : shards) {
+      map.putAll(shard.getRequestMatcher().toMap());
+    }
+    return map;
+  }
+
+  /**
+   * Replace the waiting queries of all shards, every query goes to the shard of its client.
+   */
+  public void load(Map<RequestKey, MessageWrapper> requests) {
+    List<Map<RequestKey, MessageWrapper>> parts = new ArrayList<>();
+    for (int i = 0; i < shards.length; i++) {
+      parts.add(new HashMap<>());
+    }
+    for (Map.Entry<RequestKey, MessageWrapper> e : requests.entrySet()) {
+      Packet packet = e.getValue().getPacket();
+      if (packet != null) {
+        parts.get(shardOf(IpAddress.parse(packet.getSrc()), packet.getSrcPort())).put(e.getKey(), e.getValue());
+      }
+    }
+    for (int i = 0; i < shards.length; i++) {
+      shards[i].getRequestMatcher().load(parts.get(i));
+    }
+  }
+
+  public MatchingShard[] getShards() {
+    return shards;
+  }
+
+  /**
+   * @return number of waiting queries, only an estimate while the shards are running
+   */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < shards.length; i++) {
+      size += workers == null ? shards[i].getRequestMatcher().size() : workers[i].waiting;
+    }
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (MatchingShard shard : shards) {
+      shard.close();
+    }
+  }
+
+  /**
+   * Messages for a shard. A message without packet only moves time forward.
+   */
+  private static final class Batch {
+    private final Packet[] packets;
+    private final Message[] messages;
+    private final IpAddress[] clients;
+    private final IpAddress[] servers;
+    private final String[] fileNames;
+    private final long[] times;
+    private int size = 0;
+
+    private Batch(int capacity) {
+      packets = new Packet[capacity];
+      messages = new Message[capacity];
+      clients = new IpAddress[capacity];
+      servers = new IpAddress[capacity];
+      fileNames = new String[capacity];
+      times = new long[capacity];
+    }
+  }
+
+  private static final class ShardWorker implements Runnable {
+
+    private final MatchingShard shard;
+    private final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile Exception failure;
+    // number of waiting queries after the last batch, for logging
+    private volatile int waiting;
+
+    // only accessed by the dispatching thread
+    private Batch batch = new Batch(BATCH_SIZE);
+
+    private ShardWorker(MatchingShard shard) {
+      this.shard = shard;
+    }
+
+    private void add(Packet packet, Message message, IpAddress client, IpAddress server, String fileName, long time)
+        throws InterruptedException {
+      int i = batch.size++;
+      batch.packets[i] = packet;
+      batch.messages[i] = message;
+      batch.clients[i] = client;
+      batch.servers[i] = server;
+      batch.fileNames[i] = fileName;
+      batch.times[i] = time;
+      if (batch.size == BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    private void flush() throws InterruptedException {
+      if (batch.size > 0) {
+        batches.put(batch);
+        batch = new Batch(BATCH_SIZE);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        Batch next;
+        while ((next = batches.take()) != END) {
+          if (failure == null) {
+            handle(next);
+          }
+        }
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for messages");
+      }
+    }
+
+    private void handle(Batch next) {
+      try {
+        for (int i = 0; i < next.size; i++) {
+          Packet packet = next.packets[i];
+          shard.advance(next.times[i]);
+          if (packet instanceof DNSPacket) {
+            shard.handleMessage((DNSPacket) packet, next.messages[i], next.clients[i], next.servers[i],
+                next.fileNames[i], next.times[i]);
+          } else if (packet != null) {
+            shard.handleIcmp(packet, next.fileNames[i]);
+          }
+        }
+        waiting = shard.getRequestMatcher().size();
+      } catch (Exception e) {
+        // keep taking batches, so the dispatching thread does not block
+        logger.error("Failed to match messages", e);
+        failure = e;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Append-only file of length prefixed records, that can be read back by offset.
+ * Appended records are buffered and written when the buffer is full or when a record is read.
+ * <p>
+ * The records are written to segments of about <code>segmentBytes</code>, each in its own file. Once all records
+ * of a segment are no longer needed, {@link #discardBefore(long)} deletes its file. Offsets keep counting across
+ * segments, so they stay valid until their segment is discarded or the file is truncated.
+ * <p>
+ * Not thread-safe.
+ */
+class SpillFile implements Closeable {
+
+  private static final Logger logger = getLogger(SpillFile.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  private final File directory;
+  private final long segmentBytes;
+  // oldest first, records are appended to the last one
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int buffered = 0;
+
+  SpillFile(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_BYTES);
+  }
+
+  SpillFile(File directory, long segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    segments.add(new Segment(directory, 0));
+  }
+
+  /**
+   * @return offset at which the record was written
+   */
+  long append(byte[] record, int length) throws IOException {
+    Segment current = segments.getLast();
+    if (current.written + buffered >= segmentBytes) {
+      flush();
+      current = new Segment(directory, length());
+      segments.add(current);
+    }
+    long offset = length();
+    if (buffered + 4 + length > BUFFER_SIZE) {
+      flush();
+    }
+    if (4 + length > BUFFER_SIZE) {
+      current.raf.seek(current.written);
+      current.raf.writeInt(length);
+      current.raf.write(record, 0, length);
+      current.written += 4 + length;
+    } else {
+      buffer[buffered] = (byte) (length >>> 24);
+      buffer[buffered + 1] = (byte) (length >>> 16);
+      buffer[buffered + 2] = (byte) (length >>> 8);
+      buffer[buffered + 3] = (byte) length;
+      System.arraycopy(record, 0, buffer, buffered + 4, length);
+      buffered += 4 + length;
+    }
+    return offset;
+  }
+
+  /**
+   * @return the record at given offset
+   */
+  byte[] read(long offset) throws IOException {
+    Segment segment = segmentOf(offset);
+    if (segment == segments.getLast() && offset >= segment.start + segment.written) {
+      flush();
+    }
+    segment.raf.seek(offset - segment.start);
+    byte[] record = new byte[segment.raf.readInt()];
+    segment.raf.readFully(record);
+    return record;
+  }
+
+  private Segment segmentOf(long offset) {
+    // most reads are for the newest records, or for the oldest ones when they expire
+    Iterator<Segment> newestFirst = segments.descendingIterator();
+    while (newestFirst.hasNext()) {
+      Segment segment = newestFirst.next();
+      if (offset >= segment.start) {
+        return segment;
+      }
+    }
+    throw new IllegalArgumentException("Offset " + offset + " is in a discarded segment");
+  }
+
+  /**
+   * @return offset of the record after the one at given offset
+   */
+  static long next(long offset, byte[] record) {
+    return offset + 4 + record.length;
+  }
+
+  /**
+   * @return offset of the next record that will be appended
+   */
+  long length() {
+    Segment current = segments.getLast();
+    return current.start + current.written + buffered;
+  }
+
+  /**
+   * Delete the segments that only hold records before given offset. The segment that is appended to is kept.
+   *
+   * @param offset offset of the oldest record that is still needed
+   */
+  void discardBefore(long offset) throws IOException {
+    while (segments.size() > 1) {
+      Segment oldest = segments.getFirst();
+      if (oldest.start + oldest.written > offset) {
+        return;
+      }
+      segments.removeFirst().delete();
+    }
+  }
+
+  /**
+   * @return number of segment files
+   */
+  int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Remove all records.
+   */
+  void truncate() throws IOException {
+    while (segments.size() > 1) {
+      segments.removeFirst().delete();
+    }
+    Segment current = segments.getLast();
+    current.raf.setLength(0);
+    current.start = 0;
+    current.written = 0;
+    buffered = 0;
+  }
+
+  private void flush() throws IOException {
+    if (buffered > 0) {
+      Segment current = segments.getLast();
+      current.raf.seek(current.written);
+      current.raf.write(buffer, 0, buffered);
+      current.written += buffered;
+      buffered = 0;
+    }
+  }
+
+  /**
+   * Close and delete the files.
+   */
+  @Override
+  public void close() throws IOException {
+    while (!segments.isEmpty()) {
+      segments.removeFirst().delete();
+    }
+  }
+
+  private static class Segment {
+    private final File file;
+    private final RandomAccessFile raf;
+    // offset of the first record
+    private long start;
+    // number of bytes written to the file
+    private long written = 0;
+
+    private Segment(File directory, long start) throws IOException {
+      this.file = File.createTempFile("request-cache-", ".spill", directory);
+      this.raf = new RandomAccessFile(file, "rw");
+      this.start = start;
+      logger.info("Spilling queries to {}", file);
+    }
+
+    private void delete() throws IOException {
+      raf.close();
+      if (!file.delete()) {
+        logger.warn("Could not delete {}", file);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Index of the queries in a {@link SpillFile}: maps the 64 bit hash of a request key to the offsets of the records
+ * with that hash. Different keys can have the same hash, so the records must be checked after a lookup.
+ * <p>
+ * Open addressing with linear probing over pairs of longs, so an index entry takes 16 bytes.
+ * <p>
+ * Not thread-safe.
+ */
+class SpillIndex {
+
+  // longs per slot: hash, offset + 1 (0 = free slot)
+  private static final int SLOT = 2;
+
+  private long[] table;
+  private int mask;
+  private int size = 0;
+
+  SpillIndex() {
+    table = new long[64 * SLOT];
+    mask = 63;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void put(long hash, long offset) {
+    if ((size + 1) * 2 > mask + 1) {
+      resize();
+    }
+    int slot = insertSlot(table, mask, hash);
+    table[slot * SLOT] = hash;
+    table[slot * SLOT + 1] = offset + 1;
+    size++;
+  }
+
+  /**
+   * @return the first slot holding given hash, -1 if there is none
+   */
+  int first(long hash) {
+    return next(home(hash, mask) - 1, hash);
+  }
+
+  /**
+   * @return the next slot after <code>slot</code> holding given hash, -1 if there is none
+   */
+  int next(int slot, long hash) {
+    slot = (slot + 1) & mask;
+    while (table[slot * SLOT + 1] != 0) {
+      if (table[slot * SLOT] == hash) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  long offsetAt(int slot) {
+    return table[slot * SLOT + 1] - 1;
+  }
+
+  /**
+   * Remove the record at given offset.
+   *
+   * @return false when the index does not hold the record
+   */
+  boolean remove(long hash, long offset) {
+    for (int slot = first(hash); slot >= 0; slot = next(slot, hash)) {
+      if (offsetAt(slot) == offset) {
+        removeAt(slot);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Clear a slot and move entries of the same cluster back, as in {@link RequestCache}.
+   */
+  void removeAt(int slot) {
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (table[next * SLOT + 1] != 0) {
+      int home = home(table[next * SLOT], mask);
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        table[gap * SLOT] = table[next * SLOT];
+        table[gap * SLOT + 1] = table[next * SLOT + 1];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    table[gap * SLOT] = 0;
+    table[gap * SLOT + 1] = 0;
+    size--;
+  }
+
+  void forEachOffset(LongConsumer consumer) {
+    for (int slot = 0; slot <= mask; slot++) {
+      if (table[slot * SLOT + 1] != 0) {
+        consumer.accept(offsetAt(slot));
+      }
+    }
+  }
+
+  void clear() {
+    Arrays.fill(table, 0);
+    size = 0;
+  }
+
+  private void resize() {
+    long[] old = table;
+    int newMask = (mask + 1) * 2 - 1;
+    long[] resized = new long[(newMask + 1) * SLOT];
+    for (int base = 0; base < old.length; base += SLOT) {
+      if (old[base + 1] != 0) {
+        int slot = insertSlot(resized, newMask, old[base]);
+        resized[slot * SLOT] = old[base];
+        resized[slot * SLOT + 1] = old[base + 1];
+      }
+    }
+    table = resized;
+    mask = newMask;
+  }
+
+  private static int insertSlot(long[] table, int mask, long hash) {
+    int slot = home(hash, mask);
+    while (table[slot * SLOT + 1] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int home(long hash, int mask) {
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+}
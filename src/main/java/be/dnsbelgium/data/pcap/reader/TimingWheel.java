@@ -0,0 +1,221 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Hierarchical timing wheel with a resolution of one millisecond, holding <code>long</code> handles.
+ * <p>
+ * The wheel has no clock of its own: time only moves when {@link #advance(long, LongConsumer)} is called,
+ * so it can be driven by the capture time of packets. Level 0 has a bucket per millisecond for the next 64 ms,
+ * every next level covers 64 times the range of the previous one. When time reaches the start of a bucket
+ * of a higher level, its timers are cascaded to the lower levels. Timers beyond the last level wait in an
+ * overflow bucket. Scheduling and expiring a timer is O(1), no objects are created per timer.
+ * Time skips the stretches in which nothing can expire or cascade, so large gaps between packets are cheap.
+ * <p>
+ * Timers cannot be cancelled: the owner of the handles should ignore handles that are no longer valid
+ * when they expire.
+ * <p>
+ * Not thread-safe.
+ */
+public class TimingWheel {
+
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+  private static final int OVERFLOW = LEVELS * SLOTS;
+
+  // per bucket: pairs of handle and deadline
+  private final long[][] buckets = new long[OVERFLOW + 1][];
+  private final int[] counts = new int[OVERFLOW + 1];
+  // number of timers per level, the overflow bucket counts as the last one
+  private final int[] levelSizes = new int[LEVELS + 1];
+  // swapped with the bucket that is being expired or cascaded
+  private long[] spare = new long[16];
+
+  // all timers with a deadline at or before now have expired
+  private long now;
+  private int size = 0;
+
+  public TimingWheel(long start) {
+    this.now = start;
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new long[16];
+    }
+  }
+
+  public long getTime() {
+    return now;
+  }
+
+  /**
+   * @return number of timers that have not expired yet
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Schedule a timer. A deadline that has already passed expires at the next millisecond.
+   *
+   * @param handle   passed to the consumer of {@link #advance(long, LongConsumer)} when the timer expires
+   * @param deadline time in ms at which the timer expires
+   */
+  public void schedule(long handle, long deadline) {
+    long due = Math.max(deadline, now + 1);
+    add(bucketOf(due), handle, due);
+    size++;
+  }
+
+  /**
+   * Move time forward and expire all timers with a deadline at or before <code>time</code>,
+   * in order of their deadline. Does nothing when <code>time</code> is not after the current time.
+   *
+   * @param time    the new time in ms
+   * @param expired receives the handle of every expired timer
+   * @return number of expired timers
+   */
+  public int advance(long time, LongConsumer expired) {
+    int before = size;
+    while (now < time) {
+      int level = lowestLevel();
+      if (level > LEVELS) {
+        now = time;
+        break;
+      }
+      if (level > 0) {
+        // nothing happens before the next bucket of this level starts
+        long skipTo = now | ((1L << (BITS * Math.min(level, LEVELS - 1))) - 1);
+        if (skipTo >= time) {
+          now = time;
+          break;
+        }
+        now = skipTo;
+      }
+      now++;
+      int index = (int) now & MASK;
+      if (index == 0) {
+        cascade();
+      }
+      expire(index, expired);
+    }
+    return before - size;
+  }
+
+  public void clear() {
+    Arrays.fill(counts, 0);
+    Arrays.fill(levelSizes, 0);
+    size = 0;
+  }
+
+  /**
+   * @return the lowest level with timers, LEVELS for only the overflow bucket, LEVELS + 1 when empty
+   */
+  private int lowestLevel() {
+    for (int level = 0; level <= LEVELS; level++) {
+      if (levelSizes[level] > 0) {
+        return level;
+      }
+    }
+    return LEVELS + 1;
+  }
+
+  private int bucketOf(long deadline) {
+    long delta = deadline - now;
+    if (delta < SLOTS) {
+      return (int) deadline & MASK;
+    }
+    for (int level = 1; level < LEVELS; level++) {
+      if (delta < 1L << (BITS * (level + 1))) {
+        return level * SLOTS + ((int) (deadline >>> (BITS * level)) & MASK);
+      }
+    }
+    return OVERFLOW;
+  }
+
+  /**
+   * Redistribute the timers of the buckets of the higher levels that start now, highest level last.
+   * The overflow bucket is checked with every bucket of the last level, so that its timers are never late.
+   */
+  private void cascade() {
+    for (int level = 1; level < LEVELS; level++) {
+      int index = (int) (now >>> (BITS * level)) & MASK;
+      redistribute(level * SLOTS + index);
+      if (index != 0 && level < LEVELS - 1) {
+        return;
+      }
+    }
+    redistribute(OVERFLOW);
+  }
+
+  private void redistribute(int bucket) {
+    int count = counts[bucket];
+    if (count == 0) {
+      return;
+    }
+    long[] timers = take(bucket);
+    for (int i = 0; i < count; i += 2) {
+      add(bucketOf(timers[i + 1]), timers[i], timers[i + 1]);
+    }
+    spare = timers;
+  }
+
+  private void expire(int bucket, LongConsumer expired) {
+    int count = counts[bucket];
+    if (count == 0) {
+      return;
+    }
+    long[] timers = take(bucket);
+    size -= count / 2;
+    for (int i = 0; i < count; i += 2) {
+      expired.accept(timers[i]);
+    }
+    spare = timers;
+  }
+
+  /**
+   * Replace the array of a bucket with the spare one, so that timers can be added to the bucket
+   * while its former content is processed.
+   */
+  private long[] take(int bucket) {
+    long[] timers = buckets[bucket];
+    buckets[bucket] = spare;
+    levelSizes[bucket / SLOTS] -= counts[bucket] / 2;
+    counts[bucket] = 0;
+    return timers;
+  }
+
+  private void add(int bucket, long handle, long deadline) {
+    long[] timers = buckets[bucket];
+    int count = counts[bucket];
+    if (count == timers.length) {
+      timers = Arrays.copyOf(timers, count * 2);
+      buckets[bucket] = timers;
+    }
+    timers[count] = handle;
+    timers[count + 1] = deadline;
+    counts[bucket] = count + 2;
+    levelSizes[bucket / SLOTS]++;
+  }
+
+}
@@ -0,0 +1,396 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.service;
+
+import be.dnsbelgium.data.pcap.aws.athena.AthenaStatements;
+import be.dnsbelgium.data.pcap.convertor.ConvertorConfig;
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.parquet.DNSParquetPacketWriter;
+import be.dnsbelgium.data.pcap.parquet.DnsRow;
+import be.dnsbelgium.data.pcap.parquet.DnsRowReader;
+import be.dnsbelgium.data.pcap.parquet.DnsRowSchema;
+import be.dnsbelgium.data.pcap.parquet.ParquetFileStats;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
+import be.dnsbelgium.data.pcap.parquet.PartitionedRowWriter;
+import be.dnsbelgium.data.pcap.utils.FileHelper;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Rewrites the many small Parquet files of a partition (year/month/day/server, or year/month/day/server/hour)
+ * into a few large files, sorted and rolled over at the target size of the {@link ParquetWriterConfig}.
+ * <p>
+ * S3 cannot replace a set of objects atomically, so the swap relies on Athena ignoring objects whose name starts
+ * with an underscore:
+ * <ol>
+ *   <li>the new files are uploaded as <code>_compacting-&lt;uuid&gt;.parquet</code></li>
+ *   <li>a manifest <code>_compaction-manifest</code> lists the new files and the old files they replace</li>
+ *   <li>the new files get their final name, then the old files and the manifest are deleted</li>
+ * </ol>
+ * Between the last two steps, a query can briefly see the rows twice, it never misses rows. When a compaction
+ * is interrupted, the next compaction of the partition first completes the swap of the manifest it finds,
+ * so rows are never compacted twice.
+ */
+@Component
+public class ParquetCompactor {
+
+  private static final Logger logger = getLogger(ParquetCompactor.class);
+
+  public final static String DEFAULT_SORT_COLUMNS = "domainname,qname,time";
+  public final static int DEFAULT_MIN_FILES = 4;
+
+  static final String STAGED_PREFIX = "_compacting-";
+  static final String MANIFEST = "_compaction-manifest";
+
+  private final RemoteFileManager files;
+  private final ParquetWriterConfig writerConfig;
+  private final FileHelper fileHelper;
+  private final String keyPrefix;
+  private final File workFolder;
+  private final int minFiles;
+  private final DnsRowSchema schema = DnsRowSchema.fromResource(DNSParquetPacketWriter.SCHEMA);
+
+  @Autowired
+  public ParquetCompactor(RemoteFileManager files, ParquetWriterConfig writerConfig, ConvertorConfig config,
+                          FileHelper fileHelper,
+                          @Value("${parquet.compaction.sort.columns: #{parquetCompactor.DEFAULT_SORT_COLUMNS}}") String sortColumns,
+                          @Value("${parquet.compaction.min.files: #{parquetCompactor.DEFAULT_MIN_FILES}}") int minFiles) {
+    this(files, writerConfig, fileHelper, config.getParquetPrefix() + "dnsdata/",
+        new File(config.getParquetOutputFolder(), "compaction"), ParquetWriterConfig.split(sortColumns), minFiles);
+  }
+
+  /**
+   * @param files        the parquet repository
+   * @param writerConfig settings of the compacted files, rows are sorted on sortColumns
+   * @param fileHelper   to clean up the work folder
+   * @param keyPrefix    key of the table location, ending with a slash
+   * @param workFolder   local folder for the downloaded and compacted files
+   * @param sortColumns  columns to sort the rows of a partition on
+   * @param minFiles     partitions with fewer files are left alone
+   */
+  public ParquetCompactor(RemoteFileManager files, ParquetWriterConfig writerConfig, FileHelper fileHelper,
+                          String keyPrefix, File workFolder, List<String> sortColumns, int minFiles) {
+    this.files = files;
+    // the rows of a partition stay in that partition, also when it is a day partition of before hour partitions
+    this.writerConfig = writerConfig.withSort(sortColumns, writerConfig.getSortMemoryBytes()).withHourPartitions(false);
+    this.fileHelper = fileHelper;
+    this.keyPrefix = keyPrefix;
+    this.workFolder = workFolder;
+    this.minFiles = minFiles;
+  }
+
+  public static class Result {
+
+    private final String prefix;
+    private final int filesBefore;
+    private final int filesAfter;
+    private final long bytesBefore;
+    private final long bytesAfter;
+    private final long rows;
+
+    Result(String prefix, int filesBefore, int filesAfter, long bytesBefore, long bytesAfter, long rows) {
+      this.prefix = prefix;
+      this.filesBefore = filesBefore;
+      this.filesAfter = filesAfter;
+      this.bytesBefore = bytesBefore;
+      this.bytesAfter = bytesAfter;
+      this.rows = rows;
+    }
+
+    public String getPrefix() {
+      return prefix;
+    }
+
+    public int getFilesBefore() {
+      return filesBefore;
+    }
+
+    /**
+     * @return number of files after compaction, the same as before when the partition was left alone
+     */
+    public int getFilesAfter() {
+      return filesAfter;
+    }
+
+    public long getBytesBefore() {
+      return bytesBefore;
+    }
+
+    public long getBytesAfter() {
+      return bytesAfter;
+    }
+
+    public long getRows() {
+      return rows;
+    }
+
+    public boolean isCompacted() {
+      return rows > 0;
+    }
+
+    @Override
+    public String toString() {
+      return prefix + ": " + filesBefore + " files (" + bytesBefore + " bytes) => " + filesAfter + " files ("
+          + bytesAfter + " bytes), " + rows + " rows";
+    }
+  }
+
+  /**
+   * @return the key prefix of a partition, as used for the location of {@link AthenaStatements#addPartition}
+   */
+  public String partitionPrefix(LocalDate date, ServerInfo server) {
+    return partitionPrefix(date, null, server);
+  }
+
+  /**
+   * @param hour hour of the partition, null for the partition of the whole day
+   * @return the key prefix of a partition, as used for the location of {@link AthenaStatements#addPartition}
+   */
+  public String partitionPrefix(LocalDate date, Integer hour, ServerInfo server) {
+    return keyPrefix + AthenaStatements.partitionPath(date, hour, server) + "/";
+  }
+
+  public Result compact(LocalDate date, ServerInfo server) throws IOException {
+    return compact(date, null, server);
+  }
+
+  public Result compact(LocalDate date, Integer hour, ServerInfo server) throws IOException {
+    return compact(partitionPrefix(date, hour, server));
+  }
+
+  /**
+   * Compact the parquet files directly under a prefix.
+   *
+   * @param prefix key prefix of the partition, ending with a slash
+   * @return what was done
+   * @throws IOException when the files could not be read or written locally
+   */
+  public Result compact(String prefix) throws IOException {
+    Map<String, RemoteFile> remote = list(prefix);
+    if (remote.containsKey(prefix + MANIFEST)) {
+      logger.warn("Found {}{}, completing an interrupted compaction", prefix, MANIFEST);
+      File folder = fileHelper.uniqueSubFolder(workFolder.getAbsolutePath());
+      try {
+        completeSwap(prefix, readManifest(remote.get(prefix + MANIFEST), folder), remote);
+      } finally {
+        fileHelper.deleteRecursively(folder);
+      }
+      remote = list(prefix);
+    }
+    for (RemoteFile file : remote.values()) {
+      if (nameOf(prefix, file).startsWith(STAGED_PREFIX)) {
+        logger.info("Deleting {} of an interrupted compaction", file.getKey());
+        files.delete(file);
+      }
+    }
+    List<RemoteFile> inputs = remote.values().stream()
+        .filter(file -> isVisibleParquetFile(nameOf(prefix, file)))
+        .collect(Collectors.toList());
+    long bytesBefore = inputs.stream().mapToLong(RemoteFile::size).sum();
+    if (inputs.size() < minFiles) {
+      logger.info("{} has {} parquet files, not compacting", prefix, inputs.size());
+      return new Result(prefix, inputs.size(), inputs.size(), bytesBefore, bytesBefore, 0);
+    }
+
+    File folder = fileHelper.uniqueSubFolder(workFolder.getAbsolutePath());
+    try {
+      List<File> compacted = rewrite(prefix, inputs, folder);
+      long rows = ParquetFileStats.of(compacted).getRows();
+      long bytesAfter = compacted.stream().mapToLong(File::length).sum();
+
+      Manifest manifest = new Manifest();
+      List<RemoteFile> staged = new ArrayList<>();
+      for (File file : compacted) {
+        String name = UUID.randomUUID().toString() + ".parquet";
+        staged.add(new RemoteFileOnS3(file.toPath(), prefix + STAGED_PREFIX + name));
+        manifest.moves.put(prefix + STAGED_PREFIX + name, prefix + name);
+      }
+      for (RemoteFile input : inputs) {
+        manifest.deletes.add(input.getKey());
+      }
+      files.upload(staged);
+      Map<String, RemoteFile> uploaded = list(prefix);
+      for (RemoteFile file : staged) {
+        if (!uploaded.containsKey(file.getKey())) {
+          throw new IllegalStateException("Upload of " + file.getKey() + " failed");
+        }
+      }
+      File manifestFile = new File(folder, MANIFEST);
+      Files.write(manifestFile.toPath(), manifest.lines(), StandardCharsets.UTF_8);
+      files.upload(Collections.singletonList(new RemoteFileOnS3(manifestFile.toPath(), prefix + MANIFEST)));
+      uploaded = list(prefix);
+      if (!uploaded.containsKey(prefix + MANIFEST)) {
+        throw new IllegalStateException("Upload of " + prefix + MANIFEST + " failed");
+      }
+      completeSwap(prefix, manifest, uploaded);
+
+      Result result = new Result(prefix, inputs.size(), compacted.size(), bytesBefore, bytesAfter, rows);
+      logger.info("Compacted {}", result);
+      return result;
+    } finally {
+      fileHelper.deleteRecursively(folder);
+    }
+  }
+
+  /**
+   * Download the inputs and write their rows to new files.
+   */
+  private List<File> rewrite(String prefix, List<RemoteFile> inputs, File folder) throws IOException {
+    File downloads = new File(folder, "in");
+    if (!downloads.mkdirs()) {
+      throw new IOException("Could not create " + downloads);
+    }
+    for (RemoteFile input : inputs) {
+      input.setLocalPath(new File(downloads, nameOf(prefix, input)).toPath());
+    }
+    files.download(inputs);
+    PartitionedRowWriter writer = new PartitionedRowWriter(new File(folder, "out"), schema, "time", "svr", "server",
+        writerConfig);
+    long rows = 0;
+    try {
+      for (RemoteFile input : inputs) {
+        if (input.getLocalPath() == null || !input.existsLocally()) {
+          throw new IOException("Download of " + input.getKey() + " failed");
+        }
+        try (DnsRowReader reader = new DnsRowReader(input.getLocalPath().toFile(), schema)) {
+          DnsRow row;
+          while ((row = reader.read()) != null) {
+            writer.write(row);
+            rows++;
+          }
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    List<File> compacted = fileHelper.findRecursively(new File(folder, "out"), "parquet");
+    long written = ParquetFileStats.of(compacted).getRows();
+    if (written != rows) {
+      throw new IOException("Read " + rows + " rows from " + prefix + " but wrote " + written);
+    }
+    return compacted;
+  }
+
+  /**
+   * Give the new files their final name and delete the old files and the manifest.
+   * Steps that were done before are skipped.
+   */
+  private void completeSwap(String prefix, Manifest manifest, Map<String, RemoteFile> remote) {
+    for (Map.Entry<String, String> move : manifest.moves.entrySet()) {
+      RemoteFile staged = remote.get(move.getKey());
+      if (staged != null) {
+        files.move(staged, move.getValue());
+      } else if (!remote.containsKey(move.getValue())) {
+        // the old files are kept, so no rows are lost
+        throw new IllegalStateException("Neither " + move.getKey() + " nor " + move.getValue() + " exists");
+      }
+    }
+    for (String key : manifest.deletes) {
+      RemoteFile old = remote.get(key);
+      if (old != null) {
+        files.delete(old);
+      }
+    }
+    files.delete(remote.get(prefix + MANIFEST));
+  }
+
+  private Manifest readManifest(RemoteFile remote, File folder) throws IOException {
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("Could not create " + folder);
+    }
+    remote.setLocalPath(new File(folder, MANIFEST).toPath());
+    files.download(Collections.singletonList(remote));
+    if (!remote.existsLocally()) {
+      throw new IOException("Download of " + remote.getKey() + " failed");
+    }
+    return Manifest.parse(Files.readAllLines(remote.getLocalPath(), StandardCharsets.UTF_8));
+  }
+
+  private Map<String, RemoteFile> list(String prefix) {
+    Map<String, RemoteFile> remote = new HashMap<>();
+    for (RemoteFile file : files.findRemoteFiles(() -> prefix)) {
+      // only the files of the partition itself
+      if (file.getKey().indexOf('/', prefix.length()) < 0) {
+        remote.put(file.getKey(), file);
+      }
+    }
+    return remote;
+  }
+
+  private static String nameOf(String prefix, RemoteFile file) {
+    return file.getKey().substring(prefix.length());
+  }
+
+  // Athena skips files starting with an underscore or a dot, files in hour partitions below the prefix are left alone
+  private static boolean isVisibleParquetFile(String name) {
+    return name.endsWith(".parquet") && !name.startsWith("_") && !name.startsWith(".") && !name.contains("/");
+  }
+
+  /**
+   * The keys to move and delete to swap the old files of a partition for the compacted ones.
+   * One line per key: <code>move &lt;staged key&gt; &lt;final key&gt;</code> or <code>delete &lt;key&gt;</code>.
+   */
+  private static class Manifest {
+
+    private final Map<String, String> moves = new HashMap<>();
+    private final List<String> deletes = new ArrayList<>();
+
+    private List<String> lines() {
+      List<String> lines = new ArrayList<>();
+      moves.forEach((staged, target) -> lines.add("move " + staged + " " + target));
+      deletes.forEach(key -> lines.add("delete " + key));
+      return lines;
+    }
+
+    private static Manifest parse(List<String> lines) throws IOException {
+      Manifest manifest = new Manifest();
+      for (String line : lines) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length == 3 && fields[0].equals("move")) {
+          manifest.moves.put(fields[1], fields[2]);
+        } else if (fields.length == 2 && fields[0].equals("delete")) {
+          manifest.deletes.add(fields[1]);
+        } else if (!line.trim().isEmpty()) {
+          throw new IOException("Invalid line in compaction manifest: " + line);
+        }
+      }
+      return manifest;
+    }
+  }
+
+}
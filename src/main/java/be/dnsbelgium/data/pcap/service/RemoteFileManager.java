@@ -40,6 +40,10 @@ public interface RemoteFileManager {
 
   void upload(List<RemoteFile> files);
 
+  /* delete the remote file, throws IllegalStateException when that fails */
+  void delete(RemoteFile file);
 
+  /* give the remote file a new key, throws IllegalStateException when that fails */
+  void move(RemoteFile file, String key);
 
 }
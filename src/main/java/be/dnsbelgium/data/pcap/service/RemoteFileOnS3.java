@@ -39,6 +39,7 @@ public class RemoteFileOnS3 implements RemoteFile {
     this.objectSummary = new S3ObjectSummary();
     objectSummary.setKey(key);
     objectSummary.setSize(path.toFile().length());
+    this.localPath = path;
   }
 
   @Override
@@ -23,12 +23,14 @@ import be.dnsbelgium.data.pcap.aws.s3.Downloader;
 import be.dnsbelgium.data.pcap.aws.s3.Tagger;
 import be.dnsbelgium.data.pcap.aws.s3.Uploader;
 import be.dnsbelgium.data.pcap.convertor.ConvertorConfig;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -50,10 +52,18 @@ public class S3FileManager implements RemoteFileManager {
     this.config = config;
   }
 
+  /*
+   * finds, downloads, uploads, deletes and moves files in the parquet bucket
+   */
   @Override
   public List<RemoteFile> findRemoteFiles(FileFilter filter) {
-    downloader.listFilesIn("BUCKET", filter.getPrefix());
-    return null;
+    List<RemoteFile> files = new ArrayList<>();
+    for (S3ObjectSummary summary : downloader.listObjects(config.getParquetBucketName(), filter.getPrefix())) {
+      if (!summary.getKey().endsWith("/")) {
+        files.add(new RemoteFileOnS3(summary));
+      }
+    }
+    return files;
   }
 
   @Override
@@ -67,10 +77,12 @@ public class S3FileManager implements RemoteFileManager {
   @Override
   public void download(List<RemoteFile> remoteFiles) {
     for (RemoteFile remoteFile : remoteFiles) {
-      // TODO: check and add tags ??
-      tagger.getTags("", remoteFile.getKey());
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(config.getParquetBucketName());
+      summary.setKey(remoteFile.getKey());
+      summary.setSize(remoteFile.size());
       try {
-        File file = downloader.download(null, remoteFile.getLocalPath().toFile());
+        File file = downloader.download(summary, remoteFile.getLocalPath().toFile());
         remoteFile.setLocalPath(file.toPath());
       } catch (IOException e) {
         logger.error("Downloading [" + remoteFile.getKey() + "] failed", e);
@@ -102,4 +114,20 @@ public class S3FileManager implements RemoteFileManager {
       uploader.upload(targetBucket, remoteFile.getKey(), remoteFile.getLocalPath().toFile());
     }
   }
+
+  @Override
+  public void delete(RemoteFile file) {
+    if (!downloader.delete(config.getParquetBucketName(), file.getKey())) {
+      throw new IllegalStateException("Could not delete " + file.getKey());
+    }
+  }
+
+  @Override
+  public void move(RemoteFile file, String key) {
+    String bucket = config.getParquetBucketName();
+    if (!downloader.move(bucket, file.getKey(), bucket, key)) {
+      throw new IllegalStateException("Could not move " + file.getKey() + " to " + key);
+    }
+    file.setKey(key);
+  }
 }
@@ -27,9 +27,15 @@ import be.dnsbelgium.data.pcap.aws.s3.Uploader;
 import be.dnsbelgium.data.pcap.convertor.ConversionJob;
 import be.dnsbelgium.data.pcap.convertor.ConvertorConfig;
 import be.dnsbelgium.data.pcap.convertor.ConvertorService;
+import be.dnsbelgium.data.pcap.convertor.ParquetBenchmark;
 import be.dnsbelgium.data.pcap.convertor.PcapConvertor;
 import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.parquet.ParquetIndexVerifier;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
+import be.dnsbelgium.data.pcap.reader.CombinationQueue;
 import be.dnsbelgium.data.pcap.reader.PcapFileReader;
+import be.dnsbelgium.data.pcap.reader.PcapReaderConfig;
+import be.dnsbelgium.data.pcap.service.ParquetCompactor;
 import be.dnsbelgium.data.pcap.utils.FileHelper;
 import be.dnsbelgium.data.pcap.utils.FileSize;
 import com.google.common.collect.Lists;
@@ -46,8 +52,10 @@ import org.springframework.shell.standard.ShellMethod;
 import org.springframework.shell.standard.ShellOption;
 
 import java.io.File;
+import java.io.IOException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -70,6 +78,8 @@ public class PcapShell implements ApplicationContextAware {
   private final PcapConvertor pcapConvertor;
   private final FileHelper fileHelper;
   private final ConvertorService convertorService;
+  private final ParquetBenchmark parquetBenchmark;
+  private final ParquetCompactor parquetCompactor;
   private AthenaTools athena;
 
   private ApplicationContext applicationContext;
@@ -77,7 +87,7 @@ public class PcapShell implements ApplicationContextAware {
   @Autowired
   public PcapShell(ConvertorConfig config, Downloader downloader, Uploader uploader, Tagger tagger,
                    PcapConvertor pcapConvertor, FileHelper fileHelper, ConvertorService convertorService,
-                   AthenaTools athena) {
+                   AthenaTools athena, ParquetBenchmark parquetBenchmark, ParquetCompactor parquetCompactor) {
     logger.info("****** creating a Shell *****");
     this.config = config;
     this.downloader = downloader;
@@ -86,6 +96,8 @@ public class PcapShell implements ApplicationContextAware {
     this.fileHelper = fileHelper;
     this.convertorService = convertorService;
     this.athena = athena;
+    this.parquetBenchmark = parquetBenchmark;
+    this.parquetCompactor = parquetCompactor;
   }
 
   @ShellMethod("show current config")
@@ -311,11 +323,57 @@ public class PcapShell implements ApplicationContextAware {
   }
 
 
+  @ShellMethod("convert the same PCAP files with every combination of the given parquet settings "
+      + "and report throughput, output bytes and estimated Athena bytes scanned")
+  public String benchmarkParquet(
+      @ShellOption(help = "comma separated PCAP files or folders") String pcapFiles,
+      @ShellOption(defaultValue = "SNAPPY,GZIP,ZSTD") String codecs,
+      @ShellOption(defaultValue = "128") String rowGroupMb,
+      @ShellOption(defaultValue = "1024") String pageKb,
+      @ShellOption(defaultValue = "true") String dictionary,
+      @ShellOption(defaultValue = ";domainname,qname,time",
+          help = "semicolon separated lists of sort columns, an empty list for arrival order") String sorts,
+      @ShellOption(defaultValue = "time,domainname,qname,qtype,rcode,country",
+          help = "comma separated columns read by a typical query") String columns,
+      @ShellOption(defaultValue = "qname", help = "string column a typical query filters on") String lookupColumn)
+      throws IOException, InterruptedException {
+    List<File> files = new ArrayList<>();
+    for (String path : ParquetWriterConfig.split(pcapFiles)) {
+      File file = new File(path);
+      if (file.isDirectory()) {
+        files.addAll(fileHelper.findRecursively(file, "gz"));
+        files.addAll(fileHelper.findRecursively(file, "pcap"));
+      } else {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    List<ParquetWriterConfig> settings = ParquetBenchmark.settings(codecs, rowGroupMb, pageKb, dictionary, sorts);
+    logger.info("Benchmarking {} parquet settings on {} PCAP files", settings.size(), files.size());
+    File workFolder = fileHelper.uniqueSubFolder(config.getParquetOutputFolder());
+    try {
+      List<ParquetBenchmark.Result> results = parquetBenchmark.run(files, settings, workFolder);
+      return ParquetBenchmark.report(results, ParquetWriterConfig.split(columns), lookupColumn);
+    } finally {
+      fileHelper.deleteRecursively(workFolder);
+    }
+  }
+
+  @ShellMethod("read the bloom filters and column indexes of local parquet files back and report how well they work")
+  public String verifyParquetIndexes(
+      @ShellOption(help = "folder with parquet files") String folder,
+      @ShellOption(defaultValue = "qname,src,edns_client_subnet") String columns) throws IOException {
+    List<File> files = fileHelper.findRecursively(new File(folder), "parquet");
+    logger.info("Verifying the indexes of {} parquet files", files.size());
+    return ParquetIndexVerifier.verify(files, ParquetWriterConfig.split(columns)).report();
+  }
+
   @ShellMethod("Analyze specified decoder-state file")
   public String loadDecoderState(String server, @ShellOption(defaultValue="20") int limit) {
     logger.info("server = {}", server);
     ServerInfo serverInfo = new ServerInfo(server + config.getServerSuffix(), server, server);
-    PcapFileReader pcapFileReader = new PcapFileReader(null, serverInfo, Lists.newArrayList(), null);
+    PcapReaderConfig readerConfig = applicationContext.getBean(PcapReaderConfig.class);
+    PcapFileReader pcapFileReader = new PcapFileReader(readerConfig, serverInfo, Lists.newArrayList(), new CombinationQueue(1));
     pcapFileReader.loadState();
     pcapFileReader.printState(limit);
     return "state loaded";
@@ -357,13 +415,28 @@ public class PcapShell implements ApplicationContextAware {
   }
 
   @ShellMethod("Add a new partition")
-  public void addPartition(String dd_mm_yyyy, String server, @ShellOption(defaultValue = "") String s3Location) {
+  public void addPartition(String dd_mm_yyyy, String server, @ShellOption(defaultValue = "") String s3Location,
+                           @ShellOption(defaultValue = "") String hour) {
     if (s3Location.equals("")) {
       s3Location = config.getParquetS3Location();
     }
     LocalDate date = LocalDate.parse(dd_mm_yyyy, DateTimeFormatter.ofPattern("ddMMyyyy"));
     ServerInfo serverInfo = new ServerInfo(server, server, "");
-    athena.addPartition(date, serverInfo, config.getAthenaDatabaseName(), config.getAthenaTableName(), s3Location);
+    athena.addPartition(date, hourOf(hour), serverInfo, config.getAthenaDatabaseName(), config.getAthenaTableName(),
+        s3Location);
+  }
+
+  @ShellMethod("Rewrite the small parquet files of a partition on S3 into a few large sorted files")
+  public String compactPartition(String dd_mm_yyyy, String server, @ShellOption(defaultValue = "") String hour)
+      throws IOException {
+    LocalDate date = LocalDate.parse(dd_mm_yyyy, DateTimeFormatter.ofPattern("ddMMyyyy"));
+    ServerInfo serverInfo = new ServerInfo(server, server, "");
+    return parquetCompactor.compact(date, hourOf(hour), serverInfo).toString();
+  }
+
+  // empty for the partition of the whole day
+  private static Integer hourOf(String hour) {
+    return hour.isEmpty() ? null : Integer.valueOf(hour);
   }
 
   @ShellMethod("Count the rows in the Athena table with DNS queries")
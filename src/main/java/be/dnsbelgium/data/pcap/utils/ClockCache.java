@@ -0,0 +1,229 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache with CLOCK eviction, safe to share between threads.
+ * <p>
+ * Hits take no lock: the entries are in a {@link ConcurrentHashMap} and a hit only sets the reference bit of its
+ * entry. Inserts are spread over segments by the hash of the key, every segment has a ring of its entries and a
+ * clock hand under its own lock. When a segment is full, the hand clears reference bits until it finds an entry
+ * that was not used since the hand passed it the last time, and replaces that one. Entries that keep getting hits
+ * stay, entries that are used once leave after one turn of the hand, without ordering entries on every hit like
+ * an LRU cache does.
+ * <p>
+ * Null values are not cached.
+ *
+ * @param <K> the type of the keys, with a good hashCode
+ * @param <V> the type of the values
+ */
+public class ClockCache<K, V> {
+
+  // below this capacity, a single segment
+  private static final int MIN_SEGMENT_CAPACITY = 1024;
+  private static final int MAX_SEGMENTS = 16;
+
+  private final ConcurrentHashMap<K, Entry<K, V>> entries;
+  private final Segment<K, V>[] segments;
+  private final int capacity;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param capacity max number of entries
+   */
+  @SuppressWarnings("unchecked")
+  public ClockCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity should be positive: " + capacity);
+    }
+    int count = 1;
+    while (count < MAX_SEGMENTS && capacity / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+      count *= 2;
+    }
+    this.capacity = capacity;
+    this.entries = new ConcurrentHashMap<>(Math.min(capacity, 1 << 16));
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      // the first segments get one more entry when the capacity is not a multiple of the count
+      segments[i] = new Segment<>(capacity / count + (i < capacity % count ? 1 : 0));
+    }
+  }
+
+  /**
+   * @return the cached value of the key, null when it is not cached
+   */
+  public V get(K key) {
+    Entry<K, V> entry = entries.get(key);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    entry.referenced = true;
+    hits.increment();
+    return entry.value;
+  }
+
+  /**
+   * Return the cached value of the key, or load and cache it. The loader runs without a lock, so threads
+   * that miss the same key at the same time can both load it.
+   *
+   * @param key    the key
+   * @param loader computes the value of a key that is not cached
+   * @return the cached or loaded value
+   */
+  public V get(K key, Function<K, V> loader) {
+    V value = get(key);
+    if (value == null) {
+      value = loader.apply(key);
+      put(key, value);
+    }
+    return value;
+  }
+
+  /**
+   * Cache a value, unless the key is cached already.
+   */
+  public void put(K key, V value) {
+    if (value == null) {
+      return;
+    }
+    Segment<K, V> segment = segments[spread(key.hashCode()) & (segments.length - 1)];
+    synchronized (segment) {
+      Entry<K, V> entry = new Entry<>(key, value);
+      if (entries.putIfAbsent(key, entry) != null) {
+        return;
+      }
+      Entry<K, V> evicted = segment.add(entry);
+      if (evicted != null) {
+        entries.remove(evicted.key, evicted);
+        evictions.increment();
+      }
+    }
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        for (int i = 0; i < segment.size; i++) {
+          entries.remove(segment.ring[i].key, segment.ring[i]);
+        }
+        segment.clear();
+      }
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return hits divided by lookups, 0 before the first lookup
+   */
+  public double getHitRate() {
+    long hitCount = getHits();
+    long lookups = hitCount + getMisses();
+    return lookups == 0 ? 0 : (double) hitCount / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d of %d entries, %d hits, %d misses (hit rate %.1f%%), %d evictions",
+        size(), capacity, getHits(), getMisses(), 100 * getHitRate(), getEvictions());
+  }
+
+  // use the high bits of the hash as well, the segment is chosen with the low bits
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16) ^ (hash >>> 8);
+  }
+
+  private static final class Entry<K, V> {
+
+    private final K key;
+    private final V value;
+    // set by hits without synchronization: a lost update only makes the entry leave a turn earlier
+    private boolean referenced;
+
+    private Entry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  private static final class Segment<K, V> {
+
+    private final Entry<K, V>[] ring;
+    private int size = 0;
+    private int hand = 0;
+
+    @SuppressWarnings("unchecked")
+    private Segment(int capacity) {
+      this.ring = new Entry[capacity];
+    }
+
+    /**
+     * @return the entry that made room for the new one, null when the segment was not full
+     */
+    private Entry<K, V> add(Entry<K, V> entry) {
+      if (size < ring.length) {
+        ring[size++] = entry;
+        return null;
+      }
+      while (ring[hand].referenced) {
+        ring[hand].referenced = false;
+        hand = (hand + 1) % ring.length;
+      }
+      Entry<K, V> evicted = ring[hand];
+      ring[hand] = entry;
+      hand = (hand + 1) % ring.length;
+      return evicted;
+    }
+
+    private void clear() {
+      Arrays.fill(ring, 0, size, null);
+      size = 0;
+      hand = 0;
+    }
+  }
+
+}
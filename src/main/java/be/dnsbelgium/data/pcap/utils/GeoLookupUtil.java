@@ -19,53 +19,179 @@
 
 package be.dnsbelgium.data.pcap.utils;
 
+import be.dnsbelgium.data.pcap.ip.IpAddress;
 import com.maxmind.db.CHMCache;
+import com.maxmind.db.Metadata;
+import com.maxmind.db.Reader;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
 import com.maxmind.geoip2.model.AsnResponse;
 import com.maxmind.geoip2.model.CountryResponse;
+import nl.sidn.pcap.support.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class to lookup IP adress information such as country and asn. Uses the maxmind database
+ * <p>
+ * The databases are read into memory, with a bounded cache of decoded nodes. They are not memory-mapped: the files
+ * are replaced while the converter runs, and a lookup in a mapped file that was overwritten in place gets a SIGBUS,
+ * which fails the lookup with an InternalError or crashes the JVM.
+ * When {@link #startWatching(long)} was called, a background thread checks the folder for new database files and
+ * swaps them in without blocking the lookups: a lookup uses either the old or the new pair of databases.
+ * The old databases are garbage collected once no lookup uses them anymore.
  */
 
-public class GeoLookupUtil {
+public class GeoLookupUtil implements Closeable {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(GeoLookupUtil.class);
 
   private static final String MAXMIND_COUNTRY_DB = "GeoLite2-Country.mmdb";
   private static final String MAXMIND_ASN_DB = "GeoLite2-ASN.mmdb";
 
-  private DatabaseReader geoReader;
-  private DatabaseReader asnReader;
+  public final static int DEFAULT_NODE_CACHE_SIZE = 4096;
+
+  private final File folder;
+  private final int nodeCacheSize;
+  private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+
+  // replaced as a whole when new files are loaded
+  private volatile Databases databases;
+
+  // the version of the files seen by the previous check, they are only loaded when they did not change since then
+  private FileVersion pendingVersion;
+  private ScheduledExecutorService watcher;
 
   public GeoLookupUtil(String folder) {
+    this(folder, DEFAULT_NODE_CACHE_SIZE);
+  }
+
+  /**
+   * @param folder        the folder with the MaxMind files
+   * @param nodeCacheSize max number of decoded database nodes cached per database
+   */
+  public GeoLookupUtil(String folder, int nodeCacheSize) {
     LOGGER.info("Loading Maxmind GEO/ASN database in folder {}", folder);
+    this.folder = new File(folder);
+    this.nodeCacheSize = nodeCacheSize;
     try {
-      // geo
-      File database = new File(folder, MAXMIND_COUNTRY_DB);
-      geoReader = new DatabaseReader.Builder(database).withCache(new CHMCache()).build();
-      // asn
-      database = new File(folder, MAXMIND_ASN_DB);
-      asnReader = new DatabaseReader.Builder(database).withCache(new CHMCache()).build();
-
-      LOGGER.info("loaded geo database of {}", geoReader.getMetadata().getBuildDate());
-      LOGGER.info("loaded geo database type {}", geoReader.getMetadata().getDatabaseType());
-      LOGGER.info("loaded ASN database of {}", asnReader.getMetadata().getBuildDate());
-
+      databases = open(currentVersion());
     } catch (IOException e) {
       LOGGER.error("You probaly need to run scripts/download_maxmind_geo_ip_db.sh");
       throw new RuntimeException("Error initializing Maxmind GEO/ASN database from " + folder, e);
     }
   }
 
+  private Databases open(FileVersion version) throws IOException {
+    DatabaseReader geoReader = open(new File(folder, MAXMIND_COUNTRY_DB));
+    DatabaseReader asnReader = open(new File(folder, MAXMIND_ASN_DB));
+    Databases opened = new Databases(geoReader, asnReader, version);
+    LOGGER.info("loaded geo database of {}", geoReader.getMetadata().getBuildDate());
+    LOGGER.info("loaded geo database type {}", geoReader.getMetadata().getDatabaseType());
+    LOGGER.info("loaded ASN database of {}", asnReader.getMetadata().getBuildDate());
+    return opened;
+  }
+
+  private DatabaseReader open(File database) throws IOException {
+    return new DatabaseReader.Builder(database)
+        .fileMode(Reader.FileMode.MEMORY)
+        .withCache(new CHMCache(nodeCacheSize))
+        .build();
+  }
+
+  private FileVersion currentVersion() {
+    return new FileVersion(new File(folder, MAXMIND_COUNTRY_DB), new File(folder, MAXMIND_ASN_DB));
+  }
+
+  /**
+   * Check the folder for new database files every <code>intervalSeconds</code>, on a background thread.
+   */
+  public synchronized void startWatching(long intervalSeconds) {
+    if (watcher != null) {
+      return;
+    }
+    LOGGER.info("Checking {} for new MaxMind databases every {} seconds", folder, intervalSeconds);
+    watcher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("MaxMind-Watcher"));
+    watcher.scheduleWithFixedDelay(this::reloadIfChanged, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Load the database files when they differ from the loaded ones and did not change since the previous call,
+   * so that files that are still being written are skipped. When a file cannot be opened, the loaded databases
+   * are kept and the next call tries again.
+   *
+   * @return true when new databases were swapped in
+   */
+  public synchronized boolean reloadIfChanged() {
+    FileVersion version = currentVersion();
+    if (version.equals(databases.version)) {
+      pendingVersion = null;
+      return false;
+    }
+    if (!version.equals(pendingVersion)) {
+      LOGGER.info("MaxMind databases in {} changed, loading them when they are complete", folder);
+      pendingVersion = version;
+      return false;
+    }
+    try {
+      databases = open(version);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.error("Could not load the new MaxMind databases from {}, keeping {}", folder, getDatabaseVersion(), e);
+      pendingVersion = null;
+      return false;
+    }
+    pendingVersion = null;
+    LOGGER.info("Now using MaxMind databases {}", getDatabaseVersion());
+    for (Runnable listener : reloadListeners) {
+      listener.run();
+    }
+    return true;
+  }
+
+  /**
+   * @param listener called on the watcher thread after new databases were swapped in, eg. to clear caches
+   */
+  public void addReloadListener(Runnable listener) {
+    reloadListeners.add(listener);
+  }
+
+  /**
+   * @return type and build date of the databases in use, eg. <code>GeoLite2-Country 2019-06-04, GeoLite2-ASN 2019-06-04</code>
+   */
+  public String getDatabaseVersion() {
+    Databases current = databases;
+    return describe(current.geoReader.getMetadata()) + ", " + describe(current.asnReader.getMetadata());
+  }
+
+  private static String describe(Metadata metadata) {
+    return metadata.getDatabaseType() + " "
+        + DateTimeFormatter.ISO_LOCAL_DATE.format(metadata.getBuildDate().toInstant().atZone(ZoneOffset.UTC));
+  }
+
+  /**
+   * Stops the watcher. The databases are not closed, lookups that are still running can finish.
+   */
+  @Override
+  public synchronized void close() {
+    if (watcher != null) {
+      watcher.shutdownNow();
+      watcher = null;
+    }
+  }
+
   public String lookupCountry(String ip) {
     try {
       return lookupCountry(InetAddress.getByName(ip));
@@ -77,11 +203,15 @@ public class GeoLookupUtil {
     }
   }
 
+  public String lookupCountry(IpAddress ip) {
+    return lookupCountry(ip.toInetAddress());
+  }
+
   public String lookupCountry(InetAddress addr) {
     CountryResponse response;
 
     try {
-      response = geoReader.country(addr);
+      response = databases.geoReader.country(addr);
     } catch (Exception e) {
       LOGGER.debug("No country found for {}", addr);
       return null;
@@ -91,7 +221,7 @@ public class GeoLookupUtil {
 
   public String lookupASN(InetAddress ip) {
     try {
-      AsnResponse ar = asnReader.asn(ip);
+      AsnResponse ar = databases.asnReader.asn(ip);
       return String.valueOf(ar.getAutonomousSystemNumber());
     } catch (Exception e) {
       if (LOGGER.isDebugEnabled()) {
@@ -101,6 +231,10 @@ public class GeoLookupUtil {
     return null;
   }
 
+  public String lookupASN(IpAddress ip) {
+    return lookupASN(ip.toInetAddress());
+  }
+
   public String lookupASN(String ip) {
     InetAddress inetAddr;
     try {
@@ -116,8 +250,20 @@ public class GeoLookupUtil {
 
   public AutonomousSystem lookupAutonomousSystem(String ip) {
     try {
-      InetAddress inetAddr = InetAddress.getByName(ip);
-      AsnResponse asnResponse = asnReader.asn(inetAddr);
+      return lookupAutonomousSystem(InetAddress.getByName(ip));
+    } catch (UnknownHostException e) {
+      LOGGER.debug("No ASN found for {} : {}", ip, e.getMessage());
+      return null;
+    }
+  }
+
+  public AutonomousSystem lookupAutonomousSystem(IpAddress ip) {
+    return lookupAutonomousSystem(ip.toInetAddress());
+  }
+
+  public AutonomousSystem lookupAutonomousSystem(InetAddress ip) {
+    try {
+      AsnResponse asnResponse = databases.asnReader.asn(ip);
       return new AutonomousSystem(asnResponse);
     } catch (GeoIp2Exception | IOException e) {
       LOGGER.debug("No ASN found for {} : {}", ip, e.getMessage());
@@ -125,5 +271,50 @@ public class GeoLookupUtil {
     }
   }
 
+  private static final class Databases {
+
+    private final DatabaseReader geoReader;
+    private final DatabaseReader asnReader;
+    private final FileVersion version;
+
+    private Databases(DatabaseReader geoReader, DatabaseReader asnReader, FileVersion version) {
+      this.geoReader = geoReader;
+      this.asnReader = asnReader;
+      this.version = version;
+    }
+  }
+
+  private static final class FileVersion {
+
+    private final long geoModified;
+    private final long geoLength;
+    private final long asnModified;
+    private final long asnLength;
+
+    private FileVersion(File geoFile, File asnFile) {
+      this.geoModified = geoFile.lastModified();
+      this.geoLength = geoFile.length();
+      this.asnModified = asnFile.lastModified();
+      this.asnLength = asnFile.length();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof FileVersion)) {
+        return false;
+      }
+      FileVersion other = (FileVersion) o;
+      return geoModified == other.geoModified && geoLength == other.geoLength
+          && asnModified == other.asnModified && asnLength == other.asnLength;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(geoModified) * 31 + Long.hashCode(asnModified);
+    }
+  }
 
 }
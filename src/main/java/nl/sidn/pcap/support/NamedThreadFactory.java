@@ -27,17 +27,28 @@ import java.util.concurrent.ThreadFactory;
 public class NamedThreadFactory implements ThreadFactory {
 
   private String name;
+  private boolean daemon;
   private long count = 1;
   private ThreadFactory factory = Executors.defaultThreadFactory();
 
   public NamedThreadFactory(String name){
+    this(name, false);
+  }
+
+  /**
+   * @param name   prefix of the thread names
+   * @param daemon true for threads that should not keep the JVM alive, e.g. when their owner is never closed
+   */
+  public NamedThreadFactory(String name, boolean daemon){
     this.name = name;
+    this.daemon = daemon;
   }
 
   @Override
   public Thread newThread(Runnable r) {
     Thread newThread = factory.newThread(r);
     newThread.setName(name + "-" + count);
+    newThread.setDaemon(daemon);
     count++;
     return newThread;
   }
@@ -1,5 +1,6 @@
 package nl.sidn.pcap.support;
 
+import be.dnsbelgium.data.pcap.ip.IpAddress;
 import nl.sidn.dnslib.message.Message;
 import nl.sidn.pcap.packet.Packet;
 
@@ -17,6 +18,9 @@ public class PacketCombination {
   private Message responseMessage;
   //true if this packet has expired from cache
   private boolean expired;
+  // client and server address in the direction of the query, derived from the packets when not known
+  private IpAddress src;
+  private IpAddress dst;
 
   public PacketCombination(Packet request, Message requestMessage, ServerInfo server, boolean expired, String pcapFilename) {
     this(request, requestMessage, server, null, null, expired, pcapFilename);
@@ -24,6 +28,15 @@ public class PacketCombination {
 
   public PacketCombination(Packet request, Message requestMessage, ServerInfo server, Packet response, Message responseMessage,
                            boolean expired, String pcapFilename) {
+    this(request, requestMessage, server, response, responseMessage, expired, pcapFilename, null, null);
+  }
+
+  /**
+   * @param src address of the client, the source of the query
+   * @param dst address of the name server, the destination of the query
+   */
+  public PacketCombination(Packet request, Message requestMessage, ServerInfo server, Packet response, Message responseMessage,
+                           boolean expired, String pcapFilename, IpAddress src, IpAddress dst) {
     this.request = request;
     this.response = response;
     this.requestMessage = requestMessage;
@@ -31,6 +44,8 @@ public class PacketCombination {
     this.server = server;
     this.expired = expired;
     this.pcapFilename = pcapFilename;
+    this.src = src;
+    this.dst = dst;
   }
 
   public Packet getRequest() {
@@ -61,4 +76,24 @@ public class PacketCombination {
     return pcapFilename;
   }
 
+  /**
+   * @return address of the client: the source of the request, or the destination of the response
+   */
+  public IpAddress getSrc() {
+    if (src == null) {
+      src = IpAddress.parse(request != null ? request.getSrc() : response.getDst());
+    }
+    return src;
+  }
+
+  /**
+   * @return address of the name server: the destination of the request, or the source of the response
+   */
+  public IpAddress getDst() {
+    if (dst == null) {
+      dst = IpAddress.parse(request != null ? request.getDst() : response.getSrc());
+    }
+    return dst;
+  }
+
 }
@@ -68,7 +68,7 @@ CREATE EXTERNAL TABLE IF NOT EXISTS {DATABASENAME}.{TABLENAME} (
   year string,
   month string,
   day string,
-  server string
+  server string{HOURCOLUMN}
 )
 ROW FORMAT SERDE
 'org.apache.hadoop.hive.ql.io.parquet.serde.ParquetHiveSerDe'
@@ -76,4 +76,6 @@ WITH SERDEPROPERTIES (
     'serialization.format' = '1' )
 LOCATION
    '{S3LOCATION}'
-TBLPROPERTIES ('has_encrypted_data'='false')
+TBLPROPERTIES (
+  'has_encrypted_data'='false'{TBLPROPERTIES}
+)
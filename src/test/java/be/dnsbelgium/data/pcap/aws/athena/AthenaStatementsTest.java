@@ -24,8 +24,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class AthenaStatementsTest {
 
@@ -48,6 +52,41 @@ public class AthenaStatementsTest {
             " location 's3://my-bucket/my/path/dnsdata/year=2018/month=09/day=02/server=milano1'", ddl);
   }
 
+  @Test
+  public void addHourPartition() {
+    String ddl = statements.addPartition(dmy, 7, server, "s3://my-bucket/my/path/dnsdata/", "my-db", "myTable");
+    assertEquals(
+        "alter table my-db.mytable add if not exists partition (year='2018',month='09',day='02',server='milano1',hour='07') " +
+            " location 's3://my-bucket/my/path/dnsdata/year=2018/month=09/day=02/server=milano1/hour=07'", ddl);
+  }
+
+  @Test
+  public void createTable() {
+    String ddl = statements.createTable("db", "queries", "s3://my-bucket/dnsdata/");
+    assertTrue(ddl, ddl.contains("server string\n)"));
+    assertTrue(ddl, ddl.contains("TBLPROPERTIES (\n  'has_encrypted_data'='false'\n)"));
+    assertFalse(ddl, ddl.contains("{"));
+  }
+
+  @Test
+  public void createProjectedTable() {
+    String ddl = statements.createProjectedTable("db", "queries", "s3://my-bucket/dnsdata/", true, "2019,2039",
+        Arrays.asList("ns1", "ns2"));
+    assertTrue(ddl, ddl.contains("server string,\n  hour string\n)"));
+    assertTrue(ddl, ddl.contains("'projection.enabled'='true'"));
+    assertTrue(ddl, ddl.contains("'projection.year.range'='2019,2039'"));
+    assertTrue(ddl, ddl.contains("'projection.server.type'='enum',\n  'projection.server.values'='ns1,ns2'"));
+    assertTrue(ddl, ddl.contains("'projection.hour.range'='0,23'"));
+    assertTrue(ddl, ddl.contains("'storage.location.template'="
+        + "'s3://my-bucket/dnsdata/year=${year}/month=${month}/day=${day}/server=${server}/hour=${hour}'\n)"));
+
+    ddl = statements.createProjectedTable("db", "queries", "s3://my-bucket/dnsdata/", false, "2019,2039",
+        Collections.emptyList());
+    assertTrue(ddl, ddl.contains("server string\n)"));
+    assertTrue(ddl, ddl.contains("'projection.server.type'='injected'"));
+    assertFalse(ddl, ddl.contains("hour"));
+  }
+
   @Test
   public void countRowsInPartition() {
     String sql = statements.countRowsInPartition(dmy, server, "myTable");
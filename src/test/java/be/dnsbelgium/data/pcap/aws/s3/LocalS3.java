@@ -0,0 +1,213 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.aws.s3;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for S3 in tests, for puts and multipart uploads: objects are stored as
+ * <code>&lt;root&gt;/&lt;bucket&gt;/&lt;key&gt;</code>, the parts of uploads are kept in memory until completed.
+ * Like S3 it refuses to complete an upload with a part smaller than the minimum part size, except for the last one.
+ */
+public class LocalS3 extends AbstractAmazonS3 {
+
+  private final File root;
+  private final int minPartBytes;
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  private final AtomicInteger puts = new AtomicInteger();
+  private final AtomicInteger parts = new AtomicInteger();
+  // the part number that fails, 0 for none
+  private volatile int failingPart = 0;
+
+  public LocalS3(File root, int minPartBytes) {
+    this.root = root;
+    this.minPartBytes = minPartBytes;
+  }
+
+  public File fileOf(String bucket, String key) {
+    return new File(new File(root, bucket), key);
+  }
+
+  /**
+   * @return number of objects stored with a single put
+   */
+  public int getPuts() {
+    return puts.get();
+  }
+
+  /**
+   * @return number of parts received so far, of all uploads
+   */
+  public int getParts() {
+    return parts.get();
+  }
+
+  /**
+   * @return number of multipart uploads that were neither completed nor aborted
+   */
+  public int getOpenUploads() {
+    return uploads.size();
+  }
+
+  public void failPart(int partNumber) {
+    this.failingPart = partNumber;
+  }
+
+  @Override
+  public PutObjectResult putObject(PutObjectRequest request) {
+    byte[] data;
+    if (request.getFile() != null) {
+      data = read(request.getFile());
+    } else {
+      data = read(request.getInputStream());
+    }
+    store(request.getBucketName(), request.getKey(), data);
+    puts.incrementAndGet();
+    return new PutObjectResult();
+  }
+
+  @Override
+  public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+    String uploadId = UUID.randomUUID().toString();
+    uploads.put(uploadId, new Upload(request.getBucketName(), request.getKey()));
+    InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+    result.setBucketName(request.getBucketName());
+    result.setKey(request.getKey());
+    result.setUploadId(uploadId);
+    return result;
+  }
+
+  @Override
+  public UploadPartResult uploadPart(UploadPartRequest request) {
+    if (request.getPartNumber() == failingPart) {
+      throw new AmazonS3Exception("Part " + failingPart + " fails");
+    }
+    Upload upload = upload(request.getUploadId());
+    byte[] data = read(request.getInputStream());
+    if (data.length != request.getPartSize()) {
+      throw new AmazonS3Exception("Part size " + request.getPartSize() + " but got " + data.length + " bytes");
+    }
+    synchronized (upload) {
+      upload.parts.put(request.getPartNumber(), data);
+    }
+    parts.incrementAndGet();
+    UploadPartResult result = new UploadPartResult();
+    result.setPartNumber(request.getPartNumber());
+    result.setETag(Integer.toHexString(data.length) + "-" + request.getPartNumber());
+    return result;
+  }
+
+  @Override
+  public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+    Upload upload = upload(request.getUploadId());
+    ByteArrayOutputStream object = new ByteArrayOutputStream();
+    synchronized (upload) {
+      if (request.getPartETags().size() != upload.parts.size()) {
+        throw new AmazonS3Exception(request.getPartETags().size() + " ETags for " + upload.parts.size() + " parts");
+      }
+      int number = 0;
+      for (PartETag etag : request.getPartETags()) {
+        number++;
+        byte[] data = upload.parts.get(etag.getPartNumber());
+        if (etag.getPartNumber() != number || data == null) {
+          throw new AmazonS3Exception("Parts should be listed in order, without gaps");
+        }
+        if (data.length < minPartBytes && number < upload.parts.size()) {
+          throw new AmazonS3Exception("Part " + number + " is smaller than " + minPartBytes + " bytes");
+        }
+        object.write(data, 0, data.length);
+      }
+    }
+    store(upload.bucket, upload.key, object.toByteArray());
+    uploads.remove(request.getUploadId());
+    CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+    result.setBucketName(upload.bucket);
+    result.setKey(upload.key);
+    return result;
+  }
+
+  @Override
+  public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+    upload(request.getUploadId());
+    uploads.remove(request.getUploadId());
+  }
+
+  private Upload upload(String uploadId) {
+    Upload upload = uploads.get(uploadId);
+    if (upload == null) {
+      throw new AmazonS3Exception("No upload " + uploadId);
+    }
+    return upload;
+  }
+
+  private void store(String bucket, String key, byte[] data) {
+    File file = fileOf(bucket, key);
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      Files.write(file.toPath(), data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] read(File file) {
+    try {
+      return Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] read(InputStream in) {
+    try {
+      return IOUtils.toByteArray(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static class Upload {
+
+    private final String bucket;
+    private final String key;
+    private final SortedMap<Integer, byte[]> parts = new TreeMap<>();
+
+    private Upload(String bucket, String key) {
+      this.bucket = bucket;
+      this.key = key;
+    }
+  }
+
+}
@@ -45,6 +45,20 @@ public class ParquetFileTest {
     assertEquals("prague1", parquetFile.getServer());
   }
 
+  @Test
+  public void hourPartition() {
+    File baseFolder = new File("/data/pcap-to-athena/parquet/e621a356/");
+    File file = new File(baseFolder, "year=2018/month=10/day=17/server=prague1/hour=07/bc12dcd0-134545.parquet");
+    ParquetFile parquetFile = new ParquetFile(baseFolder, file);
+    assertEquals("2018-10-17", parquetFile.getDate().toString());
+    assertEquals("prague1", parquetFile.getServer());
+    assertEquals(Integer.valueOf(7), parquetFile.getHour());
+    assertEquals("dnsdata/year=2018/month=10/day=17/server=prague1/hour=07/bc12dcd0-134545.parquet", parquetFile.getKey());
+
+    file = new File(baseFolder, "year=2018/month=10/day=17/server=prague1/bc12dcd0-134545.parquet");
+    assertNull(new ParquetFile(baseFolder, file).getHour());
+  }
+
   @Test
   public void wrongFolderStructure() {
     File baseFolder = new File("/data/pcap-to-athena/parquet/e621a356/");
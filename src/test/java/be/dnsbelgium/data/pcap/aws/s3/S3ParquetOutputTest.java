@@ -0,0 +1,212 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.aws.s3;
+
+import be.dnsbelgium.data.pcap.parquet.DNSParquetPacketWriter;
+import be.dnsbelgium.data.pcap.parquet.DnsRow;
+import be.dnsbelgium.data.pcap.parquet.DnsRowSchema;
+import be.dnsbelgium.data.pcap.parquet.DnsRowWriteSupportTest;
+import be.dnsbelgium.data.pcap.parquet.ParquetFileStats;
+import be.dnsbelgium.data.pcap.parquet.ParquetOutput;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
+import be.dnsbelgium.data.pcap.parquet.PartitionedRowWriter;
+import org.apache.parquet.io.PositionOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class S3ParquetOutputTest {
+
+  private static final String BUCKET = "parquet-bucket";
+  private static final int PART_BYTES = 64 * 1024;
+
+  private LocalS3 s3;
+  private S3ParquetOutput output;
+
+  @Before
+  public void before() throws IOException {
+    s3 = new LocalS3(Files.createTempDirectory("S3ParquetOutputTest").toFile(), PART_BYTES);
+    output = new S3ParquetOutput(s3, BUCKET, "parquet/dnsdata/", PART_BYTES, 2, 2, PART_BYTES);
+  }
+
+  @After
+  public void after() {
+    output.close();
+  }
+
+  private byte[] random(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void smallFileIsPut() throws IOException {
+    byte[] data = random(1000);
+    ParquetOutput.Pending pending = output.create("a/small.parquet");
+    try (PositionOutputStream out = pending.getOutputFile().create(0)) {
+      out.write(data);
+      assertEquals(1000, out.getPos());
+    }
+    assertFalse(s3.fileOf(BUCKET, "parquet/dnsdata/a/small.parquet").exists());
+    assertEquals("s3://parquet-bucket/parquet/dnsdata/a/small.parquet", pending.commit());
+    assertArrayEquals(data, Files.readAllBytes(s3.fileOf(BUCKET, "parquet/dnsdata/a/small.parquet").toPath()));
+    assertEquals(1, s3.getPuts());
+    assertEquals(0, s3.getParts());
+    assertEquals(1000L, (long) output.getCommitted().get("a/small.parquet"));
+  }
+
+  @Test
+  public void uploadsPartsWhileWriting() throws IOException {
+    byte[] data = random(10 * PART_BYTES + 100);
+    ParquetOutput.Pending pending = output.create("a/large.parquet");
+    PositionOutputStream out = pending.getOutputFile().create(0);
+    // in small and odd chunks, to fill the parts across writes
+    for (int offset = 0; offset < data.length; offset += 1000) {
+      out.write(data, offset, Math.min(1000, data.length - offset));
+    }
+    // the tenth part waited until at most two parts were in flight
+    assertTrue(s3.getParts() + " parts", s3.getParts() >= 8);
+    assertFalse(s3.fileOf(BUCKET, "parquet/dnsdata/a/large.parquet").exists());
+    out.close();
+    assertEquals(11, s3.getParts());
+    // closed but not committed yet
+    assertFalse(s3.fileOf(BUCKET, "parquet/dnsdata/a/large.parquet").exists());
+    pending.commit();
+    assertArrayEquals(data, Files.readAllBytes(s3.fileOf(BUCKET, "parquet/dnsdata/a/large.parquet").toPath()));
+    assertEquals(0, s3.getPuts());
+    assertEquals(0, s3.getOpenUploads());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPartsBelowS3Minimum() {
+    new S3ParquetOutput(s3, BUCKET, "parquet/dnsdata/", S3MultipartOutputStream.MIN_PART_BYTES - 1, 2, 2).close();
+  }
+
+  @Test
+  public void smallFileDoesNotTakeWholePart() throws IOException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    S3MultipartOutputStream out = new S3MultipartOutputStream(s3, BUCKET, "small", S3MultipartOutputStream.MIN_PART_BYTES,
+        2, executor);
+    assertEquals(0, out.getMemoryBytes());
+    out.write(random(1000));
+    assertTrue(out.getMemoryBytes() + " bytes", out.getMemoryBytes() < S3MultipartOutputStream.MIN_PART_BYTES / 8);
+    out.close();
+    out.complete();
+    executor.shutdown();
+    assertEquals(1000, s3.fileOf(BUCKET, "small").length());
+  }
+
+  @Test
+  public void abortsFailedUpload() throws IOException {
+    s3.failPart(2);
+    ParquetOutput.Pending pending = output.create("a/failed.parquet");
+    PositionOutputStream out = pending.getOutputFile().create(0);
+    try {
+      out.write(random(5 * PART_BYTES));
+      out.close();
+      fail("the failed part should be reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("part 2"));
+    }
+    pending.abort();
+    assertEquals(0, s3.getOpenUploads());
+    assertFalse(s3.fileOf(BUCKET, "parquet/dnsdata/a/failed.parquet").exists());
+    assertTrue(output.getCommitted().isEmpty());
+  }
+
+  @Test
+  public void writesPartitionsToS3() throws IOException {
+    DnsRowSchema schema = DnsRowSchema.fromResource(DNSParquetPacketWriter.SCHEMA);
+    File work = Files.createTempDirectory("S3ParquetOutputTest-work").toFile();
+    ParquetWriterConfig config = new ParquetWriterConfig("SNAPPY", 64 * 1024, 8 * 1024, true);
+    PartitionedRowWriter writer = new PartitionedRowWriter(output, work, schema, "time", "svr", "server", config);
+    DnsRow row = new DnsRow(schema);
+    Random random = new Random(1);
+    for (int i = 0; i < 50_000; i++) {
+      row.clear();
+      DnsRowWriteSupportTest.fill(row, i);
+      row.set(schema.slot("qname"), "www.domain" + random.nextInt(100_000) + ".be")
+          .set(schema.slot("svr"), i % 2 == 0 ? "ns1.example.be" : "ns2.example.be");
+      writer.write(row);
+    }
+    List<String> locations = writer.close();
+    assertEquals(2, locations.size());
+
+    Map<String, Long> committed = output.getCommitted();
+    List<File> files = new ArrayList<>();
+    for (Map.Entry<String, Long> file : committed.entrySet()) {
+      String key = "parquet/dnsdata/" + file.getKey();
+      assertTrue(key, key.matches("parquet/dnsdata/year=2019/month=03/day=02/server=ns[12].example.be/[^/]+\\.parquet"));
+      assertTrue(locations.contains("s3://" + BUCKET + "/" + key));
+      File object = s3.fileOf(BUCKET, key);
+      assertEquals((long) file.getValue(), object.length());
+      files.add(object);
+    }
+    assertTrue(s3.getParts() > 2);
+    assertEquals(0, s3.getOpenUploads());
+    assertEquals(50_000, ParquetFileStats.of(files).getRows());
+    // nothing was written locally
+    String[] local = work.list();
+    assertNotNull(local);
+    assertEquals(0, local.length);
+  }
+
+  @Test
+  public void partsCountAsBufferedBytes() throws IOException {
+    DnsRowSchema schema = DnsRowSchema.fromResource(DNSParquetPacketWriter.SCHEMA);
+    // small row groups end up in the parts soon, the two open files buffer much more in parts than in row groups
+    ParquetWriterConfig config = new ParquetWriterConfig("SNAPPY", 16 * 1024, 4 * 1024, true)
+        .withTargetFileBytes(0)
+        .withOpenPartitionLimits(16, 3 * PART_BYTES / 2);
+    PartitionedRowWriter writer = new PartitionedRowWriter(output, Files.createTempDirectory("S3ParquetOutputTest-work").toFile(),
+        schema, "time", "svr", "server", config);
+    DnsRow row = new DnsRow(schema);
+    Random random = new Random(1);
+    for (int i = 0; i < 50_000; i++) {
+      row.clear();
+      DnsRowWriteSupportTest.fill(row, i);
+      row.set(schema.slot("qname"), Long.toHexString(random.nextLong()) + ".be")
+          .set(schema.slot("svr"), i % 2 == 0 ? "ns1.example.be" : "ns2.example.be");
+      writer.write(row);
+    }
+    assertTrue(writer.getEvictions() > 0);
+    writer.close();
+    List<File> files = new ArrayList<>();
+    for (String path : output.getCommitted().keySet()) {
+      files.add(s3.fileOf(BUCKET, "parquet/dnsdata/" + path));
+    }
+    assertEquals(writer.getEvictions() + 2, files.size());
+    assertEquals(50_000, ParquetFileStats.of(files).getRows());
+  }
+
+}
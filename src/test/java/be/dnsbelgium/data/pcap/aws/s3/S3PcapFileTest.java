@@ -91,6 +91,26 @@ public class S3PcapFileTest {
     assertTrue(file.isCompressed());
   }
 
+  @Test
+  public void zstdCompressed() {
+    String key = "prefix/server=dummy1.dns.com/year=2017/month=12/day=25/2017_12_25_012345_server.blabla.be_interface.pcap.zst";
+    S3PcapFile file = makeFile(key);
+    assertTrue(file.isCompressed());
+    assertEquals("2017_12_25_012345_server.blabla.be_interface.pcap.zst", file.determineLocalFileName());
+  }
+
+  @Test
+  public void localFileName() {
+    assertEquals("1514167200_amsterdam1.dns.be.p2p2.pcap0049_DONE.gz.pcap.gz",
+        makeFile("amsterdam1.dns.be/25-12-2017/1514167200_amsterdam1.dns.be.p2p2.pcap0049_DONE.gz").determineLocalFileName());
+    assertEquals("1514167200_amsterdam1.dns.be.p2p2.pcap0049_DONE.lz4.pcap.lz4",
+        makeFile("amsterdam1.dns.be/25-12-2017/1514167200_amsterdam1.dns.be.p2p2.pcap0049_DONE.lz4").determineLocalFileName());
+    assertEquals("1514167200_amsterdam1.dns.be.p2p2.pcap0049_DONE.pcap",
+        makeFile("amsterdam1.dns.be/25-12-2017/1514167200_amsterdam1.dns.be.p2p2.pcap0049_DONE").determineLocalFileName());
+    assertEquals("2017_12_25_012345_server.blabla.be_interface.pcap.gz",
+        makeFile("server=dummy1.dns.com/year=2017/month=12/day=25/2017_12_25_012345_server.blabla.be_interface.pcap.gz").determineLocalFileName());
+  }
+
   private S3ObjectSummary makeSummary(String key) {
     S3ObjectSummary summary = new S3ObjectSummary();
     summary.setBucketName("random");
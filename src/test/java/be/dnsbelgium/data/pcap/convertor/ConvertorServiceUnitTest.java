@@ -366,8 +366,8 @@ public class ConvertorServiceUnitTest {
     convertorService.createAthenaPartitions(job);
     assertEquals(ConversionJob.Status.ATHENA_PARTITIONS_CREATED, job.getStatus());
     String expected_S3_LOCATION = convertorService.getConfig().getParquetS3Location();
-    verify(athena).addPartition(day_2018_11_26, serverInfo, ATHENA_DATABASE_NAME, ATHENA_TABLE_NAME, expected_S3_LOCATION);
-    verify(athena).addPartition(day_2018_11_27, serverInfo, ATHENA_DATABASE_NAME, ATHENA_TABLE_NAME, expected_S3_LOCATION);
+    verify(athena).addPartition(day_2018_11_26, null, serverInfo, ATHENA_DATABASE_NAME, ATHENA_TABLE_NAME, expected_S3_LOCATION);
+    verify(athena).addPartition(day_2018_11_27, null, serverInfo, ATHENA_DATABASE_NAME, ATHENA_TABLE_NAME, expected_S3_LOCATION);
   }
 
   @Test
@@ -21,7 +21,7 @@ package be.dnsbelgium.data.pcap.convertor;
 
 import be.dnsbelgium.data.pcap.ip.SubnetChecks;
 import be.dnsbelgium.data.pcap.model.ServerInfo;
-import be.dnsbelgium.data.pcap.parquet.ParquetLogging;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
 import be.dnsbelgium.data.pcap.reader.PcapReaderConfig;
 import be.dnsbelgium.data.pcap.utils.FileHelper;
 import be.dnsbelgium.data.pcap.utils.GeoLookupUtil;
@@ -31,7 +31,6 @@ import org.assertj.core.util.Lists;
 import org.junit.After;
 import org.junit.Test;
 import org.springframework.core.io.ClassPathResource;
-import parquet.Log;
 
 import java.io.File;
 import java.io.IOException;
@@ -69,12 +68,6 @@ public class PcapConvertorTest {
 
   @Test
   public void convert() throws InterruptedException, IOException {
-    // for some reason these 3 statements have to be here and don't do their job when in an @Before method
-    ParquetLogging.removeHandlers();
-    parquet.Log log = Log.getLog(parquet.hadoop.ParquetFileWriter.class);
-    log.debug("this is debug");
-
-
     // use empty decoderStateFolder to avoid reading old decoder state
     File stateFolder = Files.createTempDirectory("PcapConvertorTest.state").toFile();
     // time-out needs to be high enough, otherwise asserts below will fail
@@ -82,7 +75,7 @@ public class PcapConvertorTest {
     config = new PcapReaderConfig(timeOutInMs, timeOutInMs, timeOutInMs, 48000,
         stateFolder.getAbsolutePath(), 1000);
 
-    PcapConvertor convertor = new PcapConvertor(geoLookupUtil, subnetChecks, config, fileHelper);
+    PcapConvertor convertor = new PcapConvertor(geoLookupUtil, subnetChecks, config, fileHelper, ParquetWriterConfig.defaults());
 
     ClassPathResource resource = new ClassPathResource("pcap/dns3.pcap");
     File pcapFile = resource.getFile();
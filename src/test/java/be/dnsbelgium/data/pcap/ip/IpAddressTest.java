@@ -0,0 +1,119 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.ip;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IpAddressTest {
+
+  @Test
+  public void parseIpv4() {
+    IpAddress address = IpAddress.parse("192.0.2.1");
+    assertTrue(address.isIpv4());
+    assertEquals(0, address.getHigh());
+    assertEquals(0xFFFFC0000201L, address.getLow());
+    assertEquals("192.0.2.1", address.toString());
+    assertEquals(address, IpAddress.parse("::ffff:192.0.2.1"));
+    assertEquals(address, IpAddress.parse("0:0:0:0:0:ffff:c000:201"));
+  }
+
+  @Test
+  public void parseIpv6() {
+    IpAddress address = IpAddress.parse("2001:db8::1");
+    assertFalse(address.isIpv4());
+    assertEquals(0x20010DB800000000L, address.getHigh());
+    assertEquals(1, address.getLow());
+    assertEquals("2001:db8:0:0:0:0:0:1", address.toString());
+    assertEquals(address, IpAddress.parse("2001:DB8:0::0:1%eth0"));
+    assertEquals("0:0:0:0:0:0:0:0", IpAddress.parse("::").toString());
+    assertEquals("0:0:0:0:0:0:0:1", IpAddress.parse("::1").toString());
+    assertEquals("1:0:0:0:0:0:0:0", IpAddress.parse("1::").toString());
+    assertEquals("1:2:3:4:5:6:0:8", IpAddress.parse("1:2:3:4:5:6::8").toString());
+    assertEquals("1:0:3:4:5:6:7:8", IpAddress.parse("1::3:4:5:6:7:8").toString());
+    assertEquals("1:2:3:4:5:0:0:0", IpAddress.parse("1:2:3:4:5::").toString());
+    assertEquals("64:ff9b:0:0:0:0:c000:201", IpAddress.parse("64:ff9b::192.0.2.1").toString());
+  }
+
+  @Test
+  public void invalidAddresses() {
+    String[] invalid = {"", "192.0.2", "192.0.2.256", "192.0.2.1.1", "1.2.3.04a", "example.be", ":", ":::",
+        "1::2::3", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8", "12345::", "1:", "1:2:3:4:5:6:7:1.2.3.4"};
+    for (String address : invalid) {
+      try {
+        IpAddress.parse(address);
+        fail("should not parse " + address);
+      } catch (IllegalArgumentException expected) {
+        // ok
+      }
+    }
+  }
+
+  @Test
+  public void sameAsInetAddress() throws UnknownHostException {
+    Random random = new Random(7);
+    for (int i = 0; i < 10_000; i++) {
+      byte[] bytes = new byte[random.nextBoolean() ? 4 : 16];
+      random.nextBytes(bytes);
+      if (bytes.length == 16 && random.nextBoolean()) {
+        // runs of zeros, compressed by some notations
+        int from = random.nextInt(16);
+        int to = from + random.nextInt(16 - from);
+        for (int b = from; b < to; b++) {
+          bytes[b] = 0;
+        }
+      }
+      InetAddress inetAddress = InetAddress.getByAddress(bytes);
+      IpAddress address = IpAddress.of(bytes);
+      assertEquals(inetAddress.getHostAddress(), address.toString());
+      assertEquals(address, IpAddress.parse(inetAddress.getHostAddress()));
+      assertEquals(inetAddress, address.toInetAddress());
+      assertArrayEquals(bytes, address.toBytes());
+      if (bytes.length == 16) {
+        assertEquals(address, IpAddress.parse(compress(inetAddress.getHostAddress())));
+      }
+    }
+  }
+
+  // replace the first run of zero groups by ::
+  private static String compress(String address) {
+    String padded = ":" + address + ":";
+    int start = padded.indexOf(":0:");
+    if (start < 0) {
+      return address;
+    }
+    int end = start + 2;
+    while (padded.startsWith(":0", end) && (padded.charAt(end + 2) == ':')) {
+      end += 2;
+    }
+    String compressed = padded.substring(0, start) + "::" + padded.substring(end + 1);
+    compressed = compressed.startsWith(":::") ? compressed.substring(1) : compressed;
+    compressed = compressed.endsWith(":::") ? compressed.substring(0, compressed.length() - 1) : compressed;
+    return compressed.substring(compressed.startsWith("::") ? 0 : 1,
+        compressed.length() - (compressed.endsWith("::") ? 0 : 1));
+  }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IpPrefixTest {
+
+  @Test
+  public void ipv4() {
+    IpPrefix prefix = IpPrefix.of(IpAddress.parse("192.0.2.129"), 24);
+    assertTrue(prefix.isIpv4());
+    assertEquals(24, prefix.getLength());
+    assertEquals(IpAddress.parse("192.0.2.0"), prefix.getAddress());
+    assertEquals("192.0.2.0/24", prefix.toString());
+    assertEquals(prefix, IpPrefix.of(IpAddress.parse("192.0.2.7"), 24));
+    assertEquals(prefix.hashCode(), IpPrefix.of(IpAddress.parse("192.0.2.7"), 24).hashCode());
+    assertNotEquals(prefix, IpPrefix.of(IpAddress.parse("192.0.2.0"), 25));
+    assertNotEquals(prefix, IpPrefix.of(IpAddress.parse("192.0.3.0"), 24));
+
+    assertEquals("192.0.2.128/25", IpPrefix.of(IpAddress.parse("192.0.2.129"), 25).toString());
+    assertEquals("192.0.2.129/32", IpPrefix.of(IpAddress.parse("192.0.2.129"), 33).toString());
+    assertEquals("0.0.0.0/0", IpPrefix.of(IpAddress.parse("192.0.2.129"), 0).toString());
+    assertTrue(IpPrefix.of(IpAddress.parse("192.0.2.129"), 0).isIpv4());
+  }
+
+  @Test
+  public void ipv6() {
+    IpPrefix prefix = IpPrefix.of(IpAddress.parse("2001:db8:1234:5678::1"), 56);
+    assertFalse(prefix.isIpv4());
+    assertEquals(IpAddress.parse("2001:db8:1234:5600::"), prefix.getAddress());
+    assertEquals(prefix, IpPrefix.of(IpAddress.parse("2001:db8:1234:56ff:ffff::"), 56));
+    assertNotEquals(prefix, IpPrefix.of(IpAddress.parse("2001:db8:1234:5600::"), 64));
+
+    assertEquals(IpAddress.parse("2001:db8:1234:5678::"), IpPrefix.of(IpAddress.parse("2001:db8:1234:5678::1"), 64).getAddress());
+    assertEquals(IpAddress.parse("2001:db8:1234:5678::"), IpPrefix.of(IpAddress.parse("2001:db8:1234:5678:1::1"), 72).getAddress());
+    assertEquals(IpAddress.parse("2001:db8::1"), IpPrefix.of(IpAddress.parse("2001:db8::1"), 128).getAddress());
+    assertEquals(IpAddress.parse("::"), IpPrefix.of(IpAddress.parse("2001:db8::1"), 0).getAddress());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeLength() {
+    IpPrefix.of(IpAddress.parse("192.0.2.1"), -1);
+  }
+
+}
@@ -26,7 +26,9 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.slf4j.LoggerFactory.getLogger;
 
 public class SubnetTest {
@@ -50,4 +52,21 @@ public class SubnetTest {
     assertEquals("10.20.30.40/255.255.255.255", Subnet.createInstance("10.20.30.40").toString());
   }
 
-}
\ No newline at end of file
+  @Test
+  public void isInNetWithIpAddress() throws UnknownHostException {
+    String[] subnets = {"10.20.0.0/16", "10.20.30.40", "10.20.0.0/255.255.0.0", "0.0.0.0/0", "2001:db8:85a3:880::/57",
+        "2001:db8::1", "::/0", "2001:db8::/ffff:ffff:0:0:0:0:0:0"};
+    String[] addresses = {"10.20.30.40", "10.20.255.1", "10.21.0.0", "1.2.3.4", "2001:db8:85a3:8ff::1",
+        "2001:db8:85a3:900::1", "2001:db8::1", "2001:db9::1", "::ffff:10.20.30.40", "::1"};
+    for (String range : subnets) {
+      Subnet subnet = Subnet.createInstance(range);
+      for (String address : addresses) {
+        assertEquals(range + " " + address, subnet.isInNet(InetAddress.getByName(address)),
+            subnet.isInNet(IpAddress.parse(address)));
+      }
+    }
+    assertTrue(Subnet.createInstance("10.20.0.0/16").isInNet(IpAddress.parse("10.20.30.40")));
+    assertFalse(Subnet.createInstance("::/0").isInNet(IpAddress.parse("10.20.30.40")));
+  }
+
+}
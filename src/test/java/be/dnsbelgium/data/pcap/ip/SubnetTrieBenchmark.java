@@ -0,0 +1,111 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SubnetTrie} with the linear scans over a <code>HashSet&lt;Subnet&gt;</code> it replaces in
+ * {@link SubnetCheck}: with {@link Subnet#isInNet(IpAddress)} and with the <code>BigInteger</code> based
+ * {@link Subnet#isInNet(InetAddress)}. About half of the addresses are in one of the subnets.
+ * <p>
+ * Not run by the unit tests. Run with the main method.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubnetTrieBenchmark {
+
+  private static final int ADDRESSES = 4096;
+
+  @Param({"30", "300", "3000"})
+  private int subnets;
+
+  private Set<Subnet> set;
+  private SubnetTrie trie;
+  private IpAddress[] addresses;
+  private InetAddress[] inetAddresses;
+  private int next = 0;
+
+  @Setup
+  public void setUp() throws UnknownHostException {
+    Random random = new Random(42);
+    set = new HashSet<>();
+    for (int i = 0; i < subnets; i++) {
+      set.add(Subnet.createInstance(SubnetTrieTest.randomSubnet(random)));
+    }
+    trie = SubnetTrie.of(set);
+    addresses = new IpAddress[ADDRESSES];
+    inetAddresses = new InetAddress[ADDRESSES];
+    for (int i = 0; i < ADDRESSES; i++) {
+      addresses[i] = SubnetTrieTest.randomAddress(random);
+      inetAddresses[i] = addresses[i].toInetAddress();
+    }
+  }
+
+  @Benchmark
+  public boolean linearScan() {
+    IpAddress address = addresses[next++ & (ADDRESSES - 1)];
+    for (Subnet subnet : set) {
+      if (subnet.isInNet(address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Benchmark
+  public boolean linearScanBigInteger() {
+    InetAddress address = inetAddresses[next++ & (ADDRESSES - 1)];
+    for (Subnet subnet : set) {
+      if (subnet.isInNet(address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Benchmark
+  public boolean trie() {
+    return trie.contains(addresses[next++ & (ADDRESSES - 1)]);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(SubnetTrieBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
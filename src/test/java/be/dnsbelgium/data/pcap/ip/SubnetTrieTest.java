@@ -0,0 +1,133 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.ip;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SubnetTrieTest {
+
+  private static SubnetTrie trie(String... subnets) throws UnknownHostException {
+    List<Subnet> list = new ArrayList<>();
+    for (String subnet : subnets) {
+      list.add(Subnet.createInstance(subnet));
+    }
+    return SubnetTrie.of(list);
+  }
+
+  private static boolean contains(SubnetTrie trie, String address) {
+    return trie.contains(IpAddress.parse(address));
+  }
+
+  @Test
+  public void empty() {
+    assertFalse(contains(SubnetTrie.empty(), "10.0.0.1"));
+    assertFalse(contains(SubnetTrie.of(Collections.emptyList()), "2001:db8::1"));
+  }
+
+  @Test
+  public void nestedAndAdjacentSubnets() throws UnknownHostException {
+    SubnetTrie trie = trie("10.0.0.0/8", "10.1.0.0/16", "192.0.2.0/25", "192.0.2.128/26", "192.0.2.255", "5.6.7.8/32");
+    assertEquals(6, trie.size());
+    assertTrue(contains(trie, "10.200.3.4"));
+    assertTrue(contains(trie, "10.1.2.3"));
+    assertFalse(contains(trie, "11.0.0.0"));
+    assertTrue(contains(trie, "192.0.2.0"));
+    assertTrue(contains(trie, "192.0.2.127"));
+    assertTrue(contains(trie, "192.0.2.191"));
+    assertFalse(contains(trie, "192.0.2.192"));
+    assertFalse(contains(trie, "192.0.2.254"));
+    assertTrue(contains(trie, "192.0.2.255"));
+    assertTrue(contains(trie, "5.6.7.8"));
+    assertFalse(contains(trie, "5.6.7.9"));
+  }
+
+  @Test
+  public void ipv4AndIpv6AreSeparate() throws UnknownHostException {
+    SubnetTrie trie = trie("::ffff:0:0/96", "2001:db8::/32");
+    assertFalse(contains(trie, "192.0.2.1"));
+    assertTrue(contains(trie, "2001:db8:1::1"));
+    assertFalse(contains(trie, "2001:db9::1"));
+
+    trie = trie("0.0.0.0/0");
+    assertTrue(contains(trie, "192.0.2.1"));
+    assertFalse(contains(trie, "2001:db8::1"));
+
+    trie = trie("::/0");
+    assertFalse(contains(trie, "192.0.2.1"));
+    assertTrue(contains(trie, "2001:db8::1"));
+  }
+
+  @Test
+  public void nonContiguousMask() throws UnknownHostException {
+    SubnetTrie trie = trie("10.0.5.0/255.0.255.0", "10.1.0.0/255.255.0.0");
+    assertTrue(contains(trie, "10.99.5.1"));
+    assertFalse(contains(trie, "10.99.6.1"));
+    assertTrue(contains(trie, "10.1.6.1"));
+  }
+
+  @Test
+  public void sameAsLinearScan() throws UnknownHostException {
+    Random random = new Random(1);
+    List<Subnet> subnets = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      subnets.add(Subnet.createInstance(randomSubnet(random)));
+    }
+    SubnetTrie trie = SubnetTrie.of(subnets);
+    int matches = 0;
+    for (int i = 0; i < 100_000; i++) {
+      // addresses close to the subnets, so that many of them match
+      IpAddress address = randomAddress(random);
+      boolean expected = false;
+      for (Subnet subnet : subnets) {
+        expected |= subnet.isInNet(address);
+      }
+      assertEquals(address.toString(), expected, trie.contains(address));
+      matches += expected ? 1 : 0;
+    }
+    assertTrue("matches: " + matches, matches > 10_000);
+  }
+
+  // few distinct leading bits, so that subnets overlap and share long prefixes
+  static String randomSubnet(Random random) {
+    if (random.nextBoolean()) {
+      return "10." + random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256) + "/" + (8 + random.nextInt(25));
+    }
+    return "2001:db8:" + Integer.toHexString(random.nextInt(4)) + ":" + Integer.toHexString(random.nextInt(65536))
+        + "::/" + (16 + random.nextInt(49));
+  }
+
+  static IpAddress randomAddress(Random random) {
+    if (random.nextBoolean()) {
+      return IpAddress.parse("10." + random.nextInt(8) + "." + random.nextInt(256) + "." + random.nextInt(256));
+    }
+    return IpAddress.parse("2001:db8:" + Integer.toHexString(random.nextInt(8)) + ":" + Integer.toHexString(random.nextInt(65536))
+        + "::" + Integer.toHexString(random.nextInt(65536)));
+  }
+
+}
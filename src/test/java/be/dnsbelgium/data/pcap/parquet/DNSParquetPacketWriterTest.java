@@ -19,6 +19,7 @@
 
 package be.dnsbelgium.data.pcap.parquet;
 
+import be.dnsbelgium.data.pcap.ip.IpAddress;
 import be.dnsbelgium.data.pcap.ip.SubnetChecks;
 import be.dnsbelgium.data.pcap.model.ServerInfo;
 import be.dnsbelgium.data.pcap.utils.FileHelper;
@@ -36,7 +37,6 @@ import nl.sidn.pcap.support.PacketCombination;
 import org.joda.time.DateTime;
 import org.junit.Test;
 import org.slf4j.Logger;
-import parquet.Log;
 
 import java.io.File;
 import java.io.IOException;
@@ -59,15 +59,12 @@ public class DNSParquetPacketWriterTest {
   @Test
   public void writeParquet() throws IOException {
 
-    ParquetLogging.removeHandlers();
-    parquet.Log log = Log.getLog(parquet.hadoop.ParquetFileWriter.class);
-    log.info("test");
-
     SubnetChecks checks = new SubnetChecks();
 
     GeoLookupUtil geoLookupUtil = mock(GeoLookupUtil.class);
     when(geoLookupUtil.lookupCountry(anyString())).thenReturn("BE");
     when(geoLookupUtil.lookupCountry(any(InetAddress.class) )).thenReturn("BE");
+    when(geoLookupUtil.lookupCountry(any(IpAddress.class) )).thenReturn("BE");
 
     DNSParquetPacketWriter writer = new DNSParquetPacketWriter(checks, geoLookupUtil);
     Path dir = Files.createTempDirectory("DNSParquetPacketWriterTest");
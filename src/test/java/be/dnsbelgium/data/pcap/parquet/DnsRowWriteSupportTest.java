@@ -0,0 +1,327 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.avro.AvroSchemaConverter;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DnsRowWriteSupportTest {
+
+  private final DnsRowSchema schema = DnsRowSchema.fromResource("avro/dns-query.avsc");
+
+  @Test
+  public void schemaIsConvertedFromAvro() {
+    assertEquals(new AvroSchemaConverter().convert(schema.getAvroSchema()), schema.getMessageType());
+    assertEquals(0, schema.slot("id"));
+    assertEquals(-1, schema.indexOf("no_such_column"));
+    assertFalse(schema.isOptional(schema.slot("svr")));
+    assertTrue(schema.isOptional(schema.slot("qname")));
+    assertEquals(-1, schema.defaultNumber(schema.slot("edns_padding")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void wrongType() {
+    new DnsRow(schema).set(schema.slot("qname"), 1);
+  }
+
+  @Test
+  public void readBackAsAvro() throws IOException {
+    File file = new File(Files.createTempDirectory("DnsRowWriteSupportTest").toFile(), "rows.parquet");
+    DnsRow row = new DnsRow(schema);
+    try (ParquetWriter<DnsRow> writer = DnsRowWriteSupport.builder(new LocalOutputFile(file.toPath()), schema).build()) {
+      for (int i = 0; i < 1000; i++) {
+        row.clear();
+        fill(row, i);
+        if (i % 2 == 0) {
+          row.set(schema.slot("qname"), "q" + i + ".be");
+          row.set(schema.slot("edns_padding"), 12);
+        }
+        writer.write(row);
+      }
+    }
+
+    try (ParquetReader<GenericRecord> reader = AvroParquetReader.<GenericRecord>builder(new Path(file.toURI())).build()) {
+      for (int i = 0; i < 1000; i++) {
+        GenericRecord record = reader.read();
+        assertNotNull(record);
+        assertEquals(i, record.get("id"));
+        assertEquals(1551552698000L + i, record.get("time"));
+        assertEquals("ns1.example.be", record.get("svr").toString());
+        assertEquals(i % 3 == 0, record.get("is_google"));
+        if (i % 2 == 0) {
+          assertEquals("q" + i + ".be", record.get("qname").toString());
+          assertEquals(12, record.get("edns_padding"));
+        } else {
+          assertNull(record.get("qname"));
+          assertEquals(-1, record.get("edns_padding"));
+        }
+        assertNull(record.get("ttl"));
+        assertEquals(0, record.get("res_len"));
+      }
+      assertNull(reader.read());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void missingMandatoryColumn() throws IOException {
+    File file = new File(Files.createTempDirectory("DnsRowWriteSupportTest").toFile(), "rows.parquet");
+    DnsRow row = new DnsRow(schema);
+    fill(row, 1);
+    row.clear(schema.slot("src"));
+    try (ParquetWriter<DnsRow> writer = DnsRowWriteSupport.builder(new LocalOutputFile(file.toPath()), schema).build()) {
+      writer.write(row);
+    }
+  }
+
+  @Test
+  public void partitions() throws IOException {
+    File root = Files.createTempDirectory("PartitionedRowWriter").toFile();
+    PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server");
+    DnsRow row = new DnsRow(schema);
+    for (int i = 0; i < 10; i++) {
+      fill(row, i);
+      // 2019-03-02 and 2019-03-03
+      row.set(schema.slot("time"), 1551552698000L + (i % 2) * 24 * 3600 * 1000L);
+      row.set(schema.slot("svr"), i < 5 ? "ns1.example.be" : "ns2.example.be");
+      writer.write(row);
+    }
+    assertEquals(10, writer.getRows());
+    assertEquals(4, writer.getPartitionCount());
+    List<File> files = toFiles(writer.close());
+    assertEquals(4, files.size());
+    for (File file : files) {
+      assertTrue(file.exists());
+      assertTrue(file.getName().endsWith(".parquet"));
+    }
+    assertTrue(new File(root, "year=2019/month=03/day=02/server=ns1.example.be").isDirectory());
+    assertTrue(new File(root, "year=2019/month=03/day=03/server=ns2.example.be").isDirectory());
+    assertEquals(1, new File(root, "year=2019/month=03/day=03/server=ns2.example.be").list().length);
+  }
+
+  @Test
+  public void hourPartitions() throws IOException {
+    File root = Files.createTempDirectory("PartitionedRowWriter").toFile();
+    PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server",
+        ParquetWriterConfig.defaults().withHourPartitions(true));
+    DnsRow row = new DnsRow(schema);
+    for (int i = 0; i < 10; i++) {
+      fill(row, i);
+      // 2019-03-02 18:51 and 19:51
+      row.set(schema.slot("time"), 1551552698000L + (i % 2) * 3600 * 1000L);
+      writer.write(row);
+    }
+    assertEquals(2, writer.getPartitionCount());
+    assertEquals(2, writer.close().size());
+    assertEquals(1, new File(root, "year=2019/month=03/day=02/server=ns1.example.be/hour=18").list().length);
+    assertEquals(1, new File(root, "year=2019/month=03/day=02/server=ns1.example.be/hour=19").list().length);
+  }
+
+  @Test
+  public void rollsFilesAtTargetSize() throws IOException {
+    long target = 256 * 1024;
+    ParquetWriterConfig config = new ParquetWriterConfig("SNAPPY", 64 * 1024, 8 * 1024, true).withTargetFileBytes(target);
+    for (ParquetWriterConfig setting : Arrays.asList(config, config.withSort(Collections.singletonList("qname"), 1 << 20))) {
+      File root = Files.createTempDirectory("PartitionedRowWriter").toFile();
+      PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server", setting);
+      DnsRow row = new DnsRow(schema);
+      Random random = new Random(1);
+      for (int i = 0; i < 100_000; i++) {
+        row.clear();
+        fill(row, i);
+        row.set(schema.slot("qname"), "www.domain" + random.nextInt(100_000) + ".be");
+        writer.write(row);
+      }
+      List<File> files = toFiles(writer.close());
+      assertTrue(setting + ": " + files.size(), files.size() > 2);
+      File partition = new File(root, "year=2019/month=03/day=02/server=ns1.example.be");
+      assertEquals(files.size(), partition.list().length);
+      for (File file : files) {
+        assertTrue(file.getName().endsWith(".parquet"));
+        assertEquals(partition, file.getParentFile());
+        // the size is checked every ROLL_CHECK_ROWS rows
+        assertTrue(file + " " + file.length(), file.length() < 2 * target);
+      }
+      assertEquals(100_000, ParquetFileStats.of(files).getRows());
+    }
+  }
+
+  @Test
+  public void closesLeastRecentlyUsedPartitions() throws IOException {
+    ParquetWriterConfig config = new ParquetWriterConfig("SNAPPY", 1 << 20, 8 * 1024, true).withTargetFileBytes(0);
+    File root = Files.createTempDirectory("PartitionedRowWriter").toFile();
+    PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server",
+        config.withOpenPartitionLimits(2, 1L << 30));
+    DnsRow row = new DnsRow(schema);
+    // ns1 gets rows all the time, ns2 and ns3 take turns in blocks of 2000 rows
+    for (int i = 0; i < 20_000; i++) {
+      row.clear();
+      fill(row, i);
+      row.set(schema.slot("svr"), i % 2 == 0 ? "ns1.example.be" : (i / 2000) % 2 == 0 ? "ns2.example.be" : "ns3.example.be");
+      writer.write(row);
+      assertTrue(writer.getOpenPartitionCount() <= 2);
+    }
+    // ns2 and ns3 evict each other, ns1 is never the least recently used
+    assertEquals(9, writer.getEvictions());
+    assertEquals(8, writer.getReopens());
+    List<File> files = toFiles(writer.close());
+    // the files that were closed early and the two that were still open
+    assertEquals(9 + 2, files.size());
+    assertEquals(1, new File(root, "year=2019/month=03/day=02/server=ns1.example.be").list().length);
+    assertEquals(20_000, ParquetFileStats.of(files).getRows());
+
+    // with little memory for the buffers, ns1 closes the others when its buffer grows
+    writer = new PartitionedRowWriter(Files.createTempDirectory("PartitionedRowWriter").toFile(), schema, "time", "svr",
+        "server", config.withOpenPartitionLimits(16, 128 * 1024));
+    Random random = new Random(1);
+    for (int i = 0; i < 50_000; i++) {
+      row.clear();
+      fill(row, i);
+      row.set(schema.slot("qname"), Long.toHexString(random.nextLong()) + ".be")
+          .set(schema.slot("svr"), i % 100 == 0 ? "ns" + (i % 700) + ".example.be" : "ns1.example.be");
+      writer.write(row);
+    }
+    assertTrue(writer.getEvictions() > 0);
+    assertTrue(writer.getReopens() > 0);
+    assertEquals(50_000, ParquetFileStats.of(toFiles(writer.close())).getRows());
+  }
+
+  @Test
+  public void sortedPartitions() throws IOException {
+    ParquetWriterConfig unsorted = new ParquetWriterConfig("SNAPPY", 64 * 1024, 8 * 1024, true);
+    // little sort memory, to spill runs
+    ParquetWriterConfig sorted = unsorted.withSort(Arrays.asList("domainname", "qname", "time"), 256 * 1024);
+    ParquetFileStats arrival = writeRandomQnames(unsorted, null);
+    ParquetFileStats ordered = writeRandomQnames(sorted, "qname");
+
+    assertEquals(arrival.getRows(), ordered.getRows());
+    assertTrue(ordered.getRowGroups() > 1);
+    List<String> columns = Collections.singletonList("qname");
+    assertTrue(ordered.getColumnBytes().get("qname") < arrival.getColumnBytes().get("qname"));
+    // in arrival order every row group spans a wide qname range, so lookups skip far fewer row groups
+    assertTrue(arrival.lookupScannedBytes("qname", columns) > arrival.scannedBytes(columns) / 2);
+    assertTrue(ordered.lookupScannedBytes("qname", columns) < ordered.scannedBytes(columns) / 4);
+  }
+
+  @Test
+  public void failedSortDoesNotCommitFile() throws IOException {
+    // small row groups, so that the file has rows on disk when the drain fails
+    ParquetWriterConfig config = new ParquetWriterConfig("SNAPPY", 64 * 1024, 8 * 1024, true)
+        .withSort(Collections.singletonList("time"), 1 << 20);
+    File root = Files.createTempDirectory("PartitionedRowWriter").toFile();
+    PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server", config);
+    DnsRow row = new DnsRow(schema);
+    for (int i = 0; i < 20_000; i++) {
+      row.clear();
+      fill(row, i);
+      if (i == 19_999) {
+        // the last row in time order makes the parquet writer throw
+        row.clear(schema.slot("src"));
+      }
+      writer.write(row);
+    }
+    try {
+      writer.close();
+      fail("the row without src should not be written");
+    } catch (IllegalArgumentException expected) {
+      // the sink threw during the drain
+    }
+    try (Stream<java.nio.file.Path> files = Files.walk(root.toPath())) {
+      assertEquals(Collections.emptyList(), files.filter(Files::isRegularFile).collect(Collectors.toList()));
+    }
+  }
+
+  private ParquetFileStats writeRandomQnames(ParquetWriterConfig config, String sortedOn) throws IOException {
+    File root = Files.createTempDirectory("PartitionedRowWriter").toFile();
+    PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server", config);
+    Random random = new Random(42);
+    DnsRow row = new DnsRow(schema);
+    for (int i = 0; i < 50_000; i++) {
+      row.clear();
+      fill(row, i);
+      int domain = random.nextInt(2000);
+      row.set(schema.slot("domainname"), "domain" + domain + ".be")
+          .set(schema.slot("qname"), "www.domain" + domain + ".be")
+          .set(schema.slot("svr"), i % 2 == 0 ? "ns1.example.be" : "ns2.example.be");
+      writer.write(row);
+    }
+    List<File> files = toFiles(writer.close());
+    assertEquals(2, files.size());
+    String[] left = root.list();
+    assertNotNull(left);
+    assertEquals(Collections.singletonList("year=2019"), Arrays.asList(left));
+
+    if (sortedOn != null) {
+      for (File file : files) {
+        try (ParquetReader<GenericRecord> reader = AvroParquetReader.<GenericRecord>builder(new Path(file.toURI())).build()) {
+          String previous = "";
+          GenericRecord record;
+          while ((record = reader.read()) != null) {
+            String value = record.get(sortedOn).toString();
+            assertTrue(previous + " > " + value, previous.compareTo(value) <= 0);
+            previous = value;
+          }
+        }
+      }
+    }
+    return ParquetFileStats.of(files);
+  }
+
+  public static void fill(DnsRow row, int i) {
+    DnsRowSchema schema = row.getSchema();
+    row.set(schema.slot("id"), i)
+        .set(schema.slot("unixtime"), 1551552698L + i / 1000)
+        .set(schema.slot("time"), 1551552698000L + i)
+        .set(schema.slot("ipv"), 4)
+        .set(schema.slot("prot"), 17)
+        .set(schema.slot("src"), "192.0.2." + (i & 0xFF))
+        .set(schema.slot("dst"), "198.51.100.53")
+        .set(schema.slot("dstp"), 53)
+        .set(schema.slot("qdcount"), 1)
+        .set(schema.slot("opcode"), 0)
+        .set(schema.slot("rcode"), 0)
+        .set(schema.slot("labels"), 2)
+        .set(schema.slot("svr"), "ns1.example.be")
+        .set(schema.slot("time_micro"), 1551552698000000L + i)
+        .set(schema.slot("is_google"), i % 3 == 0);
+  }
+
+  static List<File> toFiles(List<String> locations) {
+    return locations.stream().map(File::new).collect(Collectors.toList());
+  }
+
+}
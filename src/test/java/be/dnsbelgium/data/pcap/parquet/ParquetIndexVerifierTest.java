@@ -0,0 +1,102 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParquetIndexVerifierTest {
+
+  private final DnsRowSchema schema = DnsRowSchema.fromResource("avro/dns-query.avsc");
+
+  private File write(ParquetWriterConfig config) throws IOException {
+    File file = new File(Files.createTempDirectory("ParquetIndexVerifierTest").toFile(), "rows.parquet");
+    DnsRow row = new DnsRow(schema);
+    try (ParquetWriter<DnsRow> writer = config.apply(DnsRowWriteSupport.builder(new LocalOutputFile(file.toPath()), schema)).build()) {
+      for (int i = 0; i < 100_000; i++) {
+        row.clear();
+        DnsRowWriteSupportTest.fill(row, i);
+        row.set(schema.slot("qname"), "www.domain" + (i * 7919 % 20_000) + ".be");
+        writer.write(row);
+      }
+    }
+    return file;
+  }
+
+  @Test
+  public void bloomFiltersAndColumnIndexes() throws IOException {
+    ParquetWriterConfig config = new ParquetWriterConfig("SNAPPY", 1 << 20, 64 << 10, true)
+        .withBloomFilters(Arrays.asList("qname", "src"), 20_000, 0.01);
+    List<String> columns = Arrays.asList("qname", "src", "dst");
+    ParquetIndexVerifier verifier = ParquetIndexVerifier.verify(Collections.singletonList(write(config)), columns);
+
+    ParquetIndexVerifier.ColumnReport qname = verifier.getReport("qname");
+    assertTrue(qname.getRowGroups() > 0);
+    assertEquals(qname.getRowGroups(), qname.getBloomFilters());
+    assertTrue(qname.getBloomFilterBytes() > 0);
+    assertEquals(qname.getRowGroups() * 10_000, qname.getAbsentLookups());
+    assertTrue(qname.getFalsePositiveRate() + "", qname.getFalsePositiveRate() < 0.03);
+    assertEquals(qname.getRowGroups() * 2, qname.getPresentLookups());
+    assertEquals(0, qname.getFalseNegatives());
+    assertEquals(qname.getRowGroups(), qname.getColumnIndexes());
+    assertTrue(qname.getPages() >= qname.getRowGroups());
+    assertTrue(qname.getPagesPerLookup() <= qname.getPagesPerLookupWithoutIndex());
+
+    assertEquals(verifier.getReport("src").getRowGroups(), verifier.getReport("src").getBloomFilters());
+    // dst has a column index but no bloom filter
+    ParquetIndexVerifier.ColumnReport dst = verifier.getReport("dst");
+    assertEquals(0, dst.getBloomFilters());
+    assertEquals(dst.getRowGroups(), dst.getColumnIndexes());
+    assertTrue(verifier.report(), verifier.report().contains("qname"));
+  }
+
+  @Test
+  public void noBloomFilters() throws IOException {
+    ParquetWriterConfig config = ParquetWriterConfig.defaults().withBloomFilters(Collections.emptyList(), 1, 0.01);
+    ParquetIndexVerifier verifier = ParquetIndexVerifier.verify(Collections.singletonList(write(config)),
+        Collections.singletonList("qname"));
+    assertEquals(0, verifier.getReport("qname").getBloomFilters());
+    assertEquals(0, verifier.getReport("qname").getAbsentLookups());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownBloomFilterColumn() throws IOException {
+    ParquetWriterConfig config = ParquetWriterConfig.defaults()
+        .withBloomFilters(Collections.singletonList("no_such_column"), 1000, 0.01);
+    new PartitionedRowWriter(Files.createTempDirectory("ParquetIndexVerifierTest").toFile(), schema,
+        "time", "svr", "server", config);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidFpp() {
+    ParquetWriterConfig.defaults().withBloomFilters(Collections.singletonList("qname"), 1000, 1.5);
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Compares writing <code>rows</code> DNS rows through a <code>GenericRecordBuilder</code> and parquet-avro,
+ * like the Kite dataset did, with writing them through a reused {@link DnsRow} and {@link DnsRowWriteSupport}.
+ * Both write the same values to a Snappy compressed file with the same Parquet schema.
+ * <p>
+ * Not run by the unit tests. Run with the main method (add <code>-prof gc</code> to the options to see
+ * the allocation rate).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ParquetWriterBenchmark {
+
+  private static final int ADDRESSES = 50_000;
+  private static final int QNAMES = 100_000;
+
+  @Param({"1000000"})
+  private int rows;
+
+  private DnsRowSchema schema;
+  private String[] addresses;
+  private String[] qnames;
+  private String[] domains;
+  private Path file;
+
+  @Setup
+  public void setUp() throws IOException {
+    schema = DnsRowSchema.fromResource("avro/dns-query.avsc");
+    Random random = new Random(42);
+    addresses = new String[ADDRESSES];
+    for (int i = 0; i < ADDRESSES; i++) {
+      addresses[i] = "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+    qnames = new String[QNAMES];
+    domains = new String[QNAMES];
+    for (int i = 0; i < QNAMES; i++) {
+      domains[i] = "domain" + random.nextInt(1_000_000);
+      qnames[i] = "www." + domains[i] + ".be";
+    }
+    file = Files.createTempDirectory("ParquetWriterBenchmark").resolve("rows.parquet");
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public void avro() throws IOException {
+    Schema avroSchema = schema.getAvroSchema();
+    try (ParquetWriter<GenericRecord> writer = AvroParquetWriter.<GenericRecord>builder(new LocalOutputFile(file))
+        .withSchema(avroSchema)
+        .withCompressionCodec(CompressionCodecName.SNAPPY)
+        .build()) {
+      for (int i = 0; i < rows; i++) {
+        GenericRecordBuilder builder = new GenericRecordBuilder(avroSchema);
+        builder.set("id", i & 0xFFFF).set("unixtime", 1551552698L + i / 1000).set("time", 1551552698000L + i)
+            .set("qname", qnames[i % QNAMES]).set("domainname", domains[i % QNAMES])
+            .set("len", 80).set("ttl", 57).set("ipv", 4).set("prot", 17)
+            .set("src", addresses[i % ADDRESSES]).set("srcp", 1024 + (i & 0x7FFF))
+            .set("dst", "198.51.100.53").set("dstp", 53)
+            .set("aa", true).set("rd", false).set("qdcount", 1).set("ancount", 0).set("opcode", 0).set("rcode", 0)
+            .set("qtype", 1).set("qclass", 1).set("country", "BE").set("asn", "AS" + (i & 0xFF))
+            .set("labels", 3).set("res_len", 120).set("svr", "ns1.example.be")
+            .set("time_micro", 1551552698000000L + i).set("pcap_file", "ns1.example.be_1.pcap.gz")
+            .set("is_google", i % 7 == 0);
+        writer.write(builder.build());
+      }
+    }
+  }
+
+  @Benchmark
+  public void dnsRow() throws IOException {
+    Columns col = new Columns(schema);
+    DnsRow row = new DnsRow(schema);
+    try (ParquetWriter<DnsRow> writer = DnsRowWriteSupport.builder(new LocalOutputFile(file), schema)
+        .withCompressionCodec(CompressionCodecName.SNAPPY)
+        .build()) {
+      for (int i = 0; i < rows; i++) {
+        row.clear();
+        row.set(col.id, i & 0xFFFF).set(col.unixtime, 1551552698L + i / 1000).set(col.time, 1551552698000L + i)
+            .set(col.qname, qnames[i % QNAMES]).set(col.domainname, domains[i % QNAMES])
+            .set(col.len, 80).set(col.ttl, 57).set(col.ipv, 4).set(col.prot, 17)
+            .set(col.src, addresses[i % ADDRESSES]).set(col.srcp, 1024 + (i & 0x7FFF))
+            .set(col.dst, "198.51.100.53").set(col.dstp, 53)
+            .set(col.aa, true).set(col.rd, false).set(col.qdcount, 1).set(col.ancount, 0).set(col.opcode, 0)
+            .set(col.rcode, 0).set(col.qtype, 1).set(col.qclass, 1).set(col.country, "BE")
+            .set(col.asn, "AS" + (i & 0xFF)).set(col.labels, 3).set(col.res_len, 120).set(col.svr, "ns1.example.be")
+            .set(col.time_micro, 1551552698000000L + i).set(col.pcap_file, "ns1.example.be_1.pcap.gz")
+            .set(col.is_google, i % 7 == 0);
+        writer.write(row);
+      }
+    }
+  }
+
+  private static class Columns {
+
+    final int id, unixtime, time, qname, domainname, len, ttl, ipv, prot, src, srcp, dst, dstp, aa, rd, qdcount,
+        ancount, opcode, rcode, qtype, qclass, country, asn, labels, res_len, svr, time_micro, pcap_file, is_google;
+
+    Columns(DnsRowSchema schema) {
+      id = schema.slot("id");
+      unixtime = schema.slot("unixtime");
+      time = schema.slot("time");
+      qname = schema.slot("qname");
+      domainname = schema.slot("domainname");
+      len = schema.slot("len");
+      ttl = schema.slot("ttl");
+      ipv = schema.slot("ipv");
+      prot = schema.slot("prot");
+      src = schema.slot("src");
+      srcp = schema.slot("srcp");
+      dst = schema.slot("dst");
+      dstp = schema.slot("dstp");
+      aa = schema.slot("aa");
+      rd = schema.slot("rd");
+      qdcount = schema.slot("qdcount");
+      ancount = schema.slot("ancount");
+      opcode = schema.slot("opcode");
+      rcode = schema.slot("rcode");
+      qtype = schema.slot("qtype");
+      qclass = schema.slot("qclass");
+      country = schema.slot("country");
+      asn = schema.slot("asn");
+      labels = schema.slot("labels");
+      res_len = schema.slot("res_len");
+      svr = schema.slot("svr");
+      time_micro = schema.slot("time_micro");
+      pcap_file = schema.slot("pcap_file");
+      is_google = schema.slot("is_google");
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(ParquetWriterBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import be.dnsbelgium.data.pcap.convertor.ParquetBenchmark;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParquetWriterConfigTest {
+
+  private final DnsRowSchema schema = DnsRowSchema.fromResource("avro/dns-query.avsc");
+
+  @Test
+  public void defaults() {
+    ParquetWriterConfig config = ParquetWriterConfig.defaults();
+    assertEquals(CompressionCodecName.SNAPPY, config.getCodec());
+    assertEquals("SNAPPY/128MB/1024KB/dictionary", config.toString());
+    assertEquals(CompressionCodecName.GZIP, ParquetWriterConfig.codecOf(" gzip"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownCodec() {
+    new ParquetWriterConfig("deflate64", 1 << 20, 1 << 10, true);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidPageSize() {
+    new ParquetWriterConfig("SNAPPY", 1 << 20, 0, true);
+  }
+
+  @Test
+  public void benchmarkSettings() {
+    List<ParquetWriterConfig> settings = ParquetBenchmark.settings("SNAPPY, unknown,GZIP", "64,128", "1024", "true,false");
+    assertEquals(8, settings.size());
+    assertEquals("SNAPPY/64MB/1024KB/dictionary", settings.get(0).toString());
+    assertEquals("GZIP/128MB/1024KB/plain", settings.get(7).toString());
+
+    settings = ParquetBenchmark.settings("SNAPPY", "128", "1024", "true", ";domainname, qname,time");
+    assertEquals(2, settings.size());
+    assertFalse(settings.get(0).isSorted());
+    assertEquals(Arrays.asList("domainname", "qname", "time"), settings.get(1).getSortColumns());
+    assertEquals("SNAPPY/128MB/1024KB/dictionary/sort=domainname,qname,time", settings.get(1).toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidSortMemory() {
+    ParquetWriterConfig.defaults().withSort(Collections.singletonList("qname"), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxOpenPartitions() {
+    ParquetWriterConfig.defaults().withOpenPartitionLimits(0, 1 << 20);
+  }
+
+  @Test
+  public void statsOfWrittenFile() throws IOException {
+    File file = new File(Files.createTempDirectory("ParquetWriterConfigTest").toFile(), "rows.parquet");
+    ParquetWriterConfig config = new ParquetWriterConfig("GZIP", 1 << 20, 64 << 10, false);
+    DnsRow row = new DnsRow(schema);
+    try (ParquetWriter<DnsRow> writer = config.apply(DnsRowWriteSupport.builder(new LocalOutputFile(file.toPath()), schema)).build()) {
+      for (int i = 0; i < 10_000; i++) {
+        row.clear();
+        DnsRowWriteSupportTest.fill(row, i);
+        writer.write(row);
+      }
+    }
+    ParquetFileStats stats = ParquetFileStats.of(Collections.singletonList(file));
+    assertEquals(1, stats.getFiles());
+    assertEquals(10_000, stats.getRows());
+    assertEquals(file.length(), stats.getFileBytes());
+    assertEquals(schema.size(), stats.getColumnBytes().size());
+    long query = stats.scannedBytes(Arrays.asList("time", "src"));
+    long full = stats.scannedBytes(Collections.emptyList());
+    assertTrue(query > 0);
+    assertTrue(query < full);
+    assertTrue(full < file.length());
+  }
+
+  @Test
+  public void zstdRoundTrip() throws IOException {
+    File file = new File(Files.createTempDirectory("ParquetWriterConfigTest").toFile(), "rows.parquet");
+    ParquetWriterConfig config = new ParquetWriterConfig("ZSTD", 1 << 20, 64 << 10, true);
+    DnsRow row = new DnsRow(schema);
+    try (ParquetWriter<DnsRow> writer = config.apply(DnsRowWriteSupport.builder(new LocalOutputFile(file.toPath()), schema)).build()) {
+      for (int i = 0; i < 10_000; i++) {
+        row.clear();
+        DnsRowWriteSupportTest.fill(row, i);
+        writer.write(row);
+      }
+    }
+    try (ParquetFileReader reader = ParquetFileReader.open(new LocalInputFile(file.toPath()))) {
+      for (ColumnChunkMetaData column : reader.getFooter().getBlocks().get(0).getColumns()) {
+        assertEquals(CompressionCodecName.ZSTD, column.getCodec());
+      }
+    }
+    int rows = 0;
+    try (ParquetReader<GenericRecord> reader = AvroParquetReader.<GenericRecord>builder(new Path(file.toURI())).build()) {
+      GenericRecord read;
+      while ((read = reader.read()) != null) {
+        assertEquals(rows, read.get("id"));
+        assertEquals(1551552698000L + rows, read.get("time"));
+        assertEquals("192.0.2." + (rows & 0xFF), read.get("src").toString());
+        rows++;
+      }
+    }
+    assertEquals(10_000, rows);
+  }
+
+  @Test
+  public void bloomFilterNdvScalesWithFpp() {
+    assertEquals(500_000, ParquetWriterConfig.bloomFilterNdv(500_000, 0.01));
+    assertTrue(ParquetWriterConfig.bloomFilterNdv(500_000, 0.001) > 500_000);
+    assertTrue(ParquetWriterConfig.bloomFilterNdv(500_000, 0.1) < 500_000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownColumn() throws IOException {
+    File file = new File(Files.createTempDirectory("ParquetWriterConfigTest").toFile(), "rows.parquet");
+    DnsRow row = new DnsRow(schema);
+    try (ParquetWriter<DnsRow> writer = DnsRowWriteSupport.builder(new LocalOutputFile(file.toPath()), schema).build()) {
+      DnsRowWriteSupportTest.fill(row, 1);
+      writer.write(row);
+    }
+    ParquetFileStats.of(Collections.singletonList(file)).scannedBytes(Collections.singletonList("no_such_column"));
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import be.dnsbelgium.data.pcap.convertor.Metrics;
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import nl.sidn.pcap.support.PacketCombination;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class ParquetWriterPoolTest {
+
+  private final List<RecordingWriter> writers = new CopyOnWriteArrayList<>();
+
+  private PacketCombination combination(int client) {
+    IpAddress src = IpAddress.parse("10.0." + (client >> 8) + "." + (client & 0xFF));
+    return new PacketCombination(null, null, new ServerInfo("ns1.example.be"), null, null, false, "test.pcap",
+        src, IpAddress.parse("192.0.2.53"));
+  }
+
+  @Test
+  public void spreadsClientsOverWriters() {
+    ParquetWriterPool pool = new ParquetWriterPool(4, 1000, () -> {
+      RecordingWriter writer = new RecordingWriter();
+      writers.add(writer);
+      return writer;
+    });
+    assertEquals(4, pool.getThreads());
+    pool.open("/tmp/not-used");
+    for (int i = 0; i < 100_000; i++) {
+      pool.write(combination(i % 1000));
+    }
+    pool.close();
+
+    assertEquals(4, writers.size());
+    Map<IpAddress, RecordingWriter> writerOfClient = new HashMap<>();
+    int total = 0;
+    for (RecordingWriter writer : writers) {
+      assertTrue(writer.opened);
+      assertTrue(writer.closed);
+      assertTrue("every writer gets a share", writer.written.size() > 10_000);
+      total += writer.written.size();
+      for (PacketCombination combination : writer.written) {
+        RecordingWriter previous = writerOfClient.put(combination.getSrc(), writer);
+        assertTrue("a client always goes to the same writer", previous == null || previous == writer);
+      }
+    }
+    assertEquals(100_000, total);
+    assertEquals(1000, writerOfClient.size());
+    assertEquals(100_000, pool.getMetrics().getIpv4QueryCount());
+  }
+
+  @Test
+  public void failingWriter() {
+    ParquetWriterPool pool = new ParquetWriterPool(2, 100, () -> new RecordingWriter() {
+      @Override
+      public void write(PacketCombination combo) {
+        throw new IllegalArgumentException("cannot write");
+      }
+    });
+    pool.open("/tmp/not-used");
+    try {
+      for (int i = 0; i < 100_000; i++) {
+        pool.write(combination(i));
+      }
+      pool.close();
+      fail("expected the failure of the writer");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    } finally {
+      pool.cancel();
+    }
+  }
+
+  private static class RecordingWriter implements ParquetWriter {
+
+    private final List<PacketCombination> written = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
+    private boolean opened = false;
+    private boolean closed = false;
+
+    @Override
+    public void open(String path) {
+      opened = true;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public void write(PacketCombination combo) {
+      written.add(combo);
+      metrics.incrementIpv4QueryCount();
+    }
+
+    @Override
+    public Metrics getMetrics() {
+      return metrics;
+    }
+  }
+
+}
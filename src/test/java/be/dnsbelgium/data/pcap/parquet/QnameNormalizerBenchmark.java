@@ -0,0 +1,175 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import nl.sidn.dnslib.util.DomainParent;
+import nl.sidn.dnslib.util.Domaininfo;
+import nl.sidn.dnslib.util.NameUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link QnameNormalizer} with the chain it replaces in {@link DNSParquetPacketWriter}:
+ * {@link AbstractParquetPacketWriter#filter(String)}, <code>StringUtils.lowerCase</code> and
+ * <code>NameUtil.getDomain</code>. Like the decoder, every qname is a new string.
+ * <p>
+ * By default the qnames follow a Zipf distribution over 100k domain names, with the usual subdomains, random
+ * labels and about 10% of the names with random case (as resolvers that use 0x20 encoding send them) and
+ * 0.1% with non-printable characters. Pass <code>-Dqnames=file</code> with one qname per line, eg. an export
+ * of the qname column of a busy hour, to replay a real distribution.
+ * <p>
+ * Not run by the unit tests. Run with the main method (add <code>-prof gc</code> to the options to see
+ * the allocation rate).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QnameNormalizerBenchmark {
+
+  private static final int QNAMES = 1 << 20;
+  private static final int DOMAINS = 100_000;
+  private static final String[] SUBDOMAINS = {"", "www.", "www.", "mail.", "_dmarc.", "autodiscover.", "ns1.", "m."};
+
+  private char[][] qnames;
+  private int next = 0;
+
+  private final List<DomainParent> parents = new ArrayList<>();
+  private QnameNormalizer normalizer;
+  private QnameNormalizer uncached;
+
+  @Setup
+  public void setUp() throws IOException {
+    String file = System.getProperty("qnames");
+    List<String> names = file == null ? generate() : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+    qnames = new char[QNAMES][];
+    for (int i = 0; i < QNAMES; i++) {
+      qnames[i] = names.get(i % names.size()).toCharArray();
+    }
+    normalizer = new QnameNormalizer();
+    uncached = new QnameNormalizer(0);
+  }
+
+  private static List<String> generate() {
+    Random random = new Random(42);
+    // cumulative Zipf weights, exponent 1
+    double[] cumulative = new double[DOMAINS];
+    double total = 0;
+    for (int i = 0; i < DOMAINS; i++) {
+      total += 1.0 / (i + 1);
+      cumulative[i] = total;
+    }
+    List<String> names = new ArrayList<>(QNAMES);
+    for (int i = 0; i < QNAMES; i++) {
+      int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+      int domain = rank < 0 ? Math.min(-rank - 1, DOMAINS - 1) : rank;
+      String prefix = random.nextInt(20) == 0
+          ? "x" + Integer.toHexString(random.nextInt()) + "."
+          : SUBDOMAINS[random.nextInt(SUBDOMAINS.length)];
+      String qname = prefix + "domain" + domain + ".be.";
+      if (random.nextInt(10) == 0) {
+        qname = randomCase(qname, random);
+      }
+      if (random.nextInt(1000) == 0) {
+        qname = "\u0000" + qname + "\u00e9";
+      }
+      names.add(qname);
+    }
+    return names;
+  }
+
+  private static String randomCase(String qname, Random random) {
+    char[] chars = qname.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      if (random.nextBoolean()) {
+        chars[i] = Character.toUpperCase(chars[i]);
+      }
+    }
+    return new String(chars);
+  }
+
+  private String nextQname() {
+    return new String(qnames[next++ & (QNAMES - 1)]);
+  }
+
+  // same as AbstractParquetPacketWriter.filter
+  private static String filter(String str) {
+    StringBuilder filtered = new StringBuilder(str.length());
+    for (int i = 0; i < str.length(); i++) {
+      char current = str.charAt(i);
+      if (current >= 0x20 && current <= 0x7e) {
+        filtered.append(current);
+      } else {
+        filtered.append("0x").append(Integer.toHexString(current));
+      }
+    }
+    return filtered.toString();
+  }
+
+  @Benchmark
+  public void filterLowerCaseGetDomain(Blackhole blackhole) {
+    String normalizedQname = StringUtils.lowerCase(filter(nextQname()));
+    Domaininfo domaininfo = NameUtil.getDomain(normalizedQname, parents);
+    blackhole.consume(normalizedQname);
+    blackhole.consume(domaininfo.name);
+    blackhole.consume(domaininfo.labels);
+  }
+
+  @Benchmark
+  public void normalizer(Blackhole blackhole) {
+    QnameNormalizer.Name name = normalizer.normalize(nextQname());
+    blackhole.consume(name.getQname());
+    blackhole.consume(name.getDomain());
+    blackhole.consume(name.getLabels());
+  }
+
+  @Benchmark
+  public void normalizerWithoutCache(Blackhole blackhole) {
+    QnameNormalizer.Name name = uncached.normalize(nextQname());
+    blackhole.consume(name.getQname());
+    blackhole.consume(name.getDomain());
+    blackhole.consume(name.getLabels());
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(QnameNormalizerBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
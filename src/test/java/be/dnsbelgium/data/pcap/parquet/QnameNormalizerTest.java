@@ -0,0 +1,102 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import nl.sidn.dnslib.util.Domaininfo;
+import nl.sidn.dnslib.util.NameUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QnameNormalizerTest {
+
+  // what DNSParquetPacketWriter did before: filter, lowerCase and NameUtil.getDomain
+  private static String[] expected(String qname) {
+    StringBuilder filtered = new StringBuilder(qname.length());
+    for (int i = 0; i < qname.length(); i++) {
+      char current = qname.charAt(i);
+      if (current >= 0x20 && current <= 0x7e) {
+        filtered.append(current);
+      } else {
+        filtered.append("0x").append(Integer.toHexString(current));
+      }
+    }
+    String normalized = StringUtils.lowerCase(filtered.toString());
+    Domaininfo domaininfo = NameUtil.getDomain(normalized, new ArrayList<>());
+    return new String[]{normalized, domaininfo.name, String.valueOf(domaininfo.labels)};
+  }
+
+  private static void assertNormalized(QnameNormalizer normalizer, String qname) {
+    QnameNormalizer.Name name = normalizer.normalize(qname);
+    String[] expected = expected(qname);
+    assertEquals(qname, expected[0], name.getQname());
+    assertEquals(qname, expected[1], name.getDomain());
+    assertEquals(qname, expected[2], String.valueOf(name.getLabels()));
+  }
+
+  @Test
+  public void sameAsBefore() {
+    QnameNormalizer normalizer = new QnameNormalizer();
+    String[] qnames = {"www.example.be.", "www.example.be", "WWW.Example.BE.", "example.be.", "example.be", "be.",
+        "be", ".", "", "..", "a..b.", ".a.b", "a.b..", "www.exa\u0000mple.be.", "\u00e9t\u00e9.be.", "x.\u2603.",
+        "_dmarc.sub.example.be.", "A.B.C.D.E.F.G.", "with space.be.", "\u007f.be", "a.b.\u0001"};
+    for (String qname : qnames) {
+      assertNormalized(normalizer, qname);
+      // again, from the cache
+      assertNormalized(normalizer, qname);
+    }
+  }
+
+  @Test
+  public void randomNames() {
+    Random random = new Random(7);
+    String alphabet = "abcXYZ019-_.\u0000\u0009\u00e9\u0100\u2603";
+    QnameNormalizer normalizer = new QnameNormalizer(16);
+    for (int i = 0; i < 100_000; i++) {
+      int length = random.nextInt(i % 100 == 0 ? 600 : 20);
+      StringBuilder qname = new StringBuilder();
+      for (int j = 0; j < length; j++) {
+        qname.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      assertNormalized(normalizer, qname.toString());
+    }
+  }
+
+  @Test
+  public void cache() {
+    QnameNormalizer normalizer = new QnameNormalizer(4);
+    QnameNormalizer.Name first = normalizer.normalize("WWW.Example.be.");
+    assertEquals("www.example.be.", first.getQname());
+    assertSame(first, normalizer.normalize(new String("WWW.Example.be.")));
+    assertNotSame(first, normalizer.normalize("www.example.be."));
+    assertEquals(1, normalizer.getHits());
+    assertEquals(2, normalizer.getMisses());
+
+    // names that need no changes are not copied
+    String qname = "www.example.be.";
+    assertSame(qname, new QnameNormalizer(0).normalize(qname).getQname());
+    assertEquals("", new QnameNormalizer(1).normalize(null).getQname());
+  }
+
+}
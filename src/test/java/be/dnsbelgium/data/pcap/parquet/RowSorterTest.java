@@ -0,0 +1,127 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.parquet;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static be.dnsbelgium.data.pcap.parquet.DnsRowWriteSupportTest.fill;
+import static org.junit.Assert.*;
+
+public class RowSorterTest {
+
+  private final DnsRowSchema schema = DnsRowSchema.fromResource("avro/dns-query.avsc");
+  private final int qname = schema.slot("qname");
+  private final int time = schema.slot("time");
+
+  @Test
+  public void codecRoundTrip() {
+    DnsRowCodec codec = new DnsRowCodec(schema);
+    DnsRow row = new DnsRow(schema);
+    // is_google is set for multiples of 3
+    fill(row, 9);
+    row.set(qname, "www.\u00e9xample.be")
+        .set(schema.slot("edns_padding"), -12)
+        .set(schema.slot("time"), Long.MIN_VALUE + 1);
+    DnsRow copy = new DnsRow(schema);
+    copy.set(schema.slot("ttl"), 3600);
+    codec.decode(codec.encode(row), copy);
+    assertEquals(row.toString(), copy.toString());
+    assertFalse(copy.isSet(schema.slot("ttl")));
+    assertEquals(-12, copy.getInt(schema.slot("edns_padding")));
+    assertTrue(copy.getBoolean(schema.slot("is_google")));
+  }
+
+  @Test
+  public void sortsInMemory() throws IOException {
+    File spill = Files.createTempDirectory("RowSorterTest").toFile();
+    RowSorter sorter = new RowSorter(schema, new RowOrder(schema, Arrays.asList("qname", "time")), spill);
+    List<String> sorted = sort(sorter, 1000, 0);
+    assertEquals(1000, sorted.size());
+    assertSorted(sorted);
+    assertEquals(0, sorter.getRunCount());
+    assertNull(sorted.get(0));
+  }
+
+  @Test
+  public void mergesSpilledRuns() throws IOException {
+    File spill = Files.createTempDirectory("RowSorterTest").toFile();
+    RowSorter sorter = new RowSorter(schema, new RowOrder(schema, Arrays.asList("qname", "time")), spill);
+    // more runs than can be merged at once
+    List<String> sorted = sort(sorter, 10_000, 10_000 / (RowSorter.MAX_FAN_IN * 2));
+    assertEquals(10_000, sorted.size());
+    assertSorted(sorted);
+    String[] left = spill.list();
+    assertNotNull(left);
+    assertEquals(0, left.length);
+    assertEquals(0, sorter.getBufferedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownSortColumn() {
+    new RowOrder(schema, Arrays.asList("qname", "no_such_column"));
+  }
+
+  /**
+   * @return qname and time of the sorted rows
+   */
+  private List<String> sort(RowSorter sorter, int rows, int spillEvery) throws IOException {
+    Random random = new Random(rows);
+    DnsRow row = new DnsRow(schema);
+    for (int i = 0; i < rows; i++) {
+      row.clear();
+      fill(row, random.nextInt(1_000_000));
+      if (random.nextInt(10) > 0) {
+        row.set(qname, "q" + random.nextInt(500) + ".be");
+      }
+      sorter.add(row);
+      if (spillEvery > 0 && i % spillEvery == spillEvery - 1) {
+        sorter.spill();
+      }
+    }
+    List<String> sorted = new ArrayList<>();
+    sorter.drainTo(r -> sorted.add(r.getString(qname) == null ? null : r.getString(qname) + "/" + r.getLong(time)));
+    return sorted;
+  }
+
+  private void assertSorted(List<String> keys) {
+    for (int i = 1; i < keys.size(); i++) {
+      String previous = keys.get(i - 1);
+      String current = keys.get(i);
+      if (previous != null && current != null) {
+        String[] a = previous.split("/");
+        String[] b = current.split("/");
+        int compare = a[0].compareTo(b[0]);
+        assertTrue(previous + " > " + current, compare < 0 || (compare == 0 && Long.parseLong(a[1]) <= Long.parseLong(b[1])));
+      } else {
+        assertTrue(previous + " > " + current, previous == null);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.reader;
+
+import nl.sidn.pcap.support.PacketCombination;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CombinationQueueTest {
+
+  private static PacketCombination combination(int producer, int sequence) {
+    return new PacketCombination(null, null, null, false, producer + ":" + sequence);
+  }
+
+  @Test
+  public void closeFlushesPartialBatches() throws InterruptedException {
+    CombinationQueue queue = new CombinationQueue(64, 16);
+    CombinationQueue.Producer producer = queue.newProducer();
+    for (int i = 0; i < 20; i++) {
+      producer.add(combination(0, i));
+    }
+    assertEquals(16, queue.size());
+    assertEquals(16, queue.take().length);
+    queue.close();
+    PacketCombination[] rest = queue.take();
+    assertEquals(4, rest.length);
+    assertEquals("0:19", rest[3].getPcapFilename());
+    assertNull(queue.take());
+    assertEquals(20, queue.getTaken());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void losslessWithSlowConsumer() throws Exception {
+    int producers = 3;
+    int perProducer = 10_000;
+    CombinationQueue queue = new CombinationQueue(64, 16);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      CombinationQueue.Producer producer = queue.newProducer();
+      int id = p;
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < perProducer; i++) {
+          producer.add(combination(id, i));
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    // let the producers fill their rings
+    Thread.sleep(200);
+    Thread closer = new Thread(() -> {
+      try {
+        for (Thread thread : threads) {
+          thread.join();
+        }
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      queue.close();
+    });
+    closer.start();
+
+    int[] next = new int[producers];
+    PacketCombination[] batch;
+    while ((batch = queue.take()) != null) {
+      for (PacketCombination combination : batch) {
+        String[] parts = combination.getPcapFilename().split(":");
+        int producer = Integer.parseInt(parts[0]);
+        // every producer is taken in the order it added
+        assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+      }
+    }
+    closer.join();
+    for (int p = 0; p < producers; p++) {
+      assertEquals(perProducer, next[p]);
+    }
+    assertEquals(producers * perProducer, queue.getTaken());
+    assertTrue(queue.getProducerWaits() > 0);
+    assertTrue(queue.getProducerWaitNanos() > 0);
+  }
+
+  @Test
+  public void cancelReleasesWaitingProducer() throws InterruptedException {
+    CombinationQueue queue = new CombinationQueue(2, 1);
+    CombinationQueue.Producer producer = queue.newProducer();
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread thread = new Thread(() -> {
+      try {
+        for (int i = 0; i < 3; i++) {
+          producer.add(combination(0, i));
+        }
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    });
+    thread.start();
+    thread.join(200);
+    assertTrue("producer should wait for room", thread.isAlive());
+    queue.cancel();
+    thread.join();
+    assertTrue(failure.get() instanceof CancellationException);
+  }
+
+}
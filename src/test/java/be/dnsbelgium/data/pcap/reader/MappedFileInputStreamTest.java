@@ -0,0 +1,65 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.springframework.util.ResourceUtils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MappedFileInputStreamTest {
+
+  @Test
+  public void readsSameBytesAsFile() throws IOException {
+    File dns1 = ResourceUtils.getFile("classpath:pcap/dns1.pcap");
+    byte[] expected = Files.readAllBytes(dns1.toPath());
+    // use a small region size to make sure we cross region boundaries a lot
+    try (InputStream in = new MappedFileInputStream(dns1, 64)) {
+      assertEquals(expected.length, in.available());
+      byte[] actual = IOUtils.toByteArray(in);
+      assertArrayEquals(expected, actual);
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void readFullyAcrossRegions() throws IOException {
+    File dns1 = ResourceUtils.getFile("classpath:pcap/dns1.pcap");
+    byte[] expected = Files.readAllBytes(dns1.toPath());
+    try (DataInputStream in = new DataInputStream(new MappedFileInputStream(dns1, 16))) {
+      assertEquals(expected[0] & 0xFF, in.readUnsignedByte());
+      assertEquals(100, in.skip(100));
+      byte[] buffer = new byte[150];
+      in.readFully(buffer);
+      for (int i = 0; i < buffer.length; i++) {
+        assertEquals(expected[101 + i], buffer[i]);
+      }
+    }
+  }
+
+}
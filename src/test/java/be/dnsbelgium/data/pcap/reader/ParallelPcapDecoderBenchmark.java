@@ -0,0 +1,172 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import nl.sidn.pcap.packet.Packet;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.ResourceUtils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how fast {@link ParallelPcapDecoder} decodes and merges a set of PCAP files with 1, 2 and 4 threads.
+ * <p>
+ * The files are the sample dns3.pcap repeated with shifted timestamps, either SEQUENTIAL (every file covers the
+ * period after the previous file, like the rotated captures of one interface) or INTERLEAVED (all files cover
+ * the same period, like the captures of several interfaces). With a prefetch below the packets of one file, only
+ * the oldest SEQUENTIAL file is merged while the others stop after <code>prefetch</code> packets.
+ * <p>
+ * To decode real captures instead, set the system property <code>pcap.benchmark.folder</code> to a folder of
+ * uncompressed .pcap files, they are decoded in the order of their names.
+ * <p>
+ * Not run by the unit tests. Run with the main method.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelPcapDecoderBenchmark {
+
+  private static final String FOLDER_PROPERTY = "pcap.benchmark.folder";
+  private static final int PCAP_HEADER = 24;
+  private static final int RECORD_HEADER = 16;
+  private static final int FILES = 6;
+  private static final int SAMPLES_PER_FILE = 1700;
+
+  public enum Layout {SEQUENTIAL, INTERLEAVED, FOLDER}
+
+  @Param({"1", "2", "4"})
+  private int threads;
+
+  @Param({"SEQUENTIAL", "INTERLEAVED"})
+  private Layout layout;
+
+  @Param({"16384", "1048576"})
+  private int prefetch;
+
+  private File folder;
+  private List<File> files;
+  private PcapReaderConfig config;
+
+  @Setup
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("ParallelPcapDecoderBenchmark").toFile();
+    config = new PcapReaderConfig(1000, 1000, 1000, 65536, new File(folder, "state").getAbsolutePath(), 1000);
+    if (layout == Layout.FOLDER) {
+      File[] captures = new File(System.getProperty(FOLDER_PROPERTY)).listFiles((dir, name) -> name.endsWith(".pcap"));
+      if (captures == null || captures.length == 0) {
+        throw new IllegalStateException("No .pcap files in " + System.getProperty(FOLDER_PROPERTY));
+      }
+      Arrays.sort(captures);
+      files = Arrays.asList(captures);
+    } else {
+      files = generate(Files.readAllBytes(ResourceUtils.getFile("classpath:pcap/dns3.pcap").toPath()));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtils.deleteQuietly(folder);
+  }
+
+  /**
+   * Write the little endian sample FILES * SAMPLES_PER_FILE times, every copy shifted in time after the previous one.
+   */
+  private List<File> generate(byte[] sample) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(sample).order(ByteOrder.LITTLE_ENDIAN);
+    int first = buffer.getInt(PCAP_HEADER);
+    int last = first;
+    for (int offset = PCAP_HEADER; offset < sample.length; offset += RECORD_HEADER + buffer.getInt(offset + 8)) {
+      last = buffer.getInt(offset);
+    }
+    int span = last - first + 1;
+    List<File> generated = new ArrayList<>();
+    List<OutputStream> outs = new ArrayList<>();
+    try {
+      for (int i = 0; i < FILES; i++) {
+        File file = new File(folder, "capture" + i + ".pcap");
+        OutputStream out = new FileOutputStream(file);
+        outs.add(out);
+        out.write(sample, 0, PCAP_HEADER);
+        generated.add(file);
+      }
+      byte[] copy = new byte[sample.length];
+      ByteBuffer shifted = ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < FILES * SAMPLES_PER_FILE; i++) {
+        System.arraycopy(sample, 0, copy, 0, sample.length);
+        for (int offset = PCAP_HEADER; offset < copy.length; offset += RECORD_HEADER + shifted.getInt(offset + 8)) {
+          shifted.putInt(offset, shifted.getInt(offset) + i * span);
+        }
+        int file = layout == Layout.SEQUENTIAL ? i / SAMPLES_PER_FILE : i % FILES;
+        outs.get(file).write(copy, PCAP_HEADER, copy.length - PCAP_HEADER);
+      }
+    } finally {
+      for (OutputStream out : outs) {
+        out.close();
+      }
+    }
+    return generated;
+  }
+
+  @Benchmark
+  public long decode() throws InterruptedException {
+    long[] packets = new long[1];
+    ParallelPcapDecoder decoder = new ParallelPcapDecoder(files, threads, prefetch,
+        file -> new DataInputStream(FileUtils.openInputStream(file)), config);
+    decoder.decode(new ParallelPcapDecoder.Listener() {
+      @Override
+      public void onPacket(Packet packet, String fileName) {
+        packets[0]++;
+      }
+
+      @Override
+      public void onFileDone(File file) {
+      }
+    });
+    return packets[0];
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    ChainedOptionsBuilder options = new OptionsBuilder()
+        .include(ParallelPcapDecoderBenchmark.class.getSimpleName());
+    String captures = System.getProperty(FOLDER_PROPERTY);
+    if (captures != null) {
+      options.param("layout", Layout.FOLDER.name()).jvmArgsAppend("-D" + FOLDER_PROPERTY + "=" + captures);
+    }
+    new Runner(options.build()).run();
+  }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import nl.sidn.pcap.PcapReader;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.PacketCombination;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.ResourceUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelPcapDecoderTest {
+
+  private static final int PCAP_HEADER = 24;
+  private static final int RECORD_HEADER = 16;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void sameCombinationsAsSequential() throws Exception {
+    File sample = ResourceUtils.getFile("classpath:pcap/dns3.pcap");
+    List<String> sequential = combinations(Collections.singletonList(sample), 1);
+    assertEquals(19, sequential.size());
+    // chunks of 7 packets: some responses are in the file after their query,
+    // and with 2 threads the files pass through a sliding window
+    List<File> parts = split(sample, "chunk", 7, false);
+    assertEquals(6, parts.size());
+    assertEquals(sequential, combinations(parts, 2));
+  }
+
+  @Test
+  public void mergesInCaptureTimeOrder() throws Exception {
+    File sample = ResourceUtils.getFile("classpath:pcap/dns3.pcap");
+    List<String> expected = new ArrayList<>();
+    PcapReader reader = new PcapReader();
+    reader.init(open(sample));
+    for (Packet packet : reader) {
+      expected.add(packet.getTs() + "." + packet.getTsmicros());
+    }
+    reader.close();
+    assertEquals(38, expected.size());
+
+    // every third packet in the same file, so the files overlap all the time
+    List<File> parts = split(sample, "part", 3, true);
+    List<String> merged = new ArrayList<>();
+    List<String> fileNames = new ArrayList<>();
+    decode(parts, 3, null, merged, fileNames);
+    assertEquals(expected, merged);
+    for (int i = 0; i < fileNames.size(); i++) {
+      assertEquals(parts.get(i % 3).getName(), fileNames.get(i));
+    }
+  }
+
+  @Test
+  public void keepsFileOrderOnSameTimestamp() throws Exception {
+    File sample = ResourceUtils.getFile("classpath:pcap/dns1.pcap");
+    File first = temporaryFolder.newFile("b.pcap");
+    File second = temporaryFolder.newFile("a.pcap");
+    FileUtils.copyFile(sample, first);
+    FileUtils.copyFile(sample, second);
+    List<String> merged = new ArrayList<>();
+    List<String> fileNames = new ArrayList<>();
+    decode(Arrays.asList(first, second), 2, null, merged, fileNames);
+    assertEquals(4, merged.size());
+    assertEquals(merged.get(0), merged.get(1));
+    assertEquals(merged.get(2), merged.get(3));
+    assertEquals(Arrays.asList("b.pcap", "a.pcap", "b.pcap", "a.pcap"), fileNames);
+  }
+
+  @Test
+  public void continuesWithFirstReaderAndHandsOverLastReader() throws Exception {
+    File sample = ResourceUtils.getFile("classpath:pcap/dns3.pcap");
+    PcapReader first = new PcapReader();
+    ParallelPcapDecoder decoder = decode(Collections.singletonList(sample), 2, first, new ArrayList<>(), new ArrayList<>());
+    assertSame(first, decoder.getLastReader());
+
+    // the TCP flows and IP fragments of the previous run go to the first file, those of the last file are kept
+    decoder = decode(split(sample, "part", 3, true), 2, first, new ArrayList<>(), new ArrayList<>());
+    assertNotNull(decoder.getLastReader());
+    assertNotSame(first, decoder.getLastReader());
+  }
+
+  @Test
+  public void failsWithTheFileThatCouldNotBeDecoded() throws Exception {
+    File sample = ResourceUtils.getFile("classpath:pcap/dns1.pcap");
+    File missing = new File(temporaryFolder.getRoot(), "missing.pcap");
+    try {
+      decode(Arrays.asList(sample, missing), 2, null, new ArrayList<>(), new ArrayList<>());
+      fail("missing file should not decode");
+    } catch (ParallelPcapDecoder.DecodingException e) {
+      assertEquals(missing, e.getFile());
+    }
+  }
+
+  private ParallelPcapDecoder decode(List<File> files, int threads, PcapReader firstReader,
+                                     List<String> times, List<String> fileNames) throws Exception {
+    ParallelPcapDecoder decoder = new ParallelPcapDecoder(files, threads, 4096, this::open, config(threads));
+    if (firstReader != null) {
+      decoder.setFirstReader(firstReader);
+    }
+    List<File> done = new ArrayList<>();
+    decoder.decode(new ParallelPcapDecoder.Listener() {
+      @Override
+      public void onPacket(Packet packet, String fileName) {
+        times.add(packet.getTs() + "." + packet.getTsmicros());
+        fileNames.add(fileName);
+      }
+
+      @Override
+      public void onFileDone(File file) {
+        done.add(file);
+      }
+    });
+    // in the order the files run out of packets
+    assertEquals(new HashSet<>(files), new HashSet<>(done));
+    assertEquals(files.size(), done.size());
+    return decoder;
+  }
+
+  /**
+   * @return the query and response ids of every combination, in the order they were queued
+   */
+  private List<String> combinations(List<File> files, int decoderThreads) throws Exception {
+    CombinationQueue queue = new CombinationQueue(1000, 1);
+    new PcapFileReader(config(decoderThreads), new ServerInfo("ns1.dns.be"), files, queue).run();
+    List<String> combinations = new ArrayList<>();
+    PacketCombination[] batch;
+    while ((batch = queue.take()) != null) {
+      for (PacketCombination combination : batch) {
+        combinations.add(combination.getRequestMessage().getHeader().getId() + " "
+            + (combination.getResponseMessage() == null ? "-" : combination.getResponseMessage().getHeader().getId())
+            + " " + combination.isExpired());
+      }
+    }
+    return combinations;
+  }
+
+  private PcapReaderConfig config(int decoderThreads) throws IOException {
+    return new PcapReaderConfig(PcapReaderConfig.DEFAULT_TIME_OUT, PcapReaderConfig.DEFAULT_TIME_OUT,
+        PcapReaderConfig.DEFAULT_TIME_OUT, 65536, temporaryFolder.newFolder().getAbsolutePath(), 1000,
+        decoderThreads, 4096, false, 0, 0, 1, 1);
+  }
+
+  private DataInputStream open(File file) throws IOException {
+    return new DataInputStream(FileUtils.openInputStream(file));
+  }
+
+  /**
+   * Split a little endian PCAP file in several files with the same header.
+   *
+   * @param size       packets per file, or number of files when interleaved
+   * @param interleave put packet i in file i % size instead of cutting the file in chunks
+   */
+  private List<File> split(File pcap, String prefix, int size, boolean interleave) throws IOException {
+    byte[] data = Files.readAllBytes(pcap.toPath());
+    List<ByteArrayOutputStream> parts = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    for (int offset = PCAP_HEADER, i = 0; offset < data.length; i++) {
+      int part = interleave ? i % size : i / size;
+      while (parts.size() <= part) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(data, 0, PCAP_HEADER);
+        parts.add(out);
+      }
+      int length = RECORD_HEADER + buffer.getInt(offset + 8);
+      parts.get(part).write(data, offset, length);
+      offset += length;
+    }
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      File file = new File(temporaryFolder.getRoot(), prefix + i + ".pcap");
+      try (OutputStream out = new FileOutputStream(file)) {
+        parts.get(i).writeTo(out);
+      }
+      files.add(file);
+    }
+    return files;
+  }
+
+}
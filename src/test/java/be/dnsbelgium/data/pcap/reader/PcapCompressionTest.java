@@ -0,0 +1,48 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PcapCompressionTest {
+
+  @Test
+  public void fromFileName() {
+    assertEquals(PcapCompression.NONE, PcapCompression.fromFileName("dns1.pcap"));
+    assertEquals(PcapCompression.GZIP, PcapCompression.fromFileName("dns2.pcap.gz"));
+    assertEquals(PcapCompression.XZ, PcapCompression.fromFileName("dns2.pcap.xz"));
+    assertEquals(PcapCompression.ZSTD, PcapCompression.fromFileName("dns2.PCAP.ZST"));
+    assertEquals(PcapCompression.LZ4, PcapCompression.fromFileName("dns2.pcap.lz4"));
+    assertNull(PcapCompression.fromFileName("dns2.pcap.bz2"));
+    assertNull(PcapCompression.fromFileName("1527804007_amsterdam1.dns.be.p2p2.pcap4249_DONE"));
+  }
+
+  @Test
+  public void guess() {
+    assertEquals(PcapCompression.GZIP, PcapCompression.guess("1527804007_amsterdam1.dns.be.p2p2.pcap4249_DONE.gz"));
+    assertEquals(PcapCompression.ZSTD, PcapCompression.guess("1527804007_amsterdam1.dns.be.p2p2.pcap4249.zst_DONE"));
+    assertEquals(PcapCompression.NONE, PcapCompression.guess("1527804007_amsterdam1.dns.be.p2p2.pcap4249_DONE"));
+    assertEquals(".pcap.lz4", PcapCompression.guess("capture.lz4").getPcapSuffix());
+  }
+
+}
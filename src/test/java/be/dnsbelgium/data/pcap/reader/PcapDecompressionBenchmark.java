@@ -0,0 +1,124 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.ResourceUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Measures how fast {@link PcapFileReader#getDecompressorStreamWrapper} decompresses a capture
+ * for each supported {@link PcapCompression}. The capture is the sample dns3.pcap repeated up to 16 MB.
+ * <p>
+ * Not run by the unit tests. Run with the main method.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PcapDecompressionBenchmark {
+
+  private static final int CAPTURE_BYTES = 16 * 1024 * 1024;
+
+  @Param({"GZIP", "XZ", "ZSTD", "LZ4"})
+  private PcapCompression compression;
+
+  private File folder;
+  private File compressed;
+  private PcapFileReader reader;
+  private final byte[] buffer = new byte[65536];
+
+  @Setup
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("PcapDecompressionBenchmark").toFile();
+    PcapReaderConfig config = new PcapReaderConfig(1000, 1000, 1000, 65536,
+        new File(folder, "state").getAbsolutePath(), 1000);
+    reader = new PcapFileReader(config, new ServerInfo("ns1.dns.be"), new ArrayList<>(), new CombinationQueue(10, 1));
+
+    byte[] sample = Files.readAllBytes(ResourceUtils.getFile("classpath:pcap/dns3.pcap").toPath());
+    compressed = new File(folder, "capture.pcap" + compression.getExtension());
+    try (OutputStream out = compressor(new FileOutputStream(compressed))) {
+      // write one sample at a time: a single large write makes the LZ4 block compressor of
+      // commons-compress 1.18 fail with an IndexOutOfBoundsException in rewriteLastPairs
+      for (int written = 0; written < CAPTURE_BYTES; written += sample.length) {
+        out.write(sample);
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtils.deleteQuietly(folder);
+  }
+
+  private OutputStream compressor(OutputStream out) throws IOException {
+    switch (compression) {
+      case GZIP:
+        return new GzipCompressorOutputStream(out);
+      case XZ:
+        return new XZCompressorOutputStream(out);
+      case ZSTD:
+        return new ZstdCompressorOutputStream(out);
+      case LZ4:
+        return new FramedLZ4CompressorOutputStream(out);
+      default:
+        return out;
+    }
+  }
+
+  @Benchmark
+  public long decompress() throws IOException {
+    long total = 0;
+    try (InputStream in = reader.getDecompressorStreamWrapper(new FileInputStream(compressed), compressed.getName(), 65536)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(PcapDecompressionBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
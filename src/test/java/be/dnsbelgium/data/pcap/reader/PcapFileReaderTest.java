@@ -19,6 +19,181 @@
 
 package be.dnsbelgium.data.pcap.reader;
 
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import nl.sidn.dnslib.message.Header;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.dnslib.message.Question;
+import nl.sidn.dnslib.types.MessageType;
+import nl.sidn.dnslib.types.ResourceRecordClass;
+import nl.sidn.dnslib.types.ResourceRecordType;
+import nl.sidn.pcap.PcapReader;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.support.PacketCombination;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.ResourceUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
 public class PcapFileReaderTest {
 
-}
\ No newline at end of file
+  private static final PcapCompression[] COMPRESSIONS = {
+      PcapCompression.GZIP, PcapCompression.XZ, PcapCompression.ZSTD, PcapCompression.LZ4
+  };
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private PcapReaderConfig config;
+  private PcapFileReader reader;
+  private CombinationQueue queue;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new PcapReaderConfig(1000, 1000, 1000, 65536,
+        temporaryFolder.newFolder("state").getAbsolutePath(), 1000);
+    // batches of one, so every combination can be taken right away
+    queue = new CombinationQueue(10, 1);
+    reader = new PcapFileReader(config, new ServerInfo("ns1.dns.be"), new ArrayList<>(), queue);
+  }
+
+  @Test
+  public void expiresQueriesOnCaptureTime() throws InterruptedException {
+    reader.handlePacket(packet(MessageType.QUERY, 1, 100_000), "test.pcap");
+    reader.handlePacket(packet(MessageType.QUERY, 2, 100_500), "test.pcap");
+    reader.handlePacket(packet(MessageType.RESPONSE, 2, 100_600), "test.pcap");
+    assertEquals(1, queue.size());
+    // the timeout of query 1 is reached at 101.000 s
+    reader.handlePacket(packet(MessageType.QUERY, 3, 100_999), "test.pcap");
+    assertEquals(1, queue.size());
+    reader.handlePacket(packet(MessageType.QUERY, 4, 101_000), "test.pcap");
+    assertEquals(2, queue.size());
+    reader.handlePacket(packet(MessageType.QUERY, 5, 101_999), "test.pcap");
+
+    PacketCombination answered = queue.take()[0];
+    assertFalse(answered.isExpired());
+    assertEquals(2, answered.getRequestMessage().getHeader().getId());
+    PacketCombination expired = queue.take()[0];
+    assertTrue(expired.isExpired());
+    assertEquals(1, expired.getRequestMessage().getHeader().getId());
+    // query 3 expired at 101.999 s, the answered query 2 is not emitted again
+    PacketCombination next = queue.take()[0];
+    assertTrue(next.isExpired());
+    assertEquals(3, next.getRequestMessage().getHeader().getId());
+    queue.close();
+    assertNull(queue.take());
+  }
+
+  @Test
+  public void failedMatcherFailsConversion() throws InterruptedException {
+    MatchingShard[] shards = new MatchingShard[2];
+    for (int i = 0; i < shards.length; i++) {
+      RequestMatcher requestMatcher = new RequestMatcher(1000, 0, new File(config.getStateDir()));
+      shards[i] = new MatchingShard(new ServerInfo("ns1.dns.be"), queue.newProducer(), requestMatcher) {
+        @Override
+        public void handleMessage(DNSPacket dnsPacket, Message msg, IpAddress client, IpAddress server,
+                                  String fileName, long time) {
+          throw new IllegalStateException("shard failed");
+        }
+      };
+    }
+    PcapFileReader failing = new PcapFileReader(config, new ServerInfo("ns1.dns.be"), new ArrayList<>(), queue,
+        new ShardedMatcher(shards));
+    failing.handlePacket(packet(MessageType.QUERY, 1, 100_000), "test.pcap");
+    failing.doRun();
+
+    assertSame(PacketCombination.FAILURE, queue.take()[0]);
+    assertNull(queue.take());
+    // the state of the failed run is not saved
+    String[] state = new File(config.getStateDir()).list();
+    assertNotNull(state);
+    assertEquals(0, state.length);
+  }
+
+  private DNSPacket packet(MessageType type, int id, long millis) {
+    DNSPacket packet = new DNSPacket();
+    packet.setIpVersion((byte) 4);
+    packet.setProtocol((short) PcapReader.PROTOCOL_UDP);
+    packet.setTs(millis / 1000);
+    packet.setTsmicros(millis % 1000 * 1000);
+    String client = "192.0.2.1";
+    if (type == MessageType.QUERY) {
+      packet.setSrc(client);
+      packet.setSrcPort(5300 + id);
+      packet.setDst("198.51.100.1");
+      packet.setDstPort(53);
+    } else {
+      packet.setSrc("198.51.100.1");
+      packet.setSrcPort(53);
+      packet.setDst(client);
+      packet.setDstPort(5300 + id);
+    }
+    Header header = new Header();
+    header.setId(id);
+    header.setQr(type);
+    Message message = new Message();
+    message.addHeader(header);
+    message.addQuestion(new Question("q" + id + ".be", ResourceRecordType.A, ResourceRecordClass.IN));
+    packet.pushMessage(message);
+    return packet;
+  }
+
+  @Test
+  public void readsRecompressedSampleCaptures() throws IOException {
+    for (String sample : new String[]{"dns1.pcap", "dns3.pcap"}) {
+      File pcap = ResourceUtils.getFile("classpath:pcap/" + sample);
+      byte[] expected = Files.readAllBytes(pcap.toPath());
+      for (PcapCompression compression : COMPRESSIONS) {
+        File compressed = compress(expected, sample + compression.getExtension(), compression);
+        assertArrayEquals(compressed.getName(), expected, decompress(compressed));
+      }
+    }
+  }
+
+  private byte[] decompress(File file) throws IOException {
+    try (InputStream in = reader.getDecompressorStreamWrapper(new FileInputStream(file), file.getName(), 65536)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  private File compress(byte[] data, String fileName, PcapCompression compression) throws IOException {
+    File file = new File(temporaryFolder.getRoot(), fileName);
+    try (OutputStream out = compressor(new FileOutputStream(file), compression)) {
+      out.write(data);
+    }
+    return file;
+  }
+
+  private OutputStream compressor(OutputStream out, PcapCompression compression) throws IOException {
+    switch (compression) {
+      case GZIP:
+        return new GzipCompressorOutputStream(out);
+      case XZ:
+        return new XZCompressorOutputStream(out);
+      case ZSTD:
+        return new ZstdCompressorOutputStream(out);
+      case LZ4:
+        return new FramedLZ4CompressorOutputStream(out);
+      default:
+        return out;
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.springframework.util.ResourceUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelinedGzipInputStreamTest {
+
+  @Test
+  public void inflatesSamplePcap() throws IOException {
+    File dns2 = ResourceUtils.getFile("classpath:pcap/dns2.pcap.gz");
+    byte[] expected = IOUtils.toByteArray(new GZIPInputStream(new FileInputStream(dns2)));
+    try (InputStream in = new PipelinedGzipInputStream(new FileInputStream(dns2), 1024, 4, 1)) {
+      assertArrayEquals(expected, IOUtils.toByteArray(in));
+    }
+  }
+
+  @Test
+  public void inflatesMultiMemberGzip() throws IOException {
+    byte[] data = randomData(300_000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(gzip(Arrays.copyOfRange(data, 0, 100_000)));
+    out.write(gzip(Arrays.copyOfRange(data, 100_000, data.length)));
+    byte[] compressed = out.toByteArray();
+    assertFalse(PipelinedGzipInputStream.isBgzf(compressed));
+    try (InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(compressed), 1024, 2, 4)) {
+      assertArrayEquals(data, IOUtils.toByteArray(in));
+    }
+  }
+
+  @Test
+  public void inflatesBgzfMembersInParallel() throws IOException {
+    byte[] data = randomData(1_000_000);
+    byte[] compressed = bgzf(data);
+    assertTrue(PipelinedGzipInputStream.isBgzf(compressed));
+    try (InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(compressed), 1024, 4, 4)) {
+      assertArrayEquals(data, IOUtils.toByteArray(in));
+    }
+    // a regular gzip stream should also be able to read it
+    assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test(expected = IOException.class)
+  public void corruptMemberFails() throws IOException {
+    byte[] compressed = bgzf(randomData(200_000));
+    // corrupt the CRC of the first member
+    int firstMemberSize = ((compressed[16] & 0xFF) | (compressed[17] & 0xFF) << 8) + 1;
+    compressed[firstMemberSize - 8] ^= 0xFF;
+    try (InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(compressed), 1024, 4, 2)) {
+      IOUtils.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void unclosedStreamDoesNotKeepTheJvmAlive() throws IOException {
+    // more than the buffers can hold, so the threads block on a full queue
+    InputStream in = new PipelinedGzipInputStream(new ByteArrayInputStream(bgzf(randomData(1_000_000))), 1024, 2, 2);
+    assertTrue(in.read() >= 0);
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("Inflater-")) {
+        assertTrue(thread.getName(), thread.isDaemon());
+      }
+    }
+    in.close();
+  }
+
+  private byte[] randomData(int size) {
+    // compressible, but not too much
+    Random random = new Random(42);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+
+  private byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Compress the data the way bgzip does: gzip members of at most 64KB with their size in a 'BC' extra field,
+   * followed by an empty member.
+   */
+  private byte[] bgzf(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int offset = 0; offset < data.length; offset += 60_000) {
+      writeBgzfMember(out, Arrays.copyOfRange(data, offset, Math.min(data.length, offset + 60_000)));
+    }
+    writeBgzfMember(out, new byte[0]);
+    return out.toByteArray();
+  }
+
+  private void writeBgzfMember(ByteArrayOutputStream out, byte[] block) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(block);
+    deflater.finish();
+    byte[] deflated = new byte[65536];
+    int length = deflater.deflate(deflated);
+    deflater.end();
+    int blockSize = 18 + length + 8 - 1;
+    byte[] header = {
+        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+        (byte) blockSize, (byte) (blockSize >> 8)
+    };
+    out.write(header, 0, header.length);
+    out.write(deflated, 0, length);
+    CRC32 crc = new CRC32();
+    crc.update(block);
+    writeInt(out, (int) crc.getValue());
+    writeInt(out, block.length);
+  }
+
+  private void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >> 8);
+    out.write(value >> 16);
+    out.write(value >> 24);
+  }
+
+}
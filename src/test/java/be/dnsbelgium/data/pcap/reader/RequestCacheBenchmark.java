@@ -0,0 +1,129 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.RequestKey;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares {@link RequestCache} with the <code>HashMap&lt;RequestKey, MessageWrapper&gt;</code> it replaces:
+ * add <code>entries</code> queries and then match every one of them with a response.
+ * Like the decoder, every query and response creates new address and qname strings.
+ * <p>
+ * Not run by the unit tests. Run with the main method (add <code>-prof gc</code> to the options to see
+ * the allocation rate), the JVM needs a few GB of heap for 10M entries.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class RequestCacheBenchmark {
+
+  private static final int ADDRESSES = 50_000;
+  private static final int QNAMES = 100_000;
+
+  @Param({"1000000", "10000000"})
+  private int entries;
+
+  private char[][] addresses;
+  private char[][] qnames;
+  private Packet packet;
+  private Message message;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    addresses = new char[ADDRESSES][];
+    for (int i = 0; i < ADDRESSES; i++) {
+      if (i % 4 == 0) {
+        addresses[i] = ("2001:db8:" + Integer.toHexString(random.nextInt(0xFFFF)) + ":0:0:0:0:" + Integer.toHexString(i)).toCharArray();
+      } else {
+        addresses[i] = ("10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256)).toCharArray();
+      }
+    }
+    qnames = new char[QNAMES][];
+    for (int i = 0; i < QNAMES; i++) {
+      qnames[i] = ("www.domain" + random.nextInt(1_000_000) + ".be").toCharArray();
+    }
+    packet = new DNSPacket();
+    message = new Message();
+  }
+
+  // every i gives a unique combination of id, port and address
+  private int id(int i) {
+    return i & 0xFFFF;
+  }
+
+  private int port(int i) {
+    return 1024 + (i >>> 16);
+  }
+
+  private String address(int i) {
+    return new String(addresses[i % ADDRESSES]);
+  }
+
+  private String qname(int i) {
+    return new String(qnames[i % QNAMES]);
+  }
+
+  @Benchmark
+  public void hashMap(Blackhole blackhole) {
+    Map<RequestKey, MessageWrapper> cache = new HashMap<>();
+    for (int i = 0; i < entries; i++) {
+      cache.put(new RequestKey(id(i), qname(i), address(i), port(i), i), new MessageWrapper(message, packet, "a.pcap"));
+    }
+    for (int i = 0; i < entries; i++) {
+      blackhole.consume(cache.remove(new RequestKey(id(i), qname(i), address(i), port(i))));
+    }
+  }
+
+  @Benchmark
+  public void requestCache(Blackhole blackhole) {
+    RequestCache cache = new RequestCache();
+    for (int i = 0; i < entries; i++) {
+      cache.put(id(i), qname(i), address(i), port(i), i, packet, message, "a.pcap");
+    }
+    for (int i = 0; i < entries; i++) {
+      blackhole.consume(cache.remove(id(i), qname(i), address(i), port(i)));
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(RequestCacheBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
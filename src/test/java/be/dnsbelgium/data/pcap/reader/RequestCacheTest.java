@@ -0,0 +1,233 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import nl.sidn.dnslib.message.Header;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.dnslib.message.Question;
+import nl.sidn.dnslib.types.MessageType;
+import nl.sidn.dnslib.types.ResourceRecordClass;
+import nl.sidn.dnslib.types.ResourceRecordType;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.RequestKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RequestCacheTest {
+
+  private DNSPacket packet(String src, int srcPort) {
+    DNSPacket packet = new DNSPacket();
+    packet.setSrc(src);
+    packet.setSrcPort(srcPort);
+    return packet;
+  }
+
+  private Message query(int id, String qname) {
+    Header header = new Header();
+    header.setId(id);
+    header.setQr(MessageType.QUERY);
+    Message message = new Message();
+    message.addHeader(header);
+    if (qname != null) {
+      message.addQuestion(new Question(qname, ResourceRecordType.A, ResourceRecordClass.IN));
+    }
+    return message;
+  }
+
+  private void put(RequestCache cache, int id, String qname, String src, int port, long time) {
+    cache.put(id, qname, src, port, time, packet(src, port), query(id, qname), "test.pcap");
+  }
+
+  @Test
+  public void putAndRemove() {
+    RequestCache cache = new RequestCache();
+    put(cache, 1234, "example.be", "192.0.2.1", 5300, 1000);
+    put(cache, 1234, "example.be", "192.0.2.1", 5301, 1000);
+    put(cache, 1234, null, "192.0.2.1", 5300, 1000);
+    assertEquals(3, cache.size());
+
+    assertNull(cache.remove(1234, "example.be", "192.0.2.2", 5300));
+    assertNull(cache.remove(1235, "example.be", "192.0.2.1", 5300));
+    assertNull(cache.remove(1234, "example.com", "192.0.2.1", 5300));
+
+    MessageWrapper wrapper = cache.remove(1234, "example.be", "192.0.2.1", 5300);
+    assertNotNull(wrapper);
+    assertEquals(5300, wrapper.getPacket().getSrcPort());
+    assertEquals("test.pcap", wrapper.getFilename());
+    assertEquals(2, cache.size());
+    assertNull(cache.remove(1234, "example.be", "192.0.2.1", 5300));
+    assertNotNull(cache.remove(1234, null, "192.0.2.1", 5300));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void putReplacesSameKey() {
+    RequestCache cache = new RequestCache();
+    put(cache, 1, "example.be", "192.0.2.1", 5300, 1000);
+    put(cache, 1, "example.be", "192.0.2.1", 5300, 2000);
+    assertEquals(1, cache.size());
+    assertEquals(2000, cache.oldestTime());
+  }
+
+  @Test
+  public void ipv6AddressesInDifferentNotations() {
+    RequestCache cache = new RequestCache();
+    put(cache, 1, "example.be", "2001:db8:0:0:0:0:0:1", 5300, 1000);
+    assertTrue(cache.contains(1, "example.be", "2001:db8::1", 5300));
+    assertTrue(cache.contains(1, "example.be", "2001:DB8:0::0:1%eth0", 5300));
+    assertFalse(cache.contains(1, "example.be", "2001:db8::2", 5300));
+
+    put(cache, 2, "example.be", "192.0.2.1", 5300, 1000);
+    assertTrue(cache.contains(2, "example.be", "::ffff:192.0.2.1", 5300));
+    assertTrue(cache.contains(2, "example.be", "0:0:0:0:0:ffff:c000:201", 5300));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidAddress() {
+    new RequestCache().contains(1, "example.be", "192.0.2.256", 53);
+  }
+
+  @Test
+  public void formatAddress() {
+    RequestCache cache = new RequestCache();
+    put(cache, 1, "a.be", "192.0.2.1", 5300, 1000);
+    put(cache, 2, "a.be", "2001:db8::1", 5300, 1000);
+    put(cache, 3, "a.be", "::", 5300, 1000);
+    Map<RequestKey, MessageWrapper> map = cache.toMap();
+    assertEquals(3, map.size());
+    List<String> keys = new ArrayList<>();
+    for (RequestKey key : map.keySet()) {
+      keys.add(key.toString());
+    }
+    assertTrue(keys.toString(), keys.contains(new RequestKey(1, "a.be", "192.0.2.1", 5300, 1000).toString()));
+    assertTrue(keys.toString(), keys.contains(new RequestKey(2, "a.be", "2001:db8:0:0:0:0:0:1", 5300, 1000).toString()));
+    assertTrue(keys.toString(), keys.contains(new RequestKey(3, "a.be", "0:0:0:0:0:0:0:0", 5300, 1000).toString()));
+  }
+
+  @Test
+  public void toMapAndBack() {
+    RequestCache cache = new RequestCache();
+    for (int i = 0; i < 100; i++) {
+      put(cache, i, "q" + i + ".be", "10.0.0." + (i % 10), 1024 + i, 1000 + i);
+    }
+    RequestCache copy = new RequestCache();
+    copy.putAll(cache.toMap());
+    assertEquals(100, copy.size());
+    assertEquals(1000, copy.oldestTime());
+    assertEquals(1099, copy.newestTime());
+    for (int i = 0; i < 100; i++) {
+      assertNotNull(copy.remove(i, "q" + i + ".be", "10.0.0." + (i % 10), 1024 + i));
+    }
+    assertTrue(copy.isEmpty());
+  }
+
+  @Test
+  public void removeOlderThan() {
+    RequestCache cache = new RequestCache(16);
+    for (int i = 0; i < 1000; i++) {
+      put(cache, i, "q.be", "10.0.0.1", 1024 + i, i);
+    }
+    List<MessageWrapper> expired = new ArrayList<>();
+    assertEquals(500, cache.removeOlderThan(499, expired::add));
+    assertEquals(500, expired.size());
+    assertEquals(500, cache.size());
+    assertEquals(500, cache.oldestTime());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i >= 500, cache.contains(i, "q.be", "10.0.0.1", 1024 + i));
+    }
+  }
+
+  @Test
+  public void handles() {
+    RequestCache cache = new RequestCache(16);
+    long first = cache.put(1, "a.be", "192.0.2.1", 5300, 1000, packet("192.0.2.1", 5300), query(1, "a.be"), "test.pcap");
+    assertTrue(cache.isValid(first));
+    assertEquals(1000, cache.getTime(first));
+
+    // replacing the query invalidates the handle
+    long second = cache.put(1, "a.be", "192.0.2.1", 5300, 2000, packet("192.0.2.1", 5300), query(1, "a.be"), "test.pcap");
+    assertFalse(cache.isValid(first));
+    assertNull(cache.remove(first));
+
+    // a matched query invalidates the handle, also when its entry is reused
+    assertNotNull(cache.remove(1, "a.be", "192.0.2.1", 5300));
+    assertFalse(cache.isValid(second));
+    long third = cache.put(2, "b.be", "192.0.2.1", 5300, 3000, packet("192.0.2.1", 5300), query(2, "b.be"), "test.pcap");
+    assertFalse(cache.isValid(second));
+
+    List<Long> handles = new ArrayList<>();
+    cache.forEachHandle(handles::add);
+    assertEquals(1, handles.size());
+    assertEquals(third, (long) handles.get(0));
+    MessageWrapper wrapper = cache.remove(third);
+    assertNotNull(wrapper);
+    assertEquals(2, wrapper.getMessage().getHeader().getId());
+    assertTrue(cache.isEmpty());
+    assertFalse(cache.contains(2, "b.be", "192.0.2.1", 5300));
+  }
+
+  @Test
+  public void estimatedBytes() {
+    RequestCache cache = new RequestCache(16);
+    long empty = cache.estimatedBytes();
+    put(cache, 1, "a.be", "192.0.2.1", 5300, 1000);
+    long one = cache.estimatedBytes();
+    assertTrue(one > empty);
+    put(cache, 1, "a.be", "192.0.2.1", 5300, 2000);
+    assertEquals(one, cache.estimatedBytes());
+    cache.remove(1, "a.be", "192.0.2.1", 5300);
+    assertEquals(empty, cache.estimatedBytes());
+  }
+
+  @Test
+  public void behavesLikeHashMap() {
+    // random puts and removes on a small key space, to get long probe sequences and many backward shifts
+    Random random = new Random(1);
+    RequestCache cache = new RequestCache(16);
+    Map<String, Long> reference = new HashMap<>();
+    for (int i = 0; i < 200_000; i++) {
+      int id = random.nextInt(64);
+      int port = random.nextInt(4);
+      String src = random.nextBoolean() ? "192.0.2." + random.nextInt(4) : "2001:db8::" + random.nextInt(4);
+      String qname = random.nextInt(8) == 0 ? null : "q" + random.nextInt(4) + ".be";
+      String key = id + "|" + qname + "|" + src + "|" + port;
+      if (random.nextInt(3) == 0) {
+        MessageWrapper removed = cache.remove(id, qname, src, port);
+        assertEquals(key, reference.remove(key) != null, removed != null);
+      } else {
+        put(cache, id, qname, src, port, i);
+        reference.put(key, (long) i);
+      }
+      assertEquals(reference.size(), cache.size());
+    }
+    assertEquals(reference.size(), cache.toMap().size());
+    cache.removeOlderThan(Long.MAX_VALUE, w -> { });
+    assertTrue(cache.isEmpty());
+  }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.ip.IpAddress;
+import nl.sidn.dnslib.message.Header;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.dnslib.message.Question;
+import nl.sidn.dnslib.types.MessageType;
+import nl.sidn.dnslib.types.ResourceRecordClass;
+import nl.sidn.dnslib.types.ResourceRecordType;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.support.MessageWrapper;
+import nl.sidn.pcap.support.RequestKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RequestMatcherTest {
+
+  private static final long TIMEOUT = 1000;
+  private static final String CLIENT = "2001:db8::1";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private RequestMatcher matcher;
+  private final List<MessageWrapper> expired = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    matcher = new RequestMatcher(TIMEOUT, budget(10), temporaryFolder.getRoot());
+  }
+
+  /**
+   * @return budget for about <code>queries</code> queries
+   */
+  private static long budget(int queries) {
+    return queries * RequestCache.estimateBytes("q0.be", new DNSPacket());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    matcher.close();
+  }
+
+  private void add(int id, long time) {
+    DNSPacket packet = new DNSPacket();
+    packet.setSrc(CLIENT);
+    packet.setSrcPort(5300);
+    packet.setTs(time / 1000);
+    Header header = new Header();
+    header.setId(id);
+    header.setQr(MessageType.QUERY);
+    Message message = new Message();
+    message.addHeader(header);
+    message.addQuestion(new Question("q" + id + ".be", ResourceRecordType.A, ResourceRecordClass.IN));
+    packet.pushMessage(message);
+    matcher.advance(time, expired::add);
+    matcher.add(id, "q" + id + ".be", IpAddress.parse(CLIENT), 5300, time, packet, message, "test.pcap");
+  }
+
+  private MessageWrapper match(int id) {
+    return matcher.match(id, "q" + id + ".be", IpAddress.parse("2001:DB8:0::1"), 5300);
+  }
+
+  @Test
+  public void withinBudget() {
+    for (int i = 0; i < 5; i++) {
+      add(i, 1000 + i);
+    }
+    assertEquals(0, matcher.getSpilled());
+    assertEquals(3, match(3).getMessage().getHeader().getId());
+    assertNull(match(3));
+    assertEquals(1, matcher.getMemoryHits());
+    assertEquals(1, matcher.getMisses());
+    assertEquals(0.5, matcher.getHitRate(), 0.0001);
+  }
+
+  @Test
+  public void spillsOldestQueries() {
+    for (int i = 0; i < 100; i++) {
+      add(i, 1000 + i);
+    }
+    assertEquals(100, matcher.size());
+    assertTrue(matcher.getSpilled() >= 90);
+    assertEquals(matcher.getSpilled(), matcher.getSpilledSize());
+    // the oldest are spilled, the newest are in memory
+    assertEquals(0, match(0).getMessage().getHeader().getId());
+    assertEquals(99, match(99).getMessage().getHeader().getId());
+    assertEquals(1, matcher.getSpillHits());
+    assertEquals(1, matcher.getMemoryHits());
+    assertNull(match(0));
+    assertEquals(98, matcher.size());
+    assertEquals("q50.be", match(50).getMessage().getQuestions().get(0).getqName());
+  }
+
+  @Test
+  public void spilledQueriesExpire() {
+    for (int i = 0; i < 100; i++) {
+      add(i, 1000 + i);
+    }
+    assertNotNull(match(10));
+    matcher.advance(2049, expired::add);
+    // deadlines 2000 up to 2049 have been reached
+    assertEquals(49, expired.size());
+    matcher.advance(10_000, expired::add);
+    assertEquals(99, expired.size());
+    assertEquals(0, matcher.size());
+    Set<Integer> ids = new HashSet<>();
+    for (MessageWrapper wrapper : expired) {
+      assertTrue(ids.add(wrapper.getMessage().getHeader().getId()));
+    }
+    assertFalse(ids.contains(10));
+    assertEquals(expired.size(), matcher.getExpired() + matcher.getSpilledExpired());
+
+    // the spill file is reused once all spilled queries are gone
+    for (int i = 0; i < 100; i++) {
+      add(i, 20_000 + i);
+    }
+    assertNotNull(match(0));
+  }
+
+  @Test
+  public void budgetIsForTheQueriesOnly() throws IOException {
+    matcher.close();
+    // the qnames of these queries are a bit longer than q0.be
+    matcher = new RequestMatcher(TIMEOUT, budget(2100), temporaryFolder.getRoot());
+    // a burst grows the arrays of the cache, they do not shrink when the queries expire
+    for (int i = 0; i < 2000; i++) {
+      add(i, 1000);
+    }
+    matcher.advance(10_000, expired::add);
+    assertEquals(0, matcher.size());
+    for (int i = 0; i < 2000; i++) {
+      add(i, 20_000);
+    }
+    assertEquals(0, matcher.getSpilled());
+    assertTrue(matcher.getEstimatedBytes() > budget(2100));
+  }
+
+  @Test
+  public void deletesSpillSegmentsOnceExpired() throws IOException {
+    matcher.close();
+    // segments of a few records
+    matcher = new RequestMatcher(TIMEOUT, budget(10), temporaryFolder.getRoot(), 1024);
+    // a steady stream of queries that never get a response, one every ms, so most of them are spilled
+    for (int i = 0; i < 20_000; i++) {
+      add(i, 1000 + i);
+      // a query from the last timeout is never matched, so the spill file is never empty
+      assertTrue(matcher.getSpilledSize() > 0 || i < 10);
+    }
+    assertTrue(matcher.getSpilled() > 19_000);
+    assertEquals(matcher.getSpilled() - matcher.getSpilledSize(), matcher.getSpilledExpired());
+    // only the segments with queries of the last timeout are left
+    File[] files = temporaryFolder.getRoot().listFiles((dir, name) -> name.endsWith(".spill"));
+    assertNotNull(files);
+    assertEquals(matcher.getSpillSegments(), files.length);
+    assertTrue(files.length > 10);
+    assertTrue(files.length <= matcher.getSpilledSize() + 1);
+    assertTrue(matcher.getSpilledSize() < matcher.getSpilled() / 10);
+    // queries spilled long ago can still be matched as long as they wait
+    assertNotNull(match(19_000));
+  }
+
+  @Test
+  public void toMapIncludesSpilledQueries() {
+    for (int i = 0; i < 50; i++) {
+      add(i, 1000 + i);
+    }
+    Map<RequestKey, MessageWrapper> map = matcher.toMap();
+    assertEquals(50, map.size());
+    assertTrue(map.containsKey(new RequestKey(0, "q0.be", "2001:db8:0:0:0:0:0:1", 5300)));
+
+    RequestMatcher copy = new RequestMatcher(TIMEOUT, 0, temporaryFolder.getRoot());
+    copy.load(map);
+    assertEquals(50, copy.size());
+    assertNotNull(copy.match(0, "q0.be", IpAddress.parse(CLIENT), 5300));
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import nl.sidn.dnslib.message.Header;
+import nl.sidn.dnslib.message.Message;
+import nl.sidn.dnslib.message.Question;
+import nl.sidn.dnslib.types.MessageType;
+import nl.sidn.dnslib.types.ResourceRecordClass;
+import nl.sidn.dnslib.types.ResourceRecordType;
+import nl.sidn.pcap.packet.DNSPacket;
+import nl.sidn.pcap.packet.Packet;
+import nl.sidn.pcap.support.PacketCombination;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedMatcherTest {
+
+  private static final long TIMEOUT = 1000;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void resultDoesNotDependOnShards() throws Exception {
+    List<DNSPacket> packets = workload(new Random(7), 20_000);
+    List<String> single = match(packets, 1);
+    // expired queries and late responses without query
+    assertTrue(single.stream().anyMatch(s -> s.endsWith(" true")));
+    assertTrue(single.stream().anyMatch(s -> s.startsWith("- ")));
+    assertEquals(single, match(packets, 2));
+    assertEquals(single, match(packets, 4));
+  }
+
+  private List<String> match(List<DNSPacket> packets, int shards) throws InterruptedException, IOException {
+    // room for all combinations, they are only taken at the end
+    CombinationQueue queue = new CombinationQueue(1 << 16);
+    MatchingShard[] matchingShards = new MatchingShard[shards];
+    for (int i = 0; i < shards; i++) {
+      RequestMatcher requestMatcher = new RequestMatcher(TIMEOUT, 0, temporaryFolder.getRoot());
+      matchingShards[i] = new MatchingShard(new ServerInfo("ns1.dns.be"), queue.newProducer(), requestMatcher);
+    }
+    ShardedMatcher matcher = new ShardedMatcher(matchingShards);
+    matcher.start();
+    for (DNSPacket packet : packets) {
+      matcher.handleMessage(packet, packet.getMessage(), "test.pcap", packet.getTs() * 1000 + packet.getTsmicros() / 1000);
+    }
+    matcher.finish();
+    int waiting = matcher.size();
+    matcher.close();
+    queue.close();
+
+    List<String> result = new ArrayList<>();
+    PacketCombination[] batch;
+    while ((batch = queue.take()) != null) {
+      for (PacketCombination combination : batch) {
+        result.add(describe(combination.getRequest(), combination.getRequestMessage()) + " "
+            + describe(combination.getResponse(), combination.getResponseMessage()) + " " + combination.isExpired());
+      }
+    }
+    Collections.sort(result);
+    result.add("waiting " + waiting);
+    return result;
+  }
+
+  private static String describe(Packet packet, Message message) {
+    if (packet == null) {
+      return "-";
+    }
+    return message.getHeader().getId() + "@" + packet.getTs() + "." + packet.getTsmicros();
+  }
+
+  /**
+   * Queries of 500 clients, most of them answered within the timeout, some late or never.
+   */
+  private static List<DNSPacket> workload(Random random, int queries) {
+    List<DNSPacket> packets = new ArrayList<>();
+    long time = 1_559_347_200_000L;
+    for (int i = 0; i < queries; i++) {
+      time += random.nextInt(3);
+      String client = "10.0." + random.nextInt(5) + "." + random.nextInt(100);
+      int port = 1024 + random.nextInt(4);
+      int id = random.nextInt(65536);
+      packets.add(packet(MessageType.QUERY, id, client, port, time));
+      int answer = random.nextInt(10);
+      if (answer < 8) {
+        packets.add(packet(MessageType.RESPONSE, id, client, port, time + random.nextInt(50)));
+      } else if (answer == 8) {
+        packets.add(packet(MessageType.RESPONSE, id, client, port, time + TIMEOUT + random.nextInt(50)));
+      }
+    }
+    packets.sort(Comparator.comparingLong(p -> p.getTs() * 1_000_000 + p.getTsmicros()));
+    return packets;
+  }
+
+  private static DNSPacket packet(MessageType type, int id, String client, int port, long millis) {
+    DNSPacket packet = new DNSPacket();
+    packet.setIpVersion((byte) 4);
+    packet.setTs(millis / 1000);
+    packet.setTsmicros(millis % 1000 * 1000);
+    if (type == MessageType.QUERY) {
+      packet.setSrc(client);
+      packet.setSrcPort(port);
+      packet.setDst("198.51.100.1");
+      packet.setDstPort(53);
+    } else {
+      packet.setSrc("198.51.100.1");
+      packet.setSrcPort(53);
+      packet.setDst(client);
+      packet.setDstPort(port);
+    }
+    Header header = new Header();
+    header.setId(id);
+    header.setQr(type);
+    Message message = new Message();
+    message.addHeader(header);
+    message.addQuestion(new Question("q" + id + ".be", ResourceRecordType.A, ResourceRecordClass.IN));
+    packet.pushMessage(message);
+    return packet;
+  }
+
+}
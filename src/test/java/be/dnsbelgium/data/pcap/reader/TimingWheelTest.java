@@ -0,0 +1,103 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.reader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+  @Test
+  public void expiresAtDeadline() {
+    TimingWheel wheel = new TimingWheel(1000);
+    wheel.schedule(1, 1005);
+    wheel.schedule(2, 1005);
+    wheel.schedule(3, 1500);
+    List<Long> expired = new ArrayList<>();
+    assertEquals(0, wheel.advance(1004, expired::add));
+    assertEquals(2, wheel.advance(1005, expired::add));
+    assertEquals(1, wheel.size());
+    // time does not go back
+    assertEquals(0, wheel.advance(900, expired::add));
+    assertEquals(1005, wheel.getTime());
+    assertEquals(1, wheel.advance(2000, expired::add));
+    assertEquals("[1, 2, 3]", expired.toString());
+  }
+
+  @Test
+  public void pastDeadlineExpiresAtNextMillisecond() {
+    TimingWheel wheel = new TimingWheel(1000);
+    wheel.schedule(1, 10);
+    List<Long> expired = new ArrayList<>();
+    wheel.advance(1001, expired::add);
+    assertEquals(1, expired.size());
+  }
+
+  @Test
+  public void behavesLikeSortedList() {
+    // deadlines on all levels and beyond, time moving forward in small and large steps
+    Random random = new Random(1);
+    long start = 1559347200000L;
+    TimingWheel wheel = new TimingWheel(start);
+    List<long[]> pending = new ArrayList<>();
+    long now = start;
+    long handle = 0;
+    for (int round = 0; round < 2000; round++) {
+      for (int i = random.nextInt(20); i > 0; i--) {
+        long range = 1L << (2 + random.nextInt(26));
+        long deadline = now + (long) (random.nextDouble() * range);
+        wheel.schedule(handle, deadline);
+        pending.add(new long[]{handle++, deadline});
+      }
+      long time = now + (random.nextInt(10) == 0 ? random.nextInt(1 << 24) : random.nextInt(1 << 12));
+      List<Long> expired = new ArrayList<>();
+      wheel.advance(time, expired::add);
+      long previous = Long.MIN_VALUE;
+      for (long h : expired) {
+        long[] timer = find(pending, h);
+        assertTrue("timer " + h + " expired before its deadline", timer[1] <= time);
+        assertTrue("timers expire in order of their deadline", Math.max(timer[1], now + 1) >= previous);
+        previous = Math.max(timer[1], now + 1);
+        pending.remove(timer);
+      }
+      for (long[] timer : pending) {
+        assertTrue("timer " + timer[0] + " did not expire", timer[1] > time);
+      }
+      assertEquals(pending.size(), wheel.size());
+      now = time;
+    }
+  }
+
+  private static long[] find(List<long[]> timers, long handle) {
+    for (long[] timer : timers) {
+      if (timer[0] == handle) {
+        return timer;
+      }
+    }
+    throw new AssertionError("unknown handle " + handle);
+  }
+
+}
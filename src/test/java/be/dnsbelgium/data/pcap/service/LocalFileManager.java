@@ -0,0 +1,171 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stand-in for S3 in tests: the keys are paths relative to a local folder.
+ */
+public class LocalFileManager implements RemoteFileManager {
+
+  private final Path root;
+
+  public LocalFileManager(File root) {
+    this.root = root.toPath();
+  }
+
+  public File fileOf(String key) {
+    return root.resolve(key).toFile();
+  }
+
+  public List<String> keys(String prefix) {
+    return findRemoteFiles(() -> prefix).stream().map(RemoteFile::getKey).sorted().collect(Collectors.toList());
+  }
+
+  @Override
+  public List<RemoteFile> findRemoteFiles(FileFilter filter) {
+    List<RemoteFile> files = new ArrayList<>();
+    try (Stream<Path> paths = Files.walk(root)) {
+      paths.filter(Files::isRegularFile).forEach(path -> {
+        String key = root.relativize(path).toString().replace(File.separatorChar, '/');
+        if (key.startsWith(filter.getPrefix())) {
+          files.add(new LocalRemoteFile(key, path.toFile().length()));
+        }
+      });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return files;
+  }
+
+  @Override
+  public void archive(RemoteFile remoteFile) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void download(List<RemoteFile> remoteFiles) {
+    for (RemoteFile file : remoteFiles) {
+      copy(root.resolve(file.getKey()), file.getLocalPath());
+    }
+  }
+
+  @Override
+  public void tagBusy(RemoteFile file) {
+  }
+
+  @Override
+  public void untagBusy(RemoteFile file) {
+  }
+
+  @Override
+  public boolean isBusy(RemoteFile remoteFile) {
+    return false;
+  }
+
+  @Override
+  public void upload(List<RemoteFile> files) {
+    for (RemoteFile file : files) {
+      copy(file.getLocalPath(), root.resolve(file.getKey()));
+    }
+  }
+
+  @Override
+  public void delete(RemoteFile file) {
+    try {
+      Files.delete(root.resolve(file.getKey()));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not delete " + file.getKey(), e);
+    }
+  }
+
+  @Override
+  public void move(RemoteFile file, String key) {
+    try {
+      Files.move(root.resolve(file.getKey()), root.resolve(key));
+      file.setKey(key);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not move " + file.getKey() + " to " + key, e);
+    }
+  }
+
+  private static void copy(Path from, Path to) {
+    try {
+      Files.createDirectories(to.getParent());
+      Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static class LocalRemoteFile implements RemoteFile {
+
+    private final long size;
+    private String key;
+    private Path localPath;
+
+    private LocalRemoteFile(String key, long size) {
+      this.key = key;
+      this.size = size;
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public void setKey(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public Path getLocalPath() {
+      return localPath;
+    }
+
+    @Override
+    public void setLocalPath(Path path) {
+      this.localPath = path;
+    }
+
+    @Override
+    public boolean existsLocally() {
+      return localPath != null && localPath.toFile().exists();
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package be.dnsbelgium.data.pcap.service;
+
+import be.dnsbelgium.data.pcap.model.ServerInfo;
+import be.dnsbelgium.data.pcap.parquet.DNSParquetPacketWriter;
+import be.dnsbelgium.data.pcap.parquet.DnsRow;
+import be.dnsbelgium.data.pcap.parquet.DnsRowReader;
+import be.dnsbelgium.data.pcap.parquet.DnsRowSchema;
+import be.dnsbelgium.data.pcap.parquet.DnsRowWriteSupportTest;
+import be.dnsbelgium.data.pcap.parquet.ParquetFileStats;
+import be.dnsbelgium.data.pcap.parquet.ParquetWriterConfig;
+import be.dnsbelgium.data.pcap.parquet.PartitionedRowWriter;
+import be.dnsbelgium.data.pcap.utils.FileHelper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ParquetCompactorTest {
+
+  private static final LocalDate DATE = LocalDate.of(2019, 3, 2);
+  private static final ServerInfo SERVER = new ServerInfo("ns1.example.be", "ns1", "");
+  private static final String PARTITION = "dnsdata/year=2019/month=03/day=02/server=ns1/";
+
+  private final DnsRowSchema schema = DnsRowSchema.fromResource(DNSParquetPacketWriter.SCHEMA);
+  private File bucket;
+  private File work;
+  private LocalFileManager files;
+
+  @Before
+  public void setUp() throws IOException {
+    bucket = Files.createTempDirectory("ParquetCompactorTest-bucket").toFile();
+    work = Files.createTempDirectory("ParquetCompactorTest-work").toFile();
+    files = new LocalFileManager(bucket);
+  }
+
+  private ParquetCompactor compactor(RemoteFileManager files) {
+    return new ParquetCompactor(files, ParquetWriterConfig.defaults(), new FileHelper(), "dnsdata/", work,
+        Arrays.asList("qname", "time"), 4);
+  }
+
+  /**
+   * Put files with rows in arrival order in the partition, like a number of conversion jobs would.
+   */
+  private void uploadJobs(int jobs, int rowsPerJob) throws IOException {
+    Random random = new Random(jobs);
+    DnsRow row = new DnsRow(schema);
+    for (int job = 0; job < jobs; job++) {
+      File root = Files.createTempDirectory("ParquetCompactorTest-job").toFile();
+      PartitionedRowWriter writer = new PartitionedRowWriter(root, schema, "time", "svr", "server");
+      for (int i = 0; i < rowsPerJob; i++) {
+        row.clear();
+        DnsRowWriteSupportTest.fill(row, job * rowsPerJob + i);
+        row.set(schema.slot("qname"), "www.domain" + random.nextInt(1000) + ".be");
+        writer.write(row);
+      }
+      for (String location : writer.close()) {
+        File file = new File(location);
+        File target = files.fileOf(PARTITION + file.getName());
+        assertTrue(target.getParentFile().isDirectory() || target.getParentFile().mkdirs());
+        Files.copy(file.toPath(), target.toPath());
+      }
+    }
+  }
+
+  private List<File> visibleFiles() {
+    return files.keys(PARTITION).stream()
+        .filter(key -> !key.substring(PARTITION.length()).startsWith("_"))
+        .map(files::fileOf)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void compactsSmallFiles() throws IOException {
+    uploadJobs(5, 200);
+    long bytesBefore = visibleFiles().stream().mapToLong(File::length).sum();
+
+    ParquetCompactor.Result result = compactor(files).compact(DATE, SERVER);
+    assertEquals(PARTITION, result.getPrefix());
+    assertTrue(result.isCompacted());
+    assertEquals(5, result.getFilesBefore());
+    assertEquals(1, result.getFilesAfter());
+    assertEquals(1000, result.getRows());
+    assertEquals(bytesBefore, result.getBytesBefore());
+
+    // nothing but the compacted file is left
+    List<String> keys = files.keys("dnsdata/");
+    assertEquals(keys.toString(), 1, keys.size());
+    assertTrue(keys.get(0).startsWith(PARTITION));
+    assertTrue(keys.get(0).endsWith(".parquet"));
+    String[] left = work.list();
+    assertNotNull(left);
+    assertEquals(0, left.length);
+
+    int qname = schema.slot("qname");
+    int rows = 0;
+    String previous = "";
+    try (DnsRowReader reader = new DnsRowReader(files.fileOf(keys.get(0)), schema)) {
+      DnsRow row;
+      while ((row = reader.read()) != null) {
+        assertTrue(previous.compareTo(row.getString(qname)) <= 0);
+        previous = row.getString(qname);
+        assertEquals("ns1.example.be", row.getString(schema.slot("svr")));
+        rows++;
+      }
+    }
+    assertEquals(1000, rows);
+  }
+
+  @Test
+  public void leavesFewFilesAlone() throws IOException {
+    uploadJobs(3, 100);
+    ParquetCompactor.Result result = compactor(files).compact(DATE, SERVER);
+    assertFalse(result.isCompacted());
+    assertEquals(3, result.getFilesAfter());
+    assertEquals(3, files.keys(PARTITION).size());
+  }
+
+  @Test
+  public void completesInterruptedSwap() throws IOException {
+    uploadJobs(5, 200);
+    LocalFileManager failing = new LocalFileManager(bucket) {
+      private int deletes = 0;
+
+      @Override
+      public void delete(RemoteFile file) {
+        if (++deletes == 3) {
+          throw new IllegalStateException("Connection lost");
+        }
+        super.delete(file);
+      }
+    };
+    try {
+      compactor(failing).compact(DATE, SERVER);
+      fail("compaction should have failed");
+    } catch (IllegalStateException e) {
+      assertEquals("Connection lost", e.getMessage());
+    }
+    assertTrue(files.keys(PARTITION).contains(PARTITION + ParquetCompactor.MANIFEST));
+    // the compacted file and the three old files that were not deleted yet
+    assertEquals(4, visibleFiles().size());
+
+    ParquetCompactor.Result result = compactor(files).compact(DATE, SERVER);
+    assertFalse(result.isCompacted());
+    assertEquals(1, result.getFilesAfter());
+    assertEquals(1, files.keys(PARTITION).size());
+    assertEquals(1000, ParquetFileStats.of(visibleFiles()).getRows());
+  }
+
+  @Test
+  public void deletesStagedFilesOfInterruptedUpload() throws IOException {
+    uploadJobs(2, 100);
+    File staged = files.fileOf(PARTITION + ParquetCompactor.STAGED_PREFIX + "1234.parquet");
+    Files.copy(visibleFiles().get(0).toPath(), staged.toPath());
+    compactor(files).compact(DATE, SERVER);
+    assertFalse(staged.exists());
+    assertEquals(2, visibleFiles().size());
+  }
+
+}
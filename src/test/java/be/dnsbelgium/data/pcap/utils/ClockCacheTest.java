@@ -0,0 +1,119 @@
+/*
+ * This file is part of PCAP to Athena.
+ *
+ * Copyright (c) 2019 DNS Belgium.
+ *
+ * PCAP to Athena is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAP to Athena is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAP to Athena.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.dnsbelgium.data.pcap.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ClockCacheTest {
+
+  @Test
+  public void getAndPut() {
+    ClockCache<String, Integer> cache = new ClockCache<>(10);
+    assertNull(cache.get("a"));
+    cache.put("a", 1);
+    cache.put("a", 2);
+    cache.put("b", null);
+    assertEquals(1, (int) cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+
+    AtomicInteger loads = new AtomicInteger();
+    assertEquals(3, (int) cache.get("c", key -> loads.incrementAndGet() + 2));
+    assertEquals(3, (int) cache.get("c", key -> loads.incrementAndGet() + 2));
+    assertEquals(1, loads.get());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void keepsReferencedEntries() {
+    ClockCache<Integer, Integer> cache = new ClockCache<>(100);
+    for (int i = 0; i < 100; i++) {
+      cache.put(i, i);
+    }
+    // a hot set of 10 keys that is used between the inserts of keys that are used once
+    for (int i = 100; i < 10_000; i++) {
+      for (int hot = 0; hot < 10; hot++) {
+        assertNotNull("key " + hot + " at " + i, cache.get(hot * 10, key -> key));
+      }
+      cache.put(i, i);
+      assertTrue(cache.size() <= 100);
+    }
+    assertEquals(100, cache.size());
+    assertEquals(9_900, cache.getEvictions());
+    assertEquals(99_000, cache.getHits());
+  }
+
+  @Test
+  public void segments() {
+    ClockCache<Integer, Integer> cache = new ClockCache<>(100_003);
+    for (int i = 0; i < 300_000; i++) {
+      cache.put(i, i);
+    }
+    assertEquals(100_003, cache.size());
+    assertEquals(300_000 - 100_003, cache.getEvictions());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidCapacity() {
+    new ClockCache<>(0);
+  }
+
+  @Test
+  public void concurrentUse() throws Exception {
+    ClockCache<Integer, Integer> cache = new ClockCache<>(5_000);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int seed = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 200_000; i++) {
+          // skewed: most lookups go to a few thousand keys
+          int key = (i * 31 + seed) % (i % 4 == 0 ? 50_000 : 2_000);
+          assertEquals(key * 2, (int) cache.get(key, k -> k * 2));
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(cache.size() <= 5_000);
+    assertEquals(800_000, cache.getHits() + cache.getMisses());
+    assertTrue(cache.toString(), cache.getHitRate() > 0.5);
+  }
+
+}
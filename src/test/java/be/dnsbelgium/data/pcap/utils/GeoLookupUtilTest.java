@@ -23,7 +23,9 @@ import be.dnsbelgium.data.pcap.PcapToAthenaApplication;
 import be.dnsbelgium.data.pcap.ip.Quad9SubnetFetcher;
 import com.google.common.collect.Lists;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -32,14 +34,20 @@ import org.springframework.test.annotation.IfProfileValue;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.slf4j.LoggerFactory.getLogger;
 
 @RunWith(SpringRunner.class)
@@ -48,6 +56,9 @@ import static org.slf4j.LoggerFactory.getLogger;
 @IfProfileValue(name="test-groups", value= "aws-integration-tests")
 public class GeoLookupUtilTest {
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private GeoLookupUtil geoLookup;
 
   private static final Logger logger = getLogger(GeoLookupUtilTest.class);
@@ -185,4 +196,32 @@ public class GeoLookupUtilTest {
     System.out.println("byAddress = " + byAddress);
   }
 
+  @Test
+  public void reloadIfChanged() throws IOException {
+    File copy = temporaryFolder.newFolder("maxmind");
+    for (String name : new String[]{"GeoLite2-Country.mmdb", "GeoLite2-ASN.mmdb"}) {
+      Files.copy(new File(folder, name).toPath(), new File(copy, name).toPath());
+    }
+    GeoLookupUtil reloading = new GeoLookupUtil(copy.getAbsolutePath(), 128);
+    AtomicInteger reloads = new AtomicInteger();
+    reloading.addReloadListener(reloads::incrementAndGet);
+    String version = reloading.getDatabaseVersion();
+    assertFalse(reloading.reloadIfChanged());
+
+    File asn = new File(copy, "GeoLite2-ASN.mmdb");
+    assertTrue(asn.setLastModified(asn.lastModified() - 60_000));
+    // only loaded when the file did not change since the previous check
+    assertFalse(reloading.reloadIfChanged());
+    assertTrue(reloading.reloadIfChanged());
+    assertEquals(1, reloads.get());
+    assertEquals(version, reloading.getDatabaseVersion());
+    assertEquals("BE", reloading.lookupCountry("81.164.126.240"));
+    assertEquals("6848", reloading.lookupASN("81.164.126.240"));
+
+    // overwriting a file in place must not affect the loaded databases
+    new FileOutputStream(asn).close();
+    assertEquals("15169", reloading.lookupASN("8.8.8.8"));
+    reloading.close();
+  }
+
 }